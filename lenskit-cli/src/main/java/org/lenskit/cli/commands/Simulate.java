@@ -26,6 +26,7 @@ package org.lenskit.cli.commands;
 
 import com.google.auto.service.AutoService;
 import com.google.common.base.Stopwatch;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.Namespace;
 import org.lenskit.cli.Command;
@@ -73,6 +74,35 @@ public class Simulate implements Command {
               .setDefault(86400L)
               .metavar("SECONDS")
               .help("Rebuild Period for next build");
+        parser.addArgument("--incremental")
+              .action(Arguments.storeTrue())
+              .help("build the model once, then apply each rebuild period's ratings to updatable models " +
+                    "instead of rebuilding; the time taken by each update is reported in the UpdateTime column");
+        parser.addArgument("-j", "--thread-count")
+              .type(Integer.class)
+              .metavar("N")
+              .setDefault(1)
+              .help("evaluate the ratings between model changes with N threads (0 for all processors)");
+        parser.addArgument("--sort-buffer")
+              .type(Integer.class)
+              .metavar("N")
+              .setDefault(0)
+              .help("stream the ratings and sort them in runs of at most N ratings, spilling runs to temporary " +
+                    "files, instead of loading and sorting all ratings in memory");
+        parser.addArgument("--sort-dir")
+              .type(File.class)
+              .metavar("DIR")
+              .help("write sort spill files to DIR instead of the system temporary directory");
+        parser.addArgument("--deletions")
+              .type(File.class)
+              .metavar("FILE")
+              .help("replay deletion requests from the data manifest FILE, containing 'deletion' entities " +
+                    "with a timestamp and a user, an item, or both");
+        parser.addArgument("--deletion-output")
+              .type(File.class)
+              .metavar("FILE")
+              .setDefault(new File("deletions.csv"))
+              .help("write the effects of deletion requests to FILE");
         parser.addArgument("config")
               .type(File.class)
               .metavar("CONFIG")
@@ -101,8 +131,16 @@ public class Simulate implements Command {
 
         eval.setListSize(ctx.getListSize());
         eval.setRebuildPeriod(ctx.getRebuildPeriod());
+        eval.setIncremental(ctx.isIncremental());
+        eval.setThreadCount(ctx.getThreadCount());
+
+        eval.setSortBufferSize(ctx.getSortBufferSize());
+        File sortDir = ctx.getSortDirectory();
+        if (sortDir != null) {
+            eval.setSortDirectory(sortDir.toPath());
+        }
 
-        eval.setDataSource(input.getDAO());
+        eval.setDataSource(input.getSource());
         File out = ctx.getOutputFile();
         if (out != null) {
             eval.setOutputFile(out);
@@ -111,6 +149,15 @@ public class Simulate implements Command {
         if (out != null) {
             eval.setExtendedOutputFile(out.toPath());
         }
+        File deletions = ctx.getDeletionFile();
+        if (deletions != null) {
+            try {
+                eval.setDeletionSource(deletions);
+            } catch (IOException e) {
+                throw new LenskitCommandException("cannot load deletions", e);
+            }
+            eval.setDeletionOutputFile(ctx.getDeletionOutputFile());
+        }
 
         List<AlgorithmInstance> algos = AlgorithmInstance.load(ctx.getConfigFile().toPath(), "algorithm",
                                                                environment.getClassLoader());
@@ -158,5 +205,29 @@ public class Simulate implements Command {
         int getListSize() {
             return options.get("list_size");
         }
+
+        File getDeletionFile() {
+            return options.get("deletions");
+        }
+
+        File getDeletionOutputFile() {
+            return options.get("deletion_output");
+        }
+
+        boolean isIncremental() {
+            return options.getBoolean("incremental");
+        }
+
+        int getThreadCount() {
+            return options.get("thread_count");
+        }
+
+        int getSortBufferSize() {
+            return options.get("sort_buffer");
+        }
+
+        File getSortDirectory() {
+            return options.get("sort_dir");
+        }
     }
 }
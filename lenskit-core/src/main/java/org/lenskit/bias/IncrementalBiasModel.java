@@ -0,0 +1,341 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.jcip.annotations.ThreadSafe;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.UpdatableModel;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.HashKeyIndex;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Base class for bias models that can be updated in place.  The model keeps running rating sums and counts for the
+ * whole data set and for each user and item, so single ratings can be added or removed in constant time.  Biases are
+ * computed on demand from the running sums with the same formulas as the corresponding batch providers, and
+ * {@link #snapshot()} freezes the current state into an immutable model for use by scorers.
+ *
+ * The model keeps each user's current rating of each item, as in the user rating vectors the batch providers are
+ * built from: adding a rating for a user-item pair that is already in the model replaces the old value.
+ *
+ * @since 3.0
+ */
+@ThreadSafe
+public abstract class IncrementalBiasModel implements BiasModel, UpdatableModel, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 16;
+
+    protected final double damping;
+
+    private double globalSum;
+    private int globalCount;
+
+    private final HashKeyIndex userIndex = new HashKeyIndex();
+    private double[] userSums = new double[INITIAL_CAPACITY];
+    private int[] userCounts = new int[INITIAL_CAPACITY];
+
+    private final HashKeyIndex itemIndex = new HashKeyIndex();
+    private double[] itemSums = new double[INITIAL_CAPACITY];
+    private int[] itemCounts = new int[INITIAL_CAPACITY];
+
+    private final Long2ObjectMap<Long2DoubleMap> userRatings = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Construct an empty model.
+     * @param damp The damping term, pulling sparse users and items towards the global mean.
+     */
+    protected IncrementalBiasModel(double damp) {
+        Preconditions.checkArgument(damp >= 0, "damping cannot be negative");
+        damping = damp;
+    }
+
+    /**
+     * Add every user's ratings to the model.
+     * @param dao The rating vector DAO.
+     */
+    protected final void addRatings(RatingVectorPDAO dao) {
+        try (ObjectStream<IdBox<Long2DoubleMap>> users = dao.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user: users) {
+                for (Long2DoubleMap.Entry e: user.getValue().long2DoubleEntrySet()) {
+                    addRating(user.getId(), e.getLongKey(), e.getDoubleValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the damping term.
+     * @return The damping term.
+     */
+    public double getDamping() {
+        return damping;
+    }
+
+    /**
+     * Add a rating to the model, replacing the user's previous rating of the item (if any).
+     * @param user The user ID.
+     * @param item The item ID.
+     * @param value The rating value.
+     */
+    public synchronized void addRating(long user, long item, double value) {
+        Long2DoubleMap ratings = userRatings.get(user);
+        if (ratings == null) {
+            ratings = new Long2DoubleOpenHashMap();
+            ratings.defaultReturnValue(Double.NaN);
+            userRatings.put(user, ratings);
+        }
+        double old = ratings.put(item, value);
+        if (!Double.isNaN(old)) {
+            // a re-rating: only the value changes
+            double delta = value - old;
+            globalSum += delta;
+            userSums[userIndex.getIndex(user)] += delta;
+            itemSums[itemIndex.getIndex(item)] += delta;
+            return;
+        }
+
+        int uidx = userIndex.internId(user);
+        if (uidx >= userSums.length) {
+            userSums = Arrays.copyOf(userSums, userSums.length * 2);
+            userCounts = Arrays.copyOf(userCounts, userCounts.length * 2);
+        }
+        int iidx = itemIndex.internId(item);
+        if (iidx >= itemSums.length) {
+            itemSums = Arrays.copyOf(itemSums, itemSums.length * 2);
+            itemCounts = Arrays.copyOf(itemCounts, itemCounts.length * 2);
+        }
+
+        globalSum += value;
+        globalCount += 1;
+        userSums[uidx] += value;
+        userCounts[uidx] += 1;
+        itemSums[iidx] += value;
+        itemCounts[iidx] += 1;
+    }
+
+    /**
+     * Remove a user's current rating of an item from the model.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the rating was removed, {@code false} if the user has not rated the item.
+     */
+    public synchronized boolean removeRating(long user, long item) {
+        Long2DoubleMap ratings = userRatings.get(user);
+        if (ratings == null || !ratings.containsKey(item)) {
+            return false;
+        }
+        double value = ratings.remove(item);
+        if (ratings.isEmpty()) {
+            userRatings.remove(user);
+        }
+        int uidx = userIndex.getIndex(user);
+        int iidx = itemIndex.getIndex(item);
+
+        globalCount -= 1;
+        userCounts[uidx] -= 1;
+        itemCounts[iidx] -= 1;
+        // reset sums when counts hit zero so rounding error does not accumulate
+        globalSum = globalCount > 0 ? globalSum - value : 0;
+        userSums[uidx] = userCounts[uidx] > 0 ? userSums[uidx] - value : 0;
+        itemSums[iidx] = itemCounts[iidx] > 0 ? itemSums[iidx] - value : 0;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A removed rating removes the user's current rating of the item, whatever its value; removed ratings that are not
+     * in the model are ignored.
+     */
+    @Override
+    public synchronized void update(RatingUpdate update) {
+        for (Rating r: update.getRemoved()) {
+            removeRating(r.getUserId(), r.getItemId());
+        }
+        for (Rating r: update.getAdded()) {
+            addRating(r.getUserId(), r.getItemId(), r.getValue());
+        }
+    }
+
+    /**
+     * Get the number of ratings currently in the model.
+     * @return The number of ratings.
+     */
+    public synchronized int getRatingCount() {
+        return globalCount;
+    }
+
+    /**
+     * Create an immutable snapshot of the model's current biases.
+     * @return The bias model.
+     */
+    public abstract BiasModel snapshot();
+
+    @Override
+    public synchronized double getIntercept() {
+        return globalCount > 0 ? globalSum / globalCount : 0;
+    }
+
+    @Override
+    public synchronized Long2DoubleMap getUserBiases(LongSet users) {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap(users.size());
+        LongIterator iter = users.iterator();
+        while (iter.hasNext()) {
+            long user = iter.nextLong();
+            map.put(user, getUserBias(user));
+        }
+        return map;
+    }
+
+    @Override
+    public Long2DoubleMap getUserBiases() {
+        return snapshot().getUserBiases();
+    }
+
+    @Override
+    public synchronized Long2DoubleMap getItemBiases(LongSet items) {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap(items.size());
+        LongIterator iter = items.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            map.put(item, getItemBias(item));
+        }
+        return map;
+    }
+
+    @Override
+    public Long2DoubleMap getItemBiases() {
+        return snapshot().getItemBiases();
+    }
+
+    /**
+     * Compute a user's damped mean offset from the global mean. Must be called with the model lock held.
+     * @param user The user ID.
+     * @return The user's offset, or 0 if the user has no ratings.
+     */
+    protected double userMeanOffset(long user) {
+        int idx = userIndex.tryGetIndex(user);
+        if (idx < 0 || userCounts[idx] == 0) {
+            return 0;
+        }
+        double mean = getIntercept();
+        return (userSums[idx] + damping * mean) / (userCounts[idx] + damping) - mean;
+    }
+
+    /**
+     * Compute an item's damped mean offset from the global mean. Must be called with the model lock held.
+     * @param item The item ID.
+     * @return The item's offset, or 0 if the item has no ratings.
+     */
+    protected double itemMeanOffset(long item) {
+        int idx = itemIndex.tryGetIndex(item);
+        if (idx < 0 || itemCounts[idx] == 0) {
+            return 0;
+        }
+        double mean = getIntercept();
+        return (itemSums[idx] - itemCounts[idx] * mean) / (itemCounts[idx] + damping);
+    }
+
+    /**
+     * Get a user's current ratings. Must be called with the model lock held.
+     * @param user The user ID.
+     * @return The user's ratings, or {@code null} if the user has no ratings.  The map must not be modified.
+     */
+    @Nullable
+    protected Long2DoubleMap userRatings(long user) {
+        return userRatings.get(user);
+    }
+
+    /**
+     * Get all users' current ratings. Must be called with the model lock held.
+     * @return The map of users to their ratings.  It must not be modified.
+     */
+    protected Long2ObjectMap<Long2DoubleMap> userRatings() {
+        return userRatings;
+    }
+
+    /**
+     * Get a user's rating sum. Must be called with the model lock held.
+     * @param user The user ID.
+     * @return The sum of the user's ratings.
+     */
+    protected double userSum(long user) {
+        int idx = userIndex.tryGetIndex(user);
+        return idx >= 0 ? userSums[idx] : 0;
+    }
+
+    /**
+     * Get a user's rating count. Must be called with the model lock held.
+     * @param user The user ID.
+     * @return The number of ratings by the user.
+     */
+    protected int userCount(long user) {
+        int idx = userIndex.tryGetIndex(user);
+        return idx >= 0 ? userCounts[idx] : 0;
+    }
+
+    /**
+     * Compute the damped mean offsets of all users with ratings. Must be called with the model lock held.
+     * @return The user offsets.
+     */
+    protected Long2DoubleMap userMeanOffsets() {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap();
+        for (int i = 0; i < userIndex.size(); i++) {
+            if (userCounts[i] > 0) {
+                long user = userIndex.getKey(i);
+                map.put(user, userMeanOffset(user));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Compute the damped mean offsets of all items with ratings. Must be called with the model lock held.
+     * @return The item offsets.
+     */
+    protected Long2DoubleMap itemMeanOffsets() {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap();
+        for (int i = 0; i < itemIndex.size(); i++) {
+            if (itemCounts[i] > 0) {
+                long item = itemIndex.getKey(i);
+                map.put(item, itemMeanOffset(item));
+            }
+        }
+        return map;
+    }
+}
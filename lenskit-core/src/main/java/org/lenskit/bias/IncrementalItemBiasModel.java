@@ -0,0 +1,78 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import net.jcip.annotations.ThreadSafe;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+
+import javax.inject.Inject;
+
+/**
+ * Updatable bias model that provides global and item biases.  Its snapshots are equivalent to the models built by
+ * {@link ItemAverageRatingBiasModelProvider}; user biases are all zero.
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+public class IncrementalItemBiasModel extends IncrementalBiasModel {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct an empty model.
+     * @param damp The damping term.
+     */
+    public IncrementalItemBiasModel(double damp) {
+        super(damp);
+    }
+
+    /**
+     * Construct a model from the ratings in a DAO.
+     * @param dao The rating vector DAO.
+     * @param damp The damping term.
+     */
+    @Inject
+    public IncrementalItemBiasModel(@Transient RatingVectorPDAO dao, @BiasDamping double damp) {
+        super(damp);
+        addRatings(dao);
+    }
+
+    @Override
+    public synchronized double getItemBias(long item) {
+        return itemMeanOffset(item);
+    }
+
+    @Override
+    public double getUserBias(long user) {
+        return 0;
+    }
+
+    @Override
+    public synchronized ItemBiasModel snapshot() {
+        return new ItemBiasModel(getIntercept(), itemMeanOffsets());
+    }
+}
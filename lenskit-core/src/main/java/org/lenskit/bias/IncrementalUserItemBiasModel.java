@@ -0,0 +1,114 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.jcip.annotations.ThreadSafe;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+
+import javax.inject.Inject;
+
+/**
+ * Updatable bias model that provides global, user, and item biases.  Its snapshots are equivalent to the models built
+ * by {@link UserItemAverageRatingBiasModelProvider} on top of {@link ItemAverageRatingBiasModelProvider}: item biases
+ * are damped item mean offsets, and user biases are the damped means of the user's residuals after removing the
+ * global and item biases.
+ *
+ * Since user biases depend on the biases of every item the user has rated, computing a single user bias takes time
+ * linear in the user's profile size; updates remain constant-time.
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+public class IncrementalUserItemBiasModel extends IncrementalBiasModel {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct an empty model.
+     * @param damp The damping term.
+     */
+    public IncrementalUserItemBiasModel(double damp) {
+        super(damp);
+    }
+
+    /**
+     * Construct a model from the ratings in a DAO.
+     * @param dao The rating vector DAO.
+     * @param damp The damping term.
+     */
+    @Inject
+    public IncrementalUserItemBiasModel(@Transient RatingVectorPDAO dao, @BiasDamping double damp) {
+        super(damp);
+        addRatings(dao);
+    }
+
+    @Override
+    public synchronized double getUserBias(long user) {
+        Long2DoubleMap ratings = userRatings(user);
+        if (ratings == null) {
+            return 0;
+        }
+        return computeUserBias(user, ratings, null);
+    }
+
+    @Override
+    public synchronized double getItemBias(long item) {
+        return itemMeanOffset(item);
+    }
+
+    @Override
+    public synchronized UserItemBiasModel snapshot() {
+        Long2DoubleMap itemOffsets = itemMeanOffsets();
+        Long2DoubleMap userOffsets = new Long2DoubleOpenHashMap(userRatings().size());
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: userRatings().long2ObjectEntrySet()) {
+            userOffsets.put(e.getLongKey(), computeUserBias(e.getLongKey(), e.getValue(), itemOffsets));
+        }
+        return new UserItemBiasModel(getIntercept(), userOffsets, itemOffsets);
+    }
+
+    /**
+     * Compute a user's bias.
+     * @param user The user ID.
+     * @param ratings The user's ratings.
+     * @param itemOffsets The precomputed item offsets, or {@code null} to compute them on demand.
+     * @return The user bias.
+     */
+    private double computeUserBias(long user, Long2DoubleMap ratings, Long2DoubleMap itemOffsets) {
+        double itemSum = 0;
+        LongIterator iter = ratings.keySet().iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            itemSum += itemOffsets != null ? itemOffsets.get(item) : itemMeanOffset(item);
+        }
+        int n = userCount(user);
+        return (userSum(user) - n * getIntercept() - itemSum) / (n + damping);
+    }
+}
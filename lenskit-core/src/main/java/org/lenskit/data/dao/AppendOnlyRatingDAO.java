@@ -0,0 +1,586 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.dao;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.NotThreadSafe;
+import org.lenskit.data.entities.*;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * An append-only DAO of ratings in time order, for replaying rating histories.  Ratings are stored in packed columns
+ * with user and item indexes that are maintained as ratings are appended, so appending is amortized constant time.
+ *
+ * Since ratings are never modified in place, the first *n* ratings never change; {@link #snapshot()} exploits
+ * this to return an immutable view of the ratings appended so far in constant time.  Queries against this DAO itself
+ * see all ratings appended at the time of the query.
+ *
+ * To replay requests to forget data, ratings can also be deleted.  Deleting a rating leaves a tombstone recording
+ * when it was deleted, so snapshots taken before the deletion still contain it.  Users and items whose ratings have
+ * all been deleted are no longer included in later snapshots.
+ *
+ * The DAO contains {@link CommonTypes#RATING} entities, along with {@link CommonTypes#USER} and
+ * {@link CommonTypes#ITEM} entities derived from the ratings' user and item IDs.
+ *
+ * Appending or deleting ratings must not run concurrently with queries; snapshots can be queried by multiple
+ * threads between modifications.
+ */
+@NotThreadSafe
+public class AppendOnlyRatingDAO extends AbstractDataAccessObject {
+    private static final List<SortKey> RATING_ORDER = ImmutableList.of(SortKey.create(CommonAttributes.TIMESTAMP));
+
+    private long[] ids = LongArrays.EMPTY_ARRAY;
+    private long[] users = LongArrays.EMPTY_ARRAY;
+    private long[] items = LongArrays.EMPTY_ARRAY;
+    private double[] values = DoubleArrays.EMPTY_ARRAY;
+    private long[] timestamps = LongArrays.EMPTY_ARRAY;
+    private int size;
+    // modification counter; each snapshot sees the data as of a version
+    private int version;
+    // tombstones, mapping deleted positions to the version that deleted them
+    private final Int2IntMap deletedAt = new Int2IntOpenHashMap();
+
+    private final Long2IntMap idIndex = new Long2IntOpenHashMap();
+    private final KeyIndex userIndex = new KeyIndex();
+    private final KeyIndex itemIndex = new KeyIndex();
+
+    /**
+     * Create a new, empty DAO.
+     */
+    public AppendOnlyRatingDAO() {
+        idIndex.defaultReturnValue(-1);
+        deletedAt.defaultReturnValue(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Append a rating.
+     * @param rating The rating to append.
+     * @throws IllegalArgumentException if the rating is older than the last rating appended, or its ID is already
+     * in use.
+     */
+    public void append(Rating rating) {
+        long ts = rating.getTimestamp();
+        if (size > 0 && ts < timestamps[size - 1]) {
+            throw new IllegalArgumentException("rating " + rating + " is older than last rating (timestamp "
+                                                       + timestamps[size - 1] + ")");
+        }
+        Preconditions.checkArgument(!idIndex.containsKey(rating.getId()),
+                                    "duplicate rating ID %s", rating.getId());
+
+        if (size == ids.length) {
+            int cap = Math.max(16, size + (size >> 1));
+            ids = LongArrays.ensureCapacity(ids, cap, size);
+            users = LongArrays.ensureCapacity(users, cap, size);
+            items = LongArrays.ensureCapacity(items, cap, size);
+            values = DoubleArrays.ensureCapacity(values, cap, size);
+            timestamps = LongArrays.ensureCapacity(timestamps, cap, size);
+        }
+
+        int pos = size;
+        ids[pos] = rating.getId();
+        users[pos] = rating.getUserId();
+        items[pos] = rating.getItemId();
+        values[pos] = rating.getValue();
+        timestamps[pos] = ts;
+        version += 1;
+        idIndex.put(rating.getId(), pos);
+        userIndex.add(users[pos], pos, version);
+        itemIndex.add(items[pos], pos, version);
+        size += 1;
+    }
+
+    /**
+     * Get the number of ratings appended so far, including ratings that have since been deleted.
+     * @return The number of ratings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of ratings appended so far that have not been deleted.
+     * @return The number of live ratings.
+     */
+    public int getRatingCount() {
+        return size - deletedAt.size();
+    }
+
+    /**
+     * Delete a user's rating of an item.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return The deleted ratings (empty if the user has not rated the item).
+     */
+    public List<Rating> removeRating(long user, long item) {
+        return remove(userIndex.getPositions(user, size), pos -> items[pos] == item);
+    }
+
+    /**
+     * Delete all of a user's ratings.
+     * @param user The user ID.
+     * @return The deleted ratings.
+     */
+    public List<Rating> removeUser(long user) {
+        return remove(userIndex.getPositions(user, size), pos -> true);
+    }
+
+    /**
+     * Delete all ratings of an item.
+     * @param item The item ID.
+     * @return The deleted ratings.
+     */
+    public List<Rating> removeItem(long item) {
+        return remove(itemIndex.getPositions(item, size), pos -> true);
+    }
+
+    private List<Rating> remove(IntList positions, IntPredicate filter) {
+        List<Rating> removed = new ArrayList<>();
+        int v = version + 1;
+        IntIterator iter = positions.iterator();
+        while (iter.hasNext()) {
+            int pos = iter.nextInt();
+            if (!deletedAt.containsKey(pos) && filter.test(pos)) {
+                deletedAt.put(pos, v);
+                userIndex.remove(users[pos], v);
+                itemIndex.remove(items[pos], v);
+                removed.add(rating(pos));
+            }
+        }
+        if (!removed.isEmpty()) {
+            version = v;
+        }
+        return removed;
+    }
+
+    /**
+     * Get an immutable view of the current ratings.  Later appends and deletions do not affect the view.
+     * @return A DAO containing the current ratings.
+     */
+    public DataAccessObject snapshot() {
+        return new Snapshot(size, version, deletedAt.size());
+    }
+
+    @Override
+    public Set<EntityType> getEntityTypes() {
+        return snapshot().getEntityTypes();
+    }
+
+    @Override
+    public LongSet getEntityIds(EntityType type) {
+        return snapshot().getEntityIds(type);
+    }
+
+    @Nullable
+    @Override
+    public Entity lookupEntity(EntityType type, long id) {
+        return snapshot().lookupEntity(type, id);
+    }
+
+    @Nullable
+    @Override
+    public <E extends Entity> E lookupEntity(EntityType type, long id, Class<E> view) {
+        return snapshot().lookupEntity(type, id, view);
+    }
+
+    @Override
+    public <E extends Entity> ObjectStream<E> streamEntities(EntityQuery<E> query) {
+        return snapshot().streamEntities(query);
+    }
+
+    @Override
+    public <E extends Entity> ObjectStream<IdBox<List<E>>> streamEntityGroups(EntityQuery<E> query, TypedName<Long> grpCol) {
+        return snapshot().streamEntityGroups(query, grpCol);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppendOnlyRatingDAO(%d ratings, %d deleted)", size, deletedAt.size());
+    }
+
+    private Rating rating(int pos) {
+        return Rating.newBuilder()
+                     .setId(ids[pos])
+                     .setUserId(users[pos])
+                     .setItemId(items[pos])
+                     .setRating(values[pos])
+                     .setTimestamp(timestamps[pos])
+                     .build();
+    }
+
+    /**
+     * Index of the positions of ratings with a user or item ID.  Positions are appended in increasing order, so
+     * the positions before a limit are always a prefix of a key's position list; likewise, keys are recorded in
+     * order of their first appearance.
+     *
+     * To support deletion, the index also counts each key's live ratings, and records the versions at which a key
+     * loses its last live rating or regains one.
+     */
+    private static class KeyIndex {
+        final Long2ObjectMap<IntArrayList> positions = new Long2ObjectOpenHashMap<>();
+        final LongArrayList keys = new LongArrayList();
+        final IntArrayList firstPositions = new IntArrayList();
+        final Long2IntOpenHashMap liveCounts = new Long2IntOpenHashMap();
+        final Long2ObjectMap<IntArrayList> toggles = new Long2ObjectOpenHashMap<>();
+
+        void add(long key, int pos, int version) {
+            IntArrayList list = positions.get(key);
+            if (list == null) {
+                list = new IntArrayList();
+                positions.put(key, list);
+                keys.add(key);
+                firstPositions.add(pos);
+            } else if (liveCounts.get(key) == 0) {
+                // all of the key's ratings were deleted, and it is back
+                toggles.get(key).add(version);
+            }
+            list.add(pos);
+            liveCounts.addTo(key, 1);
+        }
+
+        void remove(long key, int version) {
+            if (liveCounts.addTo(key, -1) == 1) {
+                IntArrayList list = toggles.get(key);
+                if (list == null) {
+                    list = new IntArrayList();
+                    toggles.put(key, list);
+                }
+                list.add(version);
+            }
+        }
+
+        /**
+         * Query whether a key has live ratings as of a version.
+         */
+        boolean isLive(long key, int limit, int version) {
+            if (!contains(key, limit)) {
+                return false;
+            }
+            IntArrayList list = toggles.get(key);
+            return list == null || prefixLength(list, version + 1) % 2 == 0;
+        }
+
+        /**
+         * Get the keys whose ratings had all been deleted as of a version.
+         */
+        LongSet deadKeys(int limit, int version) {
+            if (toggles.isEmpty()) {
+                return LongSets.EMPTY_SET;
+            }
+            LongSet dead = new LongOpenHashSet();
+            for (Long2ObjectMap.Entry<IntArrayList> e: toggles.long2ObjectEntrySet()) {
+                long key = e.getLongKey();
+                if (contains(key, limit) && !isLive(key, limit, version)) {
+                    dead.add(key);
+                }
+            }
+            return dead;
+        }
+
+        /**
+         * Count the keys that appear before a position.
+         */
+        int keyCount(int limit) {
+            return prefixLength(firstPositions, limit);
+        }
+
+        LongList getKeys(int limit) {
+            return LongArrayList.wrap(keys.elements(), keyCount(limit));
+        }
+
+        boolean contains(long key, int limit) {
+            IntArrayList list = positions.get(key);
+            return list != null && list.getInt(0) < limit;
+        }
+
+        IntList getPositions(long key, int limit) {
+            IntArrayList list = positions.get(key);
+            if (list == null) {
+                return IntLists.EMPTY_LIST;
+            }
+            int n = prefixLength(list, limit);
+            return IntArrayList.wrap(list.elements(), n);
+        }
+
+        private static int prefixLength(IntArrayList list, int limit) {
+            int i = IntArrays.binarySearch(list.elements(), 0, list.size(), limit);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+    /**
+     * An immutable view of the first *n* ratings, as of a version.
+     */
+    private class Snapshot extends AbstractDataAccessObject {
+        private final int limit;
+        private final int version;
+        private final int deletedCount;
+
+        Snapshot(int n, int v, int ndel) {
+            limit = n;
+            version = v;
+            deletedCount = ndel;
+        }
+
+        private boolean isVisible(int pos) {
+            return deletedCount == 0 || deletedAt.get(pos) > version;
+        }
+
+        @Override
+        public Set<EntityType> getEntityTypes() {
+            if (limit == 0) {
+                return ImmutableSet.of();
+            } else {
+                return ImmutableSet.of(CommonTypes.RATING, CommonTypes.USER, CommonTypes.ITEM);
+            }
+        }
+
+        @Override
+        public LongSet getEntityIds(EntityType type) {
+            if (type.equals(CommonTypes.RATING)) {
+                return new RatingIdSet();
+            }
+            KeyIndex index = derivedIndex(type);
+            if (index != null) {
+                return new KeySet(index);
+            } else {
+                return LongSets.EMPTY_SET;
+            }
+        }
+
+        @Nullable
+        @Override
+        public Entity lookupEntity(EntityType type, long id) {
+            if (type.equals(CommonTypes.RATING)) {
+                int pos = idIndex.get(id);
+                return pos >= 0 && pos < limit && isVisible(pos) ? rating(pos) : null;
+            }
+            KeyIndex index = derivedIndex(type);
+            if (index != null && index.isLive(id, limit, version)) {
+                return Entities.create(type, id);
+            } else {
+                return null;
+            }
+        }
+
+        @Nullable
+        @Override
+        public <E extends Entity> E lookupEntity(EntityType type, long id, Class<E> view) {
+            Entity entity = lookupEntity(type, id);
+            if (entity == null) {
+                return null;
+            } else {
+                return Entities.project(entity, view);
+            }
+        }
+
+        @Override
+        public <E extends Entity> ObjectStream<E> streamEntities(EntityQuery<E> query) {
+            EntityType type = query.getEntityType();
+            Stream<Entity> entities;
+            boolean inOrder;
+            if (type.equals(CommonTypes.RATING)) {
+                entities = findRatings(query.getFilterFields()).filter(this::isVisible)
+                                                               .mapToObj(AppendOnlyRatingDAO.this::rating);
+                List<SortKey> sort = query.getSortKeys();
+                inOrder = sort.isEmpty() || sort.equals(RATING_ORDER);
+            } else {
+                KeyIndex index = derivedIndex(type);
+                if (index == null) {
+                    return ObjectStreams.empty();
+                }
+                LongSet dead = index.deadKeys(limit, version);
+                entities = index.getKeys(limit)
+                                .stream()
+                                .filter(k -> !dead.contains((long) k))
+                                .map(k -> Entities.create(type, k));
+                inOrder = query.getSortKeys().isEmpty();
+            }
+
+            entities = entities.filter(query::matches);
+            if (!inOrder) {
+                entities = entities.sorted(query.getOrdering());
+            }
+            return ObjectStreams.wrap(entities.map(Entities.projection(query.getViewType())));
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Grouping ratings by user or item uses the indexes directly, instead of sorting by the grouping column.
+         */
+        @Override
+        public <E extends Entity> ObjectStream<IdBox<List<E>>> streamEntityGroups(EntityQuery<E> query, TypedName<Long> grpCol) {
+            KeyIndex index = null;
+            if (query.getEntityType().equals(CommonTypes.RATING)) {
+                if (grpCol == CommonAttributes.USER_ID) {
+                    index = userIndex;
+                } else if (grpCol == CommonAttributes.ITEM_ID) {
+                    index = itemIndex;
+                }
+            }
+            if (index == null) {
+                return super.streamEntityGroups(query, grpCol);
+            }
+
+            KeyIndex idx = index;
+            Ordering<Entity> ord = query.getSortKeys().isEmpty() || query.getSortKeys().equals(RATING_ORDER)
+                    ? null : query.getOrdering();
+            Stream<IdBox<List<E>>> groups =
+                    idx.getKeys(limit)
+                            .stream()
+                            .map(k -> {
+                                Stream<Entity> data = idx.getPositions(k, limit)
+                                                         .stream()
+                                                         .filter(this::isVisible)
+                                                         .<Entity>map(AppendOnlyRatingDAO.this::rating)
+                                                         .filter(query::matches);
+                                if (ord != null) {
+                                    data = data.sorted(ord);
+                                }
+                                List<E> list = data.map(Entities.projection(query.getViewType()))
+                                                   .collect(Collectors.toList());
+                                return IdBox.create(k, list);
+                            })
+                            .filter(b -> !b.getValue().isEmpty());
+            return ObjectStreams.wrap(groups);
+        }
+
+        /**
+         * Find the positions of ratings that may match a set of filters, using an index if possible.
+         */
+        private IntStream findRatings(List<Attribute<?>> filters) {
+            for (Attribute<?> attr: filters) {
+                TypedName<?> name = attr.getTypedName();
+                if (name == CommonAttributes.ENTITY_ID) {
+                    int pos = idIndex.get((long) (Long) attr.getValue());
+                    return pos >= 0 && pos < limit ? IntStream.of(pos) : IntStream.empty();
+                } else if (name == CommonAttributes.USER_ID) {
+                    return userIndex.getPositions((Long) attr.getValue(), limit).stream().mapToInt(i -> i);
+                } else if (name == CommonAttributes.ITEM_ID) {
+                    return itemIndex.getPositions((Long) attr.getValue(), limit).stream().mapToInt(i -> i);
+                }
+            }
+            return IntStream.range(0, limit);
+        }
+
+        @Nullable
+        private KeyIndex derivedIndex(EntityType type) {
+            if (type.equals(CommonTypes.USER)) {
+                return userIndex;
+            } else if (type.equals(CommonTypes.ITEM)) {
+                return itemIndex;
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("AppendOnlyRatingDAO.Snapshot(%d ratings, %d deleted)", limit, deletedCount);
+        }
+
+        /**
+         * The IDs of the visible ratings in the snapshot.
+         */
+        private class RatingIdSet extends AbstractLongSet {
+            @Override
+            public LongIterator iterator() {
+                if (deletedCount == 0) {
+                    return LongIterators.wrap(ids, 0, limit);
+                } else {
+                    return LongIterators.asLongIterator(IntStream.range(0, limit)
+                                                                 .filter(Snapshot.this::isVisible)
+                                                                 .mapToLong(pos -> ids[pos])
+                                                                 .iterator());
+                }
+            }
+
+            @Override
+            public boolean contains(long key) {
+                int pos = idIndex.get(key);
+                return pos >= 0 && pos < limit && isVisible(pos);
+            }
+
+            @Override
+            public int size() {
+                return limit - deletedCount;
+            }
+        }
+
+        /**
+         * The keys of an index that have visible ratings in the snapshot.
+         */
+        private class KeySet extends AbstractLongSet {
+            private final KeyIndex index;
+            private final LongSet dead;
+            private final int count;
+
+            KeySet(KeyIndex idx) {
+                index = idx;
+                dead = idx.deadKeys(limit, version);
+                count = idx.keyCount(limit);
+            }
+
+            @Override
+            public LongIterator iterator() {
+                LongIterator iter = LongIterators.wrap(index.keys.elements(), 0, count);
+                if (dead.isEmpty()) {
+                    return iter;
+                } else {
+                    return LongIterators.asLongIterator(Iterators.filter(iter, k -> !dead.contains((long) k)));
+                }
+            }
+
+            @Override
+            public boolean contains(long key) {
+                return index.isLive(key, limit, version);
+            }
+
+            @Override
+            public int size() {
+                return count - dead.size();
+            }
+        }
+    }
+}
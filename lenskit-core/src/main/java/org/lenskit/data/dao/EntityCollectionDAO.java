@@ -83,6 +83,18 @@ public class EntityCollectionDAO extends AbstractDataAccessObject implements Des
         return storage.keySet();
     }
 
+    /**
+     * Get the collection storing entities of a type.  Components can use this to access optimized
+     * collection operations such as {@link EntityCollection#groupVectors(TypedName, TypedName, TypedName)}.
+     *
+     * @param type The entity type.
+     * @return The entity collection, or {@code null} if there are no entities of type {@code type}.
+     */
+    @Nullable
+    public EntityCollection getEntityCollection(EntityType type) {
+        return storage.get(type);
+    }
+
     @Override
     public LongSet getEntityIds(EntityType type) {
         EntityCollection entities = storage.get(type);
@@ -30,8 +30,12 @@ import com.google.common.collect.ImmutableSet;
 import org.lenskit.data.entities.*;
 import org.lenskit.data.store.EntityCollection;
 import org.lenskit.data.store.EntityCollectionBuilder;
+import org.lenskit.util.reflect.InstanceFactory;
 
 import net.jcip.annotations.NotThreadSafe;
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
 
 /**
@@ -125,6 +129,53 @@ public class EntityCollectionDAOBuilder {
         return this;
     }
 
+    /**
+     * Add entities stored as primitive columns.  If the entity type has a packed layout compatible with the columns,
+     * they are copied directly into it without materializing entity objects; otherwise, an entity is built for each
+     * row with the type's default entity builder and added as with {@link #addEntity(Entity)}.
+     *
+     * @param type The entity type.
+     * @param attrs The column attributes; the first must be the entity ID.
+     * @param columns The columns (see {@link EntityCollectionBuilder#addColumns(AttributeSet, Buffer...)}).
+     * @return The builder (for chaining).
+     */
+    @SuppressWarnings("unchecked")
+    public EntityCollectionDAOBuilder addColumns(EntityType type, AttributeSet attrs, Buffer... columns) {
+        Preconditions.checkState(entitySets != null, "build() already called");
+        Preconditions.checkArgument(attrs.getAttribute(0) == CommonAttributes.ENTITY_ID,
+                                    "first column must be entity ID");
+        EntityCollectionBuilder bld = findBuilder(type);
+        if (bld.acceptsColumns(attrs)) {
+            bld.addColumns(attrs, columns);
+            return this;
+        }
+
+        LongBuffer ids = (LongBuffer) columns[0];
+        int n = ids.remaining();
+        EntityDefaults defaults = EntityDefaults.lookup(type);
+        EntityBuilder eb = defaults != null
+                ? InstanceFactory.<EntityBuilder>fromConstructor(defaults.getDefaultBuilder(), type).newInstance()
+                : Entities.newBuilder(type);
+        for (int i = 0; i < n; i++) {
+            eb.reset();
+            eb.setId(ids.get(ids.position() + i));
+            for (int c = 1; c < columns.length; c++) {
+                TypedName<?> attr = attrs.getAttribute(c);
+                if (columns[c] instanceof LongBuffer) {
+                    LongBuffer col = (LongBuffer) columns[c];
+                    eb.setLongAttribute((TypedName<Long>) attr, col.get(col.position() + i));
+                } else if (columns[c] instanceof DoubleBuffer) {
+                    DoubleBuffer col = (DoubleBuffer) columns[c];
+                    eb.setDoubleAttribute((TypedName<Double>) attr, col.get(col.position() + i));
+                } else {
+                    throw new IllegalArgumentException("unsupported column buffer for " + attr);
+                }
+            }
+            bld.add(eb.build());
+        }
+        return this;
+    }
+
     private EntityCollectionBuilder findBuilder(EntityType type) {
         if (type != last) {
             lastBuilder = entitySets.get(type);
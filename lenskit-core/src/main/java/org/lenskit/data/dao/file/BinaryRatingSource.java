@@ -0,0 +1,501 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.dao.file;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.lenskit.data.dao.DataAccessException;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
+import org.lenskit.data.entities.*;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingBuilder;
+import org.lenskit.util.describe.Describable;
+import org.lenskit.util.describe.DescriptionWriter;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.lenskit.util.io.StagedWrite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Entity source reading ratings from a binary columnar file.  The file stores the rating IDs, user IDs, item IDs,
+ * rating values, and (optionally) timestamps as contiguous little-endian columns, and is memory-mapped when read, so
+ * loading it does not parse any text.  When loaded through a {@link StaticDataSource}, the columns are copied
+ * directly into the packed rating storage without creating intermediate {@link Entity} objects.
+ *
+ * Binary rating files are created with {@link #write(Path, ObjectStream)} or {@link #convert(EntitySource, Path)};
+ * in a data source specification, they have the type {@code binary}.  A file holds at most {@link #MAX_RATINGS} (about
+ * 268 million) ratings.
+ */
+public class BinaryRatingSource implements EntitySource, Describable {
+    private static final Logger logger = LoggerFactory.getLogger(BinaryRatingSource.class);
+    /**
+     * The magic number at the start of binary rating files ('LKRB').
+     */
+    static final int MAGIC = 0x4C4B5242;
+    static final int VERSION = 1;
+    static final int FLAG_TIMESTAMPS = 0x01;
+    static final int HEADER_SIZE = 24;
+    /**
+     * The maximum number of ratings in a binary rating file.  Each column is mapped as a single buffer, so it can be
+     * at most 2 GiB.
+     */
+    public static final int MAX_RATINGS = Integer.MAX_VALUE / Long.BYTES;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final AttributeSet ATTRIBUTES =
+            AttributeSet.create(CommonAttributes.ENTITY_ID, CommonAttributes.USER_ID, CommonAttributes.ITEM_ID,
+                                CommonAttributes.RATING);
+    private static final AttributeSet TIMESTAMP_ATTRIBUTES = Rating.ATTRIBUTES;
+
+    private final String name;
+    private Path file;
+    private Map<String,Object> metadata = new HashMap<>();
+
+    /**
+     * Construct a new binary rating source.
+     * @param name The source's name.
+     */
+    public BinaryRatingSource(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Construct a new binary rating source.
+     * @param name The source's name.
+     * @param file The binary rating file.
+     */
+    public BinaryRatingSource(String name, Path file) {
+        this(name);
+        this.file = file;
+    }
+
+    @Nonnull
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the binary rating file.
+     * @return The file containing the ratings.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Set the binary rating file.
+     * @param file The file containing the ratings.
+     */
+    public void setFile(Path file) {
+        this.file = file;
+    }
+
+    @Nonnull
+    @Override
+    public Set<EntityType> getTypes() {
+        return ImmutableSet.of(CommonTypes.RATING);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Since the layout is declared before the file is read, it always includes the timestamp; files without
+     * timestamps simply leave it unset.
+     */
+    @Nullable
+    @Override
+    public Layout getLayout() {
+        return new Layout(CommonTypes.RATING, TIMESTAMP_ATTRIBUTES, RatingBuilder.class);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, Object> getMetadata() {
+        return metadata;
+    }
+
+    @Nonnull
+    @Override
+    public ObjectStream<Entity> openStream() throws IOException {
+        Columns cols = Columns.map(file);
+        RatingBuilder rb = Rating.newBuilder();
+        return ObjectStreams.wrap(IntStream.range(0, cols.size).mapToObj(i -> {
+            rb.reset();
+            rb.setId(cols.ids.get(i))
+              .setUserId(cols.users.get(i))
+              .setItemId(cols.items.get(i))
+              .setRating(cols.values.get(i));
+            if (cols.timestamps != null) {
+                rb.setTimestamp(cols.timestamps.get(i));
+            }
+            return rb.build();
+        }));
+    }
+
+    /**
+     * Add this source's ratings to a DAO builder directly from the mapped columns.
+     * @param builder The DAO builder.
+     * @return The number of ratings added.
+     * @throws IOException if there is an error mapping the file.
+     */
+    int addTo(EntityCollectionDAOBuilder builder) throws IOException {
+        Columns cols = Columns.map(file);
+        logger.debug("{}: adding {} ratings from {}", name, cols.size, file);
+        // attribute sets are interned, so the column order comes from the set rather than its declaration
+        AttributeSet attrs = cols.timestamps != null ? TIMESTAMP_ATTRIBUTES : ATTRIBUTES;
+        Buffer[] buffers = new Buffer[attrs.size()];
+        buffers[attrs.lookup(CommonAttributes.ENTITY_ID)] = cols.ids;
+        buffers[attrs.lookup(CommonAttributes.USER_ID)] = cols.users;
+        buffers[attrs.lookup(CommonAttributes.ITEM_ID)] = cols.items;
+        buffers[attrs.lookup(CommonAttributes.RATING)] = cols.values;
+        if (cols.timestamps != null) {
+            buffers[attrs.lookup(CommonAttributes.TIMESTAMP)] = cols.timestamps;
+        }
+        builder.addColumns(CommonTypes.RATING, attrs, buffers);
+        return cols.size;
+    }
+
+    /**
+     * Write ratings to a binary rating file.  Every entity must be a rating with a rating value; timestamps are stored
+     * if every rating has one.  The ratings are streamed into one scratch file per column next to the output file, and
+     * the columns are then concatenated, so the ratings are never all held in memory.
+     *
+     * @param file The output file.
+     * @param ratings The ratings to write.  This stream is consumed but not closed.
+     * @return The number of ratings written.
+     * @throws IOException if there is an error writing the file.
+     * @throws IllegalArgumentException if the stream contains entities that are not ratings, if only some
+     *         ratings have timestamps, or if it has more than {@link #MAX_RATINGS} ratings.
+     */
+    public static int write(Path file, ObjectStream<? extends Entity> ratings) throws IOException {
+        int n = 0;
+        int nts = 0;
+        try (StagedWrite stage = StagedWrite.begin(file)) {
+            Path staging = stage.getStagingFile();
+            Path dir = staging.toAbsolutePath().getParent();
+            try (ColumnFile ids = new ColumnFile(dir);
+                 ColumnFile users = new ColumnFile(dir);
+                 ColumnFile items = new ColumnFile(dir);
+                 ColumnFile values = new ColumnFile(dir);
+                 ColumnFile timestamps = new ColumnFile(dir)) {
+                for (Entity e: ratings) {
+                    if (e.getType() != CommonTypes.RATING) {
+                        throw new IllegalArgumentException("binary rating files can only store ratings, found " + e.getType());
+                    }
+                    if (n >= MAX_RATINGS) {
+                        throw new IllegalArgumentException("binary rating files can store at most " + MAX_RATINGS + " ratings");
+                    }
+                    if (e.hasAttribute(CommonAttributes.TIMESTAMP)) {
+                        if (nts < n) {
+                            throw new IllegalArgumentException("rating " + e.getId() + " has timestamp, but earlier ratings do not");
+                        }
+                        timestamps.putLong(e.getLong(CommonAttributes.TIMESTAMP));
+                        nts += 1;
+                    } else if (nts > 0) {
+                        throw new IllegalArgumentException("rating " + e.getId() + " has no timestamp, but earlier ratings do");
+                    }
+                    ids.putLong(e.getId());
+                    users.putLong(e.getLong(CommonAttributes.USER_ID));
+                    items.putLong(e.getLong(CommonAttributes.ITEM_ID));
+                    values.putDouble(e.getDouble(CommonAttributes.RATING));
+                    n += 1;
+                }
+
+                boolean haveTimestamps = n > 0 && nts == n;
+                try (FileChannel chan = FileChannel.open(staging, StandardOpenOption.WRITE,
+                                                         StandardOpenOption.CREATE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC)
+                          .putInt(VERSION)
+                          .putInt(haveTimestamps ? FLAG_TIMESTAMPS : 0)
+                          .putInt(0)
+                          .putLong(n);
+                    drain(chan, header);
+                    ids.copyTo(chan);
+                    users.copyTo(chan);
+                    items.copyTo(chan);
+                    values.copyTo(chan);
+                    if (haveTimestamps) {
+                        timestamps.copyTo(chan);
+                    }
+                }
+            }
+            stage.commit();
+        }
+        logger.info("wrote {} ratings to {}", n, file);
+        return n;
+    }
+
+    /**
+     * Convert an entity source (such as a delimited text file) into a binary rating file.
+     *
+     * @param source The source of ratings.
+     * @param file The binary file to write.
+     * @return A binary rating source reading from the new file, with the same name and metadata as {@code source}.
+     * @throws IOException if there is an error reading the source or writing the file.
+     */
+    public static BinaryRatingSource convert(EntitySource source, Path file) throws IOException {
+        try (ObjectStream<Entity> stream = source.openStream()) {
+            write(file, stream);
+        }
+        BinaryRatingSource result = new BinaryRatingSource(source.getName(), file);
+        result.metadata.putAll(source.getMetadata());
+        return result;
+    }
+
+    private static void drain(FileChannel chan, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            chan.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * A scratch file holding one column of a binary rating file while it is written.  The file is deleted when
+     * this is closed.
+     */
+    private static class ColumnFile implements Closeable {
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        ColumnFile(Path dir) throws IOException {
+            path = Files.createTempFile(dir, "ratings", ".col");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void putLong(long value) throws IOException {
+            if (buffer.remaining() < Long.BYTES) {
+                drain(channel, buffer);
+            }
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            if (buffer.remaining() < Double.BYTES) {
+                drain(channel, buffer);
+            }
+            buffer.putDouble(value);
+        }
+
+        /**
+         * Append the column to another file.
+         * @param out The channel to write to, at its current position.
+         */
+        void copyTo(FileChannel out) throws IOException {
+            drain(channel, buffer);
+            long size = channel.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += channel.transferTo(pos, size - pos, out);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        ToStringBuilder tsb = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
+        tsb.append("name", getName());
+        tsb.append("file", getFile());
+        return tsb.build();
+    }
+
+    @Override
+    public void describeTo(DescriptionWriter writer) {
+        writer.putField("file", file.toUri());
+        try {
+            writer.putField("size", Files.size(file))
+                  .putField("mtime", Files.getLastModifiedTime(file).toMillis());
+        } catch (NoSuchFileException e) {
+            /* ok, file doesn't exist */
+        } catch (IOException e) {
+            throw new DataAccessException(e);
+        }
+    }
+
+    /**
+     * Construct a JSON representation of this entity source, suitable for serialization to e.g. YAML.
+     *
+     * @param base The URI of the YAML file that will be generated, to generate relative URLs.
+     * @return The JSON node.
+     */
+    public JsonNode toJSON(@Nullable URI base) {
+        Path path = file;
+        if (base != null) {
+            try {
+                Path basePath = Paths.get(base).getParent();
+                if (basePath != null) {
+                    path = basePath.relativize(path);
+                }
+            } catch (FileSystemNotFoundException ex) {
+                /* this is ok, just means we can't resolve the base URI */
+            }
+        }
+
+        ObjectNode object = JsonNodeFactory.instance.objectNode();
+        object.put("type", "binary");
+        object.put("file", path.toString().replace(File.separatorChar, '/'));
+        return object;
+    }
+
+    /**
+     * Create a binary rating source from JSON.
+     * @param name The source name.
+     * @param object The configuring object.
+     * @param base The base URI for source data.
+     * @return The new entity source.
+     */
+    static BinaryRatingSource fromJSON(String name, JsonNode object, URI base) {
+        String filePath = object.path("file").asText(null);
+        Preconditions.checkArgument(filePath != null, "no file path specified");
+        URI uri = base.resolve(filePath);
+        Path path;
+        try {
+            path = Paths.get(uri);
+        } catch (FileSystemNotFoundException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("binary rating source requires a local file, got " + uri, e);
+        }
+        logger.info("loading binary rating source {} from {}", name, path);
+        BinaryRatingSource source = new BinaryRatingSource(name, path);
+
+        JsonNode metaNode = object.get("metadata");
+        if (metaNode != null) {
+            ObjectMapper mapper = new ObjectMapper();
+            try {
+                source.metadata = mapper.readerFor(Map.class).readValue(metaNode);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannnot process metadata", e);
+            }
+        }
+        return source;
+    }
+
+    /**
+     * The memory-mapped columns of a binary rating file.
+     */
+    static class Columns {
+        final int size;
+        final LongBuffer ids;
+        final LongBuffer users;
+        final LongBuffer items;
+        final DoubleBuffer values;
+        @Nullable
+        final LongBuffer timestamps;
+
+        private Columns(int n, LongBuffer ids, LongBuffer users, LongBuffer items, DoubleBuffer values,
+                        @Nullable LongBuffer timestamps) {
+            size = n;
+            this.ids = ids;
+            this.users = users;
+            this.items = items;
+            this.values = values;
+            this.timestamps = timestamps;
+        }
+
+        /**
+         * Map the columns of a binary rating file.  The mappings remain valid after the file is closed.
+         * @param file The file to map.
+         * @return The columns.
+         * @throws IOException if there is an error mapping the file or it is not a valid binary rating file.
+         */
+        static Columns map(Path file) throws IOException {
+            try (FileChannel chan = FileChannel.open(file, StandardOpenOption.READ)) {
+                long fileSize = chan.size();
+                if (fileSize < HEADER_SIZE) {
+                    throw new IOException(file + ": file too short for binary rating header");
+                }
+                ByteBuffer header = chan.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException(file + ": not a binary rating file");
+                }
+                int version = header.getInt(4);
+                if (version != VERSION) {
+                    throw new IOException(file + ": unsupported binary rating file version " + version);
+                }
+                boolean haveTimestamps = (header.getInt(8) & FLAG_TIMESTAMPS) != 0;
+                long count = header.getLong(16);
+                int ncols = haveTimestamps ? 5 : 4;
+                if (count < 0 || count > MAX_RATINGS
+                        || fileSize != HEADER_SIZE + count * Long.BYTES * ncols) {
+                    throw new IOException(file + ": invalid size for " + count + " ratings");
+                }
+                int n = (int) count;
+                long colSize = count * Long.BYTES;
+                long pos = HEADER_SIZE;
+                LongBuffer ids = mapColumn(chan, pos, colSize).asLongBuffer();
+                pos += colSize;
+                LongBuffer users = mapColumn(chan, pos, colSize).asLongBuffer();
+                pos += colSize;
+                LongBuffer items = mapColumn(chan, pos, colSize).asLongBuffer();
+                pos += colSize;
+                DoubleBuffer values = mapColumn(chan, pos, colSize).asDoubleBuffer();
+                pos += colSize;
+                LongBuffer timestamps = null;
+                if (haveTimestamps) {
+                    timestamps = mapColumn(chan, pos, colSize).asLongBuffer();
+                }
+                return new Columns(n, ids, users, items, values, timestamps);
+            }
+        }
+
+        private static ByteBuffer mapColumn(FileChannel chan, long pos, long size) throws IOException {
+            return chan.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
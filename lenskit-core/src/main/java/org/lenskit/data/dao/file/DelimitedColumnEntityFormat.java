@@ -380,6 +380,18 @@ public class DelimitedColumnEntityFormat implements EntityFormat {
 
     @Override
     public LineEntityParser makeParser(List<String> header) {
+        List<TypedName<?>> cols = getFileColumns(header);
+        StringTokenizer tok = new StringTokenizer("", delimiter);
+        tok.setQuoteChar('"');
+        return new OrderedParser(cols, tok);
+    }
+
+    /**
+     * Get the attributes of the columns in a file, in order.
+     * @param header The header lines of the file.
+     * @return The attribute for each column of the file ({@code null} for columns to skip).
+     */
+    List<TypedName<?>> getFileColumns(List<String> header) {
         assert header.size() == getHeaderLines();
 
         if (usesHeader() && labeledColumns != null) {
@@ -391,12 +403,10 @@ public class DelimitedColumnEntityFormat implements EntityFormat {
                 String label = tok.next();
                 cols.add(labeledColumns.get(label));
             }
-            return new OrderedParser(cols, tok);
+            return cols;
         } else {
             Preconditions.checkState(columns != null, "no columns specified");
-            StringTokenizer tok = new StringTokenizer("", delimiter);
-            tok.setQuoteChar('"');
-            return new OrderedParser(columns, tok);
+            return columns;
         }
     }
 
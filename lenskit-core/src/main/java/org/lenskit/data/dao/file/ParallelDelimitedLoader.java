@@ -0,0 +1,455 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.dao.file;
+
+import com.google.common.base.Charsets;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
+import org.lenskit.data.entities.AttributeSet;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.TypedName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel loader for delimited text files.  The file is split into byte ranges aligned on line boundaries, and each
+ * range is parsed directly from its bytes into primitive columns on its own worker; the columns are then added to the
+ * DAO builder in file order, so entity IDs and duplicate handling are the same as reading the file line by line.
+ *
+ * Only files whose columns are all {@code long} or {@code double} attributes (or skipped) can be loaded this way.
+ * If any line cannot be parsed exactly as {@link DelimitedColumnEntityFormat} would parse it (quoted fields, empty
+ * or missing fields, unusual number syntax), the loader gives up before adding anything so the caller can read the
+ * file sequentially instead.
+ */
+class ParallelDelimitedLoader {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelDelimitedLoader.class);
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int SCAN_SIZE = 4096;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        double p = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = p;
+            p *= 10;
+        }
+    }
+
+    private final String name;
+    private final Path file;
+    private final DelimitedColumnEntityFormat format;
+    private final byte delimiter;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    ParallelDelimitedLoader(String name, Path file, DelimitedColumnEntityFormat format) {
+        this.name = name;
+        this.file = file;
+        this.format = format;
+        delimiter = (byte) format.getDelimiter().charAt(0);
+    }
+
+    /**
+     * Query whether a format can be loaded in parallel.
+     * @param format The entity format.
+     * @return {@code true} if the format is delimited with a single-byte delimiter.
+     */
+    static boolean isSupported(EntityFormat format) {
+        if (!(format instanceof DelimitedColumnEntityFormat)) {
+            return false;
+        }
+        String delim = ((DelimitedColumnEntityFormat) format).getDelimiter();
+        return delim.length() == 1 && delim.charAt(0) < 0x80
+                && delim.charAt(0) != '\n' && delim.charAt(0) != '\r' && delim.charAt(0) != '"';
+    }
+
+    /**
+     * Set the target size of the chunks parsed by each worker.
+     * @param size The chunk size, in bytes.
+     */
+    void setChunkSize(int size) {
+        chunkSize = size;
+    }
+
+    /**
+     * Load the file into a DAO builder.
+     * @param builder The builder.
+     * @return The number of entities added, or -1 if the file cannot be loaded in parallel (in which case nothing
+     *         has been added to the builder).
+     * @throws IOException if there is an error reading the file.
+     */
+    int load(EntityCollectionDAOBuilder builder) throws IOException {
+        try (FileChannel chan = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = chan.size();
+            List<String> header = new ArrayList<>();
+            long dataStart = readHeader(chan, header);
+            if (dataStart < 0) {
+                return -1;
+            }
+
+            List<TypedName<?>> columns = format.getFileColumns(header);
+            List<TypedName<?>> attrList = new ArrayList<>();
+            attrList.add(CommonAttributes.ENTITY_ID);
+            for (TypedName<?> col: columns) {
+                if (col == null) {
+                    continue;
+                }
+                Class<?> type = col.getRawType();
+                if (!type.equals(Long.class) && !type.equals(Double.class)) {
+                    logger.debug("{}: cannot load column {} in parallel", name, col);
+                    return -1;
+                }
+                if (col != CommonAttributes.ENTITY_ID) {
+                    if (attrList.contains(col)) {
+                        return -1;
+                    }
+                    attrList.add(col);
+                }
+            }
+            AttributeSet attrs = AttributeSet.create(attrList);
+            TypedName<?>[] colArray = columns.toArray(new TypedName<?>[columns.size()]);
+
+            long[] bounds = findChunkBoundaries(chan, dataStart, size);
+            logger.debug("{}: parsing {} bytes in {} chunks", name, size - dataStart, bounds.length - 1);
+            List<Chunk> chunks;
+            try {
+                chunks = IntStream.range(0, bounds.length - 1)
+                                  .parallel()
+                                  .mapToObj(i -> parseChunk(chan, bounds[i], bounds[i + 1], colArray))
+                                  .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (UnsupportedInputException e) {
+                logger.debug("{}: falling back to sequential parsing: {}", name, e.getMessage());
+                return -1;
+            }
+
+            int idCol = columns.indexOf(CommonAttributes.ENTITY_ID);
+            long nextLine = format.getBaseId() + 1;
+            int total = 0;
+            for (Chunk chunk: chunks) {
+                int n = chunk.size;
+                Buffer[] buffers = new Buffer[attrs.size()];
+                if (idCol < 0) {
+                    long[] ids = new long[n];
+                    for (int i = 0; i < n; i++) {
+                        ids[i] = nextLine + i;
+                    }
+                    buffers[0] = LongBuffer.wrap(ids);
+                }
+                for (int c = 0; c < colArray.length; c++) {
+                    if (colArray[c] == null) {
+                        continue;
+                    }
+                    int pos = attrs.lookup(colArray[c]);
+                    if (chunk.longs[c] != null) {
+                        buffers[pos] = LongBuffer.wrap(chunk.longs[c].elements(), 0, n);
+                    } else {
+                        buffers[pos] = DoubleBuffer.wrap(chunk.doubles[c].elements(), 0, n);
+                    }
+                }
+                builder.addColumns(format.getEntityType(), attrs, buffers);
+                nextLine += n;
+                total += n;
+            }
+            logger.info("{}: loaded {} entities from {}", name, total, file);
+            return total;
+        }
+    }
+
+    /**
+     * Read the header lines.
+     * @param chan The file channel.
+     * @param header The list to receive the header lines.
+     * @return The offset of the first data line, or -1 if the file does not have enough lines for the header.
+     */
+    private long readHeader(FileChannel chan, List<String> header) throws IOException {
+        int needed = format.getHeaderLines();
+        long pos = 0;
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_SIZE);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (header.size() < needed) {
+            buf.clear();
+            int nr = chan.read(buf, pos);
+            if (nr <= 0) {
+                return -1;
+            }
+            int i = 0;
+            while (i < nr && header.size() < needed) {
+                byte b = buf.get(i);
+                i += 1;
+                if (b == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    int len = bytes.length;
+                    if (len > 0 && bytes[len - 1] == '\r') {
+                        len -= 1;
+                    }
+                    header.add(new String(bytes, 0, len, Charsets.UTF_8));
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+            pos += i;
+        }
+        return pos;
+    }
+
+    /**
+     * Split the data region of the file into chunks starting at line boundaries.
+     * @return The chunk boundaries; chunk {@code i} spans {@code [bounds[i], bounds[i+1])}.
+     */
+    private long[] findChunkBoundaries(FileChannel chan, long start, long end) throws IOException {
+        LongArrayList bounds = new LongArrayList();
+        bounds.add(start);
+        ByteBuffer buf = ByteBuffer.allocate(SCAN_SIZE);
+        long next = start + chunkSize;
+        while (next < end) {
+            // the chunk starts after the first newline at or after next - 1
+            long pos = next - 1;
+            long found = -1;
+            while (found < 0 && pos < end) {
+                buf.clear();
+                int nr = chan.read(buf, pos);
+                if (nr <= 0) {
+                    break;
+                }
+                for (int i = 0; i < nr; i++) {
+                    if (buf.get(i) == '\n') {
+                        found = pos + i + 1;
+                        break;
+                    }
+                }
+                pos += nr;
+            }
+            if (found < 0 || found >= end) {
+                break;
+            }
+            bounds.add(found);
+            next = found + chunkSize;
+        }
+        bounds.add(end);
+        return bounds.toLongArray();
+    }
+
+    private Chunk parseChunk(FileChannel chan, long start, long end, TypedName<?>[] columns) {
+        int len = (int) (end - start);
+        byte[] bytes = new byte[len];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        try {
+            while (buf.hasRemaining()) {
+                int nr = chan.read(buf, start + buf.position());
+                if (nr < 0) {
+                    throw new IOException(file + ": unexpected end of file");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Chunk chunk = new Chunk(columns, len / 16);
+        int ls = 0;
+        while (ls < len) {
+            int le = ls;
+            while (le < len && bytes[le] != '\n') {
+                le++;
+            }
+            int next = le + 1;
+            if (le > ls && bytes[le - 1] == '\r') {
+                le -= 1;
+            }
+            chunk.parseLine(bytes, ls, le, delimiter);
+            ls = next;
+        }
+        return chunk;
+    }
+
+    /**
+     * Parse a long the way {@link Long#parseLong(String)} would.
+     */
+    static long parseLong(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if (bytes[i] == '-') {
+            neg = true;
+            i += 1;
+        }
+        if (i == end || end - i > 18) {
+            return slowParseLong(bytes, start, end);
+        }
+        long v = 0;
+        for (; i < end; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9) {
+                return slowParseLong(bytes, start, end);
+            }
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    private static long slowParseLong(byte[] bytes, int start, int end) {
+        String str = new String(bytes, start, end - start, Charsets.UTF_8);
+        try {
+            return Long.parseLong(str);
+        } catch (NumberFormatException e) {
+            throw new UnsupportedInputException("invalid long " + str);
+        }
+    }
+
+    /**
+     * Parse a double the way {@link Double#parseDouble(String)} would.  Plain decimals with at most 53 bits of
+     * mantissa and 22 fractional digits are computed directly, which is exact because both the mantissa and the
+     * power of ten are representable and IEEE division rounds correctly; anything else is delegated to the JDK.
+     */
+    static double parseDouble(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if (bytes[i] == '-') {
+            neg = true;
+            i += 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fracDigits = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.' && !seenPoint) {
+                seenPoint = true;
+                continue;
+            }
+            int d = b - '0';
+            if (d < 0 || d > 9 || digits >= 18) {
+                return slowParseDouble(bytes, start, end);
+            }
+            mantissa = mantissa * 10 + d;
+            digits += 1;
+            if (seenPoint) {
+                fracDigits += 1;
+            }
+        }
+        if (digits == 0 || mantissa > MAX_EXACT_MANTISSA || fracDigits >= POWERS_OF_TEN.length) {
+            return slowParseDouble(bytes, start, end);
+        }
+        double v = fracDigits > 0 ? mantissa / POWERS_OF_TEN[fracDigits] : mantissa;
+        return neg ? -v : v;
+    }
+
+    private static double slowParseDouble(byte[] bytes, int start, int end) {
+        String str = new String(bytes, start, end - start, Charsets.UTF_8);
+        try {
+            return Double.parseDouble(str);
+        } catch (NumberFormatException e) {
+            throw new UnsupportedInputException("invalid double " + str);
+        }
+    }
+
+    /**
+     * The columns parsed from one chunk of the file.
+     */
+    private static class Chunk {
+        final TypedName<?>[] columns;
+        final LongArrayList[] longs;
+        final DoubleArrayList[] doubles;
+        int size;
+
+        Chunk(TypedName<?>[] cols, int capacity) {
+            columns = cols;
+            longs = new LongArrayList[cols.length];
+            doubles = new DoubleArrayList[cols.length];
+            for (int c = 0; c < cols.length; c++) {
+                if (cols[c] == null) {
+                    continue;
+                }
+                if (cols[c].getRawType().equals(Long.class)) {
+                    longs[c] = new LongArrayList(capacity);
+                } else {
+                    doubles[c] = new DoubleArrayList(capacity);
+                }
+            }
+        }
+
+        void parseLine(byte[] bytes, int start, int end, byte delim) {
+            int pos = start;
+            boolean more = true;
+            for (int c = 0; c < columns.length; c++) {
+                int fe = pos;
+                if (more) {
+                    while (fe < end && bytes[fe] != delim) {
+                        byte b = bytes[fe];
+                        if (b == '"' || b == '\r') {
+                            throw new UnsupportedInputException("quoted field or stray carriage return");
+                        }
+                        fe++;
+                    }
+                }
+                if (columns[c] != null) {
+                    if (!more || fe == pos) {
+                        throw new UnsupportedInputException("missing or empty field for " + columns[c]);
+                    }
+                    if (longs[c] != null) {
+                        longs[c].add(parseLong(bytes, pos, fe));
+                    } else {
+                        doubles[c].add(parseDouble(bytes, pos, fe));
+                    }
+                }
+                if (fe < end) {
+                    pos = fe + 1;
+                } else {
+                    more = false;
+                }
+            }
+            size += 1;
+        }
+    }
+
+    /**
+     * Exception signalling input that must be parsed sequentially.
+     */
+    private static class UnsupportedInputException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedInputException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -272,6 +272,22 @@ public class StaticDataSource implements Provider<DataAccessObject>, Describable
             builder.addIndex(iae.getKey(), iae.getValue());
         }
         for (EntitySource source: sources) {
+            if (source instanceof BinaryRatingSource) {
+                // columnar source, load without building entity objects
+                if (((BinaryRatingSource) source).addTo(builder) > 0) {
+                    types.add(CommonTypes.RATING);
+                }
+                continue;
+            }
+            if (source instanceof TextEntitySource) {
+                int n = ((TextEntitySource) source).addTo(builder);
+                if (n >= 0) {
+                    if (n > 0) {
+                        types.addAll(source.getTypes());
+                    }
+                    continue;
+                }
+            }
             try (ObjectStream<Entity> data = source.openStream()) {
                 for (Entity e: data) {
                     builder.addEntity(e);
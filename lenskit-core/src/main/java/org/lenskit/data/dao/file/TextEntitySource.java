@@ -41,6 +41,7 @@ import org.lenskit.util.describe.Describable;
 import org.lenskit.util.describe.DescriptionWriter;
 import org.lenskit.util.io.LKFileUtils;
 import org.lenskit.data.dao.DataAccessException;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
 import org.lenskit.data.entities.*;
 import org.lenskit.util.io.LineStream;
 import org.lenskit.util.io.ObjectStream;
@@ -72,6 +73,7 @@ public class TextEntitySource implements EntitySource, Describable {
     private URL sourceURL;
     private EntityFormat format;
     private Map<String,Object> metadata = new HashMap<>();
+    private boolean parallelLoad = true;
 
     /**
      * Construct a new text entity source.
@@ -183,6 +185,23 @@ public class TextEntitySource implements EntitySource, Describable {
         return format;
     }
 
+    /**
+     * Query whether data sources may parse this source's file in parallel.
+     * @return {@code true} if the file may be parsed in parallel (the default).
+     */
+    public boolean isParallelLoad() {
+        return parallelLoad;
+    }
+
+    /**
+     * Set whether data sources may parse this source's file in parallel.  If disabled, the file is always read
+     * sequentially with {@link #openStream()}.
+     * @param parallel {@code false} to disable parallel parsing.
+     */
+    public void setParallelLoad(boolean parallel) {
+        parallelLoad = parallel;
+    }
+
     @Override
     public Map<String, Object> getMetadata() {
         return metadata;
@@ -215,6 +234,24 @@ public class TextEntitySource implements EntitySource, Describable {
         return ObjectStreams.transform(lines, parser);
     }
 
+    /**
+     * Add this source's entities directly to a DAO builder, parsing the file in parallel if possible and
+     * {@linkplain #isParallelLoad() enabled}.
+     * @param builder The DAO builder.
+     * @return The number of entities added, or -1 if the source must be read with {@link #openStream()} instead.
+     * @throws IOException if there is an error reading the file.
+     */
+    int addTo(EntityCollectionDAOBuilder builder) throws IOException {
+        if (!parallelLoad || sourceURL == null || !"file".equals(sourceURL.getProtocol())
+                || CompressionMode.AUTO.getEffectiveCompressionMode(sourceURL.getPath()) != CompressionMode.NONE
+                || !ParallelDelimitedLoader.isSupported(format)) {
+            return -1;
+        }
+        ParallelDelimitedLoader loader =
+                new ParallelDelimitedLoader(name, getFile(), (DelimitedColumnEntityFormat) format);
+        return loader.load(builder);
+    }
+
     @Override
     public String toString() {
         ToStringBuilder tsb = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
@@ -272,6 +309,9 @@ public class TextEntitySource implements EntitySource, Describable {
         object.put("file", path.toString().replace(File.separatorChar, '/'));
 
         object.setAll(format.toJSON());
+        if (!parallelLoad) {
+            object.put("parallel", false);
+        }
 
         return object;
     }
@@ -335,6 +375,7 @@ public class TextEntitySource implements EntitySource, Describable {
             }
         }
 
+        source.setParallelLoad(object.path("parallel").asBoolean(true));
         source.setFormat(format);
         return source;
     }
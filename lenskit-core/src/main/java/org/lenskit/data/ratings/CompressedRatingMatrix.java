@@ -0,0 +1,544 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.ratings;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.Immutable;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.KeyIndex;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.*;
+
+import static it.unimi.dsi.fastutil.Arrays.quickSort;
+
+/**
+ * A rating matrix stored in compressed sparse row (CSR) form, both user-major and item-major.
+ *
+ * Users and items are indexed in ID order, and each user's ratings are stored contiguously, sorted by item.  Like
+ * {@link PackedRatingMatrix}, {@link #getRatings()} lists the ratings in a random order, so trainers that visit
+ * ratings in list order (such as stochastic gradient descent) do not see them grouped by user; the index of a rating
+ * is its position in that list.
+ *
+ * Rating values are stored as {@code float} to halve their memory use.  This is exact for the usual integer and
+ * half-star ratings, but values that need more than a {@code float}'s 24 bits of precision (e.g. pre-normalized
+ * ratings) are rounded, so the values reported by the matrix may differ from the input in the 7th significant digit.
+ *
+ * The matrix is immutable and needs no locking: user and item rating vectors are built directly from the arrays, and
+ * {@link Cursor}s iterate over a user's or an item's ratings without allocating.
+ *
+ * To use it, bind {@link RatingMatrix} to this class.
+ */
+@DefaultProvider(CompressedRatingMatrixProvider.class)
+@Shareable
+@Immutable
+public class CompressedRatingMatrix implements RatingMatrix {
+    private final SortedKeyIndex userIndex;
+    private final SortedKeyIndex itemIndex;
+
+    /* user-major: ratings of user u are at positions userOffsets[u] until userOffsets[u+1] */
+    private final int[] userOffsets;
+    private final int[] userItems;
+    private final float[] values;
+
+    /* item-major: ratings of item i are at positions itemOffsets[i] until itemOffsets[i+1] */
+    private final int[] itemOffsets;
+    private final int[] itemUsers;
+    /* the user-major position of each item-major entry */
+    private final int[] itemEntries;
+
+    /* the user-major position of each rating in the shuffled rating list, and the inverse */
+    private final int[] ratingOrder;
+    private final int[] ratingIndexes;
+
+    private CompressedRatingMatrix(SortedKeyIndex users, SortedKeyIndex items,
+                                   int[] uoff, int[] uitems, float[] vals, Random random) {
+        userIndex = users;
+        itemIndex = items;
+        userOffsets = uoff;
+        userItems = uitems;
+        values = vals;
+
+        int nitems = items.size();
+        int nnz = vals.length;
+        itemOffsets = new int[nitems + 1];
+        for (int j = 0; j < nnz; j++) {
+            itemOffsets[uitems[j] + 1] += 1;
+        }
+        for (int i = 0; i < nitems; i++) {
+            itemOffsets[i + 1] += itemOffsets[i];
+        }
+        itemUsers = new int[nnz];
+        itemEntries = new int[nnz];
+        int[] fill = Arrays.copyOf(itemOffsets, nitems);
+        // users are visited in order, so each item's users come out sorted
+        for (int u = 0; u < users.size(); u++) {
+            for (int j = uoff[u]; j < uoff[u + 1]; j++) {
+                int pos = fill[uitems[j]]++;
+                itemUsers[pos] = u;
+                itemEntries[pos] = j;
+            }
+        }
+
+        ratingOrder = new int[nnz];
+        for (int j = 0; j < nnz; j++) {
+            ratingOrder[j] = j;
+        }
+        IntArrays.shuffle(ratingOrder, random);
+        ratingIndexes = new int[nnz];
+        for (int k = 0; k < nnz; k++) {
+            ratingIndexes[ratingOrder[k]] = k;
+        }
+    }
+
+    /**
+     * Create a compressed rating matrix from user rating vectors.
+     *
+     * @param users The user rating vectors, keyed by user ID.
+     * @param random The random number generator used to shuffle the ratings.
+     * @return The rating matrix.
+     */
+    public static CompressedRatingMatrix fromUserVectors(Map<Long, ? extends Long2DoubleMap> users, Random random) {
+        Builder bld = new Builder();
+        for (Map.Entry<Long, ? extends Long2DoubleMap> e: users.entrySet()) {
+            bld.addUser(e.getKey(), e.getValue());
+        }
+        return bld.build(random);
+    }
+
+    private static void sortRow(int[] items, float[] values, int start, int end) {
+        quickSort(start, end,
+                  (a, b) -> Integer.compare(items[a], items[b]),
+                  (a, b) -> {
+                      int ti = items[a];
+                      items[a] = items[b];
+                      items[b] = ti;
+                      float tv = values[a];
+                      values[a] = values[b];
+                      values[b] = tv;
+                  });
+    }
+
+    @Override
+    public LongCollection getUserIds() {
+        return userIndex.keySet();
+    }
+
+    @Override
+    public LongCollection getItemIds() {
+        return itemIndex.keySet();
+    }
+
+    @Override
+    public KeyIndex userIndex() {
+        return userIndex;
+    }
+
+    @Override
+    public KeyIndex itemIndex() {
+        return itemIndex;
+    }
+
+    /**
+     * Get the number of ratings.
+     * @return The number of ratings.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public List<RatingMatrixEntry> getRatings() {
+        return new RatingList();
+    }
+
+    @Override
+    public Collection<RatingMatrixEntry> getUserRatings(long userId) {
+        int uidx = userIndex.tryGetIndex(userId);
+        if (uidx < 0) {
+            return Collections.emptyList();
+        }
+        return new EntryList(userOffsets[uidx], userOffsets[uidx + 1]);
+    }
+
+    @Override
+    public Long2DoubleMap getUserRatingVector(long userId) {
+        int uidx = userIndex.tryGetIndex(userId);
+        if (uidx < 0) {
+            return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.empty(), new double[0]);
+        }
+        int start = userOffsets[uidx];
+        int n = userOffsets[uidx + 1] - start;
+        long[] keys = new long[n];
+        double[] vs = new double[n];
+        for (int k = 0; k < n; k++) {
+            keys[k] = itemIndex.getKey(userItems[start + k]);
+            vs[k] = values[start + k];
+        }
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(keys, n), vs);
+    }
+
+    /**
+     * Get the ratings of an item as a vector.
+     *
+     * @param itemId The item ID.
+     * @return The item's rating vector, mapping user IDs to ratings.
+     */
+    public Long2DoubleMap getItemRatingVector(long itemId) {
+        int iidx = itemIndex.tryGetIndex(itemId);
+        if (iidx < 0) {
+            return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.empty(), new double[0]);
+        }
+        int start = itemOffsets[iidx];
+        int n = itemOffsets[iidx + 1] - start;
+        long[] keys = new long[n];
+        double[] vs = new double[n];
+        for (int k = 0; k < n; k++) {
+            keys[k] = userIndex.getKey(itemUsers[start + k]);
+            vs[k] = values[itemEntries[start + k]];
+        }
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(keys, n), vs);
+    }
+
+    /**
+     * Get the number of ratings a user has.
+     * @param uidx The user index.
+     * @return The number of ratings.
+     */
+    public int getUserRatingCount(int uidx) {
+        return userOffsets[uidx + 1] - userOffsets[uidx];
+    }
+
+    /**
+     * Get the number of ratings an item has.
+     * @param iidx The item index.
+     * @return The number of ratings.
+     */
+    public int getItemRatingCount(int iidx) {
+        return itemOffsets[iidx + 1] - itemOffsets[iidx];
+    }
+
+    /**
+     * Create a cursor over a user's ratings.
+     * @param uidx The user index.
+     * @return A cursor positioned before the user's first rating.
+     */
+    public Cursor userCursor(int uidx) {
+        Cursor cur = new Cursor(true);
+        cur.moveTo(uidx);
+        return cur;
+    }
+
+    /**
+     * Create a cursor over an item's ratings.
+     * @param iidx The item index.
+     * @return A cursor positioned before the item's first rating.
+     */
+    public Cursor itemCursor(int iidx) {
+        Cursor cur = new Cursor(false);
+        cur.moveTo(iidx);
+        return cur;
+    }
+
+    /**
+     * Find the user of a rating index.
+     */
+    private int findUser(int index) {
+        int pos = Arrays.binarySearch(userOffsets, index);
+        if (pos < 0) {
+            return -pos - 2;
+        }
+        // skip users with no ratings, whose offsets equal the next user's
+        while (userOffsets[pos + 1] == index) {
+            pos += 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Builder for compressed rating matrices.  Users' ratings are appended to primitive arrays as they are added, so
+     * the matrix can be built from a stream of user vectors without keeping the vectors themselves.
+     */
+    public static class Builder {
+        private final LongArrayList users = new LongArrayList();
+        private final IntArrayList offsets = new IntArrayList();
+        private final LongArrayList items = new LongArrayList();
+        private final FloatArrayList values = new FloatArrayList();
+
+        /**
+         * Add a user's ratings.
+         * @param user The user ID.
+         * @param ratings The user's ratings.
+         * @return The builder (for chaining).
+         */
+        public Builder addUser(long user, Long2DoubleMap ratings) {
+            users.add(user);
+            offsets.add(items.size());
+            for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(ratings)) {
+                items.add(e.getLongKey());
+                values.add((float) e.getDoubleValue());
+            }
+            return this;
+        }
+
+        /**
+         * Build the rating matrix.
+         * @param random The random number generator used to shuffle the ratings.
+         * @return The rating matrix.
+         * @throws IllegalArgumentException if a user was added more than once.
+         */
+        public CompressedRatingMatrix build(Random random) {
+            int nrows = users.size();
+            int nnz = items.size();
+            offsets.add(nnz);
+            SortedKeyIndex uidx = SortedKeyIndex.fromCollection(users);
+            Preconditions.checkArgument(uidx.size() == nrows, "duplicate users");
+            SortedKeyIndex iidx = SortedKeyIndex.fromCollection(new LongOpenHashSet(items));
+
+            // users may arrive in any order; lay their rows out in user index order
+            int[] rowOf = new int[nrows];
+            int[] userOffsets = new int[nrows + 1];
+            for (int r = 0; r < nrows; r++) {
+                int u = uidx.getIndex(users.getLong(r));
+                rowOf[u] = r;
+                userOffsets[u + 1] = offsets.getInt(r + 1) - offsets.getInt(r);
+            }
+            for (int u = 0; u < nrows; u++) {
+                userOffsets[u + 1] += userOffsets[u];
+            }
+
+            int[] userItems = new int[nnz];
+            float[] vals = new float[nnz];
+            for (int u = 0; u < nrows; u++) {
+                int src = offsets.getInt(rowOf[u]);
+                int start = userOffsets[u];
+                int end = userOffsets[u + 1];
+                for (int j = start; j < end; j++, src++) {
+                    userItems[j] = iidx.getIndex(items.getLong(src));
+                    vals[j] = values.getFloat(src);
+                }
+                sortRow(userItems, vals, start, end);
+            }
+            return new CompressedRatingMatrix(uidx, iidx, userOffsets, userItems, vals, random);
+        }
+    }
+
+    /**
+     * A cursor over the ratings of one user or one item.  A cursor is itself a rating matrix entry for the rating at
+     * which it is positioned, so it can be passed to code that expects entries; it can be moved to another row with
+     * {@link #moveTo(int)}, so a single cursor can scan the whole matrix without allocating.  Cursors are not
+     * thread-safe, but any number of threads can each use their own.
+     */
+    public final class Cursor extends RatingMatrixEntry {
+        private final boolean byUser;
+        private int row;
+        private int pos;
+        private int end;
+
+        private Cursor(boolean users) {
+            byUser = users;
+        }
+
+        /**
+         * Move the cursor to the start of another row.
+         * @param idx The user index (for user cursors) or item index (for item cursors).
+         */
+        public void moveTo(int idx) {
+            int[] offsets = byUser ? userOffsets : itemOffsets;
+            Preconditions.checkElementIndex(idx, offsets.length - 1);
+            row = idx;
+            pos = offsets[idx] - 1;
+            end = offsets[idx + 1];
+        }
+
+        /**
+         * Advance to the next rating in the row.
+         * @return {@code true} if there is a rating; {@code false} if the row is exhausted.
+         */
+        public boolean advance() {
+            if (pos + 1 < end) {
+                pos += 1;
+                return true;
+            } else {
+                pos = end;
+                return false;
+            }
+        }
+
+        private int entry() {
+            Preconditions.checkState(pos < end && pos >= (byUser ? userOffsets : itemOffsets)[row],
+                                     "cursor not positioned at a rating");
+            return byUser ? pos : itemEntries[pos];
+        }
+
+        @Override
+        public int getUserIndex() {
+            entry();
+            return byUser ? row : itemUsers[pos];
+        }
+
+        @Override
+        public long getUserId() {
+            return userIndex.getKey(getUserIndex());
+        }
+
+        @Override
+        public int getItemIndex() {
+            entry();
+            return byUser ? userItems[pos] : row;
+        }
+
+        @Override
+        public long getItemId() {
+            return itemIndex.getKey(getItemIndex());
+        }
+
+        @Override
+        public int getIndex() {
+            return ratingIndexes[entry()];
+        }
+
+        @Override
+        public double getValue() {
+            return values[entry()];
+        }
+    }
+
+    /**
+     * An immutable rating matrix entry.
+     */
+    private final class Entry extends RatingMatrixEntry {
+        /* the user-major position */
+        private final int index;
+        private final int user;
+
+        Entry(int idx, int uidx) {
+            index = idx;
+            user = uidx;
+        }
+
+        @Override
+        public long getUserId() {
+            return userIndex.getKey(user);
+        }
+
+        @Override
+        public int getUserIndex() {
+            return user;
+        }
+
+        @Override
+        public long getItemId() {
+            return itemIndex.getKey(userItems[index]);
+        }
+
+        @Override
+        public int getItemIndex() {
+            return userItems[index];
+        }
+
+        @Override
+        public int getIndex() {
+            return ratingIndexes[index];
+        }
+
+        @Override
+        public double getValue() {
+            return values[index];
+        }
+    }
+
+    /**
+     * The list of all ratings, in shuffled order.
+     */
+    private final class RatingList extends AbstractList<RatingMatrixEntry> {
+        @Override
+        public RatingMatrixEntry get(int i) {
+            Preconditions.checkElementIndex(i, ratingOrder.length);
+            int pos = ratingOrder[i];
+            return new Entry(pos, findUser(pos));
+        }
+
+        @Override
+        public int size() {
+            return ratingOrder.length;
+        }
+    }
+
+    /**
+     * A list of the entries in a range of user-major positions.
+     */
+    private final class EntryList extends AbstractList<RatingMatrixEntry> {
+        private final int start;
+        private final int end;
+
+        EntryList(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public RatingMatrixEntry get(int i) {
+            Preconditions.checkElementIndex(i, end - start);
+            int idx = start + i;
+            return new Entry(idx, findUser(idx));
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+
+        @Override
+        public Iterator<RatingMatrixEntry> iterator() {
+            return new Iterator<RatingMatrixEntry>() {
+                int next = start;
+                int user = start < end ? findUser(start) : 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < end;
+                }
+
+                @Override
+                public RatingMatrixEntry next() {
+                    if (next >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    while (userOffsets[user + 1] <= next) {
+                        user += 1;
+                    }
+                    return new Entry(next++, user);
+                }
+            };
+        }
+    }
+}
@@ -39,6 +39,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * An in-memory snapshot of rating data stored in packed arrays.
@@ -57,6 +59,25 @@ public class PackedRatingMatrix implements RatingMatrix {
         userIndexLists = Suppliers.memoize(new UserPreferenceSupplier());
     }
 
+    /**
+     * Create a packed rating matrix from user rating vectors.
+     *
+     * @param users The user rating vectors, keyed by user ID.
+     * @param random The random number generator used to shuffle the ratings.
+     * @return The rating matrix.
+     */
+    public static PackedRatingMatrix fromUserVectors(Map<Long, ? extends Long2DoubleMap> users, Random random) {
+        PackedRatingDataBuilder bld = new PackedRatingDataBuilder();
+        for (Map.Entry<Long, ? extends Long2DoubleMap> user: users.entrySet()) {
+            final long uid = user.getKey();
+            for (Long2DoubleMap.Entry r: user.getValue().long2DoubleEntrySet()) {
+                bld.add(uid, r.getLongKey(), r.getDoubleValue());
+            }
+        }
+        bld.shuffle(random);
+        return new PackedRatingMatrix(bld.build());
+    }
+
     private void requireValid() {
         if (data == null) {
             throw new IllegalStateException("build context closed");
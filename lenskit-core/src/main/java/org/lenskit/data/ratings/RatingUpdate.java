@@ -0,0 +1,147 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.ratings;
+
+import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.jcip.annotations.Immutable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * A batch of changes to rating data, to be applied to an {@link UpdatableModel}.  Removals are applied before
+ * additions.  Models keep one rating per user-item pair, so adding a rating for a pair the model already has
+ * replaces the old rating; a re-rating may be expressed either as a plain addition or by removing the old rating and
+ * adding the new one.
+ *
+ * @since 3.0
+ */
+@Immutable
+public final class RatingUpdate {
+    private static final RatingUpdate EMPTY = new RatingUpdate(ImmutableList.of(), ImmutableList.of());
+
+    private final List<Rating> added;
+    private final List<Rating> removed;
+
+    private RatingUpdate(List<Rating> add, List<Rating> rm) {
+        added = add;
+        removed = rm;
+    }
+
+    /**
+     * Create a rating update.
+     * @param added The ratings to add.
+     * @param removed The ratings to remove.
+     * @return The update.
+     */
+    public static RatingUpdate create(Collection<? extends Rating> added, Collection<? extends Rating> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return EMPTY;
+        }
+        return new RatingUpdate(ImmutableList.copyOf(added), ImmutableList.copyOf(removed));
+    }
+
+    /**
+     * Create an update that only adds ratings.
+     * @param added The ratings to add.
+     * @return The update.
+     */
+    public static RatingUpdate additions(Collection<? extends Rating> added) {
+        return create(added, ImmutableList.of());
+    }
+
+    /**
+     * Create an update that only removes ratings.
+     * @param removed The ratings to remove.
+     * @return The update.
+     */
+    public static RatingUpdate removals(Collection<? extends Rating> removed) {
+        return create(ImmutableList.of(), removed);
+    }
+
+    /**
+     * Get the ratings added by this update.
+     * @return The added ratings, in order.
+     */
+    public List<Rating> getAdded() {
+        return added;
+    }
+
+    /**
+     * Get the ratings removed by this update.
+     * @return The removed ratings, in order.
+     */
+    public List<Rating> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Query whether this update is empty.
+     * @return {@code true} if the update neither adds nor removes ratings.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Compute the new rating vectors of the users affected by this update.  This is for models that keep each
+     * user's rating vector; adding a rating for an item the user has already rated replaces the old value.
+     *
+     * @param current A function returning a user's current rating vector (empty or {@code null} for unknown users).
+     * @return The new rating vector of each user touched by the update.  Users with no remaining ratings map to
+     * empty vectors.
+     */
+    public Long2ObjectMap<Long2DoubleMap> updateUserVectors(LongFunction<? extends Long2DoubleMap> current) {
+        Long2ObjectMap<Long2DoubleMap> vectors = new Long2ObjectOpenHashMap<>();
+        for (Rating r: removed) {
+            userVector(vectors, current, r.getUserId()).remove(r.getItemId());
+        }
+        for (Rating r: added) {
+            userVector(vectors, current, r.getUserId()).put(r.getItemId(), r.getValue());
+        }
+        return vectors;
+    }
+
+    private static Long2DoubleMap userVector(Long2ObjectMap<Long2DoubleMap> vectors,
+                                             LongFunction<? extends Long2DoubleMap> current, long user) {
+        Long2DoubleMap vec = vectors.get(user);
+        if (vec == null) {
+            Long2DoubleMap cur = current.apply(user);
+            vec = cur != null ? new Long2DoubleOpenHashMap(cur) : new Long2DoubleOpenHashMap();
+            vectors.put(user, vec);
+        }
+        return vec;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RatingUpdate(+%d, -%d)", added.size(), removed.size());
+    }
+}
@@ -24,25 +24,40 @@
  */
 package org.lenskit.data.ratings;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityCollectionDAO;
 import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.store.EntityCollection;
 import org.lenskit.util.IdBox;
 import org.lenskit.util.io.ObjectStream;
 import org.lenskit.util.io.ObjectStreams;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import net.jcip.annotations.ThreadSafe;
 import javax.inject.Inject;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Rating vector source that extracts user ratings from the database.
+ *
+ * When the DAO is an {@link EntityCollectionDAO} whose rating collection can produce vectors directly from its
+ * columns (a packed collection with a user index), vectors are read without reconstituting rating entities.
+ * Otherwise, this falls back to a rating query.  The most recently requested user vectors are cached.
  */
 @ThreadSafe
 public class StandardRatingVectorPDAO implements RatingVectorPDAO {
+    /**
+     * The number of user rating vectors to retain.
+     */
+    static final int CACHE_SIZE = 128;
+
     private final DataAccessObject dao;
-    private volatile IdBox<Long2DoubleMap> cachedValue;
+    private final Cache<Long, Long2DoubleMap> cache;
 
     /**
      * Construct a rating vector source.
@@ -51,33 +66,64 @@ public class StandardRatingVectorPDAO implements RatingVectorPDAO {
     @Inject
     public StandardRatingVectorPDAO(DataAccessObject dao) {
         this.dao = dao;
+        cache = CacheBuilder.newBuilder()
+                            .maximumSize(CACHE_SIZE)
+                            .build();
     }
 
     @Nonnull
     @Override
     public Long2DoubleMap userRatingVector(long user) {
-        IdBox<Long2DoubleMap> cached = cachedValue;
-        if (cached != null && cached.getId() == user) {
-            return cached.getValue();
+        Long2DoubleMap map = cache.getIfPresent(user);
+        if (map != null) {
+            return map;
         }
 
-        Long2DoubleMap map;
-
-        try (ObjectStream<Rating> stream = dao.query(Rating.class)
-                                              .withAttribute(CommonAttributes.USER_ID, user)
-                                              .stream()) {
-            map = Ratings.userRatingVector(stream);
+        EntityCollection ratings = getPackedRatings();
+        if (ratings != null) {
+            map = ratings.groupVector(CommonAttributes.USER_ID, user,
+                                      CommonAttributes.ITEM_ID, CommonAttributes.RATING);
+        }
+        if (map == null) {
+            try (ObjectStream<Rating> stream = dao.query(Rating.class)
+                                                  .withAttribute(CommonAttributes.USER_ID, user)
+                                                  .stream()) {
+                map = Ratings.userRatingVector(stream);
+            }
         }
 
+        cache.put(user, map);
         return map;
     }
 
     @Override
     public ObjectStream<IdBox<Long2DoubleMap>> streamUsers() {
+        EntityCollection ratings = getPackedRatings();
+        if (ratings != null) {
+            Stream<IdBox<Long2DoubleMap>> vectors =
+                    ratings.groupVectors(CommonAttributes.USER_ID, CommonAttributes.ITEM_ID, CommonAttributes.RATING);
+            if (vectors != null) {
+                return ObjectStreams.wrap(vectors);
+            }
+        }
+
         ObjectStream<IdBox<List<Rating>>> stream = dao.query(Rating.class)
                                                       .groupBy(CommonAttributes.USER_ID)
                                                       .stream();
         return ObjectStreams.wrap(stream.map(u -> u.mapValue(Ratings::userRatingVector)),
                                   stream);
     }
+
+    /**
+     * Get the in-memory rating collection, if the DAO exposes one.
+     * @return The rating collection, or {@code null} if ratings must be queried.
+     */
+    @Nullable
+    private EntityCollection getPackedRatings() {
+        if (dao instanceof EntityCollectionDAO) {
+            return ((EntityCollectionDAO) dao).getEntityCollection(Rating.ENTITY_TYPE);
+        } else {
+            return null;
+        }
+    }
 }
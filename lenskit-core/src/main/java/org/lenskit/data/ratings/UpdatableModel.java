@@ -0,0 +1,48 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.ratings;
+
+/**
+ * Interface for model components that can absorb changes to the rating data in place, without being rebuilt.
+ * Components built into a recommender engine that implement this interface can be kept current by applying
+ * each batch of new (or deleted) ratings to them; recommenders subsequently created from the engine see the
+ * updated model.
+ *
+ * Updates only change the implementing component.  Other pre-built components that were computed from it (or from
+ * the original data) are not refreshed, so an engine is only kept fully current if every model component that
+ * depends on the rating data is updatable.
+ *
+ * @since 3.0
+ */
+public interface UpdatableModel {
+    /**
+     * Apply a batch of rating changes to the model.  The removed ratings are applied first, then the added ones.
+     * Implementations should apply the batch atomically with respect to concurrent readers, if they support
+     * concurrent reads.
+     *
+     * @param update The rating changes.
+     */
+    void update(RatingUpdate update);
+}
@@ -104,6 +104,27 @@ class AttrStoreBuilder {
         return shards.get(si).get(vi);
     }
 
+    /**
+     * Query whether the value at an index is null.
+     *
+     * @param idx The index.
+     * @return {@code true} if there is no value at position {@code idx}.
+     */
+    boolean isNull(int idx) {
+        assert idx >= 0 && idx < size;
+        return shards.get(Shard.indexOfShard(idx)).isNull(Shard.indexWithinShard(idx));
+    }
+
+    /**
+     * Add a value copied from another store builder of the same kind.
+     *
+     * @param src The store builder to copy from.
+     * @param idx The index of the value in {@code src}.
+     */
+    void addFrom(AttrStoreBuilder src, int idx) {
+        add(src.get(idx));
+    }
+
     /**
      * Swap the values at two indexes.  This is used for sorting.
      *
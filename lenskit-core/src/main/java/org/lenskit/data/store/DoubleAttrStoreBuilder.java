@@ -38,6 +38,39 @@ class DoubleAttrStoreBuilder extends AttrStoreBuilder {
         return ((DoubleShard) shards.get(si)).getDouble(vi);
     }
 
+    /**
+     * Add a primitive value to this store builder without boxing it.
+     *
+     * @param val The value to add.
+     */
+    void addDouble(double val) {
+        int nexti = size;
+        int si = Shard.indexOfShard(nexti);
+        int vi = Shard.indexWithinShard(nexti);
+        DoubleShard shard;
+        if (si < shards.size()) {
+            shard = (DoubleShard) shards.get(si);
+        } else {
+            shard = DoubleShard.create();
+            shards.add(shard);
+        }
+        DoubleShard s2 = shard.adapt(val);
+        if (s2 != shard) {
+            shards.set(si, s2);
+        }
+        s2.put(vi, val);
+        size += 1;
+    }
+
+    @Override
+    void addFrom(AttrStoreBuilder src, int idx) {
+        if (src.isNull(idx)) {
+            skip();
+        } else {
+            addDouble(((DoubleAttrStoreBuilder) src).getDouble(idx));
+        }
+    }
+
     @Override
     AttrStore build() {
         if (!shards.isEmpty()) {
@@ -106,6 +106,13 @@ abstract class DoubleShard extends Shard {
     @Override
     abstract DoubleShard adapt(Object v);
 
+    /**
+     * Adapt this shard to store a primitive double value, without boxing it.
+     * @param v The value to be stored.
+     * @return A shard capable of storing {@code v} (may be this shard).
+     */
+    abstract DoubleShard adapt(double v);
+
     private static class Full extends DoubleShard {
         private double[] data = new double[SHARD_SIZE];
 
@@ -137,6 +144,11 @@ abstract class DoubleShard extends Shard {
                 throw new IllegalArgumentException("cannot store obj in double");
             }
         }
+
+        @Override
+        DoubleShard adapt(double v) {
+            return this;
+        }
     }
 
     /**
@@ -193,22 +205,26 @@ abstract class DoubleShard extends Shard {
             if (obj == null) {
                 return this;
             } else if (obj instanceof Double) {
-                double v = (double) obj;
-                if (isStorable(v)) {
-                    return this;
-                } else {
-                    Full full = new Full();
-                    int n = size;
-                    full.size = n;
-                    full.mask = mask != null ? (BitSet) mask.clone() : null;
-                    for (int i = 0; i < n; i++) {
-                        full.data[i] = data[i] * 0.5;
-                    }
-                    return full;
-                }
+                return adapt(((Double) obj).doubleValue());
             } else {
                 throw new IllegalArgumentException("cannot store obj in double");
             }
         }
+
+        @Override
+        DoubleShard adapt(double v) {
+            if (isStorable(v)) {
+                return this;
+            } else {
+                Full full = new Full();
+                int n = size;
+                full.size = n;
+                full.mask = mask != null ? (BitSet) mask.clone() : null;
+                for (int i = 0; i < n; i++) {
+                    full.data[i] = data[i] * 0.5;
+                }
+                return full;
+            }
+        }
     }
 }
@@ -26,15 +26,18 @@ package org.lenskit.data.store;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.data.dao.SortKey;
 import org.lenskit.data.entities.*;
+import org.lenskit.util.IdBox;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.AbstractCollection;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * A collection of entities of a single type.  This collection augments the `Collection` interface with logic for
@@ -144,6 +147,40 @@ public abstract class EntityCollection extends AbstractCollection<Entity> {
      */
     public abstract Map<Long,List<Entity>> grouped(TypedName<Long> attr);
 
+    /**
+     * Get a grouped view of the data as primitive vectors, reading the key and value columns directly.  This is the
+     * fast path for extracting things like user rating vectors; collections that cannot produce vectors without
+     * materializing entities return {@code null}, and the caller should fall back to {@link #grouped(TypedName)}.
+     *
+     * Entities missing the key or value attribute are skipped, as are groups with no remaining entities.
+     *
+     * @param group The grouping attribute (e.g. user ID).
+     * @param key The attribute to use as vector keys (e.g. item ID).
+     * @param value The attribute to use as vector values (e.g. rating).
+     * @return A stream of vectors, identified by group value, or {@code null} if this collection does not support it.
+     */
+    @Nullable
+    public Stream<IdBox<Long2DoubleMap>> groupVectors(TypedName<Long> group, TypedName<Long> key,
+                                                      TypedName<Double> value) {
+        return null;
+    }
+
+    /**
+     * Get the primitive vector for a single group.
+     *
+     * @param group The grouping attribute.
+     * @param groupValue The group to extract.
+     * @param key The attribute to use as vector keys.
+     * @param value The attribute to use as vector values.
+     * @return The vector (empty if the group has no entities), or {@code null} if this collection does not support it.
+     * @see #groupVectors(TypedName, TypedName, TypedName)
+     */
+    @Nullable
+    public Long2DoubleMap groupVector(TypedName<Long> group, long groupValue, TypedName<Long> key,
+                                      TypedName<Double> value) {
+        return null;
+    }
+
     /**
      * Get the sort keys, if this collection stores attributes in sorted order.
      * @return The sort keys.
@@ -24,9 +24,12 @@
  */
 package org.lenskit.data.store;
 
+import org.lenskit.data.entities.AttributeSet;
 import org.lenskit.data.entities.Entity;
 import org.lenskit.data.entities.TypedName;
 
+import java.nio.Buffer;
+
 /**
  * Created by MichaelEkstrand on 4/18/2017.
  */
@@ -65,6 +68,31 @@ public abstract class EntityCollectionBuilder {
      */
     public abstract EntityCollectionBuilder add(Entity e, boolean replace);
 
+    /**
+     * Query whether this builder can accept entities in columnar form with {@link #addColumns(AttributeSet, Buffer...)}.
+     * @param attrs The column attributes.
+     * @return {@code true} if {@link #addColumns(AttributeSet, Buffer...)} will accept columns with these attributes.
+     */
+    public boolean acceptsColumns(AttributeSet attrs) {
+        return false;
+    }
+
+    /**
+     * Add a block of entities stored as primitive columns, without materializing them as {@link Entity} objects.
+     * Entities are added as with {@link #add(Entity)}.
+     *
+     * @param attrs The column attributes.  The first attribute must be the entity ID.
+     * @param columns The column data, one per attribute: a {@link java.nio.LongBuffer} for {@code Long} attributes
+     *                and a {@link java.nio.DoubleBuffer} for {@code Double} attributes.  Every column must have the
+     *                same number of remaining elements; the buffers' positions are not modified.
+     * @return The builder (for chaining).
+     * @throws UnsupportedOperationException if this builder does not {@linkplain #acceptsColumns(AttributeSet) accept}
+     *         the columns.
+     */
+    public EntityCollectionBuilder addColumns(AttributeSet attrs, Buffer... columns) {
+        throw new UnsupportedOperationException("builder does not accept columnar data");
+    }
+
     /**
      * Get a view of the entities added, for iteration and re-processing.
      * @return The view of entities added.
@@ -38,6 +38,39 @@ class LongAttrStoreBuilder extends AttrStoreBuilder {
         return ((LongShard) shards.get(si)).getLong(vi);
     }
 
+    /**
+     * Add a primitive value to this store builder without boxing it.
+     *
+     * @param val The value to add.
+     */
+    void addLong(long val) {
+        int nexti = size;
+        int si = Shard.indexOfShard(nexti);
+        int vi = Shard.indexWithinShard(nexti);
+        LongShard shard;
+        if (si < shards.size()) {
+            shard = (LongShard) shards.get(si);
+        } else {
+            shard = LongShard.create();
+            shards.add(shard);
+        }
+        LongShard s2 = shard.adapt(val);
+        if (s2 != shard) {
+            shards.set(si, s2);
+        }
+        s2.put(vi, val);
+        size += 1;
+    }
+
+    @Override
+    void addFrom(AttrStoreBuilder src, int idx) {
+        if (src.isNull(idx)) {
+            skip();
+        } else {
+            addLong(((LongAttrStoreBuilder) src).getLong(idx));
+        }
+    }
+
     @Override
     AttrStore build() {
         if (!shards.isEmpty()) {
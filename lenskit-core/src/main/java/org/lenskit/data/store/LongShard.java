@@ -76,6 +76,13 @@ abstract class LongShard extends Shard {
 
     abstract void put(int idx, long value);
 
+    /**
+     * Adapt this shard to store a primitive long value, without boxing it.
+     * @param val The value to be stored.
+     * @return A shard capable of storing {@code val} (may be this shard).
+     */
+    abstract LongShard adapt(long val);
+
     private void copyFrom(LongShard src) {
         int n = src.size();
         for (int i = 0; i < n; i++) {
@@ -143,6 +150,11 @@ abstract class LongShard extends Shard {
             }
         }
 
+        @Override
+        LongShard adapt(long val) {
+            return this;
+        }
+
         @Override
         int size() {
             return size;
@@ -172,23 +184,27 @@ abstract class LongShard extends Shard {
             if (obj == null) {
                 return this;
             } else if (obj instanceof Long) {
-                long val = (Long) obj;
-                if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
-                    return this;
-                } else if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE) {
-                    LongShard lsh = new WrapInt();
-                    lsh.copyFrom(this);
-                    return lsh;
-                } else {
-                    LongShard lsh = createFull();
-                    lsh.copyFrom(this);
-                    return lsh;
-                }
+                return adapt(((Long) obj).longValue());
             } else {
                 throw new IllegalArgumentException("cannot store " + obj + " in int shard");
             }
         }
 
+        @Override
+        LongShard adapt(long val) {
+            if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+                return this;
+            } else if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE) {
+                LongShard lsh = new WrapInt();
+                lsh.copyFrom(this);
+                return lsh;
+            } else {
+                LongShard lsh = createFull();
+                lsh.copyFrom(this);
+                return lsh;
+            }
+        }
+
         @Override
         void clear(int idx) {
             delegate.clear(idx);
@@ -229,19 +245,23 @@ abstract class LongShard extends Shard {
             if (obj == null) {
                 return this;
             }if (obj instanceof Long) {
-                long val = (Long) obj;
-                if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE) {
-                    return this;
-                } else {
-                    LongShard lsh = createFull();
-                    lsh.copyFrom(this);
-                    return lsh;
-                }
+                return adapt(((Long) obj).longValue());
             } else {
                 throw new IllegalArgumentException("cannot store " + obj + " in int shard");
             }
         }
 
+        @Override
+        LongShard adapt(long val) {
+            if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE) {
+                return this;
+            } else {
+                LongShard lsh = createFull();
+                lsh.copyFrom(this);
+                return lsh;
+            }
+        }
+
         @Override
         void clear(int idx) {
             delegate.clear(idx);
@@ -96,8 +96,20 @@ class PackIndex {
 
         @Override
         public void add(Object value, int idx) {
-            long v = (long) value;
-            IntArrayList list = index.computeIfAbsent(v, k -> new IntArrayList());
+            add((long) value, idx);
+        }
+
+        /**
+         * Add a primitive value to the index.
+         * @param value The value.
+         * @param idx The position of the entity with this value.
+         */
+        public void add(long value, int idx) {
+            IntArrayList list = index.get(value);
+            if (list == null) {
+                list = new IntArrayList();
+                index.put(value, list);
+            }
             list.add(idx);
         }
 
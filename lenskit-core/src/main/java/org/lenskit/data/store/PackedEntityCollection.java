@@ -32,6 +32,7 @@ import com.google.common.hash.Hashing;
 import com.google.common.primitives.Longs;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.longs.AbstractLongSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -39,8 +40,10 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import org.lenskit.data.dao.SortKey;
 import org.lenskit.data.entities.*;
 import org.lenskit.util.BinarySearch;
+import org.lenskit.util.IdBox;
 import org.lenskit.util.describe.Describable;
 import org.lenskit.util.describe.DescriptionWriter;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
 import org.lenskit.util.reflect.InstanceFactory;
 
 import javax.annotation.Nonnull;
@@ -179,6 +182,50 @@ class PackedEntityCollection extends EntityCollection implements Describable {
         }
     }
 
+    @Nullable
+    @Override
+    public Stream<IdBox<Long2DoubleMap>> groupVectors(TypedName<Long> group, TypedName<Long> key,
+                                                      TypedName<Double> value) {
+        VectorExtractor vx = vectorExtractor(group, key, value);
+        if (vx == null) {
+            return null;
+        }
+
+        return vx.index.getValues()
+                       .stream()
+                       .map(g -> IdBox.create((Long) g, vx.extract(vx.index.getPositions(g))))
+                       .filter(b -> !b.getValue().isEmpty());
+    }
+
+    @Nullable
+    @Override
+    public Long2DoubleMap groupVector(TypedName<Long> group, long groupValue, TypedName<Long> key,
+                                      TypedName<Double> value) {
+        VectorExtractor vx = vectorExtractor(group, key, value);
+        if (vx == null) {
+            return null;
+        }
+
+        return vx.extract(vx.index.getPositions(groupValue));
+    }
+
+    /**
+     * Set up vector extraction, if the group attribute is indexed and the key and value are primitive columns.
+     */
+    @Nullable
+    private VectorExtractor vectorExtractor(TypedName<Long> group, TypedName<Long> key, TypedName<Double> value) {
+        int gi = attributes.lookup(group);
+        int ki = attributes.lookup(key);
+        int vi = attributes.lookup(value);
+        if (gi < 0 || ki < 0 || vi < 0 || indexes[gi] == null) {
+            return null;
+        }
+        if (!(attrStores[ki] instanceof LongAttrStore) || !(attrStores[vi] instanceof DoubleAttrStore)) {
+            return null;
+        }
+        return new VectorExtractor(indexes[gi], (LongAttrStore) attrStores[ki], (DoubleAttrStore) attrStores[vi]);
+    }
+
     @Override
     public List<SortKey> getSortKeys() {
         return ImmutableList.of(SortKey.create(CommonAttributes.ENTITY_ID));
@@ -341,6 +388,43 @@ class PackedEntityCollection extends EntityCollection implements Describable {
         }
     }
 
+    private static class VectorExtractor {
+        private final PackIndex index;
+        private final LongAttrStore keys;
+        private final DoubleAttrStore values;
+
+        VectorExtractor(PackIndex idx, LongAttrStore ks, DoubleAttrStore vs) {
+            index = idx;
+            keys = ks;
+            values = vs;
+        }
+
+        /**
+         * Read a vector straight from the columns.  The arrays are exactly sized and handed to the map, so the
+         * only allocation per group is the vector itself.
+         */
+        Long2DoubleMap extract(IntList positions) {
+            int n = positions.size();
+            long[] ks = new long[n];
+            double[] vs = new double[n];
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                int pos = positions.getInt(i);
+                if (keys.isNull(pos) || values.isNull(pos)) {
+                    continue;
+                }
+                ks[j] = keys.getLong(pos);
+                vs[j] = values.getDouble(pos);
+                j++;
+            }
+            if (j < n) {
+                ks = Arrays.copyOf(ks, j);
+                vs = Arrays.copyOf(vs, j);
+            }
+            return Long2DoubleSortedArrayMap.wrapUnsorted(ks, vs);
+        }
+    }
+
     private class EntityList extends AbstractList<Entity> {
         private final IntList positions;
 
@@ -28,7 +28,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.primitives.Longs;
 import com.google.common.reflect.TypeToken;
 import it.unimi.dsi.fastutil.Arrays;
-import it.unimi.dsi.fastutil.Swapper;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.data.entities.*;
@@ -36,14 +35,24 @@ import org.lenskit.util.BinarySearch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
 /**
  * Entity collection builder packing data into shards.
  */
 class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
     private static final Logger logger = LoggerFactory.getLogger(PackedEntityCollectionBuilder.class);
+    /**
+     * The minimum run length sorted by a single task.
+     */
+    private static final int MIN_RUN = 4096;
     private final EntityType entityType;
     private final AttributeSet attributes;
-    private final LongAttrStoreBuilder idStore;
+    private LongAttrStoreBuilder idStore;
     private final AttrStoreBuilder[] storeBuilders;
     private final Class<? extends EntityBuilder> entityBuilderClass;
     private boolean needIndex[];
@@ -66,27 +75,31 @@ class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
         storeBuilders[0] = idStore;
         for (int i = 1; i < n; i++) {
             TypedName<?> attr = attrs.getAttribute(i);
-            AttrStoreBuilder asb;
-            if (attr.getType().equals(TypeToken.of(Long.class))) {
-                logger.debug("{}: storing  long column {}", et, attr.getName());
-                asb = new LongAttrStoreBuilder();
-            } else if (attr.getType().equals(TypeToken.of(Integer.class))) {
-                logger.debug("{}: storing int column {}", et, attr.getName());
-                asb = new AttrStoreBuilder(IntShard::create);
-            } else if (attr.getType().equals(TypeToken.of(Double.class))) {
-                logger.debug("{}: storing double column {}", et, attr.getName());
-                asb = new DoubleAttrStoreBuilder();
-            } else {
-                logger.debug("{}: storing object column {}", et, attr);
-                asb = new AttrStoreBuilder(ObjectShard::new);
-            }
-            storeBuilders[i] = asb;
+            logger.debug("{}: storing column {}", et, attr);
+            storeBuilders[i] = makeStoreBuilder(attr);
         }
 
         entityBuilderClass = ebc;
 
     }
 
+    /**
+     * Create a store builder for an attribute.
+     * @param attr The attribute.
+     * @return A store builder suitable for the attribute's type.
+     */
+    static AttrStoreBuilder makeStoreBuilder(TypedName<?> attr) {
+        if (attr.getType().equals(TypeToken.of(Long.class))) {
+            return new LongAttrStoreBuilder();
+        } else if (attr.getType().equals(TypeToken.of(Integer.class))) {
+            return new AttrStoreBuilder(IntShard::create);
+        } else if (attr.getType().equals(TypeToken.of(Double.class))) {
+            return new DoubleAttrStoreBuilder();
+        } else {
+            return new AttrStoreBuilder(ObjectShard::new);
+        }
+    }
+
     @Override
     public <T> EntityCollectionBuilder addIndex(TypedName<T> attribute) {
         int pos = attributes.lookup(attribute);
@@ -105,24 +118,195 @@ class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
         return this;
     }
 
-    private PackIndex buildIndex(int aidx) {
-        TypedName<?> tn = attributes.getAttribute(aidx);
-        logger.debug("indexing column {} of {}", tn, entityType);
-        PackIndex.Builder builder;
-        if (tn.getRawType().equals(Long.class)) {
-            builder = new PackIndex.LongBuilder();
+    /**
+     * Build the indexes for a set of attribute stores.  Each attribute is indexed in parallel.
+     *
+     * @param et The entity type (for logging).
+     * @param attrs The attributes.
+     * @param stores The attribute store builders.
+     * @param needIndex Which attributes to index.
+     * @return The indexes, with {@code null} for attributes that are not indexed.
+     */
+    static PackIndex[] buildIndexes(EntityType et, AttributeSet attrs, AttrStoreBuilder[] stores, boolean[] needIndex) {
+        PackIndex[] indexes = new PackIndex[needIndex.length];
+        IntStream.range(0, needIndex.length)
+                 .filter(i -> needIndex[i])
+                 .parallel()
+                 .forEach(i -> indexes[i] = buildIndex(et, attrs.getAttribute(i), stores[i]));
+        return indexes;
+    }
+
+    private static PackIndex buildIndex(EntityType et, TypedName<?> tn, AttrStoreBuilder store) {
+        logger.debug("indexing column {} of {}", tn, et);
+        int n = store.size();
+        if (tn.getRawType().equals(Long.class) && store instanceof LongAttrStoreBuilder) {
+            LongAttrStoreBuilder longs = (LongAttrStoreBuilder) store;
+            PackIndex.LongBuilder builder = new PackIndex.LongBuilder();
+            for (int i = 0; i < n; i++) {
+                if (!longs.isNull(i)) {
+                    builder.add(longs.getLong(i), i);
+                }
+            }
+            return builder.build();
         } else {
-            builder = new PackIndex.GenericBuilder();
-        }
-        for (int i = 0; i < size; i++) {
-            builder.add(storeBuilders[aidx].get(i), i);
+            PackIndex.Builder builder;
+            if (tn.getRawType().equals(Long.class)) {
+                builder = new PackIndex.LongBuilder();
+            } else {
+                builder = new PackIndex.GenericBuilder();
+            }
+            for (int i = 0; i < n; i++) {
+                builder.add(store.get(i), i);
+            }
+            return builder.build();
         }
-        return builder.build();
     }
 
     @Override
     public EntityCollectionBuilder add(Entity e, boolean replace) {
         long id = e.getId();
+        if (!admit(id, replace)) {
+            return this;
+        }
+
+        for (Attribute<?> a: e.getAttributes()) {
+            int ap = attributes.lookup(a.getTypedName());
+            if (ap >= 0) {
+                storeBuilders[ap].add(a.getValue());
+            }
+        }
+        finishEntity(id);
+
+        return this;
+    }
+
+    @Override
+    public boolean acceptsColumns(AttributeSet attrs) {
+        if (attrs.size() == 0 || attrs.getAttribute(0) != CommonAttributes.ENTITY_ID) {
+            return false;
+        }
+        for (TypedName<?> attr: attrs) {
+            int ap = attributes.lookup(attr);
+            if (ap < 0) {
+                continue;
+            }
+            Class<?> type = attr.getRawType();
+            if (type.equals(Long.class)) {
+                if (!(storeBuilders[ap] instanceof LongAttrStoreBuilder)) {
+                    return false;
+                }
+            } else if (type.equals(Double.class)) {
+                if (!(storeBuilders[ap] instanceof DoubleAttrStoreBuilder)) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public EntityCollectionBuilder addColumns(AttributeSet attrs, Buffer... columns) {
+        Preconditions.checkArgument(acceptsColumns(attrs), "unacceptable column layout %s", attrs);
+        Preconditions.checkArgument(columns.length == attrs.size(), "expected %s columns, got %s",
+                                    attrs.size(), columns.length);
+        LongBuffer idCol = (LongBuffer) columns[0];
+        int n = idCol.remaining();
+        int[] positions = new int[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            Preconditions.checkArgument(columns[c].remaining() == n, "column %s has wrong length", attrs.getAttribute(c));
+            positions[c] = attributes.lookup(attrs.getAttribute(c));
+        }
+
+        int base = idCol.position();
+        boolean fresh = isSorted;
+        long last = lastEntityId;
+        for (int i = 0; fresh && i < n; i++) {
+            long id = idCol.get(base + i);
+            fresh = id > last;
+            last = id;
+        }
+
+        if (fresh) {
+            // new IDs in increasing order: every store builder gets a whole column, so fill them in parallel
+            // ids is only allocated once the builder is unsorted, so it needs no maintenance here
+            int[] columnOf = new int[storeBuilders.length];
+            for (int ap = 0; ap < columnOf.length; ap++) {
+                columnOf[ap] = -1;
+            }
+            for (int c = 0; c < columns.length; c++) {
+                if (positions[c] >= 0) {
+                    columnOf[positions[c]] = c;
+                }
+            }
+            IntStream.range(0, storeBuilders.length)
+                     .parallel()
+                     .forEach(ap -> {
+                         int c = columnOf[ap];
+                         AttrStoreBuilder asb = storeBuilders[ap];
+                         if (c < 0) {
+                             for (int i = 0; i < n; i++) {
+                                 asb.skip();
+                             }
+                         } else {
+                             fillColumn(asb, columns[c]);
+                         }
+                     });
+            size += n;
+            lastEntityId = last;
+        } else {
+            for (int i = 0; i < n; i++) {
+                long id = idCol.get(base + i);
+                if (!admit(id, true)) {
+                    continue;
+                }
+                for (int c = 0; c < columns.length; c++) {
+                    int ap = positions[c];
+                    if (ap < 0) {
+                        continue;
+                    }
+                    Buffer col = columns[c];
+                    if (col instanceof LongBuffer) {
+                        LongBuffer lb = (LongBuffer) col;
+                        ((LongAttrStoreBuilder) storeBuilders[ap]).addLong(lb.get(lb.position() + i));
+                    } else {
+                        DoubleBuffer db = (DoubleBuffer) col;
+                        ((DoubleAttrStoreBuilder) storeBuilders[ap]).addDouble(db.get(db.position() + i));
+                    }
+                }
+                finishEntity(id);
+            }
+        }
+
+        return this;
+    }
+
+    private static void fillColumn(AttrStoreBuilder asb, Buffer col) {
+        if (col instanceof LongBuffer) {
+            LongBuffer lb = (LongBuffer) col;
+            LongAttrStoreBuilder lsb = (LongAttrStoreBuilder) asb;
+            for (int i = lb.position(), end = lb.limit(); i < end; i++) {
+                lsb.addLong(lb.get(i));
+            }
+        } else if (col instanceof DoubleBuffer) {
+            DoubleBuffer db = (DoubleBuffer) col;
+            DoubleAttrStoreBuilder dsb = (DoubleAttrStoreBuilder) asb;
+            for (int i = db.position(), end = db.limit(); i < end; i++) {
+                dsb.addDouble(db.get(i));
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported column buffer " + col);
+        }
+    }
+
+    /**
+     * Check whether an entity should be added, updating the sort and ID tracking state.
+     * @param id The entity ID.
+     * @param replace Whether the entity replaces existing entities.
+     * @return {@code true} if the entity's attributes should be stored.
+     */
+    private boolean admit(long id, boolean replace) {
         isSorted &= id > lastEntityId;
 
         if (!isSorted) {
@@ -137,23 +321,24 @@ class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
                 if (replace) {
                     throw new UnsupportedOperationException("packed builder cannot replace entities");
                 } else {
-                    return this; // don't replace existing id
+                    return false; // don't replace existing id
                 }
             }
         } else if (!replace) {
             BinarySearch search = new IdSearch(id);
             int res = search.search(0, size);
             if (res <= 0) {
-                return this;
+                return false;
             }
         }
+        return true;
+    }
 
-        for (Attribute<?> a: e.getAttributes()) {
-            int ap = attributes.lookup(a.getTypedName());
-            if (ap >= 0) {
-                storeBuilders[ap].add(a.getValue());
-            }
-        }
+    /**
+     * Finish adding an entity whose attributes have been stored, padding missing attributes.
+     * @param id The entity ID.
+     */
+    private void finishEntity(long id) {
         size += 1;
         lastEntityId = id;
         if (ids != null) {
@@ -166,8 +351,6 @@ class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
                 storeBuilder.skip();
             }
         }
-
-        return this;
     }
 
     @Override
@@ -183,15 +366,12 @@ class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
     @Override
     public EntityCollection build() {
         if (!isSorted) {
-            Arrays.quickSort(0, size, this::compareIds, new SortSwap());
+            sortStores();
         }
+        PackIndex[] indexes = buildIndexes(entityType, attributes, storeBuilders, needIndex);
         AttrStore[] stores = new AttrStore[storeBuilders.length];
-        PackIndex[] indexes = new PackIndex[needIndex.length];
         for (int i = 0; i < stores.length; i++) {
             stores[i] = storeBuilders[i].build();
-            if (needIndex[i]) {
-                indexes[i] = buildIndex(i);
-            }
         }
         return new PackedEntityCollection(entityType, attributes, stores, indexes, entityBuilderClass);
     }
@@ -209,16 +389,102 @@ class PackedEntityCollectionBuilder extends EntityCollectionBuilder {
         }
     }
 
-    private int compareIds(int k1, int k2) {
-        return Longs.compare(idStore.getLong(k1), idStore.getLong(k2));
+    /**
+     * Sort the stores by entity ID.  The IDs are sorted along with their row numbers, and then each attribute's
+     * store is rebuilt in sorted order on its own task.
+     */
+    private void sortStores() {
+        long[] keys = new long[size];
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = idStore.getLong(i);
+            rows[i] = i;
+        }
+        logger.debug("{}: sorting {} entities", entityType, size);
+        parallelSort(keys, rows);
+
+        IntStream.range(0, storeBuilders.length).parallel().forEach(a -> {
+            AttrStoreBuilder src = storeBuilders[a];
+            AttrStoreBuilder dst = a == 0 ? new LongAttrStoreBuilder() : makeStoreBuilder(attributes.getAttribute(a));
+            for (int i = 0; i < size; i++) {
+                dst.addFrom(src, rows[i]);
+            }
+            storeBuilders[a] = dst;
+        });
+        idStore = (LongAttrStoreBuilder) storeBuilders[0];
+        isSorted = true;
     }
 
-    private class SortSwap implements Swapper {
-        @Override
-        public void swap(int a, int b) {
-            for (AttrStoreBuilder asb: storeBuilders) {
-                asb.swap(a, b);
+    /**
+     * Sort parallel arrays of keys and rows by key, breaking ties by row so the result is deterministic.  Runs of
+     * the arrays are sorted in parallel and then merged pairwise, with the merges at each level also in parallel.
+     */
+    static void parallelSort(long[] keys, int[] rows) {
+        int n = keys.length;
+        int runs = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, n / MIN_RUN));
+        int[] bounds = new int[runs + 1];
+        for (int r = 0; r <= runs; r++) {
+            bounds[r] = (int) ((long) n * r / runs);
+        }
+        IntStream.range(0, runs).parallel().forEach(r -> {
+            Arrays.quickSort(bounds[r], bounds[r + 1],
+                             (i, j) -> compare(keys, rows, i, j),
+                             (i, j) -> {
+                                 long tk = keys[i];
+                                 keys[i] = keys[j];
+                                 keys[j] = tk;
+                                 int tr = rows[i];
+                                 rows[i] = rows[j];
+                                 rows[j] = tr;
+                             });
+        });
+
+        long[] srcKeys = keys, dstKeys = new long[n];
+        int[] srcRows = rows, dstRows = new int[n];
+        for (int width = 1; width < runs; width *= 2) {
+            final int w = width;
+            final long[] sk = srcKeys, dk = dstKeys;
+            final int[] sr = srcRows, dr = dstRows;
+            IntStream.range(0, (runs + 2 * w - 1) / (2 * w)).parallel().forEach(p -> {
+                int lo = bounds[2 * w * p];
+                int mid = bounds[Math.min(2 * w * p + w, runs)];
+                int hi = bounds[Math.min(2 * w * p + 2 * w, runs)];
+                merge(sk, sr, lo, mid, hi, dk, dr);
+            });
+            srcKeys = dk;
+            dstKeys = sk;
+            srcRows = dr;
+            dstRows = sr;
+        }
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+            System.arraycopy(srcRows, 0, rows, 0, n);
+        }
+    }
+
+    private static int compare(long[] keys, int[] rows, int i, int j) {
+        int c = Long.compare(keys[i], keys[j]);
+        return c != 0 ? c : Integer.compare(rows[i], rows[j]);
+    }
+
+    private static void merge(long[] keys, int[] rows, int lo, int mid, int hi, long[] outKeys, int[] outRows) {
+        int i = lo, j = mid, k = lo;
+        while (i < mid && j < hi) {
+            if (keys[i] < keys[j] || (keys[i] == keys[j] && rows[i] < rows[j])) {
+                outKeys[k] = keys[i];
+                outRows[k++] = rows[i++];
+            } else {
+                outKeys[k] = keys[j];
+                outRows[k++] = rows[j++];
             }
         }
+        while (i < mid) {
+            outKeys[k] = keys[i];
+            outRows[k++] = rows[i++];
+        }
+        while (j < hi) {
+            outKeys[k] = keys[j];
+            outRows[k++] = rows[j++];
+        }
     }
 }
@@ -68,6 +68,14 @@ public class PearsonCorrelation implements VectorSimilarity, Serializable {
         shrinkage = s;
     }
 
+    /**
+     * Get the shrinkage term added to the denominator.
+     * @return The shrinkage term.
+     */
+    public double getShrinkage() {
+        return shrinkage;
+    }
+
     @Override
     public double similarity(Long2DoubleMap vec1, Long2DoubleMap vec2) {
         // First check for empty vectors - then we can assume at least one element
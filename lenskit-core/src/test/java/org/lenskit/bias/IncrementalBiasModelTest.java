@@ -0,0 +1,210 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class IncrementalBiasModelTest {
+    private static final double DAMPING = 5;
+
+    private List<Rating> ratings;
+    private List<Rating> kept;
+    private List<Rating> removed;
+
+    @Before
+    public void createRatings() {
+        EntityFactory efac = new EntityFactory();
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 40; user++) {
+            for (long item = 100; item < 130; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    ratings.add(efac.rating(user, item, 1 + rng.nextInt(9) * 0.5));
+                }
+            }
+        }
+        kept = new ArrayList<>();
+        removed = new ArrayList<>();
+        for (Rating r: ratings) {
+            // remove all of user 3 and a scattering of other ratings
+            if (r.getUserId() == 3 || rng.nextDouble() < 0.2) {
+                removed.add(r);
+            } else {
+                kept.add(r);
+            }
+        }
+    }
+
+    private static DataAccessObject makeDAO(List<Rating> rs) {
+        EntityCollectionDAOBuilder builder = new EntityCollectionDAOBuilder();
+        builder.addEntities(rs);
+        return builder.build();
+    }
+
+    private static RatingVectorPDAO makeRatingVectors(List<Rating> rs) {
+        return new StandardRatingVectorPDAO(makeDAO(rs));
+    }
+
+    private static BiasModel buildBatch(Class<? extends Provider<? extends BiasModel>> provider,
+                                        List<Rating> rs) {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.addRoot(BiasModel.class);
+        config.bind(BiasModel.class).toProvider(provider);
+        config.set(BiasDamping.class).to(DAMPING);
+        return LenskitRecommender.build(config, makeDAO(rs)).get(BiasModel.class);
+    }
+
+    private void removeRatings(IncrementalBiasModel model) {
+        for (Rating r: removed) {
+            model.removeRating(r.getUserId(), r.getItemId());
+        }
+    }
+
+    private static void assertBiasesMatch(BiasModel actual, BiasModel expected) {
+        assertThat(actual.getIntercept(), closeTo(expected.getIntercept(), 1.0e-6));
+        assertThat(actual.getUserBiases().keySet(), equalTo(expected.getUserBiases().keySet()));
+        assertThat(actual.getItemBiases().keySet(), equalTo(expected.getItemBiases().keySet()));
+        for (long user: expected.getUserBiases().keySet()) {
+            assertThat(actual.getUserBias(user), closeTo(expected.getUserBias(user), 1.0e-6));
+        }
+        for (long item: expected.getItemBiases().keySet()) {
+            assertThat(actual.getItemBias(item), closeTo(expected.getItemBias(item), 1.0e-6));
+        }
+    }
+
+    @Test
+    public void testItemBiasRemoval() {
+        IncrementalItemBiasModel model = new IncrementalItemBiasModel(makeRatingVectors(ratings), DAMPING);
+        removeRatings(model);
+        assertThat(model.getRatingCount(), equalTo(kept.size()));
+        BiasModel expected = buildBatch(ItemAverageRatingBiasModelProvider.class, kept);
+        assertBiasesMatch(model.snapshot(), expected);
+        assertBiasesMatch(model, expected);
+    }
+
+    @Test
+    public void testUserBiasRemoval() {
+        IncrementalUserBiasModel model = new IncrementalUserBiasModel(makeRatingVectors(ratings), DAMPING);
+        removeRatings(model);
+        BiasModel expected = buildBatch(UserAverageRatingBiasModelProvider.class, kept);
+        assertBiasesMatch(model.snapshot(), expected);
+        assertBiasesMatch(model, expected);
+        assertThat(model.getUserBias(3), equalTo(0.0));
+    }
+
+    @Test
+    public void testUserItemBiasRemoval() {
+        IncrementalUserItemBiasModel model = new IncrementalUserItemBiasModel(makeRatingVectors(ratings), DAMPING);
+        removeRatings(model);
+        BiasModel expected = buildBatch(UserItemAverageRatingBiasModelProvider.class, kept);
+        assertBiasesMatch(model.snapshot(), expected);
+        assertBiasesMatch(model, expected);
+    }
+
+    @Test
+    public void testAddMatchesBuild() {
+        IncrementalUserItemBiasModel model = new IncrementalUserItemBiasModel(DAMPING);
+        for (Rating r: kept) {
+            model.addRating(r.getUserId(), r.getItemId(), r.getValue());
+        }
+        assertBiasesMatch(model.snapshot(), buildBatch(UserItemAverageRatingBiasModelProvider.class, kept));
+    }
+
+    @Test
+    public void testSnapshotIsFrozen() {
+        IncrementalItemBiasModel model = new IncrementalItemBiasModel(0);
+        model.addRating(1, 100, 4.0);
+        model.addRating(2, 101, 2.0);
+        ItemBiasModel snap = model.snapshot();
+        assertThat(model.removeRating(1, 100), equalTo(true));
+        assertThat(snap.getIntercept(), closeTo(3.0, 1.0e-6));
+        assertThat(snap.getItemBias(100), closeTo(1.0, 1.0e-6));
+        assertThat(model.getIntercept(), closeTo(2.0, 1.0e-6));
+        assertThat(model.getItemBias(100), equalTo(0.0));
+    }
+
+    @Test
+    public void testRemoveMissing() {
+        IncrementalUserItemBiasModel model = new IncrementalUserItemBiasModel(0);
+        model.addRating(1, 100, 4.0);
+        assertThat(model.removeRating(1, 101), equalTo(false));
+        assertThat(model.getRatingCount(), equalTo(1));
+    }
+
+    @Test
+    public void testReRatingReplaces() {
+        IncrementalUserItemBiasModel model = new IncrementalUserItemBiasModel(DAMPING);
+        for (Rating r: kept) {
+            model.addRating(r.getUserId(), r.getItemId(), r.getValue());
+        }
+        // re-rate some items, as a replay would
+        List<Rating> current = new ArrayList<>();
+        for (Rating r: kept) {
+            if (r.getItemId() % 3 == 0) {
+                Rating rerated = r.copyBuilder()
+                                  .setId(r.getId())
+                                  .setRating(5.5 - r.getValue())
+                                  .build();
+                model.update(RatingUpdate.additions(Collections.singletonList(rerated)));
+                current.add(rerated);
+            } else {
+                current.add(r);
+            }
+        }
+        assertThat(model.getRatingCount(), equalTo(kept.size()));
+        assertBiasesMatch(model.snapshot(), buildBatch(UserItemAverageRatingBiasModelProvider.class, current));
+    }
+
+    @Test
+    public void testInjectModel() {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(BiasItemScorer.class);
+        config.bind(BiasModel.class).to(IncrementalUserItemBiasModel.class);
+        config.set(BiasDamping.class).to(DAMPING);
+        LenskitRecommender rec = LenskitRecommender.build(config, makeDAO(kept));
+        assertThat(rec.getItemScorer(), instanceOf(BiasItemScorer.class));
+        assertThat(rec.get(BiasModel.class), instanceOf(IncrementalUserItemBiasModel.class));
+    }
+}
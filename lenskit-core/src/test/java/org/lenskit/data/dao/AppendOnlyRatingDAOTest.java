@@ -0,0 +1,209 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.dao;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.IdBox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AppendOnlyRatingDAOTest {
+    private EntityFactory factory = new EntityFactory();
+    private List<Rating> ratings;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            ratings.add(factory.rating(rng.nextInt(30), rng.nextInt(50), 1 + rng.nextInt(5), i / 3));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        AppendOnlyRatingDAO dao = new AppendOnlyRatingDAO();
+        assertThat(dao.getEntityTypes(), hasSize(0));
+        assertThat(dao.getEntityIds(CommonTypes.ITEM), hasSize(0));
+        assertThat(dao.query(Rating.class).get(), hasSize(0));
+        assertThat(dao.query(Rating.class).groupBy(CommonAttributes.USER_ID).get(), hasSize(0));
+    }
+
+    @Test
+    public void testSnapshotsMatchPrefixes() {
+        AppendOnlyRatingDAO history = new AppendOnlyRatingDAO();
+        List<DataAccessObject> snapshots = new ArrayList<>();
+        for (Rating r: ratings) {
+            snapshots.add(history.snapshot());
+            history.append(r);
+        }
+        assertThat(history.size(), equalTo(ratings.size()));
+
+        // check snapshots after all appends, to make sure they did not change
+        for (int n = 0; n < ratings.size(); n += 37) {
+            DataAccessObject dao = snapshots.get(n);
+            DataAccessObject expected = StaticDataSource.fromList(ratings.subList(0, n)).get();
+
+            assertThat(dao.getEntityIds(CommonTypes.RATING),
+                       equalTo(expected.getEntityIds(CommonTypes.RATING)));
+            assertThat(dao.getEntityIds(CommonTypes.USER),
+                       equalTo(expected.getEntityIds(CommonTypes.USER)));
+            assertThat(dao.getEntityIds(CommonTypes.ITEM),
+                       equalTo(expected.getEntityIds(CommonTypes.ITEM)));
+            assertThat(dao.query(Rating.class).orderBy(CommonAttributes.TIMESTAMP).get(),
+                       equalTo(ratings.subList(0, n)));
+
+            for (long u = 0; u < 30; u++) {
+                final long user = u;
+                List<Rating> urs = ratings.subList(0, n)
+                                          .stream()
+                                          .filter(r -> r.getUserId() == user)
+                                          .collect(Collectors.toList());
+                assertThat(dao.query(Rating.class)
+                              .withAttribute(CommonAttributes.USER_ID, user)
+                              .get(),
+                           equalTo(urs));
+                assertThat(dao.getEntityIds(CommonTypes.USER).contains(user),
+                           equalTo(!urs.isEmpty()));
+            }
+        }
+    }
+
+    @Test
+    public void testGroupByItem() {
+        AppendOnlyRatingDAO dao = new AppendOnlyRatingDAO();
+        ratings.forEach(dao::append);
+
+        List<IdBox<List<Rating>>> groups = dao.query(Rating.class)
+                                              .groupBy(CommonAttributes.ITEM_ID)
+                                              .get();
+        assertThat(groups, hasSize(dao.getEntityIds(CommonTypes.ITEM).size()));
+        for (IdBox<List<Rating>> group: groups) {
+            assertThat(group.getValue(),
+                       equalTo(ratings.stream()
+                                      .filter(r -> r.getItemId() == group.getId())
+                                      .collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    public void testLookup() {
+        AppendOnlyRatingDAO dao = new AppendOnlyRatingDAO();
+        dao.append(ratings.get(0));
+        DataAccessObject snap = dao.snapshot();
+        dao.append(ratings.get(1));
+
+        Rating r0 = ratings.get(0);
+        Rating r1 = ratings.get(1);
+        assertThat(dao.lookupEntity(CommonTypes.RATING, r1.getId(), Rating.class), equalTo(r1));
+        assertThat(snap.lookupEntity(CommonTypes.RATING, r0.getId(), Rating.class), equalTo(r0));
+        assertThat(snap.lookupEntity(CommonTypes.RATING, r1.getId()), nullValue());
+        assertThat(snap.lookupEntity(CommonTypes.USER, r0.getUserId()), notNullValue());
+    }
+
+    private void assertMatches(DataAccessObject dao, List<Rating> expectedRatings) {
+        DataAccessObject expected = StaticDataSource.fromList(expectedRatings).get();
+        assertThat(dao.getEntityIds(CommonTypes.RATING),
+                   equalTo(expected.getEntityIds(CommonTypes.RATING)));
+        assertThat(dao.getEntityIds(CommonTypes.USER),
+                   equalTo(expected.getEntityIds(CommonTypes.USER)));
+        assertThat(dao.getEntityIds(CommonTypes.ITEM),
+                   equalTo(expected.getEntityIds(CommonTypes.ITEM)));
+        assertThat(dao.query(CommonTypes.USER).get(), hasSize(expected.getEntityIds(CommonTypes.USER).size()));
+        assertThat(dao.query(Rating.class).get(), equalTo(expectedRatings));
+        for (long u = 0; u < 30; u++) {
+            final long user = u;
+            List<Rating> urs = expectedRatings.stream()
+                                              .filter(r -> r.getUserId() == user)
+                                              .collect(Collectors.toList());
+            assertThat(dao.query(Rating.class)
+                          .withAttribute(CommonAttributes.USER_ID, user)
+                          .get(),
+                       equalTo(urs));
+            assertThat(dao.lookupEntity(CommonTypes.USER, user) != null, equalTo(!urs.isEmpty()));
+        }
+        assertThat(dao.query(Rating.class).groupBy(CommonAttributes.ITEM_ID).get(),
+                   hasSize(expected.getEntityIds(CommonTypes.ITEM).size()));
+    }
+
+    @Test
+    public void testRemove() {
+        AppendOnlyRatingDAO dao = new AppendOnlyRatingDAO();
+        List<Rating> first = ratings.subList(0, 300);
+        first.forEach(dao::append);
+        DataAccessObject before = dao.snapshot();
+
+        Rating victim = first.get(10);
+        List<Rating> removed = dao.removeRating(victim.getUserId(), victim.getItemId());
+        assertThat(removed, hasItem(victim));
+        List<Rating> userRatings = dao.removeUser(3);
+        assertThat(userRatings, everyItem(hasProperty("userId", equalTo(3L))));
+        assertThat(dao.removeUser(3), hasSize(0));
+        List<Rating> itemRatings = dao.removeItem(7);
+        assertThat(itemRatings, everyItem(hasProperty("itemId", equalTo(7L))));
+        DataAccessObject after = dao.snapshot();
+
+        List<Rating> live = first.stream()
+                                 .filter(r -> !removed.contains(r) && r.getUserId() != 3 && r.getItemId() != 7)
+                                 .collect(Collectors.toList());
+        assertThat(live.size() + removed.size() + userRatings.size() + itemRatings.size(),
+                   equalTo(first.size()));
+        assertMatches(after, live);
+        assertThat(after.lookupEntity(CommonTypes.RATING, victim.getId()), nullValue());
+        assertThat(dao.size(), equalTo(first.size()));
+        assertThat(dao.getRatingCount(), equalTo(live.size()));
+
+        // the user comes back
+        List<Rating> rest = ratings.subList(300, ratings.size());
+        rest.forEach(dao::append);
+        List<Rating> all = new ArrayList<>(live);
+        all.addAll(rest);
+        assertMatches(dao, all);
+        assertThat(dao.getRatingCount(), equalTo(all.size()));
+
+        // older snapshots are unaffected
+        assertMatches(before, first);
+        assertMatches(after, live);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectOutOfOrder() {
+        AppendOnlyRatingDAO dao = new AppendOnlyRatingDAO();
+        dao.append(factory.rating(1, 2, 3.0, 100));
+        dao.append(factory.rating(1, 3, 3.0, 50));
+    }
+}
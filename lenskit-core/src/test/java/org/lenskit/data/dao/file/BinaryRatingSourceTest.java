@@ -0,0 +1,173 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.dao.file;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.lenskit.util.test.LenskitGenerators;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BinaryRatingSourceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private ObjectReader reader = new ObjectMapper().reader();
+
+    private List<Rating> makeRatings(boolean timestamps) {
+        return LenskitGenerators.randomRatings(360, 30, 40, timestamps ? 10000 : 0);
+    }
+
+    private StaticDataSource loadBinary(Path file) throws IOException {
+        JsonNode node = reader.readTree("{\"type\": \"binary\", \"file\": \"" + file.getFileName() + "\"}");
+        return StaticDataSource.fromJSON(node, tmp.getRoot().toURI());
+    }
+
+    @Test
+    public void testWriteAndStream() throws IOException {
+        List<Rating> ratings = makeRatings(true);
+        Path file = tmp.getRoot().toPath().resolve("ratings.lkrb");
+        assertThat(BinaryRatingSource.write(file, ObjectStreams.wrap(ratings)),
+                   equalTo(ratings.size()));
+        // the column scratch files are gone
+        assertThat(tmp.getRoot().list(), arrayContaining("ratings.lkrb"));
+
+        BinaryRatingSource src = new BinaryRatingSource("ratings", file);
+        try (ObjectStream<Entity> stream = src.openStream()) {
+            assertThat(ObjectStreams.makeList(stream), contains(ratings.toArray()));
+        }
+    }
+
+    @Test
+    public void testLoadFromJSON() throws IOException {
+        List<Rating> ratings = makeRatings(true);
+        Path file = tmp.getRoot().toPath().resolve("ratings.lkrb");
+        BinaryRatingSource.write(file, ObjectStreams.wrap(ratings));
+
+        StaticDataSource source = loadBinary(file);
+        assertThat(source.getSourcesForType(CommonTypes.RATING),
+                   contains(instanceOf(BinaryRatingSource.class)));
+        DataAccessObject dao = source.get();
+        assertThat(dao.getEntityTypes(), containsInAnyOrder(CommonTypes.RATING,
+                                                            CommonTypes.USER,
+                                                            CommonTypes.ITEM));
+        assertThat(dao.getEntityIds(CommonTypes.USER), hasSize(30));
+        for (Rating r: ratings) {
+            assertThat(dao.lookupEntity(CommonTypes.RATING, r.getId(), Rating.class),
+                       equalTo(r));
+        }
+        assertThat(dao.query(Rating.class)
+                      .withAttribute(CommonAttributes.USER_ID, 7L)
+                      .get(),
+                   containsInAnyOrder(ratings.stream()
+                                             .filter(r -> r.getUserId() == 7)
+                                             .toArray()));
+    }
+
+    @Test
+    public void testConvertDelimitedFile() throws IOException {
+        List<Rating> ratings = makeRatings(false);
+        Path csv = tmp.getRoot().toPath().resolve("ratings.csv");
+        List<String> lines = new ArrayList<>();
+        for (Rating r: ratings) {
+            lines.add(String.format("%d,%d,%s", r.getUserId(), r.getItemId(), r.getValue()));
+        }
+        Files.write(csv, lines);
+        JsonNode node = reader.readTree("{\"file\": \"ratings.csv\", \"format\": \"csv\"}");
+        StaticDataSource text = StaticDataSource.fromJSON(node, tmp.getRoot().toURI());
+        EntitySource textSource = text.getSourcesForType(CommonTypes.RATING).get(0);
+
+        Path file = tmp.getRoot().toPath().resolve("converted.lkrb");
+        BinaryRatingSource converted = BinaryRatingSource.convert(textSource, file);
+        assertThat(converted.getName(), equalTo(textSource.getName()));
+
+        DataAccessObject expected = text.get();
+        DataAccessObject actual = loadBinary(file).get();
+        List<Rating> expRatings = expected.query(Rating.class).get();
+        assertThat(expRatings, hasSize(ratings.size()));
+        assertThat(actual.query(Rating.class).get(),
+                   containsInAnyOrder(expRatings.toArray()));
+        assertThat(actual.query(Rating.class).get().get(0).hasAttribute(CommonAttributes.TIMESTAMP),
+                   equalTo(false));
+    }
+
+    @Test
+    public void testUnsortedAndMixedSources() throws IOException {
+        List<Rating> ratings = makeRatings(false);
+        List<Rating> shuffled = new ArrayList<>(ratings);
+        Collections.shuffle(shuffled, new Random(17));
+        Path file = tmp.getRoot().toPath().resolve("shuffled.lkrb");
+        BinaryRatingSource.write(file, ObjectStreams.wrap(shuffled));
+
+        // unsorted IDs take the row-by-row path
+        DataAccessObject dao = loadBinary(file).get();
+        assertThat(dao.query(Rating.class).get(), containsInAnyOrder(ratings.toArray()));
+
+        // with another source of ratings, there is no packed layout and entities are built
+        StaticDataSource mixed = new StaticDataSource("mixed");
+        mixed.addSource(new BinaryRatingSource("binary", file));
+        Rating extra = Rating.newBuilder().setId(100000).setUserId(1).setItemId(1).setRating(3.0).build();
+        List<Rating> more = new ArrayList<>();
+        more.add(extra);
+        mixed.addSource(more);
+        List<Rating> all = new ArrayList<>(ratings);
+        all.add(extra);
+        assertThat(mixed.get().query(Rating.class).get(), containsInAnyOrder(all.toArray()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectMixedTimestamps() throws IOException {
+        List<Rating> ratings = new ArrayList<>();
+        ratings.add(Rating.newBuilder().setId(1).setUserId(1).setItemId(1).setRating(3.0).setTimestamp(1000).build());
+        ratings.add(Rating.newBuilder().setId(2).setUserId(1).setItemId(2).setRating(4.0).build());
+        BinaryRatingSource.write(tmp.getRoot().toPath().resolve("bad.lkrb"), ObjectStreams.wrap(ratings));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectTextFile() throws IOException {
+        Path file = tmp.getRoot().toPath().resolve("junk.lkrb");
+        Files.write(file, "this is not a binary rating file\n".getBytes("UTF-8"));
+        new BinaryRatingSource("junk", file).openStream();
+    }
+}
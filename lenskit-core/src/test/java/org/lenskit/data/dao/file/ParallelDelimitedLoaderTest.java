@@ -0,0 +1,199 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.dao.file;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Charsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ParallelDelimitedLoaderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private ObjectReader reader = new ObjectMapper().reader();
+
+    private TextEntitySource makeSource(String json, List<String> lines, String eol) throws IOException {
+        Path file = tmp.getRoot().toPath().resolve("ratings.txt");
+        Files.write(file, (String.join(eol, lines) + eol).getBytes(Charsets.UTF_8));
+        JsonNode node = reader.readTree(json);
+        return TextEntitySource.fromJSON("ratings", node, tmp.getRoot().toURI());
+    }
+
+    private List<String> makeLines(String delim, boolean withIds) {
+        Random rng = new Random(42);
+        List<String> lines = new ArrayList<>();
+        int id = 100;
+        for (int u = 1; u <= 40; u++) {
+            for (int i = 1; i <= 50; i++) {
+                if (rng.nextDouble() < 0.3) {
+                    String rating = rng.nextBoolean() ? Double.toString(0.5 * (1 + rng.nextInt(10)))
+                                                      : Integer.toString(1 + rng.nextInt(5));
+                    String line = u + delim + i + delim + rating + delim + (1000000 + rng.nextInt(100000));
+                    if (withIds) {
+                        line = (id++) + delim + line;
+                    }
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private List<Entity> loadParallel(TextEntitySource source, int chunkSize) throws IOException {
+        EntitySource.Layout layout = source.getLayout();
+        EntityCollectionDAOBuilder builder = new EntityCollectionDAOBuilder();
+        builder.addEntityLayout(layout.getEntityType(), layout.getAttributes(), layout.getEntityBuilder());
+        ParallelDelimitedLoader loader =
+                new ParallelDelimitedLoader(source.getName(), source.getFile(),
+                                            (DelimitedColumnEntityFormat) source.getFormat());
+        loader.setChunkSize(chunkSize);
+        int n = loader.load(builder);
+        if (n < 0) {
+            return null;
+        }
+        List<Entity> entities = new ArrayList<>(builder.build().query(CommonTypes.RATING).get());
+        assertThat(entities, hasSize(n));
+        return entities;
+    }
+
+    private List<Entity> loadSequential(TextEntitySource source) throws IOException {
+        try (ObjectStream<Entity> stream = source.openStream()) {
+            return ObjectStreams.makeList(stream);
+        }
+    }
+
+    @Test
+    public void testSyntheticIds() throws IOException {
+        TextEntitySource source = makeSource("{\"file\": \"ratings.txt\", \"format\": \"csv\", \"base_id\": 1000}",
+                                             makeLines(",", false), "\n");
+        List<Entity> expected = loadSequential(source);
+        for (int chunk: new int[]{64, 1000, ParallelDelimitedLoader.DEFAULT_CHUNK_SIZE}) {
+            List<Entity> actual = loadParallel(source, chunk);
+            assertThat(actual, notNullValue());
+            assertThat(actual, containsInAnyOrder(expected.toArray()));
+        }
+    }
+
+    @Test
+    public void testIdColumnHeaderAndCRLF() throws IOException {
+        List<String> lines = makeLines("\t", true);
+        lines.add(0, "id\tuser\titem\trating\ttimestamp");
+        TextEntitySource source = makeSource("{\"file\": \"ratings.txt\", \"header\": true, " +
+                                             "\"columns\": {\"id\": \"id\", \"user\": \"user\", \"item\": \"item\"," +
+                                             " \"rating\": \"rating\", \"timestamp\": \"timestamp\"}}",
+                                             lines, "\r\n");
+        List<Entity> expected = loadSequential(source);
+        List<Entity> actual = loadParallel(source, 100);
+        assertThat(actual, notNullValue());
+        assertThat(actual, containsInAnyOrder(expected.toArray()));
+    }
+
+    @Test
+    public void testFallBackOnQuotesAndMissingFields() throws IOException {
+        List<String> lines = makeLines(",", false);
+        lines.set(17, "\"3\",7,4.0,100");
+        TextEntitySource source = makeSource("{\"file\": \"ratings.txt\", \"format\": \"csv\"}", lines, "\n");
+        assertThat(loadParallel(source, 128), nullValue());
+
+        lines = makeLines(",", false);
+        lines.set(17, "3,7,4.0");
+        source = makeSource("{\"file\": \"ratings.txt\", \"format\": \"csv\"}", lines, "\n");
+        assertThat(loadParallel(source, 128), nullValue());
+
+        // the data source still loads the file sequentially
+        DataAccessObject dao = StaticDataSource.fromJSON(reader.readTree("{\"file\": \"ratings.txt\", \"format\": \"csv\"}"),
+                                                         tmp.getRoot().toURI()).get();
+        assertThat(dao.query(CommonTypes.RATING).get(), hasSize(lines.size()));
+    }
+
+    @Test
+    public void testStaticDataSource() throws IOException {
+        TextEntitySource source = makeSource("{\"file\": \"ratings.txt\", \"format\": \"csv\"}",
+                                             makeLines(",", false), "\n");
+        List<Entity> expected = loadSequential(source);
+        DataAccessObject dao = StaticDataSource.fromJSON(reader.readTree("{\"file\": \"ratings.txt\", \"format\": \"csv\"}"),
+                                                         tmp.getRoot().toURI()).get();
+        assertThat(dao.query(CommonTypes.RATING).get(), containsInAnyOrder(expected.toArray()));
+        assertThat(dao.getEntityIds(CommonTypes.USER), hasSize(40));
+    }
+
+    @Test
+    public void testDisableParallel() throws IOException {
+        String json = "{\"file\": \"ratings.txt\", \"format\": \"csv\", \"parallel\": false}";
+        TextEntitySource source = makeSource(json, makeLines(",", false), "\n");
+        assertThat(source.isParallelLoad(), equalTo(false));
+        assertThat(source.addTo(new EntityCollectionDAOBuilder()), equalTo(-1));
+        assertThat(source.toJSON(null).path("parallel").asBoolean(true), equalTo(false));
+
+        List<Entity> expected = loadSequential(source);
+        DataAccessObject dao = StaticDataSource.fromJSON(reader.readTree(json), tmp.getRoot().toURI()).get();
+        assertThat(dao.query(CommonTypes.RATING).get(), containsInAnyOrder(expected.toArray()));
+    }
+
+    @Test
+    public void testParseNumbers() {
+        Random rng = new Random(7);
+        String[] fixed = {"0", "-0", "5", "3.5", "-2.25", "0.1", ".5", "5.", "1e3", "123456789012345678",
+                          "0.30000000000000004", "4.9406564584124654E-324", "+7"};
+        List<String> values = new ArrayList<>();
+        for (String v: fixed) {
+            values.add(v);
+        }
+        for (int i = 0; i < 1000; i++) {
+            values.add(Double.toString(rng.nextGaussian() * Math.pow(10, rng.nextInt(12) - 4)));
+            values.add(String.format(Locale.ROOT, "%.3f", rng.nextDouble() * 10));
+        }
+        for (String v: values) {
+            byte[] bytes = ("x" + v + "y").getBytes(Charsets.UTF_8);
+            assertThat(v, ParallelDelimitedLoader.parseDouble(bytes, 1, bytes.length - 1),
+                       equalTo(Double.parseDouble(v)));
+        }
+        for (String v: new String[]{"0", "-17", "42", "9223372036854775807", "-9223372036854775808", "+3"}) {
+            byte[] bytes = v.getBytes(Charsets.UTF_8);
+            assertThat(ParallelDelimitedLoader.parseLong(bytes, 0, bytes.length),
+                       equalTo(Long.parseLong(v)));
+        }
+    }
+}
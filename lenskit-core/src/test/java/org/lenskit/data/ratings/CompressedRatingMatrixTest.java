@@ -0,0 +1,203 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.data.ratings;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CompressedRatingMatrixTest {
+    private List<Rating> ratings;
+    private CompressedRatingMatrix matrix;
+    private PackedRatingMatrix packed;
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 50; user++) {
+            for (long item = 200; item > 170; item--) {
+                if (rng.nextDouble() < 0.3) {
+                    ratings.add(Rating.newBuilder()
+                                      .setId(ratings.size() + 1)
+                                      .setUserId(user * 3)
+                                      .setItemId(item)
+                                      .setRating(0.5 + rng.nextInt(10) * 0.5)
+                                      .build());
+                }
+            }
+        }
+        StandardRatingVectorPDAO dao = new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+        matrix = new CompressedRatingMatrixProvider(dao, new Random(1)).get();
+        packed = new PackedRatingMatrixProvider(dao, new Random(1)).get();
+    }
+
+    @Test
+    public void testIdsAndVectors() {
+        assertThat(matrix.size(), equalTo(ratings.size()));
+        assertThat(new LongOpenHashSet(matrix.getUserIds()), equalTo(new LongOpenHashSet(packed.getUserIds())));
+        assertThat(new LongOpenHashSet(matrix.getItemIds()), equalTo(new LongOpenHashSet(packed.getItemIds())));
+        for (long user: packed.getUserIds()) {
+            assertThat(matrix.getUserRatingVector(user), equalTo(packed.getUserRatingVector(user)));
+            assertThat(matrix.getUserRatings(user), hasSize(packed.getUserRatings(user).size()));
+        }
+        assertThat(matrix.getUserRatingVector(1).size(), equalTo(0));
+        assertThat(matrix.getUserRatings(1), hasSize(0));
+
+        for (long item: matrix.getItemIds()) {
+            Long2DoubleMap vec = matrix.getItemRatingVector(item);
+            for (Rating r: ratings) {
+                if (r.getItemId() == item) {
+                    assertThat(vec.get(r.getUserId()), equalTo(r.getValue()));
+                }
+            }
+            assertThat(vec.size(), equalTo(matrix.getItemRatingCount(matrix.itemIndex().getIndex(item))));
+        }
+    }
+
+    @Test
+    public void testRatingEntries() {
+        List<RatingMatrixEntry> entries = matrix.getRatings();
+        assertThat(entries, hasSize(ratings.size()));
+        int i = 0;
+        for (RatingMatrixEntry e: entries) {
+            assertThat(e.getIndex(), equalTo(i));
+            RatingMatrixEntry byIndex = entries.get(i);
+            assertThat(byIndex.getUserIndex(), equalTo(e.getUserIndex()));
+            assertThat(byIndex.getItemIndex(), equalTo(e.getItemIndex()));
+            assertThat(matrix.userIndex().getKey(e.getUserIndex()), equalTo(e.getUserId()));
+            assertThat(matrix.itemIndex().getKey(e.getItemIndex()), equalTo(e.getItemId()));
+            assertThat(packed.getUserRatingVector(e.getUserId()).get(e.getItemId()), equalTo(e.getValue()));
+            i++;
+        }
+    }
+
+    @Test
+    public void testRatingsShuffled() {
+        // consecutive ratings in the list should not all come from the same user
+        List<RatingMatrixEntry> entries = matrix.getRatings();
+        int changes = 0;
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i).getUserIndex() != entries.get(i - 1).getUserIndex()) {
+                changes++;
+            }
+        }
+        assertThat(changes, greaterThan(entries.size() / 2));
+    }
+
+    @Test
+    public void testFloatValues() {
+        Long2ObjectMap<Long2DoubleMap> users = new Long2ObjectOpenHashMap<>();
+        users.put(1, new Long2DoubleOpenHashMap(new long[]{10, 5}, new double[]{3.5, 0.1}));
+        CompressedRatingMatrix m = CompressedRatingMatrix.fromUserVectors(users, new Random(1));
+        // half stars are exact, other values are rounded to float precision
+        assertThat(m.getUserRatingVector(1).get(10), equalTo(3.5));
+        assertThat(m.getUserRatingVector(1).get(5), equalTo((double) 0.1f));
+    }
+
+    @Test
+    public void testCursors() {
+        CompressedRatingMatrix.Cursor cur = matrix.userCursor(0);
+        int n = 0;
+        for (int u = 0; u < matrix.userIndex().size(); u++) {
+            cur.moveTo(u);
+            long uid = matrix.userIndex().getKey(u);
+            Long2DoubleMap vec = packed.getUserRatingVector(uid);
+            int count = 0;
+            long last = Long.MIN_VALUE;
+            while (cur.advance()) {
+                assertThat(cur.getUserId(), equalTo(uid));
+                assertThat(cur.getItemId(), greaterThan(last));
+                last = cur.getItemId();
+                assertThat(cur.getValue(), equalTo(vec.get(cur.getItemId())));
+                assertThat(matrix.getRatings().get(cur.getIndex()).getItemId(), equalTo(cur.getItemId()));
+                count++;
+            }
+            assertThat(cur.advance(), equalTo(false));
+            assertThat(count, equalTo(vec.size()));
+            n += count;
+        }
+        assertThat(n, equalTo(ratings.size()));
+
+        CompressedRatingMatrix.Cursor icur = matrix.itemCursor(0);
+        n = 0;
+        for (int i = 0; i < matrix.itemIndex().size(); i++) {
+            icur.moveTo(i);
+            while (icur.advance()) {
+                assertThat(icur.getItemIndex(), equalTo(i));
+                assertThat(packed.getUserRatingVector(icur.getUserId()).get(icur.getItemId()),
+                           equalTo(icur.getValue()));
+                assertThat(matrix.getRatings().get(icur.getIndex()).getUserId(), equalTo(icur.getUserId()));
+                n++;
+            }
+        }
+        assertThat(n, equalTo(ratings.size()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnpositionedCursor() {
+        matrix.userCursor(0).getValue();
+    }
+
+    @Test
+    public void testEmptyUsers() {
+        Long2ObjectMap<Long2DoubleMap> users = new Long2ObjectOpenHashMap<>();
+        users.put(1, new Long2DoubleOpenHashMap(new long[]{10, 5}, new double[]{1, 2}));
+        users.put(2, new Long2DoubleOpenHashMap());
+        users.put(3, new Long2DoubleOpenHashMap());
+        users.put(4, new Long2DoubleOpenHashMap(new long[]{5}, new double[]{3}));
+        CompressedRatingMatrix m = CompressedRatingMatrix.fromUserVectors(users, new Random(1));
+        assertThat(m.getRatings(), hasSize(3));
+        List<RatingMatrixEntry> entries = new ArrayList<>(m.getUserRatings(1));
+        assertThat(entries, hasSize(2));
+        assertThat(entries.get(0).getItemId(), equalTo(5L));
+        assertThat(entries.get(1).getItemId(), equalTo(10L));
+        entries = new ArrayList<>(m.getUserRatings(4));
+        assertThat(entries, hasSize(1));
+        assertThat(entries.get(0).getUserId(), equalTo(4L));
+        assertThat(entries.get(0).getValue(), equalTo(3.0));
+        assertThat(m.getRatings().get(entries.get(0).getIndex()).getItemId(), equalTo(5L));
+        assertThat(m.getUserRatings(2), hasSize(0));
+        assertThat(m.getUserRatingCount(m.userIndex().getIndex(3)), equalTo(0));
+        assertThat(m.getItemRatingVector(5).keySet(), contains(1L, 4L));
+    }
+
+    @Test
+    public void testParallelAccess() {
+        LongList users = new LongArrayList(matrix.getUserIds());
+        long total = users.parallelStream()
+                          .mapToLong(u -> matrix.getUserRatingVector(u).size())
+                          .sum();
+        assertThat(total, equalTo((long) ratings.size()));
+    }
+}
@@ -27,7 +27,16 @@ package org.lenskit.data.ratings;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import org.junit.Test;
 import org.lenskit.data.dao.EntityCollectionDAO;
+import org.lenskit.data.dao.EntityCollectionDAOBuilder;
+import org.lenskit.data.entities.CommonAttributes;
 import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -65,4 +74,50 @@ public class StandardRatingVectorPDAOTest {
         assertThat(vec, hasEntry(39L, 2.5));
         assertThat(vec, hasEntry(20L, 3.5));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCachedVector() {
+        EntityCollectionDAO dao = EntityCollectionDAO.create(factory.rating(42, 39, 2.5),
+                                                             factory.rating(17, 39, 1.5));
+        RatingVectorPDAO source = new StandardRatingVectorPDAO(dao);
+
+        Long2DoubleMap vec = source.userRatingVector(42);
+        assertThat(source.userRatingVector(42), sameInstance(vec));
+        assertThat(source.userRatingVector(17), hasEntry(39L, 1.5));
+    }
+
+    @Test
+    public void testStreamUsers() {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long u = 1; u <= 50; u++) {
+            for (long i = 1; i <= 30; i++) {
+                if (rng.nextDouble() < 0.2) {
+                    ratings.add(factory.rating(u, i, 0.5 + rng.nextInt(10) * 0.5));
+                }
+            }
+        }
+        EntityCollectionDAOBuilder builder = EntityCollectionDAO.newBuilder();
+        builder.addEntityLayout(Rating.ENTITY_TYPE, Rating.ATTRIBUTES, RatingBuilder.class);
+        builder.addDefaultIndex(CommonAttributes.USER_ID);
+        builder.addEntities(ratings);
+        EntityCollectionDAO dao = builder.build();
+        assertThat(dao.getEntityCollection(Rating.ENTITY_TYPE)
+                      .groupVectors(CommonAttributes.USER_ID, CommonAttributes.ITEM_ID, CommonAttributes.RATING),
+                   notNullValue());
+        RatingVectorPDAO source = new StandardRatingVectorPDAO(dao);
+
+        int n = 0;
+        try (ObjectStream<IdBox<Long2DoubleMap>> users = source.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user: users) {
+                n += 1;
+                List<Rating> urs = ratings.stream()
+                                          .filter(r -> r.getUserId() == user.getId())
+                                          .collect(Collectors.toList());
+                assertThat(user.getValue(), equalTo(Ratings.userRatingVector(urs)));
+                assertThat(source.userRatingVector(user.getId()), equalTo(user.getValue()));
+            }
+        }
+        assertThat(n, equalTo((int) ratings.stream().mapToLong(Rating::getUserId).distinct().count()));
+    }
+}
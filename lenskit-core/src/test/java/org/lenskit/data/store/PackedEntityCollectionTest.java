@@ -28,9 +28,9 @@ import com.google.common.collect.Lists;
 import org.junit.Test;
 import org.lenskit.data.entities.*;
 import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.test.LenskitGenerators;
 
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -194,4 +194,48 @@ public class PackedEntityCollectionTest {
                                               .build();
         assertThat(ec, contains(r));
     }
+
+    @Test
+    public void testBuildUnsorted() {
+        List<Rating> ratings = LenskitGenerators.randomRatings(20000, 200, 500, 100000);
+        List<Rating> shuffled = new ArrayList<>(ratings);
+        Collections.shuffle(shuffled, new Random(17));
+        EntityCollectionBuilder builder = EntityCollection.newBuilder(CommonTypes.RATING, Rating.ATTRIBUTES)
+                                                          .addIndex(CommonAttributes.USER_ID);
+        for (Rating r: shuffled) {
+            builder.add(r);
+        }
+        EntityCollection ec = builder.build();
+
+        // the ratings are numbered in order, so sorting by ID restores the original list
+        assertThat(Lists.newArrayList(ec), contains(ratings.toArray()));
+        for (long user = 1; user <= 200; user += 17) {
+            final long u = user;
+            assertThat(ec.find(CommonAttributes.USER_ID, user),
+                       containsInAnyOrder(ratings.stream().filter(r -> r.getUserId() == u).toArray()));
+        }
+        Rating r = ratings.get(123);
+        assertThat(ec.lookup(r.getId()), equalTo(r));
+    }
+
+    @Test
+    public void testParallelSort() {
+        Random rng = new Random(17);
+        int n = 100000;
+        long[] keys = new long[n];
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = rng.nextInt(5000) - 2500;
+            rows[i] = i;
+        }
+        long[] expected = keys.clone();
+        Arrays.sort(expected);
+        PackedEntityCollectionBuilder.parallelSort(keys, rows);
+        assertThat(keys, equalTo(expected));
+        for (int i = 1; i < n; i++) {
+            if (keys[i] == keys[i - 1]) {
+                assertThat(rows[i], greaterThan(rows[i - 1]));
+            }
+        }
+    }
 }
@@ -0,0 +1,213 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.eval.temporal;
+
+import com.google.common.base.Preconditions;
+import org.lenskit.data.dao.file.BinaryRatingSource;
+import org.lenskit.data.entities.Entities;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.AbstractObjectStream;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Sorts ratings by timestamp with bounded memory.  Ratings are read in runs of at most a fixed size; if the input
+ * fits in one run, it is sorted in memory, and otherwise each run is sorted and spilled to a temporary
+ * {@linkplain BinaryRatingSource binary rating file}, and the runs are merged as the result is read.  The sort is
+ * stable: ratings with the same timestamp stay in input order.
+ *
+ * Spill files are deleted when the sorter is closed.  When spilling, either all ratings or none of them must have
+ * timestamps.
+ */
+class ExternalRatingSort implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ExternalRatingSort.class);
+    private static final Comparator<Rating> TIME_ORDER = Comparator.comparingLong(Rating::getTimestamp);
+
+    private final int runSize;
+    @Nullable
+    private final Path tempRoot;
+    private Path spillDir;
+    private final List<Path> runFiles = new ArrayList<>();
+
+    /**
+     * Create a new sorter.
+     * @param runSize The maximum number of ratings to hold in memory.
+     * @param tempRoot The directory in which to create spill files, or {@code null} to use the system temporary
+     *                 directory.
+     */
+    ExternalRatingSort(int runSize, @Nullable Path tempRoot) {
+        Preconditions.checkArgument(runSize > 0, "run size must be positive");
+        this.runSize = runSize;
+        this.tempRoot = tempRoot;
+    }
+
+    /**
+     * Get the number of runs spilled to disk.
+     * @return The number of spill files.
+     */
+    int getRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Sort ratings.
+     * @param ratings The ratings to sort.
+     * @return A stream of the ratings in timestamp order.  It reads from the spill files, so it must be consumed
+     * before the sorter is closed.
+     * @throws IOException if there is an error writing the spill files.
+     */
+    ObjectStream<Rating> sort(@WillClose ObjectStream<Rating> ratings) throws IOException {
+        Preconditions.checkState(runFiles.isEmpty(), "sorter already used");
+        List<Rating> run = new ArrayList<>();
+        try {
+            for (Rating r: ratings) {
+                if (run.size() >= runSize) {
+                    spill(run);
+                }
+                run.add(r);
+            }
+        } finally {
+            ratings.close();
+        }
+
+        if (runFiles.isEmpty()) {
+            run.sort(TIME_ORDER);
+            logger.debug("sorted {} ratings in memory", run.size());
+            return ObjectStreams.wrap(run);
+        }
+        if (!run.isEmpty()) {
+            spill(run);
+        }
+        logger.info("merging {} sorted runs", runFiles.size());
+        List<ObjectStream<Entity>> streams = new ArrayList<>(runFiles.size());
+        try {
+            for (Path file: runFiles) {
+                streams.add(new BinaryRatingSource(file.getFileName().toString(), file).openStream());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ObjectStream<Entity> stream: streams) {
+                stream.close();
+            }
+            throw e;
+        }
+        return new MergingStream(streams);
+    }
+
+    /**
+     * Sort a run and write it to a spill file.  The run is cleared.
+     */
+    private void spill(List<Rating> run) throws IOException {
+        if (spillDir == null) {
+            spillDir = tempRoot != null
+                    ? Files.createTempDirectory(tempRoot, "lenskit-sort")
+                    : Files.createTempDirectory("lenskit-sort");
+        }
+        run.sort(TIME_ORDER);
+        Path file = spillDir.resolve(String.format("run%05d.bin", runFiles.size()));
+        logger.debug("spilling {} ratings to {}", run.size(), file);
+        runFiles.add(file);
+        BinaryRatingSource.write(file, ObjectStreams.wrap(run));
+        run.clear();
+    }
+
+    /**
+     * Delete the spill files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path file: runFiles) {
+            Files.deleteIfExists(file);
+        }
+        runFiles.clear();
+        if (spillDir != null) {
+            Files.deleteIfExists(spillDir);
+            spillDir = null;
+        }
+    }
+
+    /**
+     * Stream merging the sorted runs.  Ties go to the earliest run, which keeps the merge stable.
+     */
+    private static class MergingStream extends AbstractObjectStream<Rating> {
+        private final List<ObjectStream<Entity>> runs;
+        private final PriorityQueue<Head> heads;
+
+        MergingStream(List<ObjectStream<Entity>> streams) {
+            runs = streams;
+            heads = new PriorityQueue<>(Math.max(streams.size(), 1),
+                                        Comparator.comparing((Head h) -> h.rating, TIME_ORDER)
+                                                  .thenComparingInt(h -> h.run));
+            for (int i = 0; i < streams.size(); i++) {
+                advance(i);
+            }
+        }
+
+        private void advance(int run) {
+            Entity e = runs.get(run).readObject();
+            if (e != null) {
+                heads.add(new Head(Entities.project(e, Rating.class), run));
+            }
+        }
+
+        @Override
+        public Rating readObject() {
+            Head head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            advance(head.run);
+            return head.rating;
+        }
+
+        @Override
+        public void close() {
+            heads.clear();
+            for (ObjectStream<Entity> run: runs) {
+                run.close();
+            }
+        }
+    }
+
+    private static class Head {
+        final Rating rating;
+        final int run;
+
+        Head(Rating r, int idx) {
+            rating = r;
+            run = idx;
+        }
+    }
+}
@@ -29,20 +29,41 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SequenceWriter;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.grapht.Component;
+import org.grouplens.grapht.Dependency;
+import org.grouplens.grapht.ResolutionException;
+import org.grouplens.grapht.graph.DAGNode;
+import org.grouplens.grapht.reflect.Satisfaction;
+import org.grouplens.grapht.reflect.internal.InstanceSatisfaction;
 import org.lenskit.LenskitConfiguration;
 import org.lenskit.LenskitRecommenderEngine;
 import org.lenskit.api.*;
+import org.lenskit.data.dao.AppendOnlyRatingDAO;
 import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.EntitySource;
 import org.lenskit.data.dao.file.StaticDataSource;
 import org.lenskit.data.entities.CommonAttributes;
 import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entities;
 import org.lenskit.data.entities.Entity;
+import org.lenskit.data.entities.EntityType;
 import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.UpdatableModel;
 import org.lenskit.eval.traintest.AlgorithmInstance;
+import org.lenskit.eval.traintest.EvaluationException;
+import org.lenskit.inject.GraphtUtils;
+import org.lenskit.inject.RecommenderGraphBuilder;
 import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.io.CompressionMode;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
 import org.lenskit.util.table.TableLayout;
 import org.lenskit.util.table.TableLayoutBuilder;
 import org.lenskit.util.table.writer.CSVWriter;
@@ -56,20 +77,39 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 import static java.lang.Math.sqrt;
 
 public class TemporalEvaluator {
     private static final Logger logger = LoggerFactory.getLogger(TemporalEvaluator.class);
+    /**
+     * The entity type of deletion requests.  A deletion request has a timestamp, and a user ID, an item ID, or both;
+     * it deletes the user's rating of the item, all of the user's ratings, or all of the item's ratings,
+     * respectively.
+     */
+    public static final EntityType DELETION = EntityType.forName("deletion");
+    /**
+     * The maximum number of ratings to batch for parallel evaluation.
+     */
+    static final int MAX_BATCH_SIZE = 10000;
     @Nonnull
     private Random rng;
     private AlgorithmInstance algorithm;
     private DataAccessObject dataSource;
+    @Nullable
+    private StaticDataSource dataSpec;
     private File outputFile;
     private File extendedOutputFile;
     private long rebuildPeriod;
     private int listSize;
+    private boolean incremental;
+    private int threadCount = 1;
+    private int sortBufferSize = 0;
+    @Nullable
+    private Path sortDirectory;
+    private DataAccessObject deletionSource;
+    private File deletionOutputFile;
 
     public TemporalEvaluator() {
         setRebuildPeriod(24, TimeUnit.HOURS);
@@ -106,6 +146,20 @@ public class TemporalEvaluator {
      */
     public TemporalEvaluator setDataSource(DataAccessObject dao) {
         dataSource = dao;
+        dataSpec = null;
+        return this;
+    }
+
+    /**
+     * Set the data source without loading it.  When ratings are sorted externally (see
+     * {@link #setSortBufferSize(int)}), they are streamed from the source's files rather than loaded into a DAO.
+     *
+     * @param source The data source.
+     * @return Itself to allow for  method chaining.
+     */
+    public TemporalEvaluator setDataSource(StaticDataSource source) {
+        dataSpec = source;
+        dataSource = null;
         return this;
     }
 
@@ -114,8 +168,7 @@ public class TemporalEvaluator {
      * @return itself
      */
     public TemporalEvaluator setDataSource(File file) throws IOException {
-        dataSource = StaticDataSource.load(file.toPath()).get();
-        return this;
+        return setDataSource(StaticDataSource.load(file.toPath()));
     }
 
     /**
@@ -185,6 +238,152 @@ public class TemporalEvaluator {
         return this;
     }
 
+    /**
+     * Set whether to update the model incrementally.  In incremental mode, the model is built once; after that, the
+     * ratings replayed during each rebuild period are applied to the engine's {@link UpdatableModel} components in one
+     * batch, instead of rebuilding the model.  If the algorithm has no updatable components, or has pre-built
+     * components computed from the ratings that cannot be updated (and would go stale), the evaluator falls back to
+     * periodic rebuilds.
+     *
+     * @param inc {@code true} to update the model incrementally.
+     * @return Itself for method chaining
+     */
+    public TemporalEvaluator setIncremental(boolean inc) {
+        incremental = inc;
+        return this;
+    }
+
+    /**
+     * @return Whether the model is updated incrementally.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Set the number of threads to use for evaluating ratings.  With more than one thread, the ratings between two
+     * changes to the model are batched and evaluated in parallel; the output is still written in rating order.
+     *
+     * @param tc The number of threads.  If 0, consults the property {@code lenskit.eval.threadCount}, and if that is
+     *           unset, uses as many threads as there are available processors.  The default is 1.
+     * @return Itself for method chaining
+     */
+    public TemporalEvaluator setThreadCount(int tc) {
+        threadCount = tc;
+        return this;
+    }
+
+    /**
+     * Get the number of threads to use for evaluating ratings.
+     * @return The number of threads.
+     */
+    public int getThreadCount() {
+        int tc = threadCount;
+        if (tc <= 0) {
+            String prop = System.getProperty("lenskit.eval.threadCount");
+            if (prop != null) {
+                tc = Integer.parseInt(prop);
+            }
+        }
+        if (tc <= 0) {
+            tc = Runtime.getRuntime().availableProcessors();
+        }
+        return tc;
+    }
+
+    /**
+     * Set the number of ratings to sort in memory.  If positive, the ratings are streamed from the input and sorted
+     * by timestamp in runs of at most this many ratings, which are spilled to temporary files and merged during the
+     * replay, so the evaluator does not hold a sorted copy of all ratings in addition to the replayed history.
+     *
+     * <p>This bounds the memory used for sorting, not the memory used by the replay itself: the models are built from,
+     * and recommenders query, the history of every rating replayed so far (less deleted ratings), so the history grows
+     * with the number of replayed ratings.  The evaluator therefore needs memory for the full history in addition to
+     * the model and the active window of ratings.</p>
+     *
+     * @param size The maximum number of ratings to sort in memory, or 0 (the default) to load and sort all ratings
+     *             in memory.
+     * @return Itself for method chaining
+     */
+    public TemporalEvaluator setSortBufferSize(int size) {
+        Preconditions.checkArgument(size >= 0, "sort buffer size cannot be negative");
+        sortBufferSize = size;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of ratings to sort in memory, or 0 to sort all ratings in memory.
+     */
+    public int getSortBufferSize() {
+        return sortBufferSize;
+    }
+
+    /**
+     * Set the directory for the spill files of the external sort.
+     *
+     * @param dir The directory, or {@code null} (the default) to use the system temporary directory.
+     * @return Itself for method chaining
+     */
+    public TemporalEvaluator setSortDirectory(@Nullable Path dir) {
+        sortDirectory = dir;
+        return this;
+    }
+
+    /**
+     * Set the source of deletion requests to replay.  Each request is applied once the replay passes its timestamp:
+     * the model forgets the deleted ratings by an incremental update, if it is updated incrementally, or
+     * otherwise by an immediate rebuild.
+     *
+     * @param dao A DAO containing {@link #DELETION} entities.
+     * @return Itself for method chaining
+     */
+    public TemporalEvaluator setDeletionSource(@Nullable DataAccessObject dao) {
+        deletionSource = dao;
+        return this;
+    }
+
+    /**
+     * @param file The file containing the deletion requests
+     * @return Itself for method chaining
+     * @see #setDeletionSource(DataAccessObject)
+     */
+    public TemporalEvaluator setDeletionSource(File file) throws IOException {
+        deletionSource = StaticDataSource.load(file.toPath()).get();
+        return this;
+    }
+
+    /**
+     * Set the output file for deletion requests.  Each applied request produces a row with the number of ratings it
+     * deleted, how they were forgotten, the time taken to forget them, the age of the model at the time of the
+     * request, the number of affected users, and the drift: the RMS difference between the predictions of the affected
+     * users' remaining ratings before and after forgetting the deleted ones.  The drift is empty when the affected
+     * users have no remaining ratings, e.g. when a user's whole profile is deleted.
+     *
+     * @param file The output file.
+     * @return Itself for method chaining
+     */
+    public TemporalEvaluator setDeletionOutputFile(@Nullable File file) {
+        deletionOutputFile = file;
+        return this;
+    }
+
+    /**
+     * @param file The output file.
+     * @return Itself for method chaining
+     * @see #setDeletionOutputFile(File)
+     */
+    public TemporalEvaluator setDeletionOutputFile(@Nullable Path file) {
+        return setDeletionOutputFile(file != null ? file.toFile() : null);
+    }
+
+    /**
+     * @return Returns the deletion output file
+     */
+    @Nullable
+    public Path getDeletionOutputFile() {
+        return deletionOutputFile != null ? deletionOutputFile.toPath() : null;
+    }
+
     /**
      * @return Returns prediction output file
      */
@@ -207,127 +406,328 @@ public class TemporalEvaluator {
     }
 
     private void loadInputs() throws IOException {
-        Preconditions.checkState(dataSource != null, "no input data specified");
+        Preconditions.checkState(dataSource != null || dataSpec != null, "no input data specified");
         Preconditions.checkState(algorithm != null,
                                  "no algorithm specified");
+        Preconditions.checkState(deletionSource == null || deletionOutputFile != null,
+                                 "no deletion output file specified");
     }
 
     /**
      * During the evaluation, it will replay the ratings, try to predict each one, and
-     * write the prediction, TARMSE and the rating to the output file
+     * write the prediction, TARMSE and the rating to the output file.  If a deletion source is configured, deletion
+     * requests are applied as the replay passes their timestamps, and their effects are written to the deletion
+     * output file.
      */
     public void execute() throws IOException, RecommenderBuildException {
         loadInputs();
 
-        //Initialize recommender engine and recommender
-        LenskitRecommenderEngine lre = null;
-        Recommender recommender = null;
+        ModelState model = new ModelState();
+        int nthreads = getThreadCount();
+        ExecutorService executor = null;
+        if (nthreads > 1) {
+            logger.info("evaluating ratings with {} threads", nthreads);
+            executor = Executors.newFixedThreadPool(nthreads);
+        }
+
+        ExternalRatingSort sorter = null;
+        if (sortBufferSize > 0) {
+            sorter = new ExternalRatingSort(sortBufferSize, sortDirectory);
+        }
 
         //Start try block -- will try to write output on file
-        try (TableWriter tableWriter = openOutput();
-             SequenceWriter extWriter = openExtendedOutput()) {
-            // FIXME Don't keep this whole list in (second) memory.
-            List<Rating> ratings = dataSource.query(Rating.class)
-                                             .orderBy(CommonAttributes.TIMESTAMP)
-                                             .get();
-
-            DataAccessObject limitedDao = StaticDataSource.fromList(Collections.<Entity>emptyList()).get();
-            long limitTimestamp = 0;
+        try (ExternalRatingSort spill = sorter;
+             ObjectStream<Rating> ratings = openRatings(spill);
+             TableWriter tableWriter = openOutput();
+             SequenceWriter extWriter = openExtendedOutput();
+             TableWriter deletionWriter = openDeletionOutput();
+             EvaluationQueue queue = new EvaluationQueue(executor, nthreads, tableWriter, extWriter)) {
+            PeekingIterator<Entity> deletions = Iterators.peekingIterator(loadDeletions().iterator());
 
-            //Initialize local variables, will use to calculate RMSE
-            double sse = 0;
-            int n = 0;
-            // Initialize build parameters
-            long buildTime = 0L;
-            int buildsCount = 0;
-            int ratingsSinceLastBuild = 0;
+            // ratings are appended as the replay advances; the recommender sees immutable prefixes
+            AppendOnlyRatingDAO history = new AppendOnlyRatingDAO();
+            DataAccessObject limitedDao = history.snapshot();
+            long limitTimestamp = 0;
+            // ratings replayed but not yet appended to the history
+            List<Rating> window = new ArrayList<>();
+            long lastTimestamp = 0;
 
             //Loop through ratings
-            ListIterator<Rating> riter = ratings.listIterator();
-            while (riter.hasNext()) {
-                int ridx = riter.nextIndex();
-                Rating r = riter.next();
-                Map<String,Object> json = new HashMap<>();
-                json.put("userId", r.getUserId());
-                json.put("itemId", r.getItemId());
-                json.put("timestamp", r.getTimestamp());
-                json.put("rating", r.getValue());
-
-                if (recommender == null || (r.getTimestamp() > 0 && limitTimestamp < r.getTimestamp())) {
-                    limitedDao = StaticDataSource.fromList(ratings.subList(0, ridx)).get();
-
-                    //rebuild recommender system if its older then rebuild period set or null
-                    if ((r.getTimestamp() - buildTime >= rebuildPeriod) || lre == null) {
-                        buildTime = r.getTimestamp();
-                        buildsCount++;
-
-                        logger.info("building model {} at time {}, {} ratings since last build",
-                                    buildsCount, buildTime, ratingsSinceLastBuild);
-
-                        Stopwatch timer = Stopwatch.createStarted();
-                        lre = LenskitRecommenderEngine.newBuilder()
-                                                      .addConfiguration(algorithm.getConfigurations().get(0))
-                                                      .build(limitedDao);
-                        timer.stop();
-                        logger.info("built model {} in {}", buildsCount, timer);
-
-                        ratingsSinceLastBuild = 0;
-                    }
-                    if (recommender != null) {
-                        recommender.close();
+            for (Rating r: ratings) {
+                Double updateTime = null;
+
+                if (model.engine == null || (r.getTimestamp() > 0 && limitTimestamp < r.getTimestamp())) {
+                    boolean deletionsDue = deletions.hasNext()
+                            && deletions.peek().getLong(CommonAttributes.TIMESTAMP) < r.getTimestamp();
+                    boolean modelDue = model.engine == null || r.getTimestamp() - model.buildTime >= rebuildPeriod;
+                    if (deletionsDue || modelDue) {
+                        // finish evaluating the ratings pending against the current model and history
+                        queue.flush();
                     }
-                    recommender = lre.createRecommender(limitedDao);
-                }
-                ratingsSinceLastBuild += 1;
 
-                json.put("modelAge", r.getTimestamp() - buildTime);
+                    for (Rating wr: window) {
+                        history.append(wr);
+                    }
+                    window.clear();
+                    if (model.isUpdatable() && (deletionsDue || modelDue)) {
+                        // bring the model up to date in one batch
+                        updateTime = model.addRatings(history.getRatingCount(), r.getTimestamp());
+                    }
+                    // forget everything deleted before this rating
+                    while (deletions.hasNext()
+                            && deletions.peek().getLong(CommonAttributes.TIMESTAMP) < r.getTimestamp()) {
+                        forget(model, history, deletions.next(), deletionWriter);
+                    }
+                    limitedDao = history.snapshot();
 
-                // get rating prediction if available
-                Double predict = null;
-                RatingPredictor predictor = recommender.getRatingPredictor();
-                Result predictionResult = null;
-                if (predictor != null) {
-                    predictionResult = predictor.predict(r.getUserId(), r.getItemId());
+                    if (!model.isUpdatable() && modelDue) {
+                        //rebuild recommender system if its older then rebuild period set or null
+                        model.rebuild(limitedDao, r.getTimestamp(), history.getRatingCount());
+                    }
                 }
+                model.ratingsSinceLastBuild += 1;
 
-                if (predictionResult != null) {
-                    predict = predictionResult.getScore();
-                    logger.debug("predicted {} for rating {}", predict, r);
-                    json.put("prediction", predict);
-                } else {
-                    json.put("prediction", null);
+                queue.add(new RatingEvaluation(r, model.engine, limitedDao, new Random(rng.nextLong()),
+                                               r.getTimestamp() - model.buildTime, model.buildsCount,
+                                               updateTime));
+                window.add(r);
+                if (incremental) {
+                    model.unseen.add(r);
                 }
+                lastTimestamp = r.getTimestamp();
+            } // loop ratings
+            queue.flush();
 
-                /***calculate Time Averaged RMSE***/
-                double rmse = 0.0;
-                if (predict != null && !Double.isNaN(predict)) {
-                    double err = predict - r.getValue();
-                    sse += err * err;
-                    n++;
-                    rmse = sqrt(sse / n);
+            if (deletions.hasNext()) {
+                // bring the history and model up to date, and apply the remaining deletions
+                for (Rating wr: window) {
+                    history.append(wr);
                 }
+                window.clear();
+                if (model.isUpdatable()) {
+                    model.addRatings(history.getRatingCount(), lastTimestamp);
+                }
+                while (deletions.hasNext()) {
+                    forget(model, history, deletions.next(), deletionWriter);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Open the ratings in timestamp order.
+     * @param sorter The external sorter, or {@code null} to sort the ratings in memory.
+     * @return The stream of sorted ratings.
+     */
+    private ObjectStream<Rating> openRatings(@Nullable ExternalRatingSort sorter) throws IOException {
+        if (sorter == null) {
+            DataAccessObject dao = dataSource != null ? dataSource : dataSpec.get();
+            return ObjectStreams.wrap(dao.query(Rating.class)
+                                         .orderBy(CommonAttributes.TIMESTAMP)
+                                         .get());
+        }
 
-                // Compute recommendations
-                Integer rank = null;
-                ItemRecommender irec = recommender.getItemRecommender();
-                if (irec != null) {
-                    rank = getRecommendationRank(limitedDao, r, json, irec);
+        ObjectStream<Rating> input;
+        if (dataSource != null) {
+            input = dataSource.query(Rating.class).stream();
+        } else {
+            // stream straight from the files, without loading them into a DAO
+            List<ObjectStream<Rating>> streams = new ArrayList<>();
+            for (EntitySource src: dataSpec.getSourcesForType(CommonTypes.RATING)) {
+                ObjectStream<Entity> entities = ObjectStreams.filter(src.openStream(),
+                                                                     Entities.typePredicate(CommonTypes.RATING));
+                streams.add(ObjectStreams.wrap(entities.map(Entities.projection(Rating.class)::apply), entities));
+            }
+            input = ObjectStreams.concat(streams);
+        }
+        return sorter.sort(input);
+    }
 
+    private List<Entity> loadDeletions() {
+        if (deletionSource == null) {
+            return Collections.emptyList();
+        }
+        return deletionSource.query(DELETION)
+                             .orderBy(CommonAttributes.TIMESTAMP)
+                             .get();
+    }
+
+    /**
+     * Apply a deletion request to the rating history and the model, and record its effects.
+     *
+     * @param model The current model.
+     * @param history The rating history.
+     * @param event The deletion request.
+     * @param writer The deletion output.
+     */
+    private void forget(ModelState model, AppendOnlyRatingDAO history, Entity event,
+                        TableWriter writer) throws IOException, RecommenderBuildException {
+        long time = event.getLong(CommonAttributes.TIMESTAMP);
+        Long user = event.maybeGet(CommonAttributes.USER_ID);
+        Long item = event.maybeGet(CommonAttributes.ITEM_ID);
+        String action;
+        List<Rating> removed;
+        // predict from the data before the deletion
+        DataAccessObject oldDao = history.snapshot();
+        if (user != null && item != null) {
+            action = "rating";
+            removed = history.removeRating(user, item);
+        } else if (user != null) {
+            action = "user";
+            removed = history.removeUser(user);
+        } else if (item != null) {
+            action = "item";
+            removed = history.removeItem(item);
+        } else {
+            logger.warn("deletion {} has neither a user nor an item, ignoring", event);
+            return;
+        }
+
+        LongSet affected = new LongOpenHashSet();
+        for (Rating r: removed) {
+            affected.add(r.getUserId());
+        }
+
+        long modelAge = time - model.buildTime;
+        String method;
+        Double forgetTime = null;
+        Double drift = null;
+        if (model.engine == null || removed.isEmpty()) {
+            method = "none";
+        } else {
+            // measure drift on the ratings the affected users still have
+            DataAccessObject dao = history.snapshot();
+            List<Rating> remaining = new ArrayList<>();
+            for (long u: affected) {
+                remaining.addAll(dao.query(Rating.class)
+                                    .withAttribute(CommonAttributes.USER_ID, u)
+                                    .get());
+            }
+            double[] before = predictAll(model.engine, oldDao, remaining);
+            Stopwatch timer = Stopwatch.createStarted();
+            if (model.isUpdatable()) {
+                method = "update";
+                model.update(RatingUpdate.removals(removed));
+                model.modelRatings -= removed.size();
+            } else {
+                method = "rebuild";
+                model.rebuild(dao, time, history.getRatingCount());
+            }
+            timer.stop();
+            forgetTime = timer.elapsed(TimeUnit.MICROSECONDS) * 1.0e-6;
+            logger.debug("forgot {} ratings for {} {} by {} in {}", removed.size(), action, event, method, timer);
+
+            drift = rmsDifference(before, predictAll(model.engine, dao, remaining));
+        }
+
+        writer.writeRow(time, action, user, item, removed.size(), method, forgetTime, modelAge,
+                        affected.size(), drift);
+    }
+
+    /**
+     * Predict ratings.
+     * @param engine The recommender engine.
+     * @param dao The data to predict from.
+     * @param ratings The ratings to predict.
+     * @return The predictions, with NaN for ratings that cannot be predicted.
+     */
+    private static double[] predictAll(LenskitRecommenderEngine engine, DataAccessObject dao, List<Rating> ratings) {
+        double[] preds = new double[ratings.size()];
+        Arrays.fill(preds, Double.NaN);
+        try (Recommender rec = engine.createRecommender(dao)) {
+            RatingPredictor predictor = rec.getRatingPredictor();
+            if (predictor != null) {
+                for (int i = 0; i < preds.length; i++) {
+                    Rating r = ratings.get(i);
+                    Result res = predictor.predict(r.getUserId(), r.getItemId());
+                    if (res != null) {
+                        preds[i] = res.getScore();
+                    }
                 }
+            }
+        }
+        return preds;
+    }
+
+    /**
+     * Compute the RMS difference between two sets of predictions.
+     * @return The RMS difference over the ratings predicted in both, or {@code null} if there are none.
+     */
+    @Nullable
+    private static Double rmsDifference(double[] before, double[] after) {
+        double sse = 0;
+        int n = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (!Double.isNaN(before[i]) && !Double.isNaN(after[i])) {
+                double diff = after[i] - before[i];
+                sse += diff * diff;
+                n++;
+            }
+        }
+        return n > 0 ? sqrt(sse / n) : null;
+    }
 
-                /**writes the Prediction Score, Rank and TARMSE on file.**/
-                tableWriter.writeRow(r.getUserId(), r.getItemId(), r.getValue(), r.getTimestamp(),
-                                     predict, rmse, r.getTimestamp() - buildTime, rank, buildsCount);
-                if (extWriter != null) {
-                    extWriter.write(json);
+    /**
+     * Find the pre-built components of an engine that can be updated in place.
+     * @param engine The recommender engine.
+     * @return The updatable model components.
+     */
+    private static List<UpdatableModel> findUpdatableModels(LenskitRecommenderEngine engine) {
+        Set<UpdatableModel> models = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DAGNode<Component, Dependency> node: engine.getGraph().getReachableNodes()) {
+            Satisfaction sat = node.getLabel().getSatisfaction();
+            if (sat instanceof InstanceSatisfaction) {
+                Object obj = ((InstanceSatisfaction) sat).getInstance();
+                if (obj instanceof UpdatableModel) {
+                    models.add((UpdatableModel) obj);
                 }
-            } // loop ratings
+            }
+        }
+        return new ArrayList<>(models);
+    }
 
-        } finally {
-            if (recommender != null) {
-                recommender.close();
+    /**
+     * Find the pre-built components that are computed from the ratings but cannot be updated in place.  They would go
+     * stale as the updatable components are updated; components computed only from updatable models are kept up to
+     * date by them, and are not stale.
+     *
+     * @param dao The ratings the model is built from.
+     * @return The types of the stale components.
+     */
+    private List<Class<?>> findStaleComponents(DataAccessObject dao) throws RecommenderBuildException {
+        RecommenderGraphBuilder rgb = new RecommenderGraphBuilder();
+        rgb.addConfiguration(algorithm.getConfigurations().get(0));
+        LenskitConfiguration daoConfig = new LenskitConfiguration();
+        daoConfig.addComponent(dao);
+        rgb.addConfiguration(daoConfig);
+        DAGNode<Component, Dependency> graph;
+        try {
+            graph = rgb.buildGraph();
+        } catch (ResolutionException e) {
+            throw new RecommenderBuildException("Cannot resolve recommender graph", e);
+        }
+
+        Set<DAGNode<Component, Dependency>> shared = GraphtUtils.getShareableNodes(graph);
+        Set<DAGNode<Component, Dependency>> derived = new HashSet<>();
+        List<Class<?>> stale = new ArrayList<>();
+        // nodes are sorted, so each node's dependencies have been seen
+        for (DAGNode<Component, Dependency> node: graph.getSortedNodes()) {
+            Class<?> type = node.getLabel().getSatisfaction().getErasedType();
+            if (DataAccessObject.class.isAssignableFrom(type)) {
+                derived.add(node);
+            } else if (!UpdatableModel.class.isAssignableFrom(type)
+                    && node.getAdjacentNodes().stream().anyMatch(derived::contains)) {
+                derived.add(node);
+                if (shared.contains(node)) {
+                    stale.add(type);
+                }
             }
         }
+        return stale;
     }
 
     /**
@@ -336,10 +736,12 @@ public class TemporalEvaluator {
      * @param rating The rating.
      * @param json The JSON object being built.
      * @param irec The item recommender.
+     * @param rng The random number generator for picking decoy items.
      * @return The rank, or `null` if the item is not recommended.
      */
     @Nullable
-    private Integer getRecommendationRank(DataAccessObject dao, Rating rating, Map<String, Object> json, ItemRecommender irec) {
+    private Integer getRecommendationRank(DataAccessObject dao, Rating rating, Map<String, Object> json,
+                                          ItemRecommender irec, Random rng) {
         Integer rank; /***calculate recommendation rank***/
                     /* set of candidates that includes current item +
                        listsize-1 random values from (items from dao - items rated by user) */
@@ -386,12 +788,37 @@ public class TemporalEvaluator {
            .addColumn("ModelAge")
            .addColumn("Rank")
            .addColumn("Rebuilds");
+        if (incremental) {
+            tlb.addColumn("UpdateTime");
+        }
 
         TableLayout layout = tlb.build();
 
         return CSVWriter.open(outputFile, layout, CompressionMode.AUTO);
     }
 
+    @Nullable
+    private TableWriter openDeletionOutput() throws IOException {
+        if (deletionSource == null) {
+            return null;
+        }
+
+        TableLayoutBuilder tlb = new TableLayoutBuilder();
+
+        tlb.addColumn("Timestamp")
+           .addColumn("Action")
+           .addColumn("User")
+           .addColumn("Item")
+           .addColumn("Ratings")
+           .addColumn("Method")
+           .addColumn("ForgetTime")
+           .addColumn("ModelAge")
+           .addColumn("AffectedUsers")
+           .addColumn("Drift");
+
+        return CSVWriter.open(deletionOutputFile, tlb.build(), CompressionMode.AUTO);
+    }
+
     @Nullable
     private SequenceWriter openExtendedOutput() throws IOException {
         if (extendedOutputFile == null) {
@@ -402,5 +829,315 @@ public class TemporalEvaluator {
         ObjectWriter w = mapper.writer().withRootValueSeparator(System.lineSeparator());
         return w.writeValues(extendedOutputFile);
     }
-}
 
+    /**
+     * The model of a replay in progress.
+     */
+    private class ModelState {
+        LenskitRecommenderEngine engine;
+        long buildTime = 0L;
+        int buildsCount = 0;
+        int ratingsSinceLastBuild = 0;
+        // models to update in incremental mode, how many live ratings they have seen, and the ratings they have not
+        List<UpdatableModel> updatable = Collections.emptyList();
+        int modelRatings = 0;
+        final List<Rating> unseen = new ArrayList<>();
+        // rating-derived components that cannot be updated, found when the model is first built
+        List<Class<?>> stale;
+
+        /**
+         * Query whether the model is updated in place.
+         */
+        boolean isUpdatable() {
+            return engine != null && !updatable.isEmpty() && stale.isEmpty();
+        }
+
+        /**
+         * Build a new model.
+         * @param dao The ratings to build from.
+         * @param time The current time.
+         * @param nratings The number of ratings in {@code dao}.
+         */
+        void rebuild(DataAccessObject dao, long time, int nratings) throws RecommenderBuildException {
+            buildTime = time;
+            buildsCount++;
+
+            logger.info("building model {} at time {}, {} ratings since last build",
+                        buildsCount, buildTime, ratingsSinceLastBuild);
+
+            Stopwatch timer = Stopwatch.createStarted();
+            engine = LenskitRecommenderEngine.newBuilder()
+                                             .addConfiguration(algorithm.getConfigurations().get(0))
+                                             .build(dao);
+            timer.stop();
+            logger.info("built model {} in {}", buildsCount, timer);
+
+            ratingsSinceLastBuild = 0;
+            modelRatings = nratings;
+            unseen.clear();
+            if (incremental) {
+                updatable = findUpdatableModels(engine);
+                boolean first = stale == null;
+                if (first) {
+                    stale = findStaleComponents(dao);
+                }
+                if (updatable.isEmpty()) {
+                    if (first) {
+                        logger.warn("{} has no updatable model components, rebuilding every period",
+                                    algorithm.getName());
+                    }
+                } else if (!stale.isEmpty()) {
+                    if (first) {
+                        logger.warn("{} has components computed from the ratings that cannot be updated ({}), " +
+                                    "rebuilding every period", algorithm.getName(), stale);
+                    }
+                } else {
+                    logger.info("updating {} model components incrementally", updatable.size());
+                }
+            }
+        }
+
+        /**
+         * Apply the ratings replayed since the model was last built or updated.
+         * @param nratings The number of ratings in the history, including the new ones.
+         * @param time The current time.
+         * @return The time taken to update the model, in seconds, or {@code null} if there were no new ratings.
+         */
+        @Nullable
+        Double addRatings(int nratings, long time) {
+            assert modelRatings + unseen.size() == nratings;
+            RatingUpdate update = RatingUpdate.additions(unseen);
+            if (update.isEmpty()) {
+                return null;
+            }
+            Stopwatch timer = Stopwatch.createStarted();
+            update(update);
+            timer.stop();
+            unseen.clear();
+            logger.debug("applied {} to model at time {} in {}", update, time, timer);
+            modelRatings = nratings;
+            buildTime = time;
+            ratingsSinceLastBuild = 0;
+            return timer.elapsed(TimeUnit.MICROSECONDS) * 1.0e-6;
+        }
+
+        void update(RatingUpdate update) {
+            for (UpdatableModel model: updatable) {
+                model.update(update);
+            }
+        }
+    }
+
+    /**
+     * The evaluation of a single rating against the model at the time of the rating.
+     */
+    private class RatingEvaluation {
+        final Rating rating;
+        final LenskitRecommenderEngine engine;
+        final DataAccessObject dao;
+        final Random random;
+        final long modelAge;
+        final int buildsCount;
+        @Nullable
+        final Double updateTime;
+        final Map<String,Object> json = new HashMap<>();
+        Double prediction;
+        Integer rank;
+
+        RatingEvaluation(Rating r, LenskitRecommenderEngine eng, DataAccessObject data, Random rand,
+                         long age, int builds, @Nullable Double update) {
+            rating = r;
+            engine = eng;
+            dao = data;
+            random = rand;
+            modelAge = age;
+            buildsCount = builds;
+            updateTime = update;
+        }
+
+        /**
+         * Evaluate the rating.
+         * @param recommender A recommender on this evaluation's engine and data.
+         */
+        void evaluate(Recommender recommender) {
+            json.put("userId", rating.getUserId());
+            json.put("itemId", rating.getItemId());
+            json.put("timestamp", rating.getTimestamp());
+            json.put("rating", rating.getValue());
+            json.put("modelAge", modelAge);
+            if (incremental) {
+                json.put("updateTime", updateTime);
+            }
+
+            // get rating prediction if available
+            RatingPredictor predictor = recommender.getRatingPredictor();
+            Result predictionResult = null;
+            if (predictor != null) {
+                predictionResult = predictor.predict(rating.getUserId(), rating.getItemId());
+            }
+
+            if (predictionResult != null) {
+                prediction = predictionResult.getScore();
+                logger.debug("predicted {} for rating {}", prediction, rating);
+            }
+            json.put("prediction", prediction);
+
+            // Compute recommendations
+            ItemRecommender irec = recommender.getItemRecommender();
+            if (irec != null) {
+                rank = getRecommendationRank(dao, rating, json, irec, random);
+            }
+        }
+    }
+
+    /**
+     * A recommender that is reopened only when the engine or the data changes, so consecutive ratings against the
+     * same snapshot share one recommender.  Not thread-safe.
+     */
+    private static class RecommenderHolder implements AutoCloseable {
+        private LenskitRecommenderEngine engine;
+        private DataAccessObject dao;
+        private Recommender recommender;
+
+        Recommender get(LenskitRecommenderEngine eng, DataAccessObject data) {
+            if (recommender == null || eng != engine || data != dao) {
+                close();
+                engine = eng;
+                dao = data;
+                recommender = eng.createRecommender(data);
+            }
+            return recommender;
+        }
+
+        @Override
+        public void close() {
+            if (recommender != null) {
+                recommender.close();
+                recommender = null;
+                engine = null;
+                dao = null;
+            }
+        }
+    }
+
+    /**
+     * Queue of rating evaluations.  With an executor, evaluations are batched until the queue is flushed (or fills
+     * up), and then run in parallel in contiguous chunks; results are written in their original order, so the
+     * output and the TARMSE do not depend on the scheduling.  The history and the model must not change while
+     * evaluations are queued.
+     */
+    private class EvaluationQueue implements AutoCloseable {
+        @Nullable
+        private final ExecutorService executor;
+        private final int chunkCount;
+        private final TableWriter tableWriter;
+        @Nullable
+        private final SequenceWriter extWriter;
+        private final List<RatingEvaluation> pending = new ArrayList<>();
+        private final RecommenderHolder recommender = new RecommenderHolder();
+        //Initialize local variables, will use to calculate RMSE
+        private double sse = 0;
+        private int n = 0;
+
+        EvaluationQueue(@Nullable ExecutorService exec, int nthreads,
+                        TableWriter out, @Nullable SequenceWriter ext) {
+            executor = exec;
+            // a few chunks per thread to balance the load
+            chunkCount = nthreads * 4;
+            tableWriter = out;
+            extWriter = ext;
+        }
+
+        void add(RatingEvaluation eval) throws IOException {
+            if (executor == null) {
+                eval.evaluate(recommender.get(eval.engine, eval.dao));
+                write(eval);
+            } else {
+                pending.add(eval);
+                if (pending.size() >= MAX_BATCH_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Run the pending evaluations and write their results.
+         */
+        void flush() throws IOException {
+            // the sequential recommender may be on a model that is about to change
+            recommender.close();
+            if (pending.isEmpty()) {
+                return;
+            }
+            assert executor != null;
+            logger.debug("evaluating {} ratings in parallel", pending.size());
+            int chunkSize = (pending.size() + chunkCount - 1) / chunkCount;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (List<RatingEvaluation> chunk: Lists.partition(pending, chunkSize)) {
+                tasks.add(() -> {
+                    try (RecommenderHolder holder = new RecommenderHolder()) {
+                        for (RatingEvaluation eval: chunk) {
+                            eval.evaluate(holder.get(eval.engine, eval.dao));
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            List<Future<Void>> results;
+            try {
+                results = executor.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EvaluationException("rating evaluation interrupted", e);
+            }
+            for (Future<Void> result: results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new EvaluationException("rating evaluation interrupted", e);
+                } catch (ExecutionException e) {
+                    Throwables.throwIfUnchecked(e.getCause());
+                    throw new EvaluationException("error evaluating rating", e.getCause());
+                }
+            }
+
+            // the pending list is in rating order, so it also serves as the reorder buffer
+            for (RatingEvaluation eval: pending) {
+                write(eval);
+            }
+            pending.clear();
+        }
+
+        private void write(RatingEvaluation eval) throws IOException {
+            Rating r = eval.rating;
+            Double predict = eval.prediction;
+
+            /***calculate Time Averaged RMSE***/
+            double rmse = 0.0;
+            if (predict != null && !Double.isNaN(predict)) {
+                double err = predict - r.getValue();
+                sse += err * err;
+                n++;
+                rmse = sqrt(sse / n);
+            }
+
+            /**writes the Prediction Score, Rank and TARMSE on file.**/
+            List<Object> row = Lists.newArrayList(r.getUserId(), r.getItemId(), r.getValue(), r.getTimestamp(),
+                                                  predict, rmse, eval.modelAge, eval.rank, eval.buildsCount);
+            if (incremental) {
+                row.add(eval.updateTime);
+            }
+            tableWriter.writeRow(row);
+            if (extWriter != null) {
+                extWriter.write(eval.json);
+            }
+        }
+
+        @Override
+        public void close() {
+            recommender.close();
+        }
+    }
+}
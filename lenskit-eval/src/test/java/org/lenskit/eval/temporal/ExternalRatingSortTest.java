@@ -0,0 +1,92 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.eval.temporal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.lenskit.util.test.LenskitGenerators;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ExternalRatingSortTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Rating> makeRatings(int n) {
+        // few distinct timestamps, so there are plenty of ties
+        return LenskitGenerators.randomRatings(n, 10, 20, 25);
+    }
+
+    @Test
+    public void testSortInMemory() throws IOException {
+        List<Rating> ratings = makeRatings(50);
+        List<Rating> expected = new ArrayList<>(ratings);
+        expected.sort(Comparator.comparingLong(Rating::getTimestamp));
+
+        File dir = folder.newFolder();
+        try (ExternalRatingSort sort = new ExternalRatingSort(100, dir.toPath());
+             ObjectStream<Rating> sorted = sort.sort(ObjectStreams.wrap(ratings))) {
+            assertThat(ObjectStreams.makeList(sorted), equalTo(expected));
+            assertThat(sort.getRunCount(), equalTo(0));
+        }
+        assertThat(dir.list(), emptyArray());
+    }
+
+    @Test
+    public void testSortSpilled() throws IOException {
+        List<Rating> ratings = makeRatings(500);
+        List<Rating> expected = new ArrayList<>(ratings);
+        // stable sort, so ties stay in input order
+        expected.sort(Comparator.comparingLong(Rating::getTimestamp));
+
+        File dir = folder.newFolder();
+        try (ExternalRatingSort sort = new ExternalRatingSort(64, dir.toPath())) {
+            try (ObjectStream<Rating> sorted = sort.sort(ObjectStreams.wrap(ratings))) {
+                assertThat(sort.getRunCount(), equalTo(8));
+                assertThat(ObjectStreams.makeList(sorted), equalTo(expected));
+            }
+        }
+        assertThat(dir.list(), emptyArray());
+    }
+
+    @Test
+    public void testSortEmpty() throws IOException {
+        try (ExternalRatingSort sort = new ExternalRatingSort(10, folder.getRoot().toPath());
+             ObjectStream<Rating> sorted = sort.sort(ObjectStreams.empty())) {
+            assertThat(sorted.readObject(), nullValue());
+        }
+    }
+}
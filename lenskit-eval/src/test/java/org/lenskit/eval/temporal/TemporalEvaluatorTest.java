@@ -37,19 +37,40 @@ import org.lenskit.api.RecommenderBuildException;
 import org.lenskit.baseline.ItemMeanRatingItemScorer;
 import org.lenskit.baseline.UserMeanBaseline;
 import org.lenskit.baseline.UserMeanItemScorer;
+import org.lenskit.bias.BiasItemScorer;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.IncrementalUserItemBiasModel;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.Entities;
+import org.lenskit.data.entities.Entity;
 import org.lenskit.data.ratings.Rating;
+import org.lenskit.knn.item.ItemItemScorer;
+import org.lenskit.knn.item.model.ItemItemModel;
+import org.lenskit.knn.item.model.SummationItemItemModel;
+import org.lenskit.knn.user.IncrementalUserSnapshot;
+import org.lenskit.knn.user.NeighborFinder;
+import org.lenskit.knn.user.SnapshotNeighborFinder;
+import org.lenskit.knn.user.UserSnapshot;
+import org.lenskit.knn.user.UserUserItemScorer;
+import org.lenskit.slopeone.IncrementalSlopeOneModel;
+import org.lenskit.slopeone.SlopeOneItemScorer;
+import org.lenskit.slopeone.SlopeOneModel;
 import org.lenskit.util.test.LenskitGenerators;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -115,4 +136,333 @@ public class TemporalEvaluatorTest {
             }
         }
     }
+
+    /**
+     * Test that incremental updates produce the same predictions as rebuilding at every step.
+     */
+    @Test
+    public void testIncrementalMatchesRebuild() throws IOException, RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(BiasItemScorer.class);
+        config.bind(BiasModel.class).to(IncrementalUserItemBiasModel.class);
+        assertIncrementalMatchesRebuild("IncrementalBias", config);
+    }
+
+    /**
+     * Test that replaying with an updatable item-item model matches rebuilding it at every step.
+     */
+    @Test
+    public void testIncrementalItemItem() throws IOException, RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        config.bind(ItemItemModel.class).to(SummationItemItemModel.class);
+        useDenseRatings();
+        assertIncrementalMatchesRebuild("ItemItem", config);
+    }
+
+    /**
+     * Test that replaying with an updatable slope-one model matches rebuilding it at every step.
+     */
+    @Test
+    public void testIncrementalSlopeOne() throws IOException, RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(SlopeOneItemScorer.class);
+        config.bind(SlopeOneModel.class).to(IncrementalSlopeOneModel.class);
+        useDenseRatings();
+        assertIncrementalMatchesRebuild("SlopeOne", config);
+    }
+
+    /**
+     * Test that replaying with an updatable user snapshot matches rebuilding it at every step.
+     */
+    @Test
+    public void testIncrementalUserUser() throws IOException, RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(UserUserItemScorer.class);
+        config.bind(NeighborFinder.class).to(SnapshotNeighborFinder.class);
+        config.bind(UserSnapshot.class).to(IncrementalUserSnapshot.class);
+        useDenseRatings();
+        assertIncrementalMatchesRebuild("UserUser", config);
+    }
+
+    /**
+     * Replace the test data with ratings in which every user rates every item, so neighborhood models can predict.
+     */
+    private void useDenseRatings() {
+        List<Rating> ratings = dao.query(Rating.class)
+                                  .orderBy(CommonAttributes.TIMESTAMP)
+                                  .get();
+        List<Rating> dense = new ArrayList<>();
+        for (int i = 0; i < ratings.size(); i++) {
+            dense.add(ratings.get(i).copyBuilder()
+                             .setUserId(i % 5)
+                             .setItemId(i / 5)
+                             .build());
+        }
+        dao = StaticDataSource.fromList(dense).get();
+        tempEval.setDataSource(dao);
+    }
+
+    private void assertIncrementalMatchesRebuild(String name, LenskitConfiguration config)
+            throws IOException, RecommenderBuildException {
+        tempEval.setAlgorithm(name, config);
+
+        tempEval.setRebuildPeriod(0L);
+        tempEval.execute();
+        List<String> rebuilt = Files.readAllLines(predictOutputFile.toPath());
+
+        File incOutputFile = folder.newFile("incremental.csv");
+        tempEval.setOutputFile(incOutputFile);
+        tempEval.setIncremental(true);
+        tempEval.execute();
+        List<String> updated = Files.readAllLines(incOutputFile.toPath());
+
+        assertThat(updated, hasSize(RATING_COUNT + 1));
+        assertThat(updated.get(0), endsWith(",UpdateTime"));
+        int npreds = 0;
+        int nupdates = 0;
+        for (int i = 1; i <= RATING_COUNT; i++) {
+            String[] exp = rebuilt.get(i).split(",", -1);
+            String[] act = updated.get(i).split(",", -1);
+            // same user, item, and rating, with predictions equal up to rounding
+            for (int j = 0; j < 3; j++) {
+                assertThat(act[j], equalTo(exp[j]));
+            }
+            if (exp[4].isEmpty()) {
+                assertThat(act[4], isEmptyString());
+            } else {
+                assertThat(Double.parseDouble(act[4]), closeTo(Double.parseDouble(exp[4]), 1.0e-6));
+                npreds += 1;
+            }
+            if (!act[9].isEmpty()) {
+                nupdates += 1;
+            }
+        }
+        assertThat(npreds, greaterThan(0));
+        // the model was updated in place rather than rebuilt
+        assertThat(nupdates, greaterThan(0));
+    }
+
+    /**
+     * Test that incremental mode rebuilds the model if it has components that cannot be updated.
+     */
+    @Test
+    public void testIncrementalRebuildsStaleComponents() throws IOException, RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(UserMeanItemScorer.class);
+        config.bind(UserMeanBaseline.class, ItemScorer.class).to(ItemMeanRatingItemScorer.class);
+        // an updatable model that the scorer does not use
+        config.bind(BiasModel.class).to(IncrementalUserItemBiasModel.class);
+        config.addRoot(BiasModel.class);
+        tempEval.setAlgorithm("UserMeanBaseline", config);
+
+        tempEval.execute();
+        List<String> rebuilt = Files.readAllLines(predictOutputFile.toPath());
+
+        File incOutputFile = folder.newFile("incremental.csv");
+        tempEval.setOutputFile(incOutputFile);
+        tempEval.setIncremental(true);
+        tempEval.execute();
+        List<String> updated = Files.readAllLines(incOutputFile.toPath());
+
+        assertThat(updated, hasSize(RATING_COUNT + 1));
+        for (int i = 1; i <= RATING_COUNT; i++) {
+            String[] exp = rebuilt.get(i).split(",", -1);
+            String[] act = updated.get(i).split(",", -1);
+            // the item means are rebuilt on the same schedule; decoy items are random, so ranks may differ
+            exp[7] = act[7] = "";
+            assertThat(Arrays.copyOf(act, exp.length), equalTo(exp));
+        }
+    }
+
+    /**
+     * Test that evaluating in parallel produces the same output as evaluating sequentially.
+     */
+    @Test
+    public void testParallelMatchesSequential() throws IOException, RecommenderBuildException {
+        tempEval.setRebuildPeriod(Long.MAX_VALUE);
+        tempEval.execute();
+        List<String> sequential = Files.readAllLines(predictOutputFile.toPath());
+
+        File parOutputFile = folder.newFile("parallel.csv");
+        tempEval.setOutputFile(parOutputFile);
+        tempEval.setThreadCount(4);
+        tempEval.execute();
+        List<String> parallel = Files.readAllLines(parOutputFile.toPath());
+
+        assertThat(parallel, hasSize(RATING_COUNT + 1));
+        assertThat(parallel.get(0), equalTo(sequential.get(0)));
+        for (int i = 1; i <= RATING_COUNT; i++) {
+            String[] exp = sequential.get(i).split(",", -1);
+            String[] act = parallel.get(i).split(",", -1);
+            // decoy items are random, so ranks may differ
+            exp[7] = act[7] = "";
+            assertThat(act, equalTo(exp));
+        }
+    }
+
+    /**
+     * Test that evaluating in parallel between batched incremental updates produces the same output as evaluating
+     * sequentially.
+     */
+    @Test
+    public void testIncrementalParallelMatchesSequential() throws IOException, RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(BiasItemScorer.class);
+        config.bind(BiasModel.class).to(IncrementalUserItemBiasModel.class);
+        tempEval.setAlgorithm("IncrementalBias", config);
+        tempEval.setRebuildPeriod(100L);
+        tempEval.setIncremental(true);
+        tempEval.execute();
+        List<String> sequential = Files.readAllLines(predictOutputFile.toPath());
+
+        File parOutputFile = folder.newFile("parallel.csv");
+        tempEval.setOutputFile(parOutputFile);
+        tempEval.setThreadCount(4);
+        tempEval.execute();
+        List<String> parallel = Files.readAllLines(parOutputFile.toPath());
+
+        assertThat(parallel, hasSize(RATING_COUNT + 1));
+        for (int i = 1; i <= RATING_COUNT; i++) {
+            String[] exp = sequential.get(i).split(",", -1);
+            String[] act = parallel.get(i).split(",", -1);
+            // decoy items are random, so ranks may differ, and update times vary
+            exp[7] = act[7] = "";
+            exp[9] = act[9] = "";
+            assertThat(act, equalTo(exp));
+        }
+    }
+
+    /**
+     * Test that replaying externally-sorted ratings produces the same output as sorting in memory.
+     */
+    @Test
+    public void testExternalSortMatchesInMemory() throws IOException, RecommenderBuildException {
+        tempEval.execute();
+        List<String> inMemory = Files.readAllLines(predictOutputFile.toPath());
+
+        File sortDir = folder.newFolder("sort");
+        File extOutputFile = folder.newFile("external.csv");
+        tempEval.setOutputFile(extOutputFile);
+        tempEval.setSortBufferSize(8);
+        tempEval.setSortDirectory(sortDir.toPath());
+        tempEval.execute();
+        List<String> external = Files.readAllLines(extOutputFile.toPath());
+
+        assertThat(external, hasSize(RATING_COUNT + 1));
+        for (int i = 0; i <= RATING_COUNT; i++) {
+            String[] exp = inMemory.get(i).split(",", -1);
+            String[] act = external.get(i).split(",", -1);
+            // decoy items are random, so ranks may differ
+            exp[7] = act[7] = "";
+            assertThat(act, equalTo(exp));
+        }
+        // the spill files are cleaned up
+        assertThat(sortDir.list(), emptyArray());
+    }
+
+    /**
+     * Test that externally sorting ratings streamed from a data source produces the same output as sorting in memory.
+     */
+    @Test
+    public void testExternalSortFromSource() throws IOException, RecommenderBuildException {
+        tempEval.execute();
+        List<String> inMemory = Files.readAllLines(predictOutputFile.toPath());
+
+        File sortDir = folder.newFolder("sort");
+        File extOutputFile = folder.newFile("external.csv");
+        tempEval.setDataSource(StaticDataSource.fromList(dao.query(Rating.class).get()));
+        tempEval.setOutputFile(extOutputFile);
+        tempEval.setSortBufferSize(8);
+        tempEval.setSortDirectory(sortDir.toPath());
+        tempEval.execute();
+        List<String> external = Files.readAllLines(extOutputFile.toPath());
+
+        assertThat(external, hasSize(RATING_COUNT + 1));
+        for (int i = 0; i <= RATING_COUNT; i++) {
+            String[] exp = inMemory.get(i).split(",", -1);
+            String[] act = external.get(i).split(",", -1);
+            exp[7] = act[7] = "";
+            assertThat(act, equalTo(exp));
+        }
+        assertThat(sortDir.list(), emptyArray());
+    }
+
+    /**
+     * Test replaying deletion requests, forgetting them by rebuilding or by incremental updates.
+     */
+    @Test
+    public void testReplayDeletions() throws IOException, RecommenderBuildException {
+        List<Rating> ratings = dao.query(Rating.class)
+                                  .orderBy(CommonAttributes.TIMESTAMP)
+                                  .get();
+        long user = ratings.get(3).getUserId();
+        Rating victim = ratings.subList(20, RATING_COUNT)
+                               .stream()
+                               .filter(r -> r.getUserId() != user)
+                               .findFirst()
+                               .get();
+        Rating itemRating = ratings.stream()
+                                   .filter(r -> r.getUserId() != user && r != victim)
+                                   .max(Comparator.comparing(Rating::getTimestamp))
+                                   .get();
+        List<Entity> deletions = new ArrayList<>();
+        deletions.add(Entities.newBuilder(TemporalEvaluator.DELETION, 1)
+                              .setAttribute(CommonAttributes.USER_ID, user)
+                              .setAttribute(CommonAttributes.TIMESTAMP, ratings.get(15).getTimestamp())
+                              .build());
+        deletions.add(Entities.newBuilder(TemporalEvaluator.DELETION, 2)
+                              .setAttribute(CommonAttributes.USER_ID, victim.getUserId())
+                              .setAttribute(CommonAttributes.ITEM_ID, victim.getItemId())
+                              .setAttribute(CommonAttributes.TIMESTAMP, ratings.get(25).getTimestamp())
+                              .build());
+        deletions.add(Entities.newBuilder(TemporalEvaluator.DELETION, 3)
+                              .setAttribute(CommonAttributes.ITEM_ID, itemRating.getItemId())
+                              .setAttribute(CommonAttributes.TIMESTAMP,
+                                            ratings.get(RATING_COUNT - 1).getTimestamp() + 10)
+                              .build());
+
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(BiasItemScorer.class);
+        config.bind(BiasModel.class).to(IncrementalUserItemBiasModel.class);
+        tempEval.setAlgorithm("IncrementalBias", config);
+        tempEval.setRebuildPeriod(Long.MAX_VALUE);
+        tempEval.setDeletionSource(StaticDataSource.fromList(deletions).get());
+
+        File rebuildOutput = folder.newFile("deletions-rebuild.csv");
+        tempEval.setDeletionOutputFile(rebuildOutput);
+        tempEval.execute();
+        checkDeletionOutput(rebuildOutput, "rebuild");
+        assertThat(Files.readAllLines(predictOutputFile.toPath()), hasSize(RATING_COUNT + 1));
+
+        File updateOutput = folder.newFile("deletions-update.csv");
+        tempEval.setDeletionOutputFile(updateOutput);
+        tempEval.setIncremental(true);
+        tempEval.execute();
+        checkDeletionOutput(updateOutput, "update");
+    }
+
+    private void checkDeletionOutput(File file, String method) throws IOException {
+        List<String[]> rows = Files.readAllLines(file.toPath())
+                                   .stream()
+                                   .map(l -> l.split(",", -1))
+                                   .collect(Collectors.toList());
+        assertThat(rows, hasSize(4));
+        assertThat(rows.get(0)[1], equalTo("Action"));
+        assertThat(rows.get(1)[1], equalTo("user"));
+        assertThat(rows.get(2)[1], equalTo("rating"));
+        assertThat(rows.get(3)[1], equalTo("item"));
+        for (String[] row: rows.subList(1, 4)) {
+            assertThat(Integer.parseInt(row[4]), greaterThan(0));
+            assertThat(row[5], equalTo(method));
+            assertThat(row[6], not(isEmptyString()));
+        }
+        // deleting a user's ratings only affects that user, who has nothing left to drift
+        assertThat(rows.get(1)[8], equalTo("1"));
+        assertThat(rows.get(1)[9], isEmptyString());
+        // the other deletions leave the affected users with ratings to measure drift on
+        assertThat(rows.get(2)[4], equalTo("1"));
+        assertThat(rows.get(2)[9], not(isEmptyString()));
+        assertThat(Double.parseDouble(rows.get(2)[9]), greaterThanOrEqualTo(0.0));
+    }
 }
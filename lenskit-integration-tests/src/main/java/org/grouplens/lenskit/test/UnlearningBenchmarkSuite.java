@@ -0,0 +1,229 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.grouplens.lenskit.test;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.LenskitRecommenderEngine;
+import org.lenskit.api.RatingPredictor;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.eval.traintest.TestUser;
+import org.lenskit.eval.traintest.TestUserBuilder;
+import org.lenskit.eval.traintest.predict.RMSEPredictMetric;
+import org.lenskit.results.Results;
+import org.lenskit.util.table.TableLayout;
+import org.lenskit.util.table.TableLayoutBuilder;
+import org.lenskit.util.table.writer.CSVWriter;
+import org.lenskit.util.table.writer.TableWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmark the cost and fidelity of forgetting ratings.  For each deletion batch size, the benchmark trains the
+ * algorithm on the training data, removes a random batch of ratings through the algorithm's incremental forgetting
+ * support, and separately retrains the algorithm from scratch without the batch.  It reports both times and the
+ * RMSE of the forgetting model's predictions measured against the retrained model's predictions (computed with
+ * {@link RMSEPredictMetric}), along with each model's RMSE on held-out test ratings.
+ *
+ * The benchmarks are slow, so they only run when the {@value #BENCHMARK_PROPERTY} system property is {@code true}.  The
+ * batch sizes can be set with {@value #BATCH_SIZES_PROPERTY}, and results are written as CSV to the directory named
+ * by {@value #OUTPUT_PROPERTY}.
+ */
+public abstract class UnlearningBenchmarkSuite extends ML100KTestSuite {
+    private static final Logger logger = LoggerFactory.getLogger(UnlearningBenchmarkSuite.class);
+
+    public static final String BENCHMARK_PROPERTY = "lenskit.benchmark.unlearning";
+    public static final String BATCH_SIZES_PROPERTY = "lenskit.benchmark.unlearning.batches";
+    public static final String OUTPUT_PROPERTY = "lenskit.benchmark.unlearning.output";
+    protected static final String DEFAULT_BATCH_SIZES = "1,100,10000";
+    protected static final double TEST_FRACTION = 0.05;
+    protected static final long SEED = 42;
+
+    /**
+     * Configure the algorithm to benchmark.  The configuration should use the algorithm's incrementally-updatable
+     * model components.
+     *
+     * @param config The configuration.
+     */
+    protected abstract void configureAlgorithm(LenskitConfiguration config);
+
+    /**
+     * Forget ratings by updating the trained model components in place.
+     *
+     * @param rec A recommender using the trained model components.
+     * @param ratings The ratings to forget.
+     * @return {@code false} if the algorithm does not support incremental forgetting.
+     */
+    protected abstract boolean forget(LenskitRecommender rec, List<Rating> ratings);
+
+    @Test
+    public void testUnlearning() throws IOException {
+        assumeTrue("unlearning benchmark not requested", Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+        Random rng = new Random(SEED);
+        List<Rating> train = new ArrayList<>();
+        List<Rating> test = new ArrayList<>();
+        for (Rating r: source.get().query(Rating.class).get()) {
+            if (rng.nextDouble() < TEST_FRACTION) {
+                test.add(r);
+            } else {
+                train.add(r);
+            }
+        }
+        DataAccessObject trainDAO = StaticDataSource.fromList(train).get();
+
+        TableLayout layout = new TableLayoutBuilder().addColumns("Algorithm", "Deleted",
+                                                                 "RetrainTime", "ForgetTime", "Speedup",
+                                                                 "Divergence.RMSE",
+                                                                 "Retrain.RMSE", "Forget.RMSE")
+                                                     .build();
+        String algo = getClass().getSimpleName();
+        File outDir = new File(System.getProperty(OUTPUT_PROPERTY, "build/benchmarks"));
+        outDir.mkdirs();
+        File outFile = new File(outDir, "unlearning-" + algo + ".csv");
+        logger.info("writing {} benchmark results to {}", algo, outFile);
+
+        try (TableWriter output = CSVWriter.open(outFile, layout)) {
+            for (String bs: Splitter.on(',').trimResults().omitEmptyStrings()
+                                    .split(System.getProperty(BATCH_SIZES_PROPERTY, DEFAULT_BATCH_SIZES))) {
+                int size = Integer.parseInt(bs);
+                if (size > train.size()) {
+                    logger.warn("skipping batch of {} ratings, only have {}", size, train.size());
+                    continue;
+                }
+
+                List<Rating> shuffled = new ArrayList<>(train);
+                Collections.shuffle(shuffled, new Random(SEED + size));
+                List<Rating> deleted = shuffled.subList(0, size);
+                List<Rating> kept = shuffled.subList(size, shuffled.size());
+                DataAccessObject keptDAO = StaticDataSource.fromList(kept).get();
+
+                LenskitConfiguration config = new LenskitConfiguration();
+                configureAlgorithm(config);
+
+                LenskitRecommenderEngine engine = LenskitRecommenderEngine.build(config, trainDAO);
+                Stopwatch forgetTimer = Stopwatch.createUnstarted();
+                boolean supported;
+                try (LenskitRecommender rec = engine.createRecommender(trainDAO)) {
+                    // the incremental models are shared, so updating them here updates the engine
+                    forgetTimer.start();
+                    supported = forget(rec, deleted);
+                    forgetTimer.stop();
+                }
+
+                Stopwatch retrainTimer = Stopwatch.createStarted();
+                LenskitRecommenderEngine retrained = LenskitRecommenderEngine.build(config, keptDAO);
+                retrainTimer.stop();
+
+                double retrainTime = retrainTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001;
+                double forgetTime = supported ? forgetTimer.elapsed(TimeUnit.MILLISECONDS) * 0.001 : Double.NaN;
+
+                try (LenskitRecommender retrainRec = retrained.createRecommender(keptDAO);
+                     LenskitRecommender forgetRec = engine.createRecommender(keptDAO)) {
+                    double[] rmse = measure(test, retrainRec.getRatingPredictor(),
+                                            supported ? forgetRec.getRatingPredictor() : null);
+                    logger.info("{}: forgetting {} ratings took {}s, retraining took {}s (divergence {})",
+                                algo, size, forgetTime, retrainTime, rmse[0]);
+                    output.writeRow(algo, size, retrainTime, forgetTime, retrainTime / forgetTime,
+                                    rmse[0], rmse[1], rmse[2]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Measure prediction error.
+     *
+     * @param test The test ratings.
+     * @param retrained The predictor from the retrained model.
+     * @param forgot The predictor from the forgetting model, or {@code null} if forgetting is unsupported.
+     * @return The divergence, the retrained model's RMSE, and the forgetting model's RMSE.
+     */
+    private double[] measure(List<Rating> test, RatingPredictor retrained, RatingPredictor forgot) {
+        Long2ObjectMap<TestUserBuilder> users = new Long2ObjectOpenHashMap<>();
+        for (Rating r: test) {
+            TestUserBuilder tub = users.get(r.getUserId());
+            if (tub == null) {
+                tub = TestUser.newBuilder().setUserId(r.getUserId());
+                users.put(r.getUserId(), tub);
+            }
+            tub.addTestRating(r.getItemId(), r.getValue());
+        }
+
+        RMSEPredictMetric metric = new RMSEPredictMetric();
+        RMSEPredictMetric.Context divergence = metric.createContext(null, null, null);
+        RMSEPredictMetric.Context retrainAccuracy = metric.createContext(null, null, null);
+        RMSEPredictMetric.Context forgetAccuracy = metric.createContext(null, null, null);
+        for (TestUserBuilder tub: users.values()) {
+            TestUser user = tub.build();
+            ResultMap reference = retrained.predictWithDetails(user.getUserId(), user.getTestItems());
+            metric.measureUser(user, reference, retrainAccuracy);
+            if (forgot == null) {
+                continue;
+            }
+
+            ResultMap predictions = forgot.predictWithDetails(user.getUserId(), user.getTestItems());
+            metric.measureUser(user, predictions, forgetAccuracy);
+
+            // compare only on items both models can predict
+            TestUserBuilder ref = TestUser.newBuilder().setUserId(user.getUserId());
+            List<Result> shared = new ArrayList<>();
+            for (Result r: predictions) {
+                Result rr = reference.get(r.getId());
+                if (rr != null && r.hasScore() && rr.hasScore()) {
+                    ref.addTestRating(r.getId(), rr.getScore());
+                    shared.add(r);
+                }
+            }
+            metric.measureUser(ref.build(), Results.newResultMap(shared), divergence);
+        }
+
+        return new double[]{getRMSE(divergence), getRMSE(retrainAccuracy), getRMSE(forgetAccuracy)};
+    }
+
+    private static double getRMSE(RMSEPredictMetric.Context context) {
+        Object value = context.finish().getValues().get("RMSE.ByRating");
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.bias
+
+import org.grouplens.lenskit.test.UnlearningBenchmarkSuite
+import org.lenskit.LenskitConfiguration
+import org.lenskit.LenskitRecommender
+import org.lenskit.api.ItemScorer
+import org.lenskit.config.ConfigHelpers
+import org.lenskit.data.ratings.Rating
+
+/**
+ * Benchmark forgetting ratings in the user-item bias model.
+ */
+public class BiasUnlearningBenchmark extends UnlearningBenchmarkSuite {
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void configureAlgorithm(LenskitConfiguration config) {
+        ConfigHelpers.configure(config) {
+            bind ItemScorer to BiasItemScorer
+            bind BiasModel to IncrementalUserItemBiasModel
+            set BiasDamping to 5
+        }
+    }
+
+    @Override
+    protected boolean forget(LenskitRecommender rec, List<Rating> ratings) {
+        def model = rec.get(BiasModel) as IncrementalBiasModel
+        for (r in ratings) {
+            model.removeRating(r.userId, r.itemId)
+        }
+        return true
+    }
+}
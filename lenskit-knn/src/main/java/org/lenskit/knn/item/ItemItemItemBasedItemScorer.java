@@ -107,7 +107,6 @@ public class ItemItemItemBasedItemScorer extends AbstractItemBasedItemScorer {
      * @param accum The accumulator.
      */
     protected void scoreItem(Long2DoubleMap scores, long item, ItemItemScoreAccumulator accum) {
-        Long2DoubleMap allNeighbors = model.getNeighbors(item);
         Long2DoubleAccumulator acc;
         if (neighborhoodSize > 0) {
             // FIXME Abstract accumulator selection logic
@@ -116,11 +115,7 @@ public class ItemItemItemBasedItemScorer extends AbstractItemBasedItemScorer {
             acc = new UnlimitedLong2DoubleAccumulator();
         }
 
-        for (Long2DoubleMap.Entry nbr: allNeighbors.long2DoubleEntrySet()) {
-            if (scores.containsKey(nbr.getLongKey())) {
-                acc.put(nbr.getLongKey(), nbr.getDoubleValue());
-            }
-        }
+        model.accumulateNeighbors(item, scores.keySet(), acc);
 
         Long2DoubleMap neighborhood = acc.finishMap();
         scorer.score(item, neighborhood, scores, accum);
@@ -148,18 +148,16 @@ public class ItemItemScorer extends AbstractItemScorer {
 
     protected void scoreItem(Long2DoubleMap userData, long item, ItemItemScoreAccumulator accum) {
         // find the usable neighbors
-        Long2DoubleSortedArrayMap allNeighbors = Long2DoubleSortedArrayMap.create(model.getNeighbors(item));
-        Long2DoubleMap neighborhood = allNeighbors.subMap(userData.keySet());
-
+        Long2DoubleMap neighborhood;
         if (neighborhoodSize > 0) {
             if (logger.isTraceEnabled()) {
-                logger.trace("truncating {} neighbors to {}", neighborhood.size(), neighborhoodSize);
+                logger.trace("truncating neighbors to {}", neighborhoodSize);
             }
             Long2DoubleAccumulator acc = new TopNLong2DoubleAccumulator(neighborhoodSize);
-            for (Long2DoubleMap.Entry e: neighborhood.long2DoubleEntrySet()) {
-                acc.put(e.getLongKey(), e.getDoubleValue());
-            }
+            model.accumulateNeighbors(item, userData.keySet(), acc);
             neighborhood = acc.finishMap();
+        } else {
+            neighborhood = model.getNeighbors(item, userData.keySet());
         }
 
         assert neighborhoodSize <= 0 || neighborhood.size() <= neighborhoodSize;
@@ -168,7 +166,7 @@ public class ItemItemScorer extends AbstractItemScorer {
         }
         if (logger.isTraceEnabled()) {
             logger.trace("scoring item {} with {} of {} neighbors",
-                         item, neighborhood.size(), allNeighbors.size());
+                         item, neighborhood.size(), model.getNeighbors(item).size());
         }
         scorer.score(item, neighborhood, userData, accum);
     }
@@ -49,6 +49,14 @@ public class ItemVectorSimilarity implements ItemSimilarity, Serializable, Maybe
         delegate = sim;
     }
 
+    /**
+     * Get the underlying vector similarity.
+     * @return The wrapped vector similarity.
+     */
+    public VectorSimilarity getDelegate() {
+        return delegate;
+    }
+
     @Override
     public double similarity(long i1, Long2DoubleMap v1, long i2, Long2DoubleMap v2) {
         return delegate.similarity(v1, v2);
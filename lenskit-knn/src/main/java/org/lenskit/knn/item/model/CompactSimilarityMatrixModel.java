@@ -0,0 +1,182 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.Immutable;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.io.Serializable;
+
+/**
+ * Item-item similarity model stored in compressed sparse row (CSR) form.
+ *
+ * <p>The neighbors of all items are packed into three arrays: an {@code int[]} of row offsets,
+ * an {@code int[]} of neighbor indexes into a shared item index, and a {@code float[]} of
+ * similarities.  Each row is sorted by neighbor index (and therefore by item ID).  This avoids the
+ * per-row map objects of {@link SimilarityMatrixModel} and halves the size of each entry, at the
+ * cost of storing similarities in single precision.  {@link #getNeighbors(long, LongSet)} computes
+ * neighborhoods directly from the arrays, so scoring does not copy the rows.</p>
+ *
+ * <p>To use it in place of the default model, bind {@link ItemItemModel} to this class; it is
+ * built by compacting the configured {@link SimilarityMatrixModel}.</p>
+ *
+ * @see CompactSimilarityMatrixModelProvider
+ */
+@DefaultProvider(CompactSimilarityMatrixModelProvider.class)
+@Shareable
+@Immutable
+public class CompactSimilarityMatrixModel extends CompressedRowItemItemModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final SortedKeyIndex rowItems;
+    private final SortedKeyIndex neighborItems;
+    private final int[] rowOffsets;
+    private final int[] neighbors;
+    private final float[] similarities;
+
+    /**
+     * Construct a new compact model.  The arrays are not copied.
+     *
+     * @param rows The items with rows in the model.
+     * @param nbrItems The index of neighbor items.
+     * @param offsets The row offsets; row <em>i</em> occupies positions
+     *                [{@code offsets[i]}, {@code offsets[i+1]}) of the neighbor and similarity
+     *                arrays.
+     * @param nbrs The neighbor indexes (into {@code nbrItems}), sorted within each row.
+     * @param sims The similarities.
+     */
+    CompactSimilarityMatrixModel(SortedKeyIndex rows, SortedKeyIndex nbrItems,
+                                 int[] offsets, int[] nbrs, float[] sims) {
+        if (offsets.length != rows.size() + 1) {
+            throw new IllegalArgumentException("row offset array has incorrect length");
+        }
+        if (nbrs.length != sims.length || offsets[rows.size()] != nbrs.length) {
+            throw new IllegalArgumentException("neighbor and similarity arrays have incorrect length");
+        }
+        rowItems = rows;
+        neighborItems = nbrItems;
+        rowOffsets = offsets;
+        neighbors = nbrs;
+        similarities = sims;
+    }
+
+    /**
+     * Create a compact copy of an item-item model.
+     *
+     * @param model The model to compact.
+     * @return A compact model with the same neighborhoods as {@code model}, with similarities
+     *         rounded to single precision.
+     */
+    public static CompactSimilarityMatrixModel fromModel(ItemItemModel model) {
+        SortedKeyIndex rows = SortedKeyIndex.fromCollection(model.getItemUniverse());
+        int n = rows.size();
+
+        // find the neighbor universe; normally it is the same as the row universe
+        LongSet extra = new LongOpenHashSet();
+        int nnz = 0;
+        for (int i = 0; i < n; i++) {
+            Long2DoubleMap row = model.getNeighbors(rows.getKey(i));
+            nnz += row.size();
+            LongIterator iter = row.keySet().iterator();
+            while (iter.hasNext()) {
+                long nbr = iter.nextLong();
+                if (!rows.containsKey(nbr)) {
+                    extra.add(nbr);
+                }
+            }
+        }
+        SortedKeyIndex nbrItems;
+        if (extra.isEmpty()) {
+            nbrItems = rows;
+        } else {
+            LongSet all = new LongOpenHashSet(rows.keySet());
+            all.addAll(extra);
+            nbrItems = SortedKeyIndex.fromCollection(all);
+        }
+
+        int[] offsets = new int[n + 1];
+        int[] nbrs = new int[nnz];
+        float[] sims = new float[nnz];
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            offsets[i] = pos;
+            Long2DoubleSortedArrayMap row = Long2DoubleSortedArrayMap.create(model.getNeighbors(rows.getKey(i)));
+            for (int j = 0; j < row.size(); j++) {
+                nbrs[pos] = nbrItems.getIndex(row.getKeyByIndex(j));
+                sims[pos] = (float) row.getValueByIndex(j);
+                pos++;
+            }
+        }
+        offsets[n] = pos;
+        assert pos == nnz;
+
+        return new CompactSimilarityMatrixModel(rows, nbrItems, offsets, nbrs, sims);
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return rowItems.keySet();
+    }
+
+    @Override
+    protected int findRow(long item) {
+        return rowItems.tryGetIndex(item);
+    }
+
+    @Override
+    protected int rowOffset(int row) {
+        return rowOffsets[row];
+    }
+
+    @Override
+    protected int findNeighbor(long item) {
+        return neighborItems.tryGetIndex(item);
+    }
+
+    @Override
+    protected long getNeighborItem(int idx) {
+        return neighborItems.getKey(idx);
+    }
+
+    @Override
+    protected int getNeighborIndex(int pos) {
+        return neighbors[pos];
+    }
+
+    @Override
+    protected double getSimilarity(int pos) {
+        return similarities[pos];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compact matrix of %d similarities for %d items",
+                             neighbors.length, rowItems.size());
+    }
+}
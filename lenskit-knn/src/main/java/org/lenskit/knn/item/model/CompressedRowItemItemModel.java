@@ -0,0 +1,215 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Scalars;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Base class for item-item models stored in compressed sparse row (CSR) form.  Subclasses provide
+ * access to the row items, row offsets, neighbor indexes and similarities; this class implements
+ * the neighborhood queries on top of them, without materializing whole rows.
+ *
+ * <p>Each row must be sorted by neighbor index, and neighbor indexes must be assigned in
+ * increasing order of item ID.</p>
+ */
+abstract class CompressedRowItemItemModel implements ItemItemModel {
+    /**
+     * Find the row of an item.
+     * @param item The item ID.
+     * @return The row index, or a negative value if the item has no row.
+     */
+    protected abstract int findRow(long item);
+
+    /**
+     * Get the start of a row in the neighbor arrays.
+     * @param row The row index; the number of rows is a valid argument, yielding the end of the
+     *            last row.
+     * @return The position of the first entry in the row.
+     */
+    protected abstract int rowOffset(int row);
+
+    /**
+     * Find the index of a neighbor item.
+     * @param item The item ID.
+     * @return The neighbor index, or a negative value if the item is not a neighbor of any item.
+     */
+    protected abstract int findNeighbor(long item);
+
+    /**
+     * Get the item ID for a neighbor index.
+     * @param idx The neighbor index.
+     * @return The item ID.
+     */
+    protected abstract long getNeighborItem(int idx);
+
+    /**
+     * Get the neighbor index stored at a position.
+     * @param pos The position in the neighbor arrays.
+     * @return The neighbor index.
+     */
+    protected abstract int getNeighborIndex(int pos);
+
+    /**
+     * Get the similarity stored at a position.
+     * @param pos The position in the neighbor arrays.
+     * @return The similarity.
+     */
+    protected abstract double getSimilarity(int pos);
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This copies the row out of the compact storage.</p>
+     */
+    @Nonnull
+    @Override
+    public Long2DoubleMap getNeighbors(long item) {
+        int row = findRow(item);
+        if (row < 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        int start = rowOffset(row);
+        int end = rowOffset(row + 1);
+        long[] keys = new long[end - start];
+        double[] values = new double[end - start];
+        for (int p = start; p < end; p++) {
+            keys[p - start] = getNeighborItem(getNeighborIndex(p));
+            values[p - start] = getSimilarity(p);
+        }
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(keys, keys.length), values);
+    }
+
+    @Nonnull
+    @Override
+    public Long2DoubleMap getNeighbors(long item, LongSet candidates) {
+        int row = findRow(item);
+        if (row < 0 || candidates.isEmpty()) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        RowBuffer buf = new RowBuffer(Math.min(rowOffset(row + 1) - rowOffset(row), candidates.size()));
+        visitRow(row, candidates, buf);
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(buf.keys, buf.size), buf.values);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This reads the entries straight from the compact storage.</p>
+     */
+    @Override
+    public void accumulateNeighbors(long item, LongSet candidates, Long2DoubleAccumulator acc) {
+        int row = findRow(item);
+        if (row >= 0 && !candidates.isEmpty()) {
+            visitRow(row, candidates, acc::put);
+        }
+    }
+
+    /**
+     * Visit the entries of a row whose items are in a candidate set, in order of item ID.
+     */
+    private void visitRow(int row, LongSet candidates, NeighborVisitor visitor) {
+        int start = rowOffset(row);
+        int end = rowOffset(row + 1);
+
+        if (candidates instanceof LongSortedSet
+                && ((LongSortedSet) candidates).comparator() == null
+                && candidates.size() * Scalars.log2(end - start) < end - start) {
+            // few candidates, long row: search the row for each candidate
+            LongIterator iter = candidates.iterator();
+            while (iter.hasNext()) {
+                long cand = iter.nextLong();
+                int col = findNeighbor(cand);
+                if (col >= 0) {
+                    int p = searchRow(start, end, col);
+                    if (p >= 0) {
+                        visitor.visit(cand, getSimilarity(p));
+                    }
+                }
+            }
+        } else {
+            for (int p = start; p < end; p++) {
+                long nbr = getNeighborItem(getNeighborIndex(p));
+                if (candidates.contains(nbr)) {
+                    visitor.visit(nbr, getSimilarity(p));
+                }
+            }
+        }
+    }
+
+    /**
+     * Binary-search a row for a neighbor index.
+     * @return The position of the neighbor, or a negative value if it is not in the row.
+     */
+    private int searchRow(int start, int end, int col) {
+        int lo = start;
+        int hi = end - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = getNeighborIndex(mid);
+            if (v < col) {
+                lo = mid + 1;
+            } else if (v > col) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the entries of a row.
+     */
+    private interface NeighborVisitor {
+        void visit(long item, double similarity);
+    }
+
+    /**
+     * Collects the entries of a row into arrays.
+     */
+    private static class RowBuffer implements NeighborVisitor {
+        final long[] keys;
+        final double[] values;
+        int size;
+
+        RowBuffer(int capacity) {
+            keys = new long[capacity];
+            values = new double[capacity];
+        }
+
+        @Override
+        public void visit(long item, double similarity) {
+            keys[size] = item;
+            values[size] = similarity;
+            size++;
+        }
+    }
+}
@@ -89,6 +89,17 @@ public class ItemItemBuildContext implements Serializable {
         return items.keySet();
     }
 
+    /**
+     * Get the index of the items.  Item indexes are dense in the range [0,<em>n</em>), and
+     * can be used to store per-item data in arrays during a model build.
+     *
+     * @return The index of all items to build a model over.
+     */
+    @Nonnull
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
+
     /**
      * Get the rating vector for an item. Rating vectors contain normalized ratings,
      * using the applicable user-vector normalizer on the user rating vectors.
@@ -25,8 +25,11 @@
 package org.lenskit.knn.item.model;
 
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
 import org.grouplens.grapht.annotation.DefaultImplementation;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
 
 import javax.annotation.Nonnull;
 
@@ -60,4 +63,32 @@ public interface ItemItemModel {
      */
     @Nonnull
     Long2DoubleMap getNeighbors(long item);
+
+    /**
+     * Get the neighbors of an item that are in a set of candidate items, such as the items a user
+     * has rated.  Models with compact storage can override this to compute the neighborhood
+     * directly from their storage, without materializing the whole row.
+     *
+     * @param item The item to get the neighborhood for.
+     * @param candidates The candidate neighbors.
+     * @return The entries of the item's row whose keys are in {@code candidates}.
+     */
+    @Nonnull
+    default Long2DoubleMap getNeighbors(long item, LongSet candidates) {
+        return Long2DoubleSortedArrayMap.create(getNeighbors(item)).subMap(candidates);
+    }
+
+    /**
+     * Put the neighbors of an item that are in a set of candidate items into an accumulator, such
+     * as one that keeps the most similar neighbors.  Models with compact storage can override this
+     * to visit their storage in place, without building an intermediate map.
+     *
+     * @param item The item to get the neighborhood for.
+     * @param candidates The candidate neighbors.
+     * @param acc The accumulator to receive the entries of the item's row whose keys are in
+     *            {@code candidates}.
+     */
+    default void accumulateNeighbors(long item, LongSet candidates, Long2DoubleAccumulator acc) {
+        acc.putAll(getNeighbors(item, candidates));
+    }
 }
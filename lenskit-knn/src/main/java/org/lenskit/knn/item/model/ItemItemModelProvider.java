@@ -39,6 +39,7 @@ import org.lenskit.util.collections.Long2DoubleAccumulator;
 import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
 import org.lenskit.util.collections.UnlimitedLong2DoubleAccumulator;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.lenskit.util.reflect.ClassQueries;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +50,7 @@ import javax.inject.Provider;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
@@ -141,10 +143,31 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
         return new SimilarityMatrixModel(sims);
     }
 
+    /**
+     * Compute an item's complete row of the model, without relying on the symmetry of the similarity
+     * function, so rows can be computed one at a time.
+     *
+     * @param item The item ID.
+     * @return The item's neighbors, truncated to the model size; empty if the item has too few users.
+     */
+    Long2DoubleMap computeRow(long item) {
+        Long2DoubleSortedMap vec = buildContext.itemVector(item);
+        if (vec.size() < minCommonUsers) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        Long2DoubleMap row = makeSimilarityRow(IdBox.create(item, vec), false).getValue();
+        Long2DoubleAccumulator acc = newAccumulator();
+        acc.putAll(row);
+        return acc.finishMap();
+    }
+
     private IdBox<Long2DoubleMap> makeSimilarityRow(IdBox<Long2DoubleSortedMap> item) {
+        return makeSimilarityRow(item, itemSimilarity.isSymmetric());
+    }
+
+    private IdBox<Long2DoubleMap> makeSimilarityRow(IdBox<Long2DoubleSortedMap> item, boolean onlyAfter) {
         long itemId1 = item.getId();
-        LongIterator itemIter = neighborStrategy.neighborIterator(buildContext, itemId1,
-                                                                  itemSimilarity.isSymmetric());
+        LongIterator itemIter = neighborStrategy.neighborIterator(buildContext, itemId1, onlyAfter);
         Long2DoubleSortedMap vec1 = item.getValue();
         Long2DoubleMap row = new Long2DoubleOpenHashMap();
 
@@ -178,14 +201,6 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
         return accum;
     }
 
-    private Long2ObjectMap<Long2DoubleMap> finishRows(Long2ObjectMap<Long2DoubleAccumulator> rows) {
-        Long2ObjectMap<Long2DoubleMap> results = new Long2ObjectOpenHashMap<>(rows.size());
-        for (Long2ObjectMap.Entry<Long2DoubleAccumulator> e: rows.long2ObjectEntrySet()) {
-            results.put(e.getLongKey(), e.getValue().finishMap());
-        }
-        return results;
-    }
-
     private class BasicCollector implements Collector<IdBox<Long2DoubleMap>, Map<Long,Long2DoubleMap>, Long2ObjectMap<Long2DoubleMap>> {
         @Override
         public Supplier<Map<Long, Long2DoubleMap>> supplier() {
@@ -230,40 +245,61 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
         }
     }
 
-    private class SymmetricCollector implements Collector<IdBox<Long2DoubleMap>, Long2ObjectMap<Long2DoubleAccumulator>, Long2ObjectMap<Long2DoubleMap>> {
+    /**
+     * Collector for symmetric similarity functions.  Each similarity is computed once, and stored
+     * in the rows of both items.  The container is a single array of row accumulators indexed by
+     * the dense item indexes of the build context, so the collector is concurrent: rows are
+     * created with a compare-and-set, and each row is guarded by its own monitor, so threads only
+     * contend when they are adding to the same row at the same time.
+     */
+    private class SymmetricCollector implements Collector<IdBox<Long2DoubleMap>, AtomicReferenceArray<Long2DoubleAccumulator>, Long2ObjectMap<Long2DoubleMap>> {
+        private final SortedKeyIndex index = buildContext.getItemIndex();
+
         @Override
-        public Supplier<Long2ObjectMap<Long2DoubleAccumulator>> supplier() {
-            return Long2ObjectArrayMap::new;
+        public Supplier<AtomicReferenceArray<Long2DoubleAccumulator>> supplier() {
+            return () -> new AtomicReferenceArray<>(index.size());
         }
 
         @Override
-        public BiConsumer<Long2ObjectMap<Long2DoubleAccumulator>, IdBox<Long2DoubleMap>> accumulator() {
+        public BiConsumer<AtomicReferenceArray<Long2DoubleAccumulator>, IdBox<Long2DoubleMap>> accumulator() {
             return (acc, row) -> {
                 long i1 = row.getId();
-                for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(row.getValue())) {
-                    long i2 = e.getLongKey();
-                    double sim = e.getDoubleValue();
-                    acc.computeIfAbsent(i1, i -> newAccumulator())
-                       .put(i2, sim);
-                    acc.computeIfAbsent(i2, i -> newAccumulator())
-                       .put(i1, sim);
+                Long2DoubleMap sims = row.getValue();
+                if (sims.isEmpty()) {
+                    return;
+                }
+
+                Long2DoubleAccumulator a1 = getRow(acc, index.getIndex(i1));
+                synchronized (a1) {
+                    a1.putAll(sims);
+                }
+
+                for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(sims)) {
+                    Long2DoubleAccumulator a2 = getRow(acc, index.getIndex(e.getLongKey()));
+                    synchronized (a2) {
+                        a2.put(i1, e.getDoubleValue());
+                    }
                 }
             };
         }
 
         @Override
-        public BinaryOperator<Long2ObjectMap<Long2DoubleAccumulator>> combiner() {
+        public BinaryOperator<AtomicReferenceArray<Long2DoubleAccumulator>> combiner() {
+            // only used if the stream does not honor CONCURRENT; rows are merged index by index
             return (am1, am2) -> {
-                for (Long2ObjectMap.Entry<Long2DoubleAccumulator> e: Long2ObjectMaps.fastIterable(am2)) {
-                    long item = e.getLongKey();
-                    Long2DoubleAccumulator a2 = e.getValue();
-                    Long2DoubleAccumulator a1 = am1.get(item);
+                if (am1 == am2) {
+                    return am1;
+                }
+                for (int i = 0; i < am2.length(); i++) {
+                    Long2DoubleAccumulator a2 = am2.get(i);
+                    if (a2 == null) {
+                        continue;
+                    }
+                    Long2DoubleAccumulator a1 = am1.get(i);
                     if (a1 == null) {
-                        am1.put(item, a2);
+                        am1.set(i, a2);
                     } else {
-                        for (Long2DoubleMap.Entry ae: Long2DoubleMaps.fastIterable(a2.finishMap())) {
-                            a1.put(ae.getLongKey(), ae.getDoubleValue());
-                        }
+                        a1.putAll(a2.finishMap());
                     }
                 }
                 return am1;
@@ -271,13 +307,35 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
         }
 
         @Override
-        public Function<Long2ObjectMap<Long2DoubleAccumulator>, Long2ObjectMap<Long2DoubleMap>> finisher() {
-            return ItemItemModelProvider.this::finishRows;
+        public Function<AtomicReferenceArray<Long2DoubleAccumulator>, Long2ObjectMap<Long2DoubleMap>> finisher() {
+            return acc -> {
+                Long2ObjectMap<Long2DoubleMap> results = new Long2ObjectOpenHashMap<>();
+                for (int i = 0; i < acc.length(); i++) {
+                    Long2DoubleAccumulator row = acc.get(i);
+                    if (row != null) {
+                        results.put(index.getKey(i), row.finishMap());
+                    }
+                }
+                return results;
+            };
         }
 
         @Override
         public Set<Characteristics> characteristics() {
-            return ImmutableSet.of(Characteristics.UNORDERED);
+            return ImmutableSet.of(Characteristics.UNORDERED, Characteristics.CONCURRENT);
+        }
+
+        private Long2DoubleAccumulator getRow(AtomicReferenceArray<Long2DoubleAccumulator> acc, int idx) {
+            Long2DoubleAccumulator row = acc.get(idx);
+            if (row == null) {
+                Long2DoubleAccumulator fresh = newAccumulator();
+                if (acc.compareAndSet(idx, null, fresh)) {
+                    row = fresh;
+                } else {
+                    row = acc.get(idx);
+                }
+            }
+            return row;
         }
     }
 }
@@ -0,0 +1,379 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Item-item similarity model served from a memory-mapped file.
+ *
+ * <p>The file holds the same compressed sparse row layout as {@link CompactSimilarityMatrixModel}.
+ * Opening the model only maps the file, so it starts in constant time, its data lives outside the
+ * Java heap, and several JVMs on the same host share one copy of it in the page cache.  Serializing
+ * the model (e.g. as part of a recommender engine) only writes the file name; the file must still
+ * exist when the model is deserialized.</p>
+ *
+ * <p>Each section of the file is mapped separately, so the model supports up to
+ * {@link Integer#MAX_VALUE}{@code / 4} similarities.</p>
+ *
+ * <p>To use it in place of the default model, bind {@link ItemItemModel} to this class and set
+ * {@link SimilarityMatrixFile} to the file to store the model in.</p>
+ *
+ * @see MappedSimilarityMatrixModelProvider
+ */
+@DefaultProvider(MappedSimilarityMatrixModelProvider.class)
+@Shareable
+@ThreadSafe
+public class MappedSimilarityMatrixModel extends CompressedRowItemItemModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x4C4B494D; // LKIM
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    private final File file;
+    private final int nrows;
+    private final int nnz;
+    private final transient LongBuffer rowItems;
+    private final transient LongBuffer neighborItems;
+    private final transient IntBuffer rowOffsets;
+    private final transient IntBuffer neighbors;
+    private final transient FloatBuffer similarities;
+    private transient volatile LongSortedSet universe;
+
+    private MappedSimilarityMatrixModel(File file) throws IOException {
+        this.file = file;
+        try (FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = chan.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + ": not a similarity matrix file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported similarity matrix version " + version);
+            }
+            nrows = header.getInt();
+            int ncols = header.getInt();
+            nnz = header.getInt();
+
+            long pos = HEADER_SIZE;
+            rowItems = chan.map(FileChannel.MapMode.READ_ONLY, pos, nrows * 8L).asLongBuffer();
+            pos += nrows * 8L;
+            if (ncols < 0) {
+                // neighbors share the row index
+                neighborItems = rowItems;
+            } else {
+                neighborItems = chan.map(FileChannel.MapMode.READ_ONLY, pos, ncols * 8L).asLongBuffer();
+                pos += ncols * 8L;
+            }
+            rowOffsets = chan.map(FileChannel.MapMode.READ_ONLY, pos, (nrows + 1) * 4L).asIntBuffer();
+            pos += (nrows + 1) * 4L;
+            neighbors = chan.map(FileChannel.MapMode.READ_ONLY, pos, nnz * 4L).asIntBuffer();
+            pos += nnz * 4L;
+            similarities = chan.map(FileChannel.MapMode.READ_ONLY, pos, nnz * 4L).asFloatBuffer();
+            pos += nnz * 4L;
+            if (pos != chan.size()) {
+                throw new IOException(file + ": similarity matrix file has incorrect length");
+            }
+        }
+    }
+
+    /**
+     * Open a similarity matrix file.
+     *
+     * @param file The file, written by {@link #write(ItemItemModel, File)}.
+     * @return The model.
+     * @throws IOException if there is an error mapping the file, or it is not a valid model file.
+     */
+    public static MappedSimilarityMatrixModel open(File file) throws IOException {
+        return new MappedSimilarityMatrixModel(file);
+    }
+
+    /**
+     * Write an item-item model to a file.  Similarities are stored in single precision.
+     *
+     * @param model The model to write.
+     * @param file The file to write to.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void write(ItemItemModel model, File file) throws IOException {
+        SortedKeyIndex rows = SortedKeyIndex.fromCollection(model.getItemUniverse());
+
+        // find the neighbor universe; normally it is the same as the row universe
+        LongSet extra = new LongOpenHashSet();
+        for (long item: rows.keySet()) {
+            LongIterator iter = model.getNeighbors(item).keySet().iterator();
+            while (iter.hasNext()) {
+                long nbr = iter.nextLong();
+                if (!rows.containsKey(nbr)) {
+                    extra.add(nbr);
+                }
+            }
+        }
+        SortedKeyIndex cols = rows;
+        if (!extra.isEmpty()) {
+            LongSet all = new LongOpenHashSet(rows.keySet());
+            all.addAll(extra);
+            cols = SortedKeyIndex.fromCollection(all);
+        }
+
+        try (MatrixWriter writer = new MatrixWriter(file, rows, cols)) {
+            for (long item: rows.keySet()) {
+                writer.addRow(item, model.getNeighbors(item));
+            }
+            writer.finish();
+        }
+    }
+
+    /**
+     * Get the file backing this model.
+     * @return The model file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        LongSortedSet items = universe;
+        if (items == null) {
+            long[] keys = new long[nrows];
+            for (int i = 0; i < nrows; i++) {
+                keys[i] = rowItems.get(i);
+            }
+            items = SortedKeyIndex.wrap(keys, nrows).keySet();
+            universe = items;
+        }
+        return items;
+    }
+
+    @Override
+    protected int findRow(long item) {
+        return search(rowItems, item);
+    }
+
+    @Override
+    protected int rowOffset(int row) {
+        return rowOffsets.get(row);
+    }
+
+    @Override
+    protected int findNeighbor(long item) {
+        return search(neighborItems, item);
+    }
+
+    @Override
+    protected long getNeighborItem(int idx) {
+        return neighborItems.get(idx);
+    }
+
+    @Override
+    protected int getNeighborIndex(int pos) {
+        return neighbors.get(pos);
+    }
+
+    @Override
+    protected double getSimilarity(int pos) {
+        return similarities.get(pos);
+    }
+
+    private static int search(LongBuffer keys, long key) {
+        int lo = 0;
+        int hi = keys.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = keys.get(mid);
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mapped matrix of %d similarities for %d items in %s",
+                             nnz, nrows, file);
+    }
+
+    /**
+     * Writer that streams the rows of a similarity matrix into a model file, so the whole matrix
+     * never has to be in memory.  The neighbor indexes are written in place, and the similarities
+     * are spilled to a scratch file next to the model file and appended once all rows are written.
+     */
+    static final class MatrixWriter implements Closeable {
+        private final File file;
+        private final SortedKeyIndex rows;
+        private final SortedKeyIndex cols;
+        private final int[] offsets;
+        private final long offsetPosition;
+        private final File spillFile;
+        private final DataOutputStream output;
+        private final DataOutputStream spill;
+        private int nextRow = 0;
+        private int nnz = 0;
+        private boolean closed = false;
+
+        /**
+         * Start writing a model file.
+         * @param file The file to write.
+         * @param rows The row items; rows must be added in this order.
+         * @param cols The neighbor items; may be the same object as {@code rows}.
+         * @throws IOException if there is an error opening the file.
+         */
+        MatrixWriter(File file, SortedKeyIndex rows, SortedKeyIndex cols) throws IOException {
+            this.file = file;
+            this.rows = rows;
+            this.cols = cols;
+            offsets = new int[rows.size() + 1];
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            // the header and offsets are rewritten when the file is finished
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(rows.size());
+            output.writeInt(cols == rows ? -1 : cols.size());
+            output.writeInt(0);
+            for (int i = 0; i < rows.size(); i++) {
+                output.writeLong(rows.getKey(i));
+            }
+            if (cols != rows) {
+                for (int i = 0; i < cols.size(); i++) {
+                    output.writeLong(cols.getKey(i));
+                }
+            }
+            offsetPosition = HEADER_SIZE + rows.size() * 8L + (cols == rows ? 0 : cols.size() * 8L);
+            for (int i = 0; i < offsets.length; i++) {
+                output.writeInt(0);
+            }
+            spillFile = File.createTempFile(file.getName(), ".sims", file.getAbsoluteFile().getParentFile());
+            spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        }
+
+        /**
+         * Write the next row.
+         * @param item The row item; must be the next item in the row index.
+         * @param row The row's neighbors; every neighbor must be in the neighbor index.
+         * @throws IOException if there is an error writing the row.
+         */
+        void addRow(long item, Long2DoubleMap row) throws IOException {
+            Preconditions.checkState(nextRow < rows.size(), "all rows already written");
+            Preconditions.checkArgument(rows.getKey(nextRow) == item,
+                                        "expected row %s, got %s", rows.getKey(nextRow), item);
+            if (row.size() > Integer.MAX_VALUE / 4 - nnz) {
+                throw new IllegalArgumentException("too many similarities for a mapped model");
+            }
+            offsets[nextRow] = nnz;
+            Long2DoubleSortedArrayMap sorted = Long2DoubleSortedArrayMap.create(row);
+            for (int j = 0; j < sorted.size(); j++) {
+                long nbr = sorted.getKeyByIndex(j);
+                int idx = cols.tryGetIndex(nbr);
+                Preconditions.checkArgument(idx >= 0, "neighbor %s of %s is not a known item", nbr, item);
+                output.writeInt(idx);
+                spill.writeFloat((float) sorted.getValueByIndex(j));
+            }
+            nnz += sorted.size();
+            nextRow += 1;
+        }
+
+        /**
+         * Finish the file, once all rows have been written.
+         * @throws IOException if there is an error writing the file.
+         */
+        void finish() throws IOException {
+            Preconditions.checkState(nextRow == rows.size(), "only %s of %s rows written",
+                                     nextRow, rows.size());
+            offsets[nextRow] = nnz;
+            spill.close();
+            Files.copy(spillFile.toPath(), output);
+            output.close();
+
+            ByteBuffer buf = ByteBuffer.allocate(offsets.length * 4);
+            buf.asIntBuffer().put(offsets);
+            try (FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                chan.write((ByteBuffer) ByteBuffer.allocate(4).putInt(nnz).flip(), HEADER_SIZE - 4);
+                chan.write(buf, offsetPosition);
+            }
+            Files.delete(spillFile.toPath());
+            closed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    spill.close();
+                    output.close();
+                } finally {
+                    Files.deleteIfExists(spillFile.toPath());
+                }
+            }
+        }
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerialProxy(file);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        throw new InvalidObjectException("must use serialization proxy");
+    }
+
+    private static final class SerialProxy implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        public SerialProxy(File file) {
+            this.file = file;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return open(file);
+            } catch (IOException e) {
+                InvalidObjectException ex = new InvalidObjectException("cannot map similarity matrix " + file);
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.MinCommonUsers;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.util.ProgressLogger;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.reflect.ClassQueries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Build a {@link MappedSimilarityMatrixModel} by computing the similarity matrix one block of rows
+ * at a time and streaming the rows to the model file, so the full matrix is never held in memory.
+ * Rows are computed in full rather than from the symmetry of the similarity function.  The model
+ * file must be configured with {@link SimilarityMatrixFile}.
+ */
+public class MappedSimilarityMatrixModelProvider implements Provider<MappedSimilarityMatrixModel> {
+    private static final Logger logger = LoggerFactory.getLogger(MappedSimilarityMatrixModelProvider.class);
+    /**
+     * The number of rows computed (in parallel, if possible) before they are written.
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    private final ItemItemModelProvider rowBuilder;
+    private final ItemSimilarity itemSimilarity;
+    private final ItemItemBuildContext buildContext;
+    private final File file;
+
+    @Inject
+    public MappedSimilarityMatrixModelProvider(@Transient ItemSimilarity similarity,
+                                               @Transient ItemItemBuildContext context,
+                                               @Transient @ItemSimilarityThreshold Threshold thresh,
+                                               @Transient NeighborIterationStrategy nbrStrat,
+                                               @MinCommonUsers int minCU,
+                                               @ModelSize int size,
+                                               @SimilarityMatrixFile File file) {
+        rowBuilder = new ItemItemModelProvider(similarity, context, thresh, nbrStrat, minCU, size);
+        itemSimilarity = similarity;
+        buildContext = context;
+        this.file = file;
+    }
+
+    @Override
+    public MappedSimilarityMatrixModel get() {
+        SortedKeyIndex items = buildContext.getItemIndex();
+        int n = items.size();
+        boolean parallel = ClassQueries.isThreadSafe(itemSimilarity);
+        if (!parallel) {
+            logger.warn("similarity {} is not thread-safe, disabling parallel build", itemSimilarity);
+        }
+        logger.info("writing item-item model for {} items to {}", n, file);
+        ProgressLogger progress = ProgressLogger.create(logger)
+                                                .setCount(n)
+                                                .setLabel("mapped item-item model build")
+                                                .setWindow(50)
+                                                .start();
+        try {
+            try (MappedSimilarityMatrixModel.MatrixWriter writer =
+                         new MappedSimilarityMatrixModel.MatrixWriter(file, items, items)) {
+                for (int start = 0; start < n; start += BLOCK_SIZE) {
+                    IntStream block = IntStream.range(start, Math.min(start + BLOCK_SIZE, n));
+                    if (parallel) {
+                        block = block.parallel();
+                    }
+                    List<Long2DoubleMap> rows = block.mapToObj(i -> rowBuilder.computeRow(items.getKey(i)))
+                                                     .collect(Collectors.toList());
+                    for (int j = 0; j < rows.size(); j++) {
+                        writer.addRow(items.getKey(start + j), rows.get(j));
+                        progress.advance();
+                    }
+                }
+                writer.finish();
+            }
+            progress.finish();
+            MappedSimilarityMatrixModel model = MappedSimilarityMatrixModel.open(file);
+            logger.info("built {} in {}", model, progress.elapsedTime());
+            return model;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot write similarity matrix", e);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.*;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.knn.item.MinCommonUsers;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.similarity.VectorSimilarity;
+import org.lenskit.util.ProgressLogger;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.collections.UnlimitedLong2DoubleAccumulator;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.lenskit.util.math.Scalars;
+import org.lenskit.util.math.Vectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Build an item-item model by computing all item dot products at once as the sparse matrix
+ * product <em>X<sup>T</sup>X</em>, where <em>X</em> is the (normalized) user-item rating matrix.
+ *
+ * <p>Rather than computing each pair of items independently, this builder walks, for each row item,
+ * the rating lists of the users who rated it, and accumulates the products into a dense buffer.
+ * The columns are processed in blocks so the buffers stay in cache, and rows are computed in
+ * parallel with one buffer per thread.  The dot products are then normalized into cosine
+ * similarities, filtered by {@link MinCommonUsers} and the threshold, and truncated to the model
+ * size.</p>
+ *
+ * <p>It only supports cosine similarity over item vectors (the default item similarity), and
+ * produces the same model as {@link ItemItemModelProvider} with that similarity, up to
+ * floating-point rounding.  Pairs of items with no users in common are never considered.  To use
+ * it, bind {@link ItemItemModel} (or {@link SimilarityMatrixModel}) to this provider.</p>
+ */
+public class SparseProductItemItemModelProvider implements Provider<SimilarityMatrixModel> {
+    private static final Logger logger = LoggerFactory.getLogger(SparseProductItemItemModelProvider.class);
+    /**
+     * The number of columns in each block.  The per-thread buffers for a block take 12 bytes
+     * per column.
+     */
+    static final int BLOCK_SIZE = 4096;
+
+    private final ItemItemBuildContext buildContext;
+    private final double dampingFactor;
+    private final Threshold threshold;
+    private final int minCommonUsers;
+    private final int modelSize;
+
+    @Inject
+    public SparseProductItemItemModelProvider(@Transient ItemSimilarity similarity,
+                                              @Transient ItemItemBuildContext context,
+                                              @Transient @ItemSimilarityThreshold Threshold thresh,
+                                              @MinCommonUsers int minCU,
+                                              @ModelSize int size) {
+        dampingFactor = getDampingFactor(similarity);
+        buildContext = context;
+        threshold = thresh;
+        minCommonUsers = minCU;
+        modelSize = size;
+    }
+
+    private static double getDampingFactor(ItemSimilarity sim) {
+        if (sim instanceof ItemVectorSimilarity) {
+            VectorSimilarity vs = ((ItemVectorSimilarity) sim).getDelegate();
+            if (vs instanceof CosineVectorSimilarity) {
+                return ((CosineVectorSimilarity) vs).getDampingFactor();
+            }
+        }
+        throw new IllegalArgumentException("similarity " + sim + " is not a cosine similarity");
+    }
+
+    @Override
+    public SimilarityMatrixModel get() {
+        SortedKeyIndex items = buildContext.getItemIndex();
+        int nitems = items.size();
+        logger.info("building item-item model for {} items with sparse matrix product", nitems);
+
+        RatingMatrix matrix = new RatingMatrix(items);
+        logger.debug("transposed {} ratings from {} users", matrix.itemIndexes.length, matrix.userOffsets.length - 1);
+
+        ProgressLogger progress = ProgressLogger.create(logger)
+                                                .setCount(nitems)
+                                                .setLabel("item-item model build")
+                                                .setWindow(50)
+                                                .start();
+        ThreadLocal<RowBuffer> buffers = ThreadLocal.withInitial(RowBuffer::new);
+        Long2DoubleMap[] rows = new Long2DoubleMap[nitems];
+        IntStream.range(0, nitems)
+                 .parallel()
+                 .forEach(i -> {
+                     if (buildContext.itemVector(items.getKey(i)).size() >= minCommonUsers) {
+                         rows[i] = computeRow(matrix, i, buffers.get());
+                     }
+                     progress.advance();
+                 });
+        progress.finish();
+
+        Map<Long, Long2DoubleMap> sims = new HashMap<>();
+        for (int i = 0; i < nitems; i++) {
+            if (rows[i] != null && !rows[i].isEmpty()) {
+                sims.put(items.getKey(i), rows[i]);
+            }
+        }
+        logger.info("built model for {} items in {}", sims.size(), progress.elapsedTime());
+        return new SimilarityMatrixModel(sims);
+    }
+
+    /**
+     * Compute one row of the similarity matrix.
+     */
+    private Long2DoubleMap computeRow(RatingMatrix matrix, int row, RowBuffer buf) {
+        SortedKeyIndex items = matrix.items;
+        Long2DoubleSortedMap vec = buildContext.itemVector(items.getKey(row));
+        int nusers = vec.size();
+        int[] users = buf.users(nusers);
+        double[] values = buf.values(nusers);
+        int[] cursors = buf.cursors(nusers);
+        int k = 0;
+        for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(vec)) {
+            int u = matrix.userIndex.get(e.getLongKey());
+            users[k] = u;
+            values[k] = e.getDoubleValue();
+            cursors[k] = matrix.userOffsets[u];
+            k++;
+        }
+
+        Long2DoubleAccumulator acc = modelSize > 0
+                ? new TopNLong2DoubleAccumulator(modelSize)
+                : new UnlimitedLong2DoubleAccumulator();
+        double rowNorm = matrix.norms[row];
+        int nitems = items.size();
+        for (int start = 0; start < nitems; start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, nitems);
+            int ntouched = 0;
+            // accumulate the block's dot products; each user's ratings are sorted by item index,
+            // so each user's cursor only moves forward across blocks
+            for (int k2 = 0; k2 < nusers; k2++) {
+                int u = users[k2];
+                double x = values[k2];
+                int p = cursors[k2];
+                int uend = matrix.userOffsets[u + 1];
+                while (p < uend && matrix.itemIndexes[p] < end) {
+                    int col = matrix.itemIndexes[p] - start;
+                    if (buf.counts[col] == 0) {
+                        buf.touched[ntouched++] = col;
+                    }
+                    buf.counts[col] += 1;
+                    buf.dots[col] += x * matrix.values[p];
+                    p++;
+                }
+                cursors[k2] = p;
+            }
+
+            // normalize, filter, and clear the block
+            for (int t = 0; t < ntouched; t++) {
+                int col = buf.touched[t];
+                int j = col + start;
+                double dot = buf.dots[col];
+                int count = buf.counts[col];
+                buf.dots[col] = 0;
+                buf.counts[col] = 0;
+                if (j == row || count < minCommonUsers) {
+                    continue;
+                }
+                double denom = rowNorm * matrix.norms[j] + dampingFactor;
+                double sim = Scalars.isZero(denom) ? 0 : dot / denom;
+                if (threshold.retain(sim)) {
+                    acc.put(items.getKey(j), sim);
+                }
+            }
+        }
+
+        return acc.finishMap();
+    }
+
+    /**
+     * The normalized rating matrix in user-major compressed sparse row form, with items
+     * identified by their index.
+     */
+    private class RatingMatrix {
+        final SortedKeyIndex items;
+        final Long2IntMap userIndex;
+        final int[] userOffsets;
+        final int[] itemIndexes;
+        final double[] values;
+        final double[] norms;
+
+        RatingMatrix(SortedKeyIndex items) {
+            this.items = items;
+            int nitems = items.size();
+            norms = new double[nitems];
+
+            // count each user's ratings
+            userIndex = new Long2IntOpenHashMap();
+            userIndex.defaultReturnValue(-1);
+            IntArrayList counts = new IntArrayList();
+            for (int i = 0; i < nitems; i++) {
+                Long2DoubleSortedMap vec = buildContext.itemVector(items.getKey(i));
+                norms[i] = Vectors.euclideanNorm(vec);
+                LongIterator iter = vec.keySet().iterator();
+                while (iter.hasNext()) {
+                    long user = iter.nextLong();
+                    int u = userIndex.get(user);
+                    if (u < 0) {
+                        u = userIndex.size();
+                        userIndex.put(user, u);
+                        counts.add(0);
+                    }
+                    counts.set(u, counts.getInt(u) + 1);
+                }
+            }
+
+            int nusers = userIndex.size();
+            userOffsets = new int[nusers + 1];
+            for (int u = 0; u < nusers; u++) {
+                userOffsets[u + 1] = userOffsets[u] + counts.getInt(u);
+            }
+            itemIndexes = new int[userOffsets[nusers]];
+            values = new double[userOffsets[nusers]];
+
+            // fill in item order, so each user's ratings are sorted by item index
+            int[] fill = IntArrays.copy(userOffsets, 0, nusers);
+            for (int i = 0; i < nitems; i++) {
+                Long2DoubleSortedMap vec = buildContext.itemVector(items.getKey(i));
+                for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(vec)) {
+                    int u = userIndex.get(e.getLongKey());
+                    int p = fill[u]++;
+                    itemIndexes[p] = i;
+                    values[p] = e.getDoubleValue();
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-thread working space for computing rows.
+     */
+    private static class RowBuffer {
+        final double[] dots = new double[BLOCK_SIZE];
+        final int[] counts = new int[BLOCK_SIZE];
+        final int[] touched = new int[BLOCK_SIZE];
+        private int[] users = new int[0];
+        private double[] values = new double[0];
+        private int[] cursors = new int[0];
+
+        int[] users(int n) {
+            if (users.length < n) {
+                users = new int[n];
+            }
+            return users;
+        }
+
+        double[] values(int n) {
+            if (values.length < n) {
+                values = new double[n];
+            }
+            return values;
+        }
+
+        int[] cursors(int n) {
+            if (cursors.length < n) {
+                cursors = new int[n];
+            }
+            return cursors;
+        }
+    }
+}
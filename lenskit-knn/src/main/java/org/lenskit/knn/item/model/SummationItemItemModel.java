@@ -0,0 +1,502 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.UpdatableModel;
+import org.lenskit.inject.Shareable;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.collections.UnlimitedLong2DoubleAccumulator;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.math.Vectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Item-item model that retains the sufficient statistics behind its similarities so that individual ratings
+ * can be forgotten without rebuilding the model.
+ *
+ * <p>For each item, the model keeps the number of users who rated it and the sum of squares of its (normalized)
+ * ratings; for each co-rated pair of items, it keeps the co-rating count, the sums and sums of squares of both
+ * items' ratings over the co-rating users, and their dot product.  These are enough to compute both cosine
+ * similarity and Pearson correlation (see {@link SummationSimilarity}).  Forgetting a rating subtracts the user's
+ * contribution to these sums and recomputes the neighborhoods of the items it touched, so the cost of
+ * {@link #forget(long, long)} and {@link #forgetUser(long)} scales with the size of the user's profile times
+ * the number of co-rated items, not with the size of the catalog.  New ratings can be absorbed the same way with
+ * {@link #update(RatingUpdate)}.</p>
+ *
+ * <p>The neighborhoods match those computed by {@link ItemItemModelProvider} over the remaining data, up to
+ * floating-point rounding; {@link #toSimilarityMatrix()} produces an equivalent {@link SimilarityMatrixModel}.
+ * Since the model re-normalizes a user's ratings when one of them is forgotten, it assumes the user vector
+ * normalizer depends only on the user's own ratings.</p>
+ *
+ * <p>Reads of the model never block; updates are serialized with each other.</p>
+ *
+ * @see SummationItemItemModelProvider
+ */
+@DefaultProvider(SummationItemItemModelProvider.class)
+@Shareable
+@ThreadSafe
+public class SummationItemItemModel implements ItemItemModel, UpdatableModel, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(SummationItemItemModel.class);
+
+    private final UserVectorNormalizer normalizer;
+    private final SummationSimilarity similarity;
+    private final Threshold threshold;
+    private final int minCommonUsers;
+    private final int modelSize;
+
+    private final Long2ObjectMap<Long2DoubleSortedMap> userRatings;
+    private final Long2ObjectMap<ItemStatistics> itemStatistics;
+    private final Map<Long, Long2DoubleMap> neighborhoods;
+    private transient volatile LongSortedSet itemUniverse;
+
+    SummationItemItemModel(UserVectorNormalizer norm, SummationSimilarity sim, Threshold thresh,
+                           int minCU, int size) {
+        normalizer = norm;
+        similarity = sim;
+        threshold = thresh;
+        minCommonUsers = minCU;
+        modelSize = size;
+        userRatings = new Long2ObjectOpenHashMap<>();
+        itemStatistics = new Long2ObjectOpenHashMap<>();
+        neighborhoods = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        LongSortedSet items = itemUniverse;
+        if (items == null) {
+            items = LongUtils.packedSet(neighborhoods.keySet());
+            itemUniverse = items;
+        }
+        return items;
+    }
+
+    @Override
+    @Nonnull
+    public Long2DoubleMap getNeighbors(long item) {
+        Long2DoubleMap nbrs = neighborhoods.get(item);
+        return nbrs != null ? nbrs : Long2DoubleMaps.EMPTY_MAP;
+    }
+
+    /**
+     * Forget a single rating.  The user's remaining ratings are re-normalized and the neighborhoods of every item
+     * the user rated are recomputed.
+     *
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the model contained the rating.
+     */
+    public synchronized boolean forget(long user, long item) {
+        Long2DoubleSortedMap ratings = userRatings.get(user);
+        if (ratings == null || !ratings.containsKey(item)) {
+            return false;
+        }
+
+        LongSet candidates = collectNeighbors(ratings.keySet());
+        removeContribution(user, ratings);
+        Long2DoubleMap remaining = new Long2DoubleOpenHashMap(ratings);
+        remaining.remove(item);
+        if (remaining.isEmpty()) {
+            userRatings.remove(user);
+        } else {
+            Long2DoubleSortedMap frozen = LongUtils.frozenMap(remaining);
+            userRatings.put(user, frozen);
+            addContribution(user, frozen);
+        }
+        refreshNeighborhoods(ratings.keySet(), candidates);
+        return true;
+    }
+
+    /**
+     * Forget all of a user's ratings.
+     *
+     * @param user The user ID.
+     * @return {@code true} if the model contained ratings for the user.
+     */
+    public synchronized boolean forgetUser(long user) {
+        Long2DoubleSortedMap ratings = userRatings.remove(user);
+        if (ratings == null) {
+            return false;
+        }
+
+        LongSet candidates = collectNeighbors(ratings.keySet());
+        removeContribution(user, ratings);
+        refreshNeighborhoods(ratings.keySet(), candidates);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Each affected user's contribution is replaced once, and neighborhoods are refreshed once for the whole batch.
+     * Adding a rating for an item the user has already rated replaces the old rating.
+     */
+    @Override
+    public synchronized void update(RatingUpdate update) {
+        if (update.isEmpty()) {
+            return;
+        }
+
+        Long2ObjectMap<Long2DoubleMap> vectors = update.updateUserVectors(userRatings::get);
+        LongSet touched = new LongOpenHashSet();
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: Long2ObjectMaps.fastIterable(vectors)) {
+            Long2DoubleSortedMap old = userRatings.get(e.getLongKey());
+            if (old != null) {
+                touched.addAll(old.keySet());
+            }
+            touched.addAll(e.getValue().keySet());
+        }
+
+        LongSet candidates = collectNeighbors(touched);
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: Long2ObjectMaps.fastIterable(vectors)) {
+            long user = e.getLongKey();
+            Long2DoubleSortedMap old = userRatings.remove(user);
+            if (old != null) {
+                removeContribution(user, old);
+            }
+            if (!e.getValue().isEmpty()) {
+                Long2DoubleSortedMap frozen = LongUtils.frozenMap(e.getValue());
+                userRatings.put(user, frozen);
+                addContribution(user, frozen);
+            }
+        }
+        refreshNeighborhoods(touched, candidates);
+    }
+
+    /**
+     * Get the number of users whose ratings contribute to this model.
+     * @return The number of users.
+     */
+    public synchronized int getUserCount() {
+        return userRatings.size();
+    }
+
+    /**
+     * Create a similarity matrix model with the current neighborhoods.
+     * @return A similarity matrix model containing the same neighborhoods as this model.
+     */
+    public synchronized SimilarityMatrixModel toSimilarityMatrix() {
+        return new SimilarityMatrixModel(new HashMap<>(neighborhoods));
+    }
+
+    /**
+     * Add a user's ratings to the summary statistics.  Used while building the model; the neighborhoods are
+     * not updated until {@link #computeNeighborhoods()} is called.
+     *
+     * @param user The user ID.
+     * @param ratings The user's (unnormalized) ratings.
+     */
+    synchronized void addUser(long user, Long2DoubleMap ratings) {
+        if (ratings.isEmpty()) {
+            return;
+        }
+        Long2DoubleSortedMap frozen = LongUtils.frozenMap(ratings);
+        Long2DoubleSortedMap old = userRatings.put(user, frozen);
+        if (old != null) {
+            throw new IllegalStateException("duplicate user " + user);
+        }
+        addContribution(user, frozen);
+    }
+
+    /**
+     * Compute the neighborhoods of all items from the summary statistics.
+     */
+    synchronized void computeNeighborhoods() {
+        neighborhoods.clear();
+        for (Long2ObjectMap.Entry<ItemStatistics> e: Long2ObjectMaps.fastIterable(itemStatistics)) {
+            Long2DoubleMap row = computeRow(e.getLongKey(), e.getValue());
+            if (!row.isEmpty()) {
+                neighborhoods.put(e.getLongKey(), row);
+            }
+        }
+        itemUniverse = null;
+        logger.debug("computed {} neighborhoods from statistics for {} items",
+                     neighborhoods.size(), itemStatistics.size());
+    }
+
+    /**
+     * Get the items that currently share a co-rating user with any of a set of items.
+     */
+    private LongSet collectNeighbors(LongSet items) {
+        LongSet candidates = new LongOpenHashSet();
+        LongIterator iter = items.iterator();
+        while (iter.hasNext()) {
+            ItemStatistics stats = itemStatistics.get(iter.nextLong());
+            if (stats != null) {
+                candidates.addAll(stats.pairs.keySet());
+            }
+        }
+        return candidates;
+    }
+
+    private Long2DoubleSortedArrayMap normalize(long user, Long2DoubleSortedMap ratings) {
+        Long2DoubleMap normed = normalizer.makeTransformation(user, ratings).apply(ratings);
+        assert normed != null;
+        return Long2DoubleSortedArrayMap.create(normed);
+    }
+
+    private void addContribution(long user, Long2DoubleSortedMap ratings) {
+        Long2DoubleSortedArrayMap normed = normalize(user, ratings);
+        int n = normed.size();
+        ItemStatistics[] stats = new ItemStatistics[n];
+        for (int i = 0; i < n; i++) {
+            long item = normed.getKeyByIndex(i);
+            double v = normed.getValueByIndex(i);
+            ItemStatistics is = itemStatistics.get(item);
+            if (is == null) {
+                is = new ItemStatistics();
+                itemStatistics.put(item, is);
+            }
+            is.count += 1;
+            is.sumOfSquares += v * v;
+            stats[i] = is;
+        }
+
+        // keys are sorted, so the first item of each pair has the lower ID
+        for (int i = 0; i < n; i++) {
+            long item1 = normed.getKeyByIndex(i);
+            double v1 = normed.getValueByIndex(i);
+            for (int j = i + 1; j < n; j++) {
+                long item2 = normed.getKeyByIndex(j);
+                PairStatistics ps = stats[i].pairs.get(item2);
+                if (ps == null) {
+                    ps = new PairStatistics();
+                    stats[i].pairs.put(item2, ps);
+                    stats[j].pairs.put(item1, ps);
+                }
+                ps.add(v1, normed.getValueByIndex(j));
+            }
+        }
+    }
+
+    private void removeContribution(long user, Long2DoubleSortedMap ratings) {
+        Long2DoubleSortedArrayMap normed = normalize(user, ratings);
+        int n = normed.size();
+        ItemStatistics[] stats = new ItemStatistics[n];
+        for (int i = 0; i < n; i++) {
+            stats[i] = itemStatistics.get(normed.getKeyByIndex(i));
+            assert stats[i] != null;
+        }
+
+        for (int i = 0; i < n; i++) {
+            long item1 = normed.getKeyByIndex(i);
+            double v1 = normed.getValueByIndex(i);
+            for (int j = i + 1; j < n; j++) {
+                long item2 = normed.getKeyByIndex(j);
+                PairStatistics ps = stats[i].pairs.get(item2);
+                assert ps != null;
+                ps.remove(v1, normed.getValueByIndex(j));
+                if (ps.count == 0) {
+                    stats[i].pairs.remove(item2);
+                    stats[j].pairs.remove(item1);
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            double v = normed.getValueByIndex(i);
+            ItemStatistics is = stats[i];
+            is.count -= 1;
+            is.sumOfSquares -= v * v;
+            if (is.count == 0) {
+                assert is.pairs.isEmpty();
+                itemStatistics.remove(normed.getKeyByIndex(i));
+            }
+        }
+    }
+
+    /**
+     * Recompute neighborhoods after the statistics of some items have changed.
+     *
+     * @param touched The items whose statistics changed; their neighborhoods are recomputed.
+     * @param candidates Items that shared co-raters with a touched item before the change; their neighborhoods
+     *                   are recomputed only if the change can affect them.
+     */
+    private void refreshNeighborhoods(LongSet touched, LongSet candidates) {
+        int nrefreshed = 0;
+        LongIterator iter = touched.iterator();
+        while (iter.hasNext()) {
+            updateRow(iter.nextLong());
+            nrefreshed += 1;
+        }
+
+        iter = candidates.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            if (!touched.contains(item) && isAffected(item, touched)) {
+                updateRow(item);
+                nrefreshed += 1;
+            }
+        }
+
+        itemUniverse = null;
+        logger.debug("refreshed {} neighborhoods for {} modified items", nrefreshed, touched.size());
+    }
+
+    /**
+     * Query whether an item's neighborhood can be affected by changes to a set of items.
+     */
+    private boolean isAffected(long item, LongSet touched) {
+        Long2DoubleMap row = getNeighbors(item);
+        ItemStatistics stats = itemStatistics.get(item);
+        double min = Double.POSITIVE_INFINITY;
+        for (Long2DoubleMap.Entry e: Vectors.fastEntries(row)) {
+            if (touched.contains(e.getLongKey())) {
+                // the existing similarity may have changed
+                return true;
+            }
+            min = Math.min(min, e.getDoubleValue());
+        }
+        if (stats == null) {
+            return false;
+        }
+
+        LongIterator iter = touched.iterator();
+        while (iter.hasNext()) {
+            long other = iter.nextLong();
+            double sim = pairSimilarity(stats, other);
+            if (!Double.isNaN(sim)) {
+                // a new neighbor may enter the neighborhood
+                if (modelSize <= 0 || row.size() < modelSize || sim > min) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void updateRow(long item) {
+        ItemStatistics stats = itemStatistics.get(item);
+        Long2DoubleMap row = stats != null ? computeRow(item, stats) : Long2DoubleMaps.EMPTY_MAP;
+        if (row.isEmpty()) {
+            neighborhoods.remove(item);
+        } else {
+            neighborhoods.put(item, row);
+        }
+    }
+
+    private Long2DoubleMap computeRow(long item, ItemStatistics stats) {
+        if (stats.count < minCommonUsers) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        Long2DoubleAccumulator acc;
+        if (modelSize <= 0) {
+            acc = new UnlimitedLong2DoubleAccumulator();
+        } else {
+            acc = new TopNLong2DoubleAccumulator(modelSize);
+        }
+        LongIterator iter = stats.pairs.keySet().iterator();
+        while (iter.hasNext()) {
+            long other = iter.nextLong();
+            double sim = pairSimilarity(stats, other);
+            if (!Double.isNaN(sim)) {
+                acc.put(other, sim);
+            }
+        }
+        return LongUtils.frozenMap(acc.finishMap());
+    }
+
+    /**
+     * Compute the similarity between an item and another item.
+     *
+     * @return The similarity, or {@link Double#NaN} if the other item is not a retained neighbor.
+     */
+    private double pairSimilarity(ItemStatistics stats, long other) {
+        PairStatistics pair = stats.pairs.get(other);
+        ItemStatistics os = itemStatistics.get(other);
+        if (pair == null || os == null || stats.count < minCommonUsers
+                || os.count < minCommonUsers || pair.count < minCommonUsers) {
+            return Double.NaN;
+        }
+        double sim = similarity.similarity(stats, os, pair);
+        return threshold.retain(sim) ? sim : Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("summation model of %d neighborhoods for %d users",
+                             neighborhoods.size(), userRatings.size());
+    }
+
+    /**
+     * Summary statistics for a single item.
+     */
+    static final class ItemStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int count;
+        double sumOfSquares;
+        final Long2ObjectMap<PairStatistics> pairs = new Long2ObjectOpenHashMap<>();
+    }
+
+    /**
+     * Summary statistics for a pair of items over their co-rating users.  Fields suffixed with 1 refer to the
+     * item with the lower ID.
+     */
+    static final class PairStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int count;
+        double sum1;
+        double sum2;
+        double sumOfSquares1;
+        double sumOfSquares2;
+        double dotProduct;
+
+        void add(double v1, double v2) {
+            count += 1;
+            sum1 += v1;
+            sum2 += v2;
+            sumOfSquares1 += v1 * v1;
+            sumOfSquares2 += v2 * v2;
+            dotProduct += v1 * v2;
+        }
+
+        void remove(double v1, double v2) {
+            count -= 1;
+            sum1 -= v1;
+            sum2 -= v2;
+            sumOfSquares1 -= v1 * v1;
+            sumOfSquares2 -= v2 * v2;
+            dotProduct -= v1 * v2;
+        }
+    }
+}
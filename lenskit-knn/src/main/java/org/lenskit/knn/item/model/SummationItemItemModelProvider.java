@@ -0,0 +1,101 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.MinCommonUsers;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.ProgressLogger;
+import org.lenskit.util.io.ObjectStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Build a {@link SummationItemItemModel} from rating data.  It uses the same configuration as
+ * {@link ItemItemModelProvider}, but requires the item similarity to be a cosine similarity or Pearson
+ * correlation over item vectors, since the model computes similarities from summary statistics.
+ *
+ * <p>To use it in place of the default model, bind {@link ItemItemModel} to {@link SummationItemItemModel}.</p>
+ */
+public class SummationItemItemModelProvider implements Provider<SummationItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(SummationItemItemModelProvider.class);
+
+    private final RatingVectorPDAO rvDAO;
+    private final UserVectorNormalizer normalizer;
+    private final ItemSimilarity itemSimilarity;
+    private final Threshold threshold;
+    private final int minCommonUsers;
+    private final int modelSize;
+
+    @Inject
+    public SummationItemItemModelProvider(@Transient RatingVectorPDAO rvd,
+                                          UserVectorNormalizer norm,
+                                          @Transient ItemSimilarity similarity,
+                                          @ItemSimilarityThreshold Threshold thresh,
+                                          @MinCommonUsers int minCU,
+                                          @ModelSize int size) {
+        rvDAO = rvd;
+        normalizer = norm;
+        itemSimilarity = similarity;
+        threshold = thresh;
+        minCommonUsers = minCU;
+        modelSize = size;
+    }
+
+    @Override
+    public SummationItemItemModel get() {
+        SummationSimilarity sim = SummationSimilarity.fromItemSimilarity(itemSimilarity);
+        logger.info("building summation item-item model with similarity {}", sim);
+        logger.debug("using normalizer {}", normalizer);
+
+        SummationItemItemModel model = new SummationItemItemModel(normalizer, sim, threshold,
+                                                                  minCommonUsers, modelSize);
+        ProgressLogger progress = ProgressLogger.create(logger)
+                                                .setLabel("accumulating item statistics")
+                                                .setWindow(50)
+                                                .start();
+        try (ObjectStream<IdBox<Long2DoubleMap>> users = rvDAO.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user: users) {
+                model.addUser(user.getId(), user.getValue());
+                progress.advance();
+            }
+        }
+        progress.finish();
+
+        model.computeNeighborhoods();
+        logger.info("built {} in {}", model, progress.elapsedTime());
+        return model;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.similarity.PearsonCorrelation;
+import org.lenskit.similarity.VectorSimilarity;
+
+import java.io.Serializable;
+
+import static java.lang.Math.sqrt;
+
+/**
+ * Item similarity function computed from summary statistics rather than item vectors.  Only similarity functions
+ * whose values are fully determined by per-item and per-pair sums can be expressed this way.
+ *
+ * @see SummationItemItemModel
+ */
+abstract class SummationSimilarity implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Relative tolerance below which an accumulated sum is treated as zero.  Sums maintained by subtraction
+     * accumulate rounding error, so values that would be exactly zero after a retrain are typically tiny instead.
+     */
+    static final double ZERO_TOLERANCE = 1.0e-9;
+
+    /**
+     * Compute the similarity between two items.
+     *
+     * @param s1   The statistics for the first item.
+     * @param s2   The statistics for the second item.
+     * @param pair The statistics for the pair of items.
+     * @return The similarity.
+     */
+    abstract double similarity(SummationItemItemModel.ItemStatistics s1,
+                               SummationItemItemModel.ItemStatistics s2,
+                               SummationItemItemModel.PairStatistics pair);
+
+    /**
+     * Get the summation form of an item similarity function.
+     *
+     * @param sim The item similarity.
+     * @return The summation form of the similarity.
+     * @throws IllegalArgumentException if the similarity cannot be computed from summary statistics.
+     */
+    static SummationSimilarity fromItemSimilarity(ItemSimilarity sim) {
+        if (sim instanceof ItemVectorSimilarity) {
+            VectorSimilarity vs = ((ItemVectorSimilarity) sim).getDelegate();
+            if (vs instanceof CosineVectorSimilarity) {
+                return new Cosine(((CosineVectorSimilarity) vs).getDampingFactor());
+            } else if (vs instanceof PearsonCorrelation) {
+                return new Pearson(((PearsonCorrelation) vs).getShrinkage());
+            }
+        }
+        throw new IllegalArgumentException("similarity " + sim + " cannot be computed from summary statistics");
+    }
+
+    /**
+     * Clean rounding noise out of a sum.
+     * @param value The sum.
+     * @param scale The magnitude the sum should be compared against.
+     * @return The value, or 0 if it is indistinguishable from 0 at the given scale.
+     */
+    static double clean(double value, double scale) {
+        if (Math.abs(value) <= ZERO_TOLERANCE * scale) {
+            return 0;
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Summation form of {@link CosineVectorSimilarity}.
+     */
+    static class Cosine extends SummationSimilarity {
+        private static final long serialVersionUID = 1L;
+        private final double dampingFactor;
+
+        Cosine(double damping) {
+            dampingFactor = damping;
+        }
+
+        @Override
+        double similarity(SummationItemItemModel.ItemStatistics s1,
+                          SummationItemItemModel.ItemStatistics s2,
+                          SummationItemItemModel.PairStatistics pair) {
+            double ss1 = Math.max(s1.sumOfSquares, 0);
+            double ss2 = Math.max(s2.sumOfSquares, 0);
+            double norms = sqrt(ss1) * sqrt(ss2);
+            double dot = clean(pair.dotProduct, norms);
+            double denom = norms + dampingFactor;
+            if (dot == 0 || denom == 0) {
+                return 0;
+            } else {
+                return dot / denom;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cosine[d=%s]", dampingFactor);
+        }
+    }
+
+    /**
+     * Summation form of {@link PearsonCorrelation}.  Means and variances are computed over co-rating users only,
+     * using the identity {@code Σ(x-μ)(y-ν) = Σxy - (Σx)(Σy)/n}.
+     */
+    static class Pearson extends SummationSimilarity {
+        private static final long serialVersionUID = 1L;
+        private final double shrinkage;
+
+        Pearson(double s) {
+            shrinkage = s;
+        }
+
+        @Override
+        double similarity(SummationItemItemModel.ItemStatistics s1,
+                          SummationItemItemModel.ItemStatistics s2,
+                          SummationItemItemModel.PairStatistics pair) {
+            int n = pair.count;
+            if (n == 0) {
+                return 0;
+            }
+            double var1 = clean(pair.sumOfSquares1 - pair.sum1 * pair.sum1 / n, pair.sumOfSquares1);
+            double var2 = clean(pair.sumOfSquares2 - pair.sum2 * pair.sum2 / n, pair.sumOfSquares2);
+            double dot = clean(pair.dotProduct - pair.sum1 * pair.sum2 / n,
+                               sqrt(Math.abs(pair.sumOfSquares1 * pair.sumOfSquares2)));
+            return dot / (sqrt(Math.max(var1, 0) * Math.max(var2, 0)) + shrinkage);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pearson[d=%s]", shrinkage);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.data.ratings.Preference;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.UpdatableModel;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.ScoreNormalizer;
+import org.lenskit.knn.SimilarityNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * User snapshot that can be updated with rating insertions and deletions.  Each update re-normalizes only the
+ * affected users and rebuilds only the affected item-user sets, then publishes a new immutable snapshot state that
+ * shares the unchanged users and items with the previous one.  Readers never block, and see either the old or the
+ * new state in its entirety (see {@link #getCurrentSnapshot()}).
+ *
+ * Updates are serialized.  To apply many changes with a single publication, use {@link #updateUsers(Long2ObjectMap)}
+ * or {@link #removeRatings(Iterable)}.
+ * Normalizers that depend on data other than the user's own ratings (e.g. a precomputed bias model) are not
+ * refreshed by updates.
+ *
+ * To use it, bind {@link UserSnapshot} to this class.
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+@DefaultProvider(IncrementalUserSnapshot.Builder.class)
+public class IncrementalUserSnapshot extends UserSnapshot implements UpdatableModel {
+    private static final long serialVersionUID = 1L;
+
+    private final UserVectorNormalizer scoreNormalizer;
+    private final UserVectorNormalizer similarityNormalizer;
+    private final Long2ObjectMap<Long2DoubleMap> rawVectors;
+    private volatile UserSnapshot current;
+
+    /**
+     * Construct an incremental user snapshot.
+     * @param vectors The raw user rating vectors.
+     * @param scoreNorm The normalizer for score vectors.
+     * @param simNorm The normalizer for similarity vectors.
+     */
+    public IncrementalUserSnapshot(Long2ObjectMap<Long2DoubleMap> vectors,
+                                   UserVectorNormalizer scoreNorm,
+                                   UserVectorNormalizer simNorm) {
+        scoreNormalizer = scoreNorm;
+        similarityNormalizer = simNorm;
+        rawVectors = new Long2ObjectOpenHashMap<>(vectors.size());
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: vectors.long2ObjectEntrySet()) {
+            if (!e.getValue().isEmpty()) {
+                rawVectors.put(e.getLongKey(), LongUtils.frozenMap(e.getValue()));
+            }
+        }
+        current = create(rawVectors, scoreNormalizer, similarityNormalizer);
+    }
+
+    @Override
+    public Long2DoubleMap getUserVector(long user) {
+        return current.getUserVector(user);
+    }
+
+    @Override
+    public Long2DoubleMap getNormalizedUserVector(long user) {
+        return current.getNormalizedUserVector(user);
+    }
+
+    @Override
+    public LongSet getItemUsers(long item) {
+        return current.getItemUsers(item);
+    }
+
+    @Override
+    public UserSnapshot getCurrentSnapshot() {
+        return current;
+    }
+
+    /**
+     * Get a user's raw rating vector.
+     * @param user The user ID.
+     * @return The user's ratings (empty if the user is unknown).
+     */
+    public synchronized Long2DoubleMap getRawUserVector(long user) {
+        Long2DoubleMap vec = rawVectors.get(user);
+        return vec != null ? vec : Long2DoubleMaps.EMPTY_MAP;
+    }
+
+    /**
+     * Add or replace a rating.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @param value The rating value.
+     */
+    public synchronized void addRating(long user, long item, double value) {
+        Long2DoubleMap vec = new Long2DoubleOpenHashMap(getRawUserVector(user));
+        vec.put(item, value);
+        updateUsers(Long2ObjectMaps.singleton(user, vec));
+    }
+
+    /**
+     * Remove a rating.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the user had rated the item.
+     */
+    public synchronized boolean removeRating(long user, long item) {
+        Long2DoubleMap old = getRawUserVector(user);
+        if (!old.containsKey(item)) {
+            return false;
+        }
+        Long2DoubleMap vec = new Long2DoubleOpenHashMap(old);
+        vec.remove(item);
+        updateUsers(Long2ObjectMaps.singleton(user, vec));
+        return true;
+    }
+
+    /**
+     * Remove several ratings and publish the result as a single update.  The ratings are grouped by user, so each
+     * affected user is re-normalized once.
+     *
+     * @param prefs The ratings to remove; only their user and item IDs are used.
+     * @return The number of ratings that were present and removed.
+     */
+    public synchronized int removeRatings(Iterable<? extends Preference> prefs) {
+        Long2ObjectMap<Long2DoubleMap> vectors = new Long2ObjectOpenHashMap<>();
+        int removed = 0;
+        for (Preference p: prefs) {
+            long user = p.getUserId();
+            Long2DoubleMap vec = vectors.get(user);
+            if (vec == null) {
+                Long2DoubleMap old = getRawUserVector(user);
+                if (!old.containsKey(p.getItemId())) {
+                    continue;
+                }
+                vec = new Long2DoubleOpenHashMap(old);
+                vectors.put(user, vec);
+            }
+            if (vec.containsKey(p.getItemId())) {
+                vec.remove(p.getItemId());
+                removed += 1;
+            }
+        }
+        updateUsers(vectors);
+        return removed;
+    }
+
+    /**
+     * Remove all of a user's ratings.
+     * @param user The user ID.
+     * @return {@code true} if the user had any ratings.
+     */
+    public synchronized boolean removeUser(long user) {
+        if (!rawVectors.containsKey(user)) {
+            return false;
+        }
+        updateUsers(Long2ObjectMaps.singleton(user, Long2DoubleMaps.EMPTY_MAP));
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The changes are published as a single update.
+     */
+    @Override
+    public synchronized void update(RatingUpdate update) {
+        updateUsers(update.updateUserVectors(this::getRawUserVector));
+    }
+
+    /**
+     * Replace the rating vectors of several users and publish the result as a single update.
+     * @param vectors The users' new raw rating vectors; an empty vector removes the user.
+     */
+    public synchronized void updateUsers(Long2ObjectMap<Long2DoubleMap> vectors) {
+        if (vectors.isEmpty()) {
+            return;
+        }
+        Long2ObjectMap<Long2DoubleMap> oldVectors = new Long2ObjectOpenHashMap<>(vectors.size());
+        Long2ObjectMap<Long2DoubleMap> newVectors = new Long2ObjectOpenHashMap<>(vectors.size());
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: vectors.long2ObjectEntrySet()) {
+            long user = e.getLongKey();
+            Long2DoubleMap old = rawVectors.get(user);
+            if (old == null && e.getValue().isEmpty()) {
+                continue;
+            }
+            if (old != null) {
+                oldVectors.put(user, old);
+            }
+            newVectors.put(user, LongUtils.frozenMap(e.getValue()));
+        }
+
+        current = current.withUsers(oldVectors, newVectors, scoreNormalizer, similarityNormalizer);
+
+        for (Long2ObjectMap.Entry<Long2DoubleMap> e: newVectors.long2ObjectEntrySet()) {
+            if (e.getValue().isEmpty()) {
+                rawVectors.remove(e.getLongKey());
+            } else {
+                rawVectors.put(e.getLongKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Build an incremental user snapshot from the rating data.
+     */
+    public static class Builder implements Provider<IncrementalUserSnapshot> {
+        private final RatingVectorPDAO rvDAO;
+        private final UserVectorNormalizer scoreNormalizer;
+        private final UserVectorNormalizer similarityNormalizer;
+
+        @Inject
+        public Builder(@Transient RatingVectorPDAO rvd,
+                       @ScoreNormalizer UserVectorNormalizer scoreNorm,
+                       @SimilarityNormalizer UserVectorNormalizer simNorm) {
+            rvDAO = rvd;
+            scoreNormalizer = scoreNorm;
+            similarityNormalizer = simNorm;
+        }
+
+        @Override
+        public IncrementalUserSnapshot get() {
+            Long2ObjectMap<Long2DoubleMap> vectors = new Long2ObjectOpenHashMap<>();
+            try (ObjectStream<IdBox<Long2DoubleMap>> users = rvDAO.streamUsers()) {
+                for (IdBox<Long2DoubleMap> user : users) {
+                    vectors.put(user.getId(), user.getValue());
+                }
+            }
+            return new IncrementalUserSnapshot(vectors, scoreNormalizer, similarityNormalizer);
+        }
+    }
+}
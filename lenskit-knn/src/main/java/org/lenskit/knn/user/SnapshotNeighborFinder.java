@@ -77,6 +77,9 @@ public class SnapshotNeighborFinder implements NeighborFinder {
                                                           .apply(urs);
         assert normed != null;
 
+        // pin the current state so concurrent updates do not change the data under us
+        final UserSnapshot snap = snapshot.getCurrentSnapshot();
+
         LongCollection qset = items;
         if (normed.size() < qset.size()) {
             qset = normed.keySet();
@@ -84,7 +87,7 @@ public class SnapshotNeighborFinder implements NeighborFinder {
         final LongSet candidates = new LongOpenHashSet();
         for (LongIterator iter = qset.iterator(); iter.hasNext();) {
             final long item = iter.nextLong();
-            LongSet users = snapshot.getItemUsers(item);
+            LongSet users = snap.getItemUsers(item);
             if (users != null) {
                 candidates.addAll(users);
             }
@@ -94,7 +97,7 @@ public class SnapshotNeighborFinder implements NeighborFinder {
         return new Iterable<Neighbor>() {
             @Override
             public Iterator<Neighbor> iterator() {
-                return new NeighborIterator(user, normed, candidates);
+                return new NeighborIterator(snap, user, normed, candidates);
             }
         };
     }
@@ -111,11 +114,13 @@ public class SnapshotNeighborFinder implements NeighborFinder {
     }
 
     private class NeighborIterator extends AbstractIterator<Neighbor> {
+        private final UserSnapshot snap;
         private final long user;
         private final Long2DoubleMap userVector;
         private final LongIterator neighborIter;
 
-        NeighborIterator(long uid, Long2DoubleMap uvec, LongSet nbrs) {
+        NeighborIterator(UserSnapshot snap, long uid, Long2DoubleMap uvec, LongSet nbrs) {
+            this.snap = snap;
             user = uid;
             userVector = uvec;
             neighborIter = nbrs.iterator();
@@ -125,10 +130,10 @@ public class SnapshotNeighborFinder implements NeighborFinder {
         protected Neighbor computeNext() {
             while (neighborIter.hasNext()) {
                 final long neighbor = neighborIter.nextLong();
-                Long2DoubleMap vector = snapshot.getNormalizedUserVector(neighbor);
+                Long2DoubleMap vector = snap.getNormalizedUserVector(neighbor);
                 double sim = similarity.similarity(user, userVector, neighbor, vector);
                 if (acceptSimilarity(sim)) {
-                    return new Neighbor(neighbor, snapshot.getUserVector(neighbor), sim);
+                    return new Neighbor(neighbor, snap.getUserVector(neighbor), sim);
                 }
 
             }
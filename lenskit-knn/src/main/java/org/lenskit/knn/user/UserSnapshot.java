@@ -78,6 +78,14 @@ public class UserSnapshot implements Serializable {
         itemUserSets = iuSets;
     }
 
+    /**
+     * Construct an empty user snapshot, for subclasses that manage their own state.
+     */
+    protected UserSnapshot() {
+        this(SortedKeyIndex.empty(), ImmutableList.<Long2DoubleMap>of(), ImmutableList.<Long2DoubleMap>of(),
+             new Long2ObjectOpenHashMap<LongSortedSet>());
+    }
+
     /**
      * Get a user vector normalized for score computations.
      * @param user The user ID.
@@ -104,6 +112,255 @@ public class UserSnapshot implements Serializable {
         return itemUserSets.get(item);
     }
 
+    /**
+     * Get an immutable view of the snapshot's current state.  Snapshots that can be updated in place return the
+     * state as of the call, so that readers see a consistent set of users and vectors across several lookups.
+     *
+     * @return The current snapshot state (this snapshot, for an ordinary snapshot).
+     */
+    public UserSnapshot getCurrentSnapshot() {
+        return this;
+    }
+
+    /**
+     * Create a user snapshot from raw user rating vectors.
+     * @param vectors The raw user rating vectors.
+     * @param scoreNormalizer The normalizer for score vectors.
+     * @param similarityNormalizer The normalizer for similarity vectors.
+     * @return The user snapshot.
+     */
+    static UserSnapshot create(Long2ObjectMap<Long2DoubleMap> vectors,
+                               UserVectorNormalizer scoreNormalizer,
+                               UserVectorNormalizer similarityNormalizer) {
+        Long2ObjectMap<LongList> itemUserLists = new Long2ObjectOpenHashMap<>();
+        SortedKeyIndex domain = SortedKeyIndex.fromCollection(vectors.keySet());
+        ImmutableList.Builder<Long2DoubleMap> scoreVectors = ImmutableList.builder();
+        ImmutableList.Builder<Long2DoubleMap> normedVectors = ImmutableList.builder();
+        for (LongIterator uiter = domain.keyIterator(); uiter.hasNext();) {
+            final long user = uiter.nextLong();
+            Long2DoubleMap rawV = vectors.get(user);
+            Long2DoubleMap scoreV = scoreNormalizer.makeTransformation(user, rawV).apply(rawV);
+            assert scoreV != null;
+            scoreVectors.add(scoreV);
+            // normalize user vector
+            Long2DoubleMap normV = similarityNormalizer.makeTransformation(user, rawV).apply(rawV);
+            assert normV != null;
+            normedVectors.add(normV);
+            for (LongIterator iiter = rawV.keySet().iterator(); iiter.hasNext();) {
+                final long item = iiter.nextLong();
+                LongList itemUsers = itemUserLists.get(item);
+                if (itemUsers == null) {
+                    itemUsers = new LongArrayList();
+                    itemUserLists.put(item, itemUsers);
+                }
+                itemUsers.add(user);
+            }
+        }
+
+        Long2ObjectMap<LongSortedSet> itemUserSets = new Long2ObjectOpenHashMap<>();
+        for (Long2ObjectMap.Entry<LongList> entry: itemUserLists.long2ObjectEntrySet()) {
+            itemUserSets.put(entry.getLongKey(), LongUtils.packedSet(entry.getValue()));
+        }
+        return new UserSnapshot(domain, scoreVectors.build(), normedVectors.build(), itemUserSets);
+    }
+
+    /**
+     * Create a copy of this snapshot with some users' rating vectors replaced.  Only the changed users are
+     * re-normalized, and only the item-user sets of the items they added or removed are rebuilt.  The result
+     * overlays the changes on this snapshot without copying it (see {@link Overlay}).
+     *
+     * @param oldVectors The changed users' previous raw rating vectors (absent for new users).
+     * @param newVectors The changed users' new raw rating vectors (empty to remove the user).
+     * @param scoreNormalizer The normalizer for score vectors.
+     * @param similarityNormalizer The normalizer for similarity vectors.
+     * @return The updated snapshot.
+     */
+    UserSnapshot withUsers(Long2ObjectMap<Long2DoubleMap> oldVectors,
+                           Long2ObjectMap<Long2DoubleMap> newVectors,
+                           UserVectorNormalizer scoreNormalizer,
+                           UserVectorNormalizer similarityNormalizer) {
+        return new Overlay(this).withUsers(oldVectors, newVectors, scoreNormalizer, similarityNormalizer);
+    }
+
+    private static void addToSet(Long2ObjectMap<LongSet> sets, long key, long value) {
+        LongSet set = sets.get(key);
+        if (set == null) {
+            set = new LongOpenHashSet();
+            sets.put(key, set);
+        }
+        set.add(value);
+    }
+
+    /**
+     * Snapshot state that overlays the changed users and item-user sets on a base snapshot.  Each update copies
+     * only the overlay; once the overlay has grown past about the square root of the base snapshot's size, it is
+     * merged into a new base snapshot, so the cost of the copies stays proportional to the cost of the merges.
+     */
+    private static class Overlay extends UserSnapshot {
+        private static final long serialVersionUID = 1L;
+        private static final int MIN_MERGE_SIZE = 32;
+
+        private final UserSnapshot base;
+        /* null values mark removed users */
+        private final Long2ObjectMap<Long2DoubleMap> changedVectors;
+        private final Long2ObjectMap<Long2DoubleMap> changedNormedVectors;
+        /* null values mark items with no users */
+        private final Long2ObjectMap<LongSortedSet> changedItemUsers;
+
+        Overlay(UserSnapshot base) {
+            this(base, new Long2ObjectOpenHashMap<Long2DoubleMap>(), new Long2ObjectOpenHashMap<Long2DoubleMap>(),
+                 new Long2ObjectOpenHashMap<LongSortedSet>());
+        }
+
+        private Overlay(UserSnapshot base, Long2ObjectMap<Long2DoubleMap> vs, Long2ObjectMap<Long2DoubleMap> nvs,
+                        Long2ObjectMap<LongSortedSet> iuSets) {
+            this.base = base;
+            changedVectors = vs;
+            changedNormedVectors = nvs;
+            changedItemUsers = iuSets;
+        }
+
+        @Override
+        public Long2DoubleMap getUserVector(long user) {
+            if (changedVectors.containsKey(user)) {
+                Long2DoubleMap vec = changedVectors.get(user);
+                Preconditions.checkArgument(vec != null, "invalid user " + user);
+                return vec;
+            }
+            return base.getUserVector(user);
+        }
+
+        @Override
+        public Long2DoubleMap getNormalizedUserVector(long user) {
+            if (changedNormedVectors.containsKey(user)) {
+                Long2DoubleMap vec = changedNormedVectors.get(user);
+                Preconditions.checkArgument(vec != null, "invalid user " + user);
+                return vec;
+            }
+            return base.getNormalizedUserVector(user);
+        }
+
+        @Override
+        public LongSet getItemUsers(long item) {
+            if (changedItemUsers.containsKey(item)) {
+                return changedItemUsers.get(item);
+            }
+            return base.getItemUsers(item);
+        }
+
+        @Override
+        UserSnapshot withUsers(Long2ObjectMap<Long2DoubleMap> oldVectors,
+                               Long2ObjectMap<Long2DoubleMap> newVectors,
+                               UserVectorNormalizer scoreNormalizer,
+                               UserVectorNormalizer similarityNormalizer) {
+            Long2ObjectMap<Long2DoubleMap> vs = new Long2ObjectOpenHashMap<>(changedVectors);
+            Long2ObjectMap<Long2DoubleMap> nvs = new Long2ObjectOpenHashMap<>(changedNormedVectors);
+            for (Long2ObjectMap.Entry<Long2DoubleMap> e: newVectors.long2ObjectEntrySet()) {
+                long user = e.getLongKey();
+                Long2DoubleMap rawV = e.getValue();
+                if (rawV.isEmpty()) {
+                    vs.put(user, null);
+                    nvs.put(user, null);
+                } else {
+                    vs.put(user, scoreNormalizer.makeTransformation(user, rawV).apply(rawV));
+                    nvs.put(user, similarityNormalizer.makeTransformation(user, rawV).apply(rawV));
+                }
+            }
+
+            // collect the membership changes for each affected item
+            Long2ObjectMap<LongSet> removals = new Long2ObjectOpenHashMap<>();
+            Long2ObjectMap<LongSet> additions = new Long2ObjectOpenHashMap<>();
+            for (Long2ObjectMap.Entry<Long2DoubleMap> e: newVectors.long2ObjectEntrySet()) {
+                long user = e.getLongKey();
+                LongSet newItems = e.getValue().keySet();
+                Long2DoubleMap oldV = oldVectors.get(user);
+                LongSet oldItems = oldV != null ? oldV.keySet() : LongSets.EMPTY_SET;
+                for (LongIterator iter = oldItems.iterator(); iter.hasNext();) {
+                    long item = iter.nextLong();
+                    if (!newItems.contains(item)) {
+                        addToSet(removals, item, user);
+                    }
+                }
+                for (LongIterator iter = newItems.iterator(); iter.hasNext();) {
+                    long item = iter.nextLong();
+                    if (!oldItems.contains(item)) {
+                        addToSet(additions, item, user);
+                    }
+                }
+            }
+
+            Long2ObjectMap<LongSortedSet> iuSets = new Long2ObjectOpenHashMap<>(changedItemUsers);
+            LongSet changedItems = new LongOpenHashSet(removals.keySet());
+            changedItems.addAll(additions.keySet());
+            for (LongIterator iter = changedItems.iterator(); iter.hasNext();) {
+                long item = iter.nextLong();
+                LongSet itemUsers = new LongOpenHashSet();
+                LongSet old = getItemUsers(item);
+                if (old != null) {
+                    itemUsers.addAll(old);
+                }
+                LongSet removed = removals.get(item);
+                if (removed != null) {
+                    itemUsers.removeAll(removed);
+                }
+                LongSet added = additions.get(item);
+                if (added != null) {
+                    itemUsers.addAll(added);
+                }
+                iuSets.put(item, itemUsers.isEmpty() ? null : LongUtils.packedSet(itemUsers));
+            }
+
+            Overlay result = new Overlay(base, vs, nvs, iuSets);
+            int baseSize = base.users.size() + base.itemUserSets.size();
+            if (vs.size() + iuSets.size() > Math.max(MIN_MERGE_SIZE, Math.sqrt(baseSize))) {
+                return result.merge();
+            } else {
+                return result;
+            }
+        }
+
+        /**
+         * Merge the overlay into a new base snapshot.
+         */
+        private UserSnapshot merge() {
+            LongSet userIds = new LongOpenHashSet(base.users.keySet());
+            for (Long2ObjectMap.Entry<Long2DoubleMap> e: changedVectors.long2ObjectEntrySet()) {
+                if (e.getValue() == null) {
+                    userIds.remove(e.getLongKey());
+                } else {
+                    userIds.add(e.getLongKey());
+                }
+            }
+            SortedKeyIndex domain = SortedKeyIndex.fromCollection(userIds);
+
+            ImmutableList.Builder<Long2DoubleMap> scoreVectors = ImmutableList.builder();
+            ImmutableList.Builder<Long2DoubleMap> normVectors = ImmutableList.builder();
+            for (LongIterator uiter = domain.keyIterator(); uiter.hasNext();) {
+                final long user = uiter.nextLong();
+                Long2DoubleMap vec = changedVectors.get(user);
+                if (vec == null) {
+                    int idx = base.users.getIndex(user);
+                    scoreVectors.add(base.vectors.get(idx));
+                    normVectors.add(base.normedVectors.get(idx));
+                } else {
+                    scoreVectors.add(vec);
+                    normVectors.add(changedNormedVectors.get(user));
+                }
+            }
+
+            Long2ObjectMap<LongSortedSet> iuSets = new Long2ObjectOpenHashMap<>(base.itemUserSets);
+            for (Long2ObjectMap.Entry<LongSortedSet> e: changedItemUsers.long2ObjectEntrySet()) {
+                if (e.getValue() == null) {
+                    iuSets.remove(e.getLongKey());
+                } else {
+                    iuSets.put(e.getLongKey(), e.getValue());
+                }
+            }
+
+            return new UserSnapshot(domain, scoreVectors.build(), normVectors.build(), iuSets);
+        }
+    }
+
     public static class Builder implements Provider<UserSnapshot> {
         private final RatingVectorPDAO rvDAO;
         private final UserVectorNormalizer scoreNormalizer;
@@ -129,36 +386,7 @@ public class UserSnapshot implements Serializable {
                 }
             }
 
-            Long2ObjectMap<LongList> itemUserLists = new Long2ObjectOpenHashMap<>();
-            SortedKeyIndex domain = SortedKeyIndex.fromCollection(vectors.keySet());
-            ImmutableList.Builder<Long2DoubleMap> scoreVectors = ImmutableList.builder();
-            ImmutableList.Builder<Long2DoubleMap> normedVectors = ImmutableList.builder();
-            for (LongIterator uiter = domain.keyIterator(); uiter.hasNext();) {
-                final long user = uiter.nextLong();
-                Long2DoubleMap rawV = vectors.get(user);
-                Long2DoubleMap scoreV = scoreNormalizer.makeTransformation(user, rawV).apply(rawV);
-                assert scoreV != null;
-                scoreVectors.add(scoreV);
-                // normalize user vector
-                Long2DoubleMap normV = similarityNormalizer.makeTransformation(user, rawV).apply(rawV);
-                assert normV != null;
-                normedVectors.add(normV);
-                for (LongIterator iiter = rawV.keySet().iterator(); iiter.hasNext();) {
-                    final long item = iiter.nextLong();
-                    LongList itemUsers = itemUserLists.get(item);
-                    if (itemUsers == null) {
-                        itemUsers = new LongArrayList();
-                        itemUserLists.put(item, itemUsers);
-                    }
-                    itemUsers.add(user);
-                }
-            }
-
-            Long2ObjectMap<LongSortedSet> itemUserSets = new Long2ObjectOpenHashMap<>();
-            for (Long2ObjectMap.Entry<LongList> entry: itemUserLists.long2ObjectEntrySet()) {
-                itemUserSets.put(entry.getLongKey(), LongUtils.packedSet(entry.getValue()));
-            }
-            return new UserSnapshot(domain, scoreVectors.build(), normedVectors.build(), itemUserSets);
+            return create(vectors, scoreNormalizer, similarityNormalizer);
         }
     }
 }
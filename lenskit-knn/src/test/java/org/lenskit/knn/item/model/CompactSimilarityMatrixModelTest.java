@@ -0,0 +1,151 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.knn.item.ItemItemScorer;
+import org.lenskit.util.collections.Long2DoubleAccumulator;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.collections.TopNLong2DoubleAccumulator;
+import org.lenskit.util.collections.UnlimitedLong2DoubleAccumulator;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.lenskit.knn.item.model.ItemItemModelTestUtils.*;
+
+public class CompactSimilarityMatrixModelTest {
+    private static final double EPSILON = 1.0e-6;
+
+    private SimilarityMatrixModel matrix;
+
+    @Before
+    public void createMatrix() {
+        Map<Long, Long2DoubleMap> rows = randomSimilarities(200, 0.25);
+        // an item with no neighbors, and a neighbor with no row
+        rows.put(500L, new Long2DoubleOpenHashMap());
+        rows.get(1L).put(1000L, 0.5);
+        matrix = new SimilarityMatrixModel(rows);
+    }
+
+    @Test
+    public void testNeighbors() {
+        CompactSimilarityMatrixModel model = CompactSimilarityMatrixModel.fromModel(matrix);
+        assertThat(model.getItemUniverse(), equalTo(matrix.getItemUniverse()));
+        for (long item: matrix.getItemUniverse()) {
+            assertRowsMatch("neighbors of " + item, matrix.getNeighbors(item), model.getNeighbors(item), EPSILON);
+        }
+        assertThat(model.getNeighbors(1000).isEmpty(), equalTo(true));
+        assertThat(model.getNeighbors(1).get(1000L), closeTo(0.5, EPSILON));
+    }
+
+    @Test
+    public void testCandidateNeighbors() {
+        CompactSimilarityMatrixModel model = CompactSimilarityMatrixModel.fromModel(matrix);
+        Random rng = new Random(7);
+        for (int size: new int[]{0, 1, 5, 50, 250}) {
+            LongSet cands = new LongOpenHashSet();
+            while (cands.size() < size) {
+                cands.add(rng.nextInt(300) + 1);
+            }
+            cands.add(1000);
+            for (long item: matrix.getItemUniverse()) {
+                Long2DoubleMap expected = matrix.getNeighbors(item, cands);
+                assertRowsMatch("hash candidates for " + item, expected,
+                                model.getNeighbors(item, cands), EPSILON);
+                assertRowsMatch("sorted candidates for " + item, expected,
+                                model.getNeighbors(item, LongUtils.packedSet(cands)), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testAccumulateNeighbors() {
+        CompactSimilarityMatrixModel model = CompactSimilarityMatrixModel.fromModel(matrix);
+        Random rng = new Random(7);
+        for (int size: new int[]{0, 1, 5, 50, 250}) {
+            LongSet cands = new LongOpenHashSet();
+            while (cands.size() < size) {
+                cands.add(rng.nextInt(300) + 1);
+            }
+            for (long item: matrix.getItemUniverse()) {
+                Long2DoubleMap expected = model.getNeighbors(item, cands);
+                for (LongSet cs: Arrays.asList(cands, LongUtils.packedSet(cands))) {
+                    Long2DoubleAccumulator all = new UnlimitedLong2DoubleAccumulator();
+                    model.accumulateNeighbors(item, cs, all);
+                    assertRowsMatch("all neighbors of " + item, expected, all.finishMap(), EPSILON);
+
+                    Long2DoubleAccumulator top = new TopNLong2DoubleAccumulator(5);
+                    top.putAll(expected);
+                    Long2DoubleMap topExpected = top.finishMap();
+                    model.accumulateNeighbors(item, cs, top);
+                    assertRowsMatch("top neighbors of " + item, topExpected, top.finishMap(), EPSILON);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSerialize() {
+        CompactSimilarityMatrixModel model = CompactSimilarityMatrixModel.fromModel(matrix);
+        CompactSimilarityMatrixModel copy = SerializationUtils.clone(model);
+        assertThat(copy.getItemUniverse(), equalTo(model.getItemUniverse()));
+        for (long item: model.getItemUniverse()) {
+            assertRowsMatch("neighbors of " + item, model.getNeighbors(item), copy.getNeighbors(item), EPSILON);
+        }
+    }
+
+    @Test
+    public void testConfigureRecommender() throws RecommenderBuildException {
+        DataAccessObject dao = StaticDataSource.fromList(randomRatings(40, 25, 0.3)).get();
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        Map<Long, Double> expected;
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            expected = rec.getItemScorer().score(5, LongUtils.packedSet(1, 2, 3, 4, 5, 6, 7, 8));
+        }
+
+        config.bind(ItemItemModel.class).to(CompactSimilarityMatrixModel.class);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            assertThat(rec.get(ItemItemModel.class), instanceOf(CompactSimilarityMatrixModel.class));
+            Map<Long, Double> scores = rec.getItemScorer().score(5, LongUtils.packedSet(1, 2, 3, 4, 5, 6, 7, 8));
+            assertThat(scores.keySet(), equalTo(expected.keySet()));
+            assertThat(scores.keySet(), not(empty()));
+            for (Map.Entry<Long, Double> e: expected.entrySet()) {
+                assertThat(scores.get(e.getKey()), closeTo(e.getValue(), EPSILON));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.lenskit.transform.threshold.AbsoluteThreshold;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.lenskit.knn.item.model.ItemItemModelTestUtils.assertModelsMatch;
+import static org.lenskit.knn.item.model.ItemItemModelTestUtils.randomRatings;
+
+public class ItemItemModelProviderTest {
+    private static final double EPSILON = 1.0e-8;
+
+    private ItemItemBuildContext context;
+    private Threshold threshold = new AbsoluteThreshold(0);
+
+    @Before
+    public void createContext() {
+        List<Rating> ratings = randomRatings(100, 300, 0.1);
+        StandardRatingVectorPDAO dao = new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+        context = new ItemItemBuildContextProvider(dao, new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer()), 1).get();
+    }
+
+    private SimilarityMatrixModel build(ItemSimilarity sim, int size) {
+        return new ItemItemModelProvider(sim, context, threshold, new BasicNeighborIterationStrategy(),
+                                         1, size).get();
+    }
+
+    @Test
+    public void testSymmetricMatchesAsymmetric() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        assertThat(sim.isSymmetric(), equalTo(true));
+        assertModelsMatch(build(new AsymmetricSimilarity(sim), 0), build(sim, 0), EPSILON);
+    }
+
+    @Test
+    public void testTruncatedSymmetricMatchesAsymmetric() {
+        ItemSimilarity sim = new ItemVectorSimilarity(new CosineVectorSimilarity());
+        SimilarityMatrixModel model = build(sim, 10);
+        assertModelsMatch(build(new AsymmetricSimilarity(sim), 10), model, EPSILON);
+        for (long item: model.getItemUniverse()) {
+            assertThat(model.getNeighbors(item).size(), lessThanOrEqualTo(10));
+        }
+    }
+
+    /**
+     * Wrapper that hides the symmetry of a similarity, forcing the basic collector.
+     */
+    @ThreadSafe
+    private static class AsymmetricSimilarity implements ItemSimilarity {
+        private final ItemSimilarity delegate;
+
+        AsymmetricSimilarity(ItemSimilarity sim) {
+            delegate = sim;
+        }
+
+        @Override
+        public double similarity(long i1, Long2DoubleMap v1, long i2, Long2DoubleMap v2) {
+            return delegate.similarity(i1, v1, i2, v2);
+        }
+
+        @Override
+        public boolean isSparse() {
+            return delegate.isSparse();
+        }
+
+        @Override
+        public boolean isSymmetric() {
+            return false;
+        }
+    }
+}
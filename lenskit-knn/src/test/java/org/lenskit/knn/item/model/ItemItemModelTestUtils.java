@@ -0,0 +1,116 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Fixtures and assertions shared by the item-item model tests.
+ */
+final class ItemItemModelTestUtils {
+    private ItemItemModelTestUtils() {}
+
+    /**
+     * Create a reproducible list of random ratings, with values from 1 to 5.
+     *
+     * @param nusers The number of users; user IDs range from 1 to {@code nusers}.
+     * @param nitems The number of items; item IDs range from 1 to {@code nitems}.
+     * @param density The probability that a user rates each item.
+     * @return The ratings, with IDs numbered from 1.
+     */
+    static List<Rating> randomRatings(int nusers, int nitems, double density) {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long u = 1; u <= nusers; u++) {
+            for (long i = 1; i <= nitems; i++) {
+                if (rng.nextDouble() < density) {
+                    ratings.add(Rating.newBuilder()
+                                      .setId(ratings.size() + 1)
+                                      .setUserId(u)
+                                      .setItemId(i)
+                                      .setRating(1 + 4 * rng.nextDouble())
+                                      .build());
+                }
+            }
+        }
+        return ratings;
+    }
+
+    /**
+     * Create a reproducible random similarity matrix with values from 0 to 1 and no self-similarities.
+     *
+     * @param nitems The number of items; item IDs range from 1 to {@code nitems}.
+     * @param density The probability that each pair of items has a similarity.
+     * @return The similarity matrix rows.
+     */
+    static Map<Long, Long2DoubleMap> randomSimilarities(int nitems, double density) {
+        Random rng = new Random(42);
+        Map<Long, Long2DoubleMap> rows = new HashMap<>();
+        for (long i = 1; i <= nitems; i++) {
+            Long2DoubleMap row = new Long2DoubleOpenHashMap();
+            for (long j = 1; j <= nitems; j++) {
+                if (i != j && rng.nextDouble() < density) {
+                    row.put(j, rng.nextDouble());
+                }
+            }
+            rows.put(i, row);
+        }
+        return rows;
+    }
+
+    /**
+     * Assert that two models have the same, non-empty item universe and the same neighbors for each item.
+     */
+    static void assertModelsMatch(ItemItemModel expected, ItemItemModel actual, double epsilon) {
+        LongSortedSet items = expected.getItemUniverse();
+        assertThat(items, not(empty()));
+        assertThat(actual.getItemUniverse(), equalTo(items));
+        for (long item: items) {
+            assertRowsMatch("neighbors of " + item, expected.getNeighbors(item), actual.getNeighbors(item), epsilon);
+        }
+    }
+
+    /**
+     * Assert that two neighbor rows have the same keys and values.
+     */
+    static void assertRowsMatch(String msg, Long2DoubleMap expected, Long2DoubleMap actual, double epsilon) {
+        assertThat(msg, actual.keySet(), equalTo(expected.keySet()));
+        for (Long2DoubleMap.Entry e: expected.long2DoubleEntrySet()) {
+            assertThat(msg, actual.get(e.getLongKey()), closeTo(e.getDoubleValue(), epsilon));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.knn.item.ItemItemScorer;
+import org.lenskit.util.collections.LongUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.lenskit.knn.item.model.ItemItemModelTestUtils.*;
+
+public class MappedSimilarityMatrixModelTest {
+    private static final double EPSILON = 1.0e-6;
+
+    @Rule
+    public TemporaryFolder tmpdir = new TemporaryFolder();
+
+    private SimilarityMatrixModel matrix;
+
+    @Before
+    public void createMatrix() {
+        matrix = new SimilarityMatrixModel(randomSimilarities(100, 0.2));
+    }
+
+    private void assertMappedMatches(ItemItemModel expected, ItemItemModel actual) {
+        assertModelsMatch(expected, actual, EPSILON);
+        LongSet cands = LongUtils.packedSet(3, 10, 17, 50, 99, 1000);
+        for (long item: expected.getItemUniverse()) {
+            assertRowsMatch("candidates of " + item, expected.getNeighbors(item, cands),
+                            actual.getNeighbors(item, cands), EPSILON);
+        }
+        assertThat(actual.getNeighbors(1000).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        File file = tmpdir.newFile("sims.bin");
+        MappedSimilarityMatrixModel.write(matrix, file);
+        MappedSimilarityMatrixModel model = MappedSimilarityMatrixModel.open(file);
+        assertThat(model.getFile(), equalTo(file));
+        assertMappedMatches(matrix, model);
+    }
+
+    @Test
+    public void testSeparateNeighborItems() throws IOException {
+        Map<Long, Long2DoubleMap> rows = new HashMap<>();
+        rows.put(1L, new Long2DoubleOpenHashMap(new long[]{2, 5, 1000}, new double[]{0.5, 0.25, 0.75}));
+        rows.put(2L, new Long2DoubleOpenHashMap(new long[]{1}, new double[]{0.5}));
+        rows.put(3L, new Long2DoubleOpenHashMap());
+        SimilarityMatrixModel small = new SimilarityMatrixModel(rows);
+
+        File file = tmpdir.newFile("sims.bin");
+        MappedSimilarityMatrixModel.write(small, file);
+        MappedSimilarityMatrixModel model = MappedSimilarityMatrixModel.open(file);
+        assertMappedMatches(small, model);
+        assertThat(model.getNeighbors(1).get(1000L), closeTo(0.75, EPSILON));
+        assertThat(model.getNeighbors(3).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testSerializeFileName() throws IOException {
+        File file = tmpdir.newFile("sims.bin");
+        MappedSimilarityMatrixModel.write(matrix, file);
+        MappedSimilarityMatrixModel model = MappedSimilarityMatrixModel.open(file);
+        byte[] data = SerializationUtils.serialize(model);
+        assertThat(data.length, lessThan(1000));
+        MappedSimilarityMatrixModel copy = SerializationUtils.deserialize(data);
+        assertMappedMatches(model, copy);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectBadFile() throws IOException {
+        File file = tmpdir.newFile("sims.bin");
+        Files.write(file.toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20});
+        MappedSimilarityMatrixModel.open(file);
+    }
+
+    @Test
+    public void testConfigureRecommender() throws RecommenderBuildException, IOException {
+        DataAccessObject dao = StaticDataSource.fromList(randomRatings(40, 25, 0.3)).get();
+        File file = tmpdir.newFile("sims.bin");
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        Map<Long, Double> expected;
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            expected = rec.getItemScorer().score(5, LongUtils.packedSet(1, 2, 3, 4, 5, 6, 7, 8));
+        }
+
+        config.bind(ItemItemModel.class).to(MappedSimilarityMatrixModel.class);
+        config.set(SimilarityMatrixFile.class).to(file);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, dao)) {
+            ItemItemModel model = rec.get(ItemItemModel.class);
+            assertThat(model, instanceOf(MappedSimilarityMatrixModel.class));
+            assertThat(((MappedSimilarityMatrixModel) model).getFile(), equalTo(file));
+            // the scratch file is removed once the model is written
+            assertThat(tmpdir.getRoot().list(), arrayContaining("sims.bin"));
+            Map<Long, Double> scores = rec.getItemScorer().score(5, LongUtils.packedSet(1, 2, 3, 4, 5, 6, 7, 8));
+            assertThat(scores.keySet(), equalTo(expected.keySet()));
+            assertThat(scores.keySet(), not(empty()));
+            for (Map.Entry<Long, Double> e: expected.entrySet()) {
+                assertThat(scores.get(e.getKey()), closeTo(e.getValue(), EPSILON));
+            }
+        }
+    }
+
+    @Test(expected = RecommenderBuildException.class)
+    public void testRequireFile() throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        config.bind(ItemItemModel.class).to(MappedSimilarityMatrixModel.class);
+        LenskitRecommender.build(config, StaticDataSource.fromList(randomRatings(40, 25, 0.3)).get());
+    }
+}
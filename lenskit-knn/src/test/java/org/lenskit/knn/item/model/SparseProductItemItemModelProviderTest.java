@@ -0,0 +1,120 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.lenskit.transform.threshold.AbsoluteThreshold;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.similarity.PearsonCorrelation;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SparseProductItemItemModelProviderTest {
+    private static final double EPSILON = 1.0e-8;
+
+    private EntityFactory factory = new EntityFactory();
+    private Threshold threshold = new AbsoluteThreshold(0);
+
+    private ItemItemBuildContext makeContext(int nusers, int nitems, int perUser, int minCU) {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long u = 1; u <= nusers; u++) {
+            LongSet rated = new LongOpenHashSet();
+            while (rated.size() < perUser) {
+                // skew towards low item IDs so items have users in common
+                long item = 1 + (long) (nitems * Math.pow(rng.nextDouble(), 2));
+                if (rated.add(item)) {
+                    ratings.add(factory.rating(u, item, 1 + 4 * rng.nextDouble()));
+                }
+            }
+        }
+        StandardRatingVectorPDAO dao = new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+        return new ItemItemBuildContextProvider(dao, new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer()), minCU).get();
+    }
+
+    private void checkModel(ItemItemBuildContext context, ItemSimilarity sim, int minCU, int size) {
+        SimilarityMatrixModel expected =
+                new ItemItemModelProvider(sim, context, threshold, new SparseNeighborIterationStrategy(),
+                                          minCU, size).get();
+        SimilarityMatrixModel actual =
+                new SparseProductItemItemModelProvider(sim, context, threshold, minCU, size).get();
+
+        LongSortedSet items = expected.getItemUniverse();
+        assertThat(items, not(empty()));
+        assertThat(actual.getItemUniverse(), equalTo(items));
+        for (long item: items) {
+            Long2DoubleMap exp = expected.getNeighbors(item);
+            Long2DoubleMap act = actual.getNeighbors(item);
+            assertThat("neighbors of " + item, act.keySet(), equalTo(exp.keySet()));
+            for (Long2DoubleMap.Entry e: exp.long2DoubleEntrySet()) {
+                assertThat(act.get(e.getLongKey()), closeTo(e.getDoubleValue(), EPSILON));
+            }
+        }
+    }
+
+    @Test
+    public void testCosine() {
+        checkModel(makeContext(50, 40, 10, 0),
+                   new ItemVectorSimilarity(new CosineVectorSimilarity()), 0, 0);
+    }
+
+    @Test
+    public void testDampedCosineTruncated() {
+        checkModel(makeContext(50, 40, 10, 2),
+                   new ItemVectorSimilarity(new CosineVectorSimilarity(10)), 2, 5);
+    }
+
+    @Test
+    public void testMultipleBlocks() {
+        int nitems = SparseProductItemItemModelProvider.BLOCK_SIZE * 3;
+        ItemItemBuildContext context = makeContext(200, nitems, 60, 0);
+        assertThat(context.getItems().size(), greaterThan(SparseProductItemItemModelProvider.BLOCK_SIZE));
+        checkModel(context, new ItemVectorSimilarity(new CosineVectorSimilarity()), 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectPearson() {
+        new SparseProductItemItemModelProvider(new ItemVectorSimilarity(new PearsonCorrelation()),
+                                               makeContext(5, 5, 2, 0), threshold, 0, 0);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.grouplens.lenskit.transform.threshold.AbsoluteThreshold;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RecommenderBuildException;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.ItemItemScorer;
+import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ItemVectorSimilarity;
+import org.lenskit.similarity.CosineVectorSimilarity;
+import org.lenskit.similarity.PearsonCorrelation;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.lenskit.knn.item.model.ItemItemModelTestUtils.assertModelsMatch;
+import static org.lenskit.knn.item.model.ItemItemModelTestUtils.randomRatings;
+
+public class SummationItemItemModelTest {
+    private static final double EPSILON = 1.0e-8;
+
+    private List<Rating> ratings;
+    private UserVectorNormalizer normalizer = new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer());
+    private Threshold threshold = new AbsoluteThreshold(0);
+
+    @Before
+    public void createRatings() {
+        ratings = randomRatings(40, 25, 0.3);
+    }
+
+    private SummationItemItemModel buildSummationModel(ItemSimilarity sim, int minCU, int size) {
+        StandardRatingVectorPDAO dao = new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+        return new SummationItemItemModelProvider(dao, normalizer, sim, threshold, minCU, size).get();
+    }
+
+    private SimilarityMatrixModel buildReferenceModel(ItemSimilarity sim, int minCU, int size) {
+        StandardRatingVectorPDAO dao = new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+        ItemItemBuildContext context = new ItemItemBuildContextProvider(dao, normalizer, minCU).get();
+        return new ItemItemModelProvider(sim, context, threshold, new SparseNeighborIterationStrategy(),
+                                         minCU, size).get();
+    }
+
+    private void checkForgetting(ItemSimilarity sim, int minCU, int size) {
+        SummationItemItemModel model = buildSummationModel(sim, minCU, size);
+        assertModelsMatch(buildReferenceModel(sim, minCU, size), model, EPSILON);
+
+        assertThat(model.forgetUser(7), equalTo(true));
+        assertThat(model.forgetUser(7), equalTo(false));
+        Rating victim = ratings.stream().filter(r -> r.getUserId() == 12).findFirst().get();
+        assertThat(model.forget(12, victim.getItemId()), equalTo(true));
+        assertThat(model.forget(12, victim.getItemId()), equalTo(false));
+
+        ratings = ratings.stream()
+                         .filter(r -> r.getUserId() != 7 && r != victim)
+                         .collect(Collectors.toList());
+        SimilarityMatrixModel retrained = buildReferenceModel(sim, minCU, size);
+        assertModelsMatch(retrained, model, EPSILON);
+        assertModelsMatch(retrained, model.toSimilarityMatrix(), EPSILON);
+    }
+
+    @Test
+    public void testForgetCosine() {
+        checkForgetting(new ItemVectorSimilarity(new CosineVectorSimilarity()), 0, 0);
+    }
+
+    @Test
+    public void testForgetDampedCosineTruncated() {
+        checkForgetting(new ItemVectorSimilarity(new CosineVectorSimilarity(10)), 2, 5);
+    }
+
+    @Test
+    public void testForgetPearson() {
+        checkForgetting(new ItemVectorSimilarity(new PearsonCorrelation()), 3, 0);
+    }
+
+    private void checkUpdate(ItemSimilarity sim, int minCU, int size) {
+        List<Rating> all = ratings;
+        List<Rating> initial = all.subList(0, all.size() / 2);
+        List<Rating> added = all.subList(all.size() / 2, all.size());
+        ratings = initial;
+        SummationItemItemModel model = buildSummationModel(sim, minCU, size);
+
+        List<Rating> removed = initial.stream()
+                                      .filter(r -> r.getUserId() % 7 == 3)
+                                      .collect(Collectors.toList());
+        model.update(RatingUpdate.create(added, removed));
+
+        ratings = all.stream()
+                     .filter(r -> !removed.contains(r))
+                     .collect(Collectors.toList());
+        assertModelsMatch(buildReferenceModel(sim, minCU, size), model, EPSILON);
+    }
+
+    @Test
+    public void testUpdateCosine() {
+        checkUpdate(new ItemVectorSimilarity(new CosineVectorSimilarity()), 0, 0);
+    }
+
+    @Test
+    public void testUpdateDampedCosineTruncated() {
+        checkUpdate(new ItemVectorSimilarity(new CosineVectorSimilarity(10)), 2, 5);
+    }
+
+    @Test
+    public void testUpdatePearson() {
+        checkUpdate(new ItemVectorSimilarity(new PearsonCorrelation()), 3, 0);
+    }
+
+    @Test
+    public void testConfigureRecommender() throws RecommenderBuildException {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(ItemItemScorer.class);
+        config.bind(ItemItemModel.class).to(SummationItemItemModel.class);
+        try (LenskitRecommender rec = LenskitRecommender.build(config, StaticDataSource.fromList(ratings).get())) {
+            ItemItemModel model = rec.get(ItemItemModel.class);
+            assertThat(model, instanceOf(SummationItemItemModel.class));
+            assertThat(((SummationItemItemModel) model).forgetUser(3), equalTo(true));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectUnsupportedSimilarity() {
+        buildSummationModel(new ItemSimilarity() {
+            @Override
+            public double similarity(long i1, Long2DoubleMap v1, long i2, Long2DoubleMap v2) {
+                return 0;
+            }
+
+            @Override
+            public boolean isSparse() {
+                return true;
+            }
+
+            @Override
+            public boolean isSymmetric() {
+                return true;
+            }
+        }, 0, 0);
+    }
+}
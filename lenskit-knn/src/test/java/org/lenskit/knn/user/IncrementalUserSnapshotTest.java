@@ -0,0 +1,224 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.knn.user;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+import org.lenskit.transform.normalize.MeanCenteringVectorNormalizer;
+import org.lenskit.transform.normalize.UnitVectorNormalizer;
+import org.lenskit.transform.normalize.UserVectorNormalizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class IncrementalUserSnapshotTest {
+    private EntityFactory factory = new EntityFactory();
+    private List<Rating> ratings;
+    private UserVectorNormalizer scoreNorm;
+    private UserVectorNormalizer simNorm;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 30; user++) {
+            for (long item = 100; item < 120; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    ratings.add(factory.rating(user, item, 1 + rng.nextInt(9) * 0.5));
+                }
+            }
+        }
+        scoreNorm = new DefaultUserVectorNormalizer(new MeanCenteringVectorNormalizer());
+        simNorm = new DefaultUserVectorNormalizer(new UnitVectorNormalizer());
+    }
+
+    private UserSnapshot buildSnapshot(List<Rating> rs) {
+        StandardRatingVectorPDAO pdao = new StandardRatingVectorPDAO(StaticDataSource.fromList(rs).get());
+        return new UserSnapshot.Builder(pdao, scoreNorm, simNorm).get();
+    }
+
+    private IncrementalUserSnapshot buildIncremental(List<Rating> rs) {
+        StandardRatingVectorPDAO pdao = new StandardRatingVectorPDAO(StaticDataSource.fromList(rs).get());
+        return new IncrementalUserSnapshot.Builder(pdao, scoreNorm, simNorm).get();
+    }
+
+    private static void assertSnapshotsMatch(UserSnapshot actual, UserSnapshot expected, List<Rating> rs) {
+        for (Rating r: rs) {
+            long user = r.getUserId();
+            assertThat(actual.getUserVector(user), equalTo(expected.getUserVector(user)));
+            assertThat(actual.getNormalizedUserVector(user), equalTo(expected.getNormalizedUserVector(user)));
+            assertThat(actual.getItemUsers(r.getItemId()), equalTo(expected.getItemUsers(r.getItemId())));
+        }
+    }
+
+    @Test
+    public void testInitialState() {
+        assertSnapshotsMatch(buildIncremental(ratings), buildSnapshot(ratings), ratings);
+    }
+
+    @Test
+    public void testDeltas() {
+        IncrementalUserSnapshot snap = buildIncremental(ratings);
+        UserSnapshot before = snap.getCurrentSnapshot();
+
+        List<Rating> updated = new ArrayList<>();
+        for (Rating r: ratings) {
+            if (r.getUserId() == 5) {
+                continue;
+            } else if (r.getUserId() == 7 && r.getItemId() % 2 == 0) {
+                assertThat(snap.removeRating(r.getUserId(), r.getItemId()), equalTo(true));
+            } else {
+                updated.add(r);
+            }
+        }
+        assertThat(snap.removeUser(5), equalTo(true));
+        assertThat(snap.removeUser(5), equalTo(false));
+        snap.addRating(42, 100, 4.5);
+        snap.addRating(42, 105, 2.0);
+        snap.addRating(1, 120, 3.0);
+        updated.add(factory.rating(42, 100, 4.5));
+        updated.add(factory.rating(42, 105, 2.0));
+        updated.add(factory.rating(1, 120, 3.0));
+
+        assertSnapshotsMatch(snap, buildSnapshot(updated), updated);
+        assertThat(snap.getItemUsers(100), hasItem(42L));
+        assertThat(snap.getItemUsers(100), not(hasItem(5L)));
+
+        // previously-published states are unaffected
+        assertSnapshotsMatch(before, buildSnapshot(ratings), ratings);
+    }
+
+    @Test
+    public void testBatchUpdate() {
+        IncrementalUserSnapshot snap = buildIncremental(ratings);
+        Long2ObjectMap<Long2DoubleMap> changes = new Long2ObjectOpenHashMap<>();
+        Long2DoubleMap v = new Long2DoubleOpenHashMap();
+        v.put(101, 5.0);
+        changes.put(2, v);
+        changes.put(3, new Long2DoubleOpenHashMap());
+        snap.updateUsers(changes);
+
+        List<Rating> updated = new ArrayList<>();
+        for (Rating r: ratings) {
+            if (r.getUserId() != 2 && r.getUserId() != 3) {
+                updated.add(r);
+            }
+        }
+        updated.add(factory.rating(2, 101, 5.0));
+        assertSnapshotsMatch(snap, buildSnapshot(updated), updated);
+        assertThat(snap.getRawUserVector(3).isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void testRemoveRatings() {
+        IncrementalUserSnapshot snap = buildIncremental(ratings);
+        UserSnapshot before = snap.getCurrentSnapshot();
+        List<Rating> removed = new ArrayList<>();
+        List<Rating> kept = new ArrayList<>();
+        for (Rating r: ratings) {
+            if (r.getUserId() == 4 || r.getItemId() % 3 == 0) {
+                removed.add(r);
+            } else {
+                kept.add(r);
+            }
+        }
+        // a rating that is not present is skipped
+        removed.add(factory.rating(1, 500, 3.0));
+
+        assertThat(snap.removeRatings(removed), equalTo(removed.size() - 1));
+        assertSnapshotsMatch(snap, buildSnapshot(kept), kept);
+        assertThat(snap.getRawUserVector(4).isEmpty(), equalTo(true));
+        assertSnapshotsMatch(before, buildSnapshot(ratings), ratings);
+
+        // removing nothing publishes nothing
+        UserSnapshot after = snap.getCurrentSnapshot();
+        assertThat(snap.removeRatings(removed), equalTo(0));
+        assertThat(snap.getCurrentSnapshot(), sameInstance(after));
+    }
+
+    @Test
+    public void testManyUpdates() {
+        IncrementalUserSnapshot snap = buildIncremental(ratings);
+        Map<Pair<Long, Long>, Rating> current = new HashMap<>();
+        for (Rating r: ratings) {
+            current.put(Pair.of(r.getUserId(), r.getItemId()), r);
+        }
+        // enough single-rating updates to merge the overlay several times
+        Random rng = new Random(7);
+        for (int n = 1; n <= 300; n++) {
+            long user = 1 + rng.nextInt(40);
+            long item = 100 + rng.nextInt(25);
+            Pair<Long, Long> key = Pair.of(user, item);
+            if (current.containsKey(key) && rng.nextBoolean()) {
+                assertThat(snap.removeRating(user, item), equalTo(true));
+                current.remove(key);
+            } else {
+                double value = 1 + rng.nextInt(9) * 0.5;
+                snap.addRating(user, item, value);
+                current.put(key, factory.rating(user, item, value));
+            }
+            if (n % 25 == 0) {
+                List<Rating> expected = new ArrayList<>(current.values());
+                UserSnapshot rebuilt = buildSnapshot(expected);
+                assertSnapshotsMatch(snap, rebuilt, expected);
+                for (long i = 100; i < 125; i++) {
+                    assertThat(snap.getItemUsers(i), equalTo(rebuilt.getItemUsers(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConfigureFinder() {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(UserUserItemScorer.class);
+        config.bind(NeighborFinder.class).to(SnapshotNeighborFinder.class);
+        config.bind(UserSnapshot.class).to(IncrementalUserSnapshot.class);
+
+        LenskitRecommender rec = LenskitRecommender.build(config, StaticDataSource.fromList(ratings).get());
+        assertThat(rec.get(UserSnapshot.class), instanceOf(IncrementalUserSnapshot.class));
+        assertThat(rec.getItemScorer(), instanceOf(UserUserItemScorer.class));
+        rec.getItemScorer().score(1, 110);
+    }
+}
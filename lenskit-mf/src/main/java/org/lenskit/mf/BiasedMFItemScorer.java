@@ -24,9 +24,7 @@
  */
 package org.lenskit.mf;
 
-import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
-import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongIterators;
+import it.unimi.dsi.fastutil.longs.*;
 import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultMap;
@@ -34,7 +32,7 @@ import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.bias.BiasModel;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
-import org.lenskit.util.math.Vectors;
+import org.lenskit.util.keys.KeyIndex;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -42,6 +40,7 @@ import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Item scorer using biased matrix factorization.  This implements SVD-style item scorers.
@@ -78,44 +77,128 @@ public class BiasedMFItemScorer extends AbstractItemScorer {
     }
 
     /**
-     * Compute the score a user and item using their vectors.
+     * Compute the score a user and item using their vectors.  This scores the item with
+     * {@link #computeScores(double[], double[], DenseFactorMatrix, int[], int, double[])}.
      *
      * @param bias The combined user-item bias term (the baseline score, usually).
      * @param user The user-factor vector.
      * @param item The item-factor vector.
      * @return The kernel function value (combined score).
      * @throws IllegalArgumentException if the user and item vectors have different lengths.
+     * @deprecated The scorer no longer calls this method, so overriding it has no effect on
+     *             {@link #score(long, Collection)}; override
+     *             {@link #computeScores(double[], double[], DenseFactorMatrix, int[], int, double[])}
+     *             to customize the kernel.
      */
+    @Deprecated
     protected double computeScore(double bias, @Nonnull RealVector user, @Nonnull RealVector item) {
-        return bias + user.dotProduct(item);
+        DenseFactorMatrix items = DenseFactorMatrix.wrap(1, item.getDimension(), item.toArray());
+        double[] score = new double[1];
+        computeScores(new double[]{bias}, user.toArray(), items, new int[]{0}, 1, score);
+        return score[0];
+    }
+
+    /**
+     * Compute the scores for a batch of items.
+     *
+     * @param baselines The combined user-item bias terms for each item.
+     * @param user The user-factor vector.
+     * @param items The item-factor matrix.
+     * @param rows The rows of {@code items} for the items to score.
+     * @param n The number of items to score.
+     * @param scores The output array; {@code scores[k]} receives the score for the item in row
+     *               {@code rows[k]}.
+     */
+    protected void computeScores(double[] baselines, double[] user, DenseFactorMatrix items,
+                                 int[] rows, int n, double[] scores) {
+        items.dotRows(rows, n, user, scores);
+        for (int k = 0; k < n; k++) {
+            scores[k] += baselines[k];
+        }
     }
 
     public MFModel getModel() {
         return model;
     }
 
+    @Nonnull
+    @Override
+    public Map<Long, Double> score(long user, @Nonnull Collection<Long> items) {
+        ScoreBatch batch = scoreBatch(user, items);
+        if (batch == null) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        Long2DoubleMap results = new Long2DoubleOpenHashMap(batch.size);
+        for (int k = 0; k < batch.size; k++) {
+            results.put(batch.items[k], batch.scores[k]);
+        }
+        return results;
+    }
+
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
-        Long2DoubleMap baselines = biasModel.getItemBiases(LongUtils.packedSet(items));
-        baselines = Vectors.addScalar(baselines, biasModel.getIntercept() + biasModel.getUserBias(user));
+        ScoreBatch batch = scoreBatch(user, items);
+        if (batch == null) {
+            return Results.newResultMap();
+        }
+        List<Result> results = new ArrayList<>(batch.size);
+        for (int k = 0; k < batch.size; k++) {
+            results.add(Results.create(batch.items[k], batch.scores[k]));
+        }
+        return Results.newResultMap(results);
+    }
 
+    /**
+     * Score a batch of items in a single pass over the item-factor matrix.
+     *
+     * @return The scored items, or {@code null} if the user has no preference vector.
+     */
+    @Nullable
+    private ScoreBatch scoreBatch(long user, Collection<Long> items) {
         RealVector uvec = getUserPreferenceVector(user);
         if (uvec == null) {
-            return Results.newResultMap();
+            return null;
         }
 
-        List<Result> results = new ArrayList<>(items.size());
-        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        LongSortedSet itemSet = LongUtils.packedSet(items);
+        Long2DoubleMap itemBiases = biasModel.getItemBiases(itemSet);
+        double userBias = biasModel.getIntercept() + biasModel.getUserBias(user);
+        KeyIndex itemIndex = model.getItemIndex();
+
+        ScoreBatch batch = new ScoreBatch(itemSet.size());
+        LongIterator iter = itemSet.iterator();
         while (iter.hasNext()) {
             long item = iter.nextLong();
-            RealVector ivec = model.getItemVector(item);
-            if (ivec != null) {
-                double score = computeScore(baselines.get(item), uvec, ivec);
-                results.add(Results.create(item, score));
+            int row = itemIndex.tryGetIndex(item);
+            if (row >= 0) {
+                int k = batch.size++;
+                batch.items[k] = item;
+                batch.rows[k] = row;
+                batch.baselines[k] = userBias + itemBiases.get(item);
             }
         }
 
-        return Results.newResultMap(results);
+        computeScores(batch.baselines, uvec.toArray(), model.getItemFactors(),
+                      batch.rows, batch.size, batch.scores);
+        return batch;
+    }
+
+    /**
+     * Working arrays for scoring a batch of items.
+     */
+    private static class ScoreBatch {
+        final long[] items;
+        final int[] rows;
+        final double[] baselines;
+        final double[] scores;
+        int size;
+
+        ScoreBatch(int capacity) {
+            items = new long[capacity];
+            rows = new int[capacity];
+            baselines = new double[capacity];
+            scores = new double[capacity];
+        }
     }
 }
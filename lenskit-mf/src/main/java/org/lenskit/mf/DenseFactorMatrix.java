@@ -0,0 +1,228 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+import java.io.Serializable;
+
+/**
+ * Dense matrix of feature values, stored row-major in a single {@code double[]}.  Each row holds the
+ * features of one user or item, so a row is contiguous in memory and can be dotted with a feature
+ * vector in a tight loop without allocating.
+ *
+ * <p>It implements {@link RealMatrix} so it can be used anywhere the feature matrices of an
+ * {@link MFModel} are; the batch operations {@link #dotRow(int, double[])} and
+ * {@link #dotRows(int[], int, double[], double[])} are the fast path for scoring.</p>
+ */
+public final class DenseFactorMatrix extends AbstractRealMatrix implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int rows;
+    private final int columns;
+    private final double[] data;
+
+    /**
+     * Create a new zero matrix.
+     *
+     * @param nrows The number of rows.
+     * @param ncols The number of columns.
+     */
+    public DenseFactorMatrix(int nrows, int ncols) {
+        this(nrows, ncols, new double[nrows * ncols]);
+    }
+
+    private DenseFactorMatrix(int nrows, int ncols, double[] values) {
+        Preconditions.checkArgument(values.length == nrows * ncols, "data has incorrect length");
+        rows = nrows;
+        columns = ncols;
+        data = values;
+    }
+
+    /**
+     * Wrap a row-major array in a matrix.
+     *
+     * @param nrows The number of rows.
+     * @param ncols The number of columns.
+     * @param values The values, row-major.  This array is used as-is, not copied.
+     * @return The matrix.
+     */
+    public static DenseFactorMatrix wrap(int nrows, int ncols, double[] values) {
+        return new DenseFactorMatrix(nrows, ncols, values);
+    }
+
+    /**
+     * Get a dense factor matrix with the same values as another matrix.
+     *
+     * @param mat The matrix.
+     * @return {@code mat} if it is already a dense factor matrix, or a dense copy of it.
+     */
+    public static DenseFactorMatrix of(RealMatrix mat) {
+        if (mat instanceof DenseFactorMatrix) {
+            return (DenseFactorMatrix) mat;
+        }
+        int nr = mat.getRowDimension();
+        int nc = mat.getColumnDimension();
+        double[] values = new double[nr * nc];
+        for (int i = 0; i < nr; i++) {
+            for (int j = 0; j < nc; j++) {
+                values[i * nc + j] = mat.getEntry(i, j);
+            }
+        }
+        return new DenseFactorMatrix(nr, nc, values);
+    }
+
+    @Override
+    public int getRowDimension() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return columns;
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        checkIndex(row, column);
+        return data[row * columns + column];
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        checkIndex(row, column);
+        data[row * columns + column] = value;
+    }
+
+    @Override
+    public void addToEntry(int row, int column, double increment) {
+        checkIndex(row, column);
+        data[row * columns + column] += increment;
+    }
+
+    @Override
+    public RealVector getRowVector(int row) {
+        Preconditions.checkElementIndex(row, rows, "row");
+        return new ArrayRealVector(data, row * columns, columns);
+    }
+
+    @Override
+    public double[] getRow(int row) {
+        Preconditions.checkElementIndex(row, rows, "row");
+        double[] values = new double[columns];
+        System.arraycopy(data, row * columns, values, 0, columns);
+        return values;
+    }
+
+    /**
+     * Get a reference to the underlying data array.  Row {@code i} occupies positions
+     * [{@code i * c}, {@code (i + 1) * c}), where {@code c} is the number of columns.
+     *
+     * @return The row-major data array; it is not copied, so writes change the matrix.
+     */
+    public double[] getDataRef() {
+        return data;
+    }
+
+    /**
+     * Copy a row into an array.
+     *
+     * @param row The row index.
+     * @param out The array to receive the row's values; must have one entry per column.
+     */
+    public void copyRow(int row, double[] out) {
+        Preconditions.checkElementIndex(row, rows, "row");
+        Preconditions.checkArgument(out.length == columns, "array has incorrect length");
+        System.arraycopy(data, row * columns, out, 0, columns);
+    }
+
+    @Override
+    public void setRow(int row, double[] values) {
+        Preconditions.checkElementIndex(row, rows, "row");
+        Preconditions.checkArgument(values.length == columns, "array has incorrect length");
+        System.arraycopy(values, 0, data, row * columns, columns);
+    }
+
+    @Override
+    public RealMatrix createMatrix(int nrows, int ncols) {
+        return new DenseFactorMatrix(nrows, ncols);
+    }
+
+    @Override
+    public DenseFactorMatrix copy() {
+        return new DenseFactorMatrix(rows, columns, data.clone());
+    }
+
+    /**
+     * Compute the dot product of a row with a vector.
+     *
+     * @param row The row index.
+     * @param vec The vector, with one entry per column.
+     * @return The dot product of row {@code row} and {@code vec}.
+     */
+    public double dotRow(int row, double[] vec) {
+        Preconditions.checkArgument(vec.length == columns, "vector has incorrect length");
+        Preconditions.checkElementIndex(row, rows, "row");
+        double sum = 0;
+        int off = row * columns;
+        for (int j = 0; j < columns; j++) {
+            sum += data[off + j] * vec[j];
+        }
+        return sum;
+    }
+
+    /**
+     * Compute the dot products of several rows with a vector.
+     *
+     * @param rowIdx The row indexes.
+     * @param n The number of row indexes to use from {@code rowIdx}.
+     * @param vec The vector, with one entry per column.
+     * @param out The output array; {@code out[k]} receives the dot product of row
+     *            {@code rowIdx[k]} with {@code vec}.
+     */
+    public void dotRows(int[] rowIdx, int n, double[] vec, double[] out) {
+        Preconditions.checkArgument(vec.length == columns, "vector has incorrect length");
+        Preconditions.checkArgument(n <= rowIdx.length && n <= out.length, "arrays too short");
+        for (int k = 0; k < n; k++) {
+            int row = rowIdx[k];
+            Preconditions.checkElementIndex(row, rows, "row");
+            double sum = 0;
+            int off = row * columns;
+            for (int j = 0; j < columns; j++) {
+                sum += data[off + j] * vec[j];
+            }
+            out[k] = sum;
+        }
+    }
+
+    private void checkIndex(int row, int column) {
+        Preconditions.checkElementIndex(row, rows, "row");
+        Preconditions.checkElementIndex(column, columns, "column");
+    }
+}
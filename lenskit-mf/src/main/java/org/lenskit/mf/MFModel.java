@@ -25,12 +25,10 @@
 package org.lenskit.mf;
 
 import com.google.common.base.Preconditions;
-import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.inject.Shareable;
 import org.lenskit.util.keys.KeyIndex;
-import org.lenskit.util.math.Vectors;
 
 import javax.annotation.Nullable;
 import java.io.*;
@@ -56,8 +54,9 @@ public class MFModel implements Serializable {
     protected KeyIndex itemIndex;
 
     /**
-     * Construct a matrix factorization model.  The matrices are not copied, so the caller should
-     * make sure they won't be modified by anyone else.
+     * Construct a matrix factorization model.  Matrices that are already {@link DenseFactorMatrix}
+     * instances are not copied, so the caller should make sure they won't be modified by anyone
+     * else; other matrices are copied into dense storage.
      *
      * @param umat The user feature matrix (users x features).
      * @param imat The item feature matrix (items x features).
@@ -77,8 +76,8 @@ public class MFModel implements Serializable {
         Preconditions.checkArgument(imat.getRowDimension() == itemCount,
                                     "item matrix has %s rows, expected %s",
                                     imat.getRowDimension(), itemCount);
-        userMatrix = umat;
-        itemMatrix = imat;
+        userMatrix = DenseFactorMatrix.of(umat);
+        itemMatrix = DenseFactorMatrix.of(imat);
         userIndex = uidx;
         itemIndex = iidx;
     }
@@ -109,7 +108,7 @@ public class MFModel implements Serializable {
         userCount = input.readInt();
         itemCount = input.readInt();
 
-        RealMatrix umat = MatrixUtils.createRealMatrix(userCount, featureCount);
+        DenseFactorMatrix umat = new DenseFactorMatrix(userCount, featureCount);
         for (int i = 0; i < userCount; i++) {
             for (int j = 0; j < featureCount; j++) {
                 umat.setEntry(i, j, input.readDouble());
@@ -117,7 +116,7 @@ public class MFModel implements Serializable {
         }
         userMatrix = umat;
 
-        RealMatrix imat = MatrixUtils.createRealMatrix(itemCount, featureCount);
+        DenseFactorMatrix imat = new DenseFactorMatrix(itemCount, featureCount);
         for (int i = 0; i < itemCount; i++) {
             for (int j = 0; j < featureCount; j++) {
                 imat.setEntry(i, j, input.readDouble());
@@ -189,13 +188,39 @@ public class MFModel implements Serializable {
         return itemMatrix;
     }
 
+    /**
+     * Get the user matrix in dense storage, for fast row access.  This is the model's own matrix, so
+     * writes to it change the model.
+     * @return The user matrix (users x features).
+     * @throws IllegalStateException if a subclass has replaced the user matrix with a matrix that is
+     *         not a {@link DenseFactorMatrix}.
+     */
+    public DenseFactorMatrix getUserFactors() {
+        Preconditions.checkState(userMatrix instanceof DenseFactorMatrix,
+                                 "user matrix is not a dense factor matrix");
+        return (DenseFactorMatrix) userMatrix;
+    }
+
+    /**
+     * Get the item matrix in dense storage, for fast row access.  This is the model's own matrix, so
+     * writes to it change the model.
+     * @return The item matrix (items x features).
+     * @throws IllegalStateException if a subclass has replaced the item matrix with a matrix that is
+     *         not a {@link DenseFactorMatrix}.
+     */
+    public DenseFactorMatrix getItemFactors() {
+        Preconditions.checkState(itemMatrix instanceof DenseFactorMatrix,
+                                 "item matrix is not a dense factor matrix");
+        return (DenseFactorMatrix) itemMatrix;
+    }
+
     @Nullable
     public RealVector getUserVector(long user) {
         int uidx = userIndex.tryGetIndex(user);
         if (uidx < 0) {
             return null;
         } else {
-            return Vectors.matrixRow(userMatrix, uidx);
+            return userMatrix.getRowVector(uidx);
         }
     }
 
@@ -205,7 +230,7 @@ public class MFModel implements Serializable {
         if (iidx < 0) {
             return null;
         } else {
-            return Vectors.matrixRow(itemMatrix, iidx);
+            return itemMatrix.getRowVector(iidx);
         }
     }
 
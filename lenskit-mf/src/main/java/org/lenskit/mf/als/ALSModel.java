@@ -0,0 +1,488 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.als;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.ratings.Preference;
+import org.lenskit.inject.Shareable;
+import org.lenskit.mf.DenseFactorMatrix;
+import org.lenskit.mf.MFModel;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Matrix factorization model trained with alternating least squares (ALS).  Each training
+ * iteration solves every user's feature vector against the fixed item features, and then every
+ * item's against the fixed user features; the individual solves are independent, so they run in
+ * parallel.  Features are fit to the rating residuals after the bias model's baseline, so the model
+ * is used with {@link org.lenskit.mf.BiasedMFItemScorer} and the same {@link BiasModel}.
+ *
+ * <p>The model keeps its training residuals so that it can <em>fold out</em> deleted or changed
+ * ratings: the affected user's feature vector is re-solved against the frozen item features, and
+ * then {@link FoldInSweepCount} times the affected items are re-solved against the frozen user
+ * features and the user is solved again.  This is much cheaper than retraining, but it is an
+ * approximation: the other users' features are not revisited.  Users with no remaining ratings
+ * have no feature vector.</p>
+ *
+ * <p>Folding out is <em>not</em> exact unlearning.  The bias model is frozen: the global mean and
+ * the user and item biases it was trained with still include the removed ratings, and so do the
+ * residuals of every remaining rating, and the scorer keeps using the same biases.  Only
+ * retraining the bias model and this model removes every trace of a rating.</p>
+ *
+ * <p>Updates are serialized with each other, and each user's vector is replaced atomically, but a
+ * scorer running concurrently with an update may see some item vectors from before the update and
+ * some from after it.</p>
+ *
+ * @since 3.0
+ */
+@DefaultProvider(ALSModelProvider.class)
+@Shareable
+@ThreadSafe
+public class ALSModel extends MFModel {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ALSModel.class);
+
+    private final BiasModel biasModel;
+    private final double regularization;
+    private final int foldInSweeps;
+    /* Per-user rated item indexes and residuals, sorted by item index. */
+    private final int[][] userItems;
+    private final double[][] userResiduals;
+    /* Per-item rating user indexes and residuals, sorted by user index. */
+    private final int[][] itemUsers;
+    private final double[][] itemResiduals;
+
+    /**
+     * Construct a model with zero user features and the given initial item features.
+     *
+     * @param ratings The training ratings, as a map of user indexes to maps of item indexes to ratings.
+     * @param itemFeatures The initial item features.
+     * @param uidx The user index.
+     * @param iidx The item index.
+     * @param bias The bias model.
+     * @param reg The regularization term.
+     * @param sweeps The number of item sweeps when folding out a user's ratings.
+     */
+    ALSModel(Int2ObjectMap<Int2DoubleMap> ratings, DenseFactorMatrix itemFeatures,
+             KeyIndex uidx, KeyIndex iidx, BiasModel bias, double reg, int sweeps) {
+        super(new DenseFactorMatrix(uidx.size(), itemFeatures.getColumnDimension()),
+              itemFeatures, uidx, iidx);
+        biasModel = bias;
+        regularization = reg;
+        foldInSweeps = sweeps;
+
+        userItems = new int[userCount][];
+        userResiduals = new double[userCount][];
+        int[] itemCounts = new int[itemCount];
+        for (int u = 0; u < userCount; u++) {
+            Int2DoubleMap row = ratings.get(u);
+            if (row == null) {
+                row = Int2DoubleMaps.EMPTY_MAP;
+            }
+            setUserRow(u, row);
+            for (int i: userItems[u]) {
+                itemCounts[i] += 1;
+            }
+        }
+
+        itemUsers = new int[itemCount][];
+        itemResiduals = new double[itemCount][];
+        for (int i = 0; i < itemCount; i++) {
+            itemUsers[i] = new int[itemCounts[i]];
+            itemResiduals[i] = new double[itemCounts[i]];
+        }
+        // users are visited in order, so each item's users come out sorted
+        int[] fill = new int[itemCount];
+        for (int u = 0; u < userCount; u++) {
+            int[] items = userItems[u];
+            for (int k = 0; k < items.length; k++) {
+                int i = items[k];
+                itemUsers[i][fill[i]] = u;
+                itemResiduals[i][fill[i]] = userResiduals[u][k];
+                fill[i] += 1;
+            }
+        }
+    }
+
+    /**
+     * Train the model.
+     * @param iterations The number of user/item iterations.
+     */
+    void train(int iterations) {
+        for (int iter = 0; iter < iterations; iter++) {
+            IntStream.range(0, userCount).parallel().forEach(this::solveUser);
+            IntStream.range(0, itemCount).parallel().forEach(this::solveItem);
+            if (logger.isDebugEnabled()) {
+                logger.debug("finished iteration {} with RMSE {}", iter + 1, computeRMSE());
+            }
+        }
+    }
+
+    /**
+     * Compute the RMSE of the model's features on its training residuals.
+     * @return The training RMSE.
+     */
+    double computeRMSE() {
+        DenseFactorMatrix users = getUserFactors();
+        DenseFactorMatrix items = getItemFactors();
+        double[] uvec = new double[featureCount];
+        double sse = 0;
+        int n = 0;
+        for (int u = 0; u < userCount; u++) {
+            users.copyRow(u, uvec);
+            for (int k = 0; k < userItems[u].length; k++) {
+                double err = userResiduals[u][k] - items.dotRow(userItems[u][k], uvec);
+                sse += err * err;
+                n += 1;
+            }
+        }
+        return n > 0 ? Math.sqrt(sse / n) : Double.NaN;
+    }
+
+    /**
+     * Get the bias model whose residuals this model was trained on.
+     * @return The bias model.
+     */
+    public BiasModel getBiasModel() {
+        return biasModel;
+    }
+
+    /**
+     * Get the number of item sweeps done when folding out ratings.
+     * @return The number of item sweeps.
+     */
+    public int getFoldInSweepCount() {
+        return foldInSweeps;
+    }
+
+    @Nullable
+    @Override
+    public synchronized RealVector getUserVector(long user) {
+        int uidx = userIndex.tryGetIndex(user);
+        if (uidx < 0 || userItems[uidx].length == 0) {
+            return null;
+        }
+        return userMatrix.getRowVector(uidx);
+    }
+
+    @Override
+    public synchronized double getUserFeature(long uid, int feature) {
+        return super.getUserFeature(uid, feature);
+    }
+
+    /**
+     * Compute the feature vector for a set of ratings against the current item features, without
+     * modifying the model.  This folds in a user who was not in the training data.
+     *
+     * @param user The user ID, used to look up the user's bias.
+     * @param ratings The user's ratings.  Ratings of items not in the model are ignored.
+     * @return The user's feature vector.
+     */
+    public synchronized RealVector foldInUser(long user, Long2DoubleMap ratings) {
+        Int2DoubleMap row = indexRatings(user, ratings);
+        double[] result = new double[featureCount];
+        solve(getItemFactors(), row.keySet().toIntArray(), row.values().toDoubleArray(), result);
+        return new ArrayRealVector(result, false);
+    }
+
+    /**
+     * Replace a user's ratings and fold the change into the model.
+     *
+     * @param user The user ID.
+     * @param ratings The user's new ratings.  Ratings of items not in the model are ignored.
+     * @return {@code true} if the user is in the model (and was updated).
+     */
+    public synchronized boolean updateUserRatings(long user, Long2DoubleMap ratings) {
+        int uidx = userIndex.tryGetIndex(user);
+        if (uidx < 0) {
+            return false;
+        }
+        replaceResiduals(uidx, indexRatings(user, ratings));
+        return true;
+    }
+
+    /**
+     * Remove all of a user's ratings.  Their items are re-solved, and the user no longer has a
+     * feature vector.
+     *
+     * @param user The user ID.
+     * @return {@code true} if the user had ratings.
+     */
+    public boolean removeUser(long user) {
+        return removeUserRatings(user, null);
+    }
+
+    /**
+     * Remove a rating and fold the change into the model.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the rating was present.
+     */
+    public boolean removeRating(long user, long item) {
+        return removeUserRatings(user, IntSets.singleton(itemIndex.tryGetIndex(item)));
+    }
+
+    /**
+     * Remove several ratings, folding out each affected user once.
+     * @param prefs The ratings to remove; only their user and item IDs are used.
+     * @return The number of ratings that were present and removed.
+     */
+    public synchronized int removeRatings(Iterable<? extends Preference> prefs) {
+        Long2ObjectMap<IntSet> byUser = new Long2ObjectOpenHashMap<>();
+        for (Preference p: prefs) {
+            IntSet items = byUser.get(p.getUserId());
+            if (items == null) {
+                items = new IntOpenHashSet();
+                byUser.put(p.getUserId(), items);
+            }
+            items.add(itemIndex.tryGetIndex(p.getItemId()));
+        }
+        int n = 0;
+        for (Long2ObjectMap.Entry<IntSet> e: byUser.long2ObjectEntrySet()) {
+            int uidx = userIndex.tryGetIndex(e.getLongKey());
+            if (uidx >= 0) {
+                n += removeFromUser(uidx, e.getValue());
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Remove some or all of a user's ratings.
+     * @param items The indexes of the items to remove, or {@code null} to remove all ratings.
+     * @return Whether any ratings were removed.
+     */
+    private synchronized boolean removeUserRatings(long user, @Nullable IntSet items) {
+        int uidx = userIndex.tryGetIndex(user);
+        return uidx >= 0 && removeFromUser(uidx, items) > 0;
+    }
+
+    private int removeFromUser(int uidx, @Nullable IntSet items) {
+        assert Thread.holdsLock(this);
+        Int2DoubleMap kept = new Int2DoubleOpenHashMap();
+        int removed = 0;
+        for (int k = 0; k < userItems[uidx].length; k++) {
+            int i = userItems[uidx][k];
+            if (items == null || items.contains(i)) {
+                removed += 1;
+            } else {
+                kept.put(i, userResiduals[uidx][k]);
+            }
+        }
+        if (removed > 0) {
+            replaceResiduals(uidx, kept);
+        }
+        return removed;
+    }
+
+    /**
+     * Convert a rating vector to item indexes and residuals.
+     */
+    private Int2DoubleMap indexRatings(long user, Long2DoubleMap ratings) {
+        Int2DoubleMap row = new Int2DoubleOpenHashMap(ratings.size());
+        double base = biasModel.getIntercept() + biasModel.getUserBias(user);
+        for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(ratings)) {
+            int iidx = itemIndex.tryGetIndex(e.getLongKey());
+            if (iidx >= 0) {
+                row.put(iidx, e.getDoubleValue() - base - biasModel.getItemBias(e.getLongKey()));
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Replace a user's residuals and re-solve the user and the affected items.
+     */
+    private void replaceResiduals(int uidx, Int2DoubleMap residuals) {
+        assert Thread.holdsLock(this);
+        IntSortedSet touched = new IntAVLTreeSet(userItems[uidx]);
+        touched.addAll(residuals.keySet());
+        for (int i: userItems[uidx]) {
+            removeItemEntry(i, uidx);
+        }
+        setUserRow(uidx, residuals);
+        for (int k = 0; k < userItems[uidx].length; k++) {
+            addItemEntry(userItems[uidx][k], uidx, userResiduals[uidx][k]);
+        }
+
+        solveUser(uidx);
+        for (int s = 0; s < foldInSweeps; s++) {
+            IntIterator iter = touched.iterator();
+            while (iter.hasNext()) {
+                solveItem(iter.nextInt());
+            }
+            solveUser(uidx);
+        }
+        logger.debug("folded {} ratings of user {} into the model ({} items affected)",
+                     residuals.size(), userIndex.getKey(uidx), touched.size());
+    }
+
+    private void setUserRow(int uidx, Int2DoubleMap row) {
+        int[] items = row.keySet().toIntArray();
+        IntArrays.quickSort(items);
+        double[] values = new double[items.length];
+        for (int k = 0; k < items.length; k++) {
+            values[k] = row.get(items[k]);
+        }
+        userItems[uidx] = items;
+        userResiduals[uidx] = values;
+    }
+
+    private void removeItemEntry(int iidx, int uidx) {
+        int pos = IntArrays.binarySearch(itemUsers[iidx], uidx);
+        if (pos >= 0) {
+            int n = itemUsers[iidx].length;
+            int[] users = new int[n - 1];
+            double[] values = new double[n - 1];
+            System.arraycopy(itemUsers[iidx], 0, users, 0, pos);
+            System.arraycopy(itemUsers[iidx], pos + 1, users, pos, n - pos - 1);
+            System.arraycopy(itemResiduals[iidx], 0, values, 0, pos);
+            System.arraycopy(itemResiduals[iidx], pos + 1, values, pos, n - pos - 1);
+            itemUsers[iidx] = users;
+            itemResiduals[iidx] = values;
+        }
+    }
+
+    private void addItemEntry(int iidx, int uidx, double value) {
+        int pos = IntArrays.binarySearch(itemUsers[iidx], uidx);
+        assert pos < 0;
+        pos = -pos - 1;
+        int n = itemUsers[iidx].length;
+        int[] users = new int[n + 1];
+        double[] values = new double[n + 1];
+        System.arraycopy(itemUsers[iidx], 0, users, 0, pos);
+        System.arraycopy(itemUsers[iidx], pos, users, pos + 1, n - pos);
+        System.arraycopy(itemResiduals[iidx], 0, values, 0, pos);
+        System.arraycopy(itemResiduals[iidx], pos, values, pos + 1, n - pos);
+        users[pos] = uidx;
+        values[pos] = value;
+        itemUsers[iidx] = users;
+        itemResiduals[iidx] = values;
+    }
+
+    private void solveUser(int uidx) {
+        double[] result = new double[featureCount];
+        solve(getItemFactors(), userItems[uidx], userResiduals[uidx], result);
+        getUserFactors().setRow(uidx, result);
+    }
+
+    private void solveItem(int iidx) {
+        double[] result = new double[featureCount];
+        solve(getUserFactors(), itemUsers[iidx], itemResiduals[iidx], result);
+        getItemFactors().setRow(iidx, result);
+    }
+
+    /**
+     * Solve the regularized least-squares problem for one row against the fixed rows of the other
+     * side.  The regularization is weighted by the number of ratings.
+     *
+     * @param other The fixed feature matrix.
+     * @param rows The rows of {@code other} with ratings.
+     * @param values The residuals for each row.
+     * @param result The array to receive the solution (zero if there are no rows).
+     */
+    private void solve(DenseFactorMatrix other, int[] rows, double[] values, double[] result) {
+        int nf = featureCount;
+        Arrays.fill(result, 0);
+        if (rows.length == 0) {
+            return;
+        }
+        double[] gram = new double[nf * nf];
+        double[] vec = new double[nf];
+        for (int k = 0; k < rows.length; k++) {
+            other.copyRow(rows[k], vec);
+            double r = values[k];
+            for (int a = 0; a < nf; a++) {
+                result[a] += r * vec[a];
+                // only the lower triangle is used
+                for (int b = 0; b <= a; b++) {
+                    gram[a * nf + b] += vec[a] * vec[b];
+                }
+            }
+        }
+        double lambda = regularization * rows.length;
+        for (int a = 0; a < nf; a++) {
+            gram[a * nf + a] += lambda;
+        }
+        choleskySolve(gram, result, nf);
+    }
+
+    /**
+     * Solve a symmetric positive definite system in place using its Cholesky decomposition.
+     *
+     * @param a The matrix, row-major; only the lower triangle is read.  It is overwritten.
+     * @param b The right-hand side; it is overwritten with the solution.
+     * @param n The dimension.
+     */
+    static void choleskySolve(double[] a, double[] b, int n) {
+        for (int j = 0; j < n; j++) {
+            double d = a[j * n + j];
+            for (int p = 0; p < j; p++) {
+                d -= a[j * n + p] * a[j * n + p];
+            }
+            Preconditions.checkState(d > 0, "matrix is not positive definite");
+            d = Math.sqrt(d);
+            a[j * n + j] = d;
+            for (int i = j + 1; i < n; i++) {
+                double s = a[i * n + j];
+                for (int p = 0; p < j; p++) {
+                    s -= a[i * n + p] * a[j * n + p];
+                }
+                a[i * n + j] = s / d;
+            }
+        }
+        // forward substitution with L
+        for (int i = 0; i < n; i++) {
+            double s = b[i];
+            for (int p = 0; p < i; p++) {
+                s -= a[i * n + p] * b[p];
+            }
+            b[i] = s / a[i * n + i];
+        }
+        // back substitution with L^T
+        for (int i = n - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int p = i + 1; p < n; p++) {
+                s -= a[p * n + i] * b[p];
+            }
+            b[i] = s / a[i * n + i];
+        }
+    }
+}
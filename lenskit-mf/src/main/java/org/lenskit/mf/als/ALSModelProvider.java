@@ -0,0 +1,119 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.als;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import org.apache.commons.lang3.time.StopWatch;
+import org.grouplens.lenskit.iterative.RegularizationTerm;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+import org.lenskit.mf.DenseFactorMatrix;
+import org.lenskit.mf.funksvd.FeatureCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Random;
+
+/**
+ * Train an {@link ALSModel}.  Item features are initialized with small random values, and then
+ * {@link AlternationCount} iterations of alternating least squares are run on the residuals of
+ * the ratings after the bias model's baseline.
+ */
+public class ALSModelProvider implements Provider<ALSModel> {
+    private static final Logger logger = LoggerFactory.getLogger(ALSModelProvider.class);
+    private static final double INITIAL_SCALE = 0.1;
+
+    private final RatingMatrix snapshot;
+    private final BiasModel biasModel;
+    private final int featureCount;
+    private final double regularization;
+    private final int iterationCount;
+    private final int foldInSweeps;
+    private final Random random;
+
+    @Inject
+    public ALSModelProvider(@Transient @Nonnull RatingMatrix snapshot,
+                            @Nonnull BiasModel bias,
+                            @FeatureCount int featureCount,
+                            @RegularizationTerm double reg,
+                            @AlternationCount int iterations,
+                            @FoldInSweepCount int sweeps,
+                            @Transient Random rng) {
+        Preconditions.checkArgument(featureCount > 0, "feature count must be positive");
+        Preconditions.checkArgument(reg > 0, "regularization must be positive");
+        Preconditions.checkArgument(sweeps >= 0, "sweep count must be non-negative");
+        this.snapshot = snapshot;
+        biasModel = bias;
+        this.featureCount = featureCount;
+        regularization = reg;
+        iterationCount = iterations;
+        foldInSweeps = sweeps;
+        random = rng;
+    }
+
+    @Override
+    public ALSModel get() {
+        int nitems = snapshot.getItemIds().size();
+        logger.info("Building ALS model with {} features for {} ratings",
+                    featureCount, snapshot.getRatings().size());
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Int2ObjectMap<Int2DoubleMap> residuals = new Int2ObjectOpenHashMap<>();
+        double intercept = biasModel.getIntercept();
+        for (RatingMatrixEntry r: snapshot.getRatings()) {
+            Int2DoubleMap row = residuals.get(r.getUserIndex());
+            if (row == null) {
+                row = new Int2DoubleOpenHashMap();
+                residuals.put(r.getUserIndex(), row);
+            }
+            double base = intercept + biasModel.getUserBias(r.getUserId()) + biasModel.getItemBias(r.getItemId());
+            row.put(r.getItemIndex(), r.getValue() - base);
+        }
+
+        DenseFactorMatrix items = new DenseFactorMatrix(nitems, featureCount);
+        for (int i = 0; i < nitems; i++) {
+            for (int f = 0; f < featureCount; f++) {
+                items.setEntry(i, f, random.nextGaussian() * INITIAL_SCALE);
+            }
+        }
+
+        ALSModel model = new ALSModel(residuals, items, snapshot.userIndex(), snapshot.itemIndex(),
+                                      biasModel, regularization, foldInSweeps);
+        model.train(iterationCount);
+        timer.stop();
+        logger.info("Trained ALS model in {}", timer);
+        return model;
+    }
+}
@@ -24,14 +24,14 @@
  */
 package org.lenskit.mf.funksvd;
 
-import org.apache.commons.math3.linear.RealVector;
+import com.google.common.base.Preconditions;
 import org.grouplens.grapht.annotation.DefaultImplementation;
 import org.lenskit.bias.BiasModel;
 import org.lenskit.data.ratings.PreferenceDomain;
 import org.lenskit.mf.BiasedMFItemScorer;
+import org.lenskit.mf.DenseFactorMatrix;
 import org.lenskit.mf.MFModel;
 
-import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 
@@ -61,16 +61,23 @@ public class FunkSVDItemScorer extends BiasedMFItemScorer {
     }
 
     @Override
-    protected double computeScore(double bias, @Nonnull RealVector user, @Nonnull RealVector item) {
+    protected void computeScores(double[] baselines, double[] user, DenseFactorMatrix items,
+                                 int[] rows, int n, double[] scores) {
         if (domain == null) {
-            return super.computeScore(bias, user, item);
+            super.computeScores(baselines, user, items, rows, n, scores);
         } else {
-            double result = bias;
-            int n = user.getDimension();
-            for (int i = 0; i < n; i++) {
-                result = domain.clampValue(result + user.getEntry(i) * item.getEntry(i));
+            int nf = items.getColumnDimension();
+            Preconditions.checkArgument(user.length == nf, "user vector has incorrect length");
+            double[] data = items.getDataRef();
+            for (int k = 0; k < n; k++) {
+                Preconditions.checkElementIndex(rows[k], items.getRowDimension(), "row");
+                int off = rows[k] * nf;
+                double result = baselines[k];
+                for (int f = 0; f < nf; f++) {
+                    result = domain.clampValue(result + user[f] * data[off + f]);
+                }
+                scores[k] = result;
             }
-            return result;
         }
     }
 
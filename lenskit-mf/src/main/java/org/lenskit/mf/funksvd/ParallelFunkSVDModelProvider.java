@@ -0,0 +1,188 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * FunkSVD builder that trains each feature in parallel with distributed stochastic gradient
+ * descent (DSGD).
+ *
+ * <p>Users and items are each split into <em>B</em> blocks, splitting the ratings into
+ * <em>B&times;B</em> cells.  Each epoch runs in <em>B</em> sub-epochs; sub-epoch <em>s</em> trains
+ * the <em>B</em> cells (<em>b</em>, <em>b+s</em> mod <em>B</em>) in parallel.  Those cells share
+ * no users or items, so the threads never update the same feature value, and every rating is
+ * visited once per epoch.  Each rating is trained with the usual {@link FunkSVDUpdateRule}, so the
+ * model differs from the one built by {@link FunkSVDModelProvider} only in the order in which
+ * ratings are visited.  Feature info is reported as usual.</p>
+ *
+ * <p>To use it, bind {@link FunkSVDModel} to this provider; {@link TrainingBlockCount} controls
+ * the number of blocks.</p>
+ */
+public class ParallelFunkSVDModelProvider extends FunkSVDModelProvider {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelFunkSVDModelProvider.class);
+
+    private final int blockCount;
+    private final Cell[][] cells;
+
+    @Inject
+    public ParallelFunkSVDModelProvider(@Transient @Nonnull RatingMatrix snapshot,
+                                        @Transient @Nonnull FunkSVDUpdateRule rule,
+                                        @FeatureCount int featureCount,
+                                        @InitialFeatureValue double initVal,
+                                        @TrainingBlockCount int blocks) {
+        super(snapshot, rule, featureCount, initVal);
+        blockCount = blocks > 0 ? blocks : Runtime.getRuntime().availableProcessors();
+        cells = makeCells(snapshot, blockCount);
+    }
+
+    /**
+     * Split the ratings into cells by user and item block.  Ratings keep their original order
+     * within each cell.
+     */
+    private static Cell[][] makeCells(RatingMatrix snapshot, int nblocks) {
+        Cell.Builder[][] builders = new Cell.Builder[nblocks][nblocks];
+        for (int i = 0; i < nblocks; i++) {
+            for (int j = 0; j < nblocks; j++) {
+                builders[i][j] = new Cell.Builder();
+            }
+        }
+        for (RatingMatrixEntry r: snapshot.getRatings()) {
+            builders[r.getUserIndex() % nblocks][r.getItemIndex() % nblocks].add(r);
+        }
+
+        Cell[][] cells = new Cell[nblocks][nblocks];
+        for (int i = 0; i < nblocks; i++) {
+            for (int j = 0; j < nblocks; j++) {
+                cells[i][j] = builders[i][j].build();
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation trains on the ratings of the snapshot, split into blocks, rather
+     * than on {@code ratings}.</p>
+     */
+    @Override
+    protected double doFeatureIteration(TrainingEstimator estimates,
+                                        List<RatingMatrixEntry> ratings,
+                                        RealVector userFeatureVector, RealVector itemFeatureVector,
+                                        double trail) {
+        double sse = 0;
+        int n = 0;
+        for (int s = 0; s < blockCount; s++) {
+            final int shift = s;
+            // each task writes only its own users' and items' feature values
+            double[][] stats = IntStream.range(0, blockCount)
+                                        .parallel()
+                                        .mapToObj(b -> trainCell(cells[b][(b + shift) % blockCount], estimates,
+                                                                 userFeatureVector, itemFeatureVector, trail))
+                                        .toArray(double[][]::new);
+            for (double[] st: stats) {
+                sse += st[0];
+                n += (int) st[1];
+            }
+        }
+
+        logger.trace("finished iteration over {} ratings in {} blocks", n, blockCount);
+        return n > 0 ? Math.sqrt(sse / n) : Double.NaN;
+    }
+
+    /**
+     * Train the ratings in a cell.
+     * @return The squared error and the number of ratings.
+     */
+    private double[] trainCell(Cell cell, TrainingEstimator estimates,
+                               RealVector userFeatureVector, RealVector itemFeatureVector,
+                               double trail) {
+        FunkSVDTrainingUpdater updater = rule.createUpdater();
+        for (int k = 0; k < cell.size; k++) {
+            final int uidx = cell.users[k];
+            final int iidx = cell.items[k];
+
+            updater.prepare(0, cell.values[k], estimates.get(cell.indexes[k]),
+                            userFeatureVector.getEntry(uidx), itemFeatureVector.getEntry(iidx), trail);
+
+            userFeatureVector.addToEntry(uidx, updater.getUserFeatureUpdate());
+            itemFeatureVector.addToEntry(iidx, updater.getItemFeatureUpdate());
+        }
+        int count = updater.getUpdateCount();
+        double rmse = count > 0 ? updater.getRMSE() : 0;
+        return new double[]{rmse * rmse * count, count};
+    }
+
+    /**
+     * The ratings in one cell, stored in parallel arrays.
+     */
+    private static class Cell {
+        final int size;
+        final int[] indexes;
+        final int[] users;
+        final int[] items;
+        final double[] values;
+
+        Cell(int[] idx, int[] us, int[] is, double[] vs) {
+            size = idx.length;
+            indexes = idx;
+            users = us;
+            items = is;
+            values = vs;
+        }
+
+        static class Builder {
+            private final IntArrayList indexes = new IntArrayList();
+            private final IntArrayList users = new IntArrayList();
+            private final IntArrayList items = new IntArrayList();
+            private final DoubleArrayList values = new DoubleArrayList();
+
+            void add(RatingMatrixEntry r) {
+                indexes.add(r.getIndex());
+                users.add(r.getUserIndex());
+                items.add(r.getItemIndex());
+                values.add(r.getValue());
+            }
+
+            Cell build() {
+                return new Cell(indexes.toIntArray(), users.toIntArray(),
+                                items.toIntArray(), values.toDoubleArray());
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.basic.AbstractItemScorer;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.results.Results;
+import org.lenskit.util.collections.LongUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Item scorer for a {@link ShardedFunkSVDModel}.  A user's scores come from the model of the shard containing the
+ * user.  Items that do not appear in that shard are scored by aggregating the other shards: each shard that knows
+ * the item contributes the score of its average user, and the contributions are averaged.
+ *
+ * Like {@link FunkSVDItemScorer}, scores are clamped to the preference domain, if one is configured.
+ */
+public class ShardedFunkSVDItemScorer extends AbstractItemScorer {
+    private final ShardedFunkSVDModel model;
+    private final BiasModel biasModel;
+    private final PreferenceDomain domain;
+
+    /**
+     * Construct the item scorer.
+     *
+     * @param model The sharded model.
+     * @param baseline The bias model.
+     * @param dom The preference domain.
+     */
+    @Inject
+    public ShardedFunkSVDItemScorer(ShardedFunkSVDModel model, BiasModel baseline,
+                                    @Nullable PreferenceDomain dom) {
+        this.model = model;
+        biasModel = baseline;
+        domain = dom;
+    }
+
+    public ShardedFunkSVDModel getModel() {
+        return model;
+    }
+
+    @Nonnull
+    @Override
+    public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
+        FunkSVDModel userModel = model.getUserModel(user);
+        RealVector uvec = userModel != null ? userModel.getUserVector(user) : null;
+        if (uvec == null) {
+            return Results.newResultMap();
+        }
+
+        // items with no item bias are absent from the map, so add the user baseline separately
+        Long2DoubleMap itemBiases = biasModel.getItemBiases(LongUtils.packedSet(items));
+        double userBaseline = biasModel.getIntercept() + biasModel.getUserBias(user);
+
+        List<Result> results = new ArrayList<>(items.size());
+        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            double bias = userBaseline + itemBiases.get(item);
+            RealVector ivec = userModel.getItemVector(item);
+            if (ivec != null) {
+                results.add(Results.create(item, computeScore(bias, uvec, ivec)));
+            } else {
+                double sum = 0;
+                int n = 0;
+                for (int s = model.getShardCount() - 1; s >= 0; s--) {
+                    FunkSVDModel shard = model.getShardModel(s);
+                    RealVector sivec = shard != null ? shard.getItemVector(item) : null;
+                    if (sivec != null) {
+                        sum += computeScore(bias, shard.getAverageUserVector(), sivec);
+                        n += 1;
+                    }
+                }
+                if (n > 0) {
+                    results.add(Results.create(item, sum / n));
+                }
+            }
+        }
+
+        return Results.newResultMap(results);
+    }
+
+    private double computeScore(double bias, RealVector user, RealVector item) {
+        if (domain == null) {
+            return bias + user.dotProduct(item);
+        } else {
+            double result = bias;
+            int n = user.getDimension();
+            for (int i = 0; i < n; i++) {
+                result = domain.clampValue(result + user.getEntry(i) * item.getEntry(i));
+            }
+            return result;
+        }
+    }
+}
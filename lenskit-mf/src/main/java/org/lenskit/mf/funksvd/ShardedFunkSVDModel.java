@@ -0,0 +1,299 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectAVLTreeMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectSortedMap;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.data.ratings.PackedRatingMatrix;
+import org.lenskit.data.ratings.Preference;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.parallel.TaskGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * FunkSVD model trained as a collection of independent shards, in the style of SISA (sharded, isolated, sliced,
+ * aggregated) training.  Users are partitioned into disjoint shards by a hash of their IDs, and a separate
+ * {@link FunkSVDModel} is trained on each shard's ratings.  Each shard's ratings are shuffled with a fixed
+ * per-shard seed, so retraining a shard after a deletion produces exactly the model that training from scratch
+ * without the deleted data would have produced.
+ *
+ * Removing ratings retrains only the shards that held them; shard training runs in parallel on the common
+ * fork-join pool.  Readers are never blocked by retraining: a shard's model is replaced atomically once its
+ * retraining completes.
+ *
+ * @since 3.0
+ */
+@DefaultProvider(ShardedFunkSVDModelProvider.class)
+@Shareable
+@ThreadSafe
+public class ShardedFunkSVDModel implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ShardedFunkSVDModel.class);
+
+    private final FunkSVDUpdateRule rule;
+    private final int featureCount;
+    private final double initialValue;
+    private final long seed;
+    private final List<Long2ObjectSortedMap<Long2DoubleMap>> shardRatings;
+    private final long[] shardVersions;
+    private final long[] publishedVersions;
+    private final AtomicReferenceArray<FunkSVDModel> shardModels;
+
+    /**
+     * Construct and train a sharded model.
+     *
+     * @param ratings The ratings for each shard, as user rating vectors.  Users must be assigned to shards with
+     *                {@link #getShard(long, int)}.
+     * @param rule The update rule.
+     * @param nfeatures The number of features to train.
+     * @param init The initial feature value.
+     * @param seed The random seed for shuffling shard ratings.
+     */
+    ShardedFunkSVDModel(List<Long2ObjectMap<Long2DoubleMap>> ratings, FunkSVDUpdateRule rule,
+                        int nfeatures, double init, long seed) {
+        this.rule = rule;
+        featureCount = nfeatures;
+        initialValue = init;
+        this.seed = seed;
+        shardRatings = new ArrayList<>(ratings.size());
+        for (Long2ObjectMap<Long2DoubleMap> shard: ratings) {
+            // keep users and items sorted so each shard's training order depends only on its data
+            Long2ObjectSortedMap<Long2DoubleMap> sorted = new Long2ObjectAVLTreeMap<>();
+            for (Long2ObjectMap.Entry<Long2DoubleMap> e: shard.long2ObjectEntrySet()) {
+                sorted.put(e.getLongKey(), Long2DoubleSortedArrayMap.create(e.getValue()));
+            }
+            shardRatings.add(sorted);
+        }
+        shardVersions = new long[ratings.size()];
+        publishedVersions = new long[ratings.size()];
+        shardModels = new AtomicReferenceArray<>(ratings.size());
+
+        IntSet all = new IntAVLTreeSet();
+        for (int i = 0; i < ratings.size(); i++) {
+            all.add(i);
+        }
+        trainShards(all);
+    }
+
+    /**
+     * Get the shard to which a user belongs.
+     * @param user The user ID.
+     * @param nshards The number of shards.
+     * @return The user's shard number, in the range [0,nshards).
+     */
+    public static int getShard(long user, int nshards) {
+        // mix the bits so that patterned IDs spread out over the shards
+        long h = (user * 0x9E3779B97F4A7C15L) >>> 32;
+        return (int) (h % nshards);
+    }
+
+    /**
+     * Get the shard to which a user belongs.
+     * @param user The user ID.
+     * @return The user's shard number.
+     */
+    public int getShard(long user) {
+        return getShard(user, getShardCount());
+    }
+
+    /**
+     * Get the number of shards.
+     * @return The number of shards.
+     */
+    public int getShardCount() {
+        return shardModels.length();
+    }
+
+    /**
+     * Get the model for a shard.
+     * @param shard The shard number.
+     * @return The shard's model, or {@code null} if the shard has no ratings.
+     */
+    @Nullable
+    public FunkSVDModel getShardModel(int shard) {
+        return shardModels.get(shard);
+    }
+
+    /**
+     * Get the model for the shard containing a user.
+     * @param user The user ID.
+     * @return The model of the user's shard, or {@code null} if the shard has no ratings.
+     */
+    @Nullable
+    public FunkSVDModel getUserModel(long user) {
+        return shardModels.get(getShard(user));
+    }
+
+    /**
+     * Get the number of features in each shard's model.
+     * @return The feature count.
+     */
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * Remove a rating and retrain its shard.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the rating was present (and its shard was retrained).
+     */
+    public boolean removeRating(long user, long item) {
+        IntSet dirty = new IntAVLTreeSet();
+        synchronized (this) {
+            if (!removeFromShard(user, item, dirty)) {
+                return false;
+            }
+        }
+        trainShards(dirty);
+        return true;
+    }
+
+    /**
+     * Remove several ratings, retraining each affected shard once.
+     * @param prefs The ratings to remove; only their user and item IDs are used.
+     * @return The number of ratings that were present and removed.
+     */
+    public int removeRatings(Iterable<? extends Preference> prefs) {
+        IntSet dirty = new IntAVLTreeSet();
+        int n = 0;
+        synchronized (this) {
+            for (Preference p: prefs) {
+                if (removeFromShard(p.getUserId(), p.getItemId(), dirty)) {
+                    n += 1;
+                }
+            }
+        }
+        trainShards(dirty);
+        return n;
+    }
+
+    /**
+     * Remove all of a user's ratings and retrain their shard.
+     * @param user The user ID.
+     * @return {@code true} if the user had ratings (and their shard was retrained).
+     */
+    public boolean removeUser(long user) {
+        int shard = getShard(user);
+        synchronized (this) {
+            if (shardRatings.get(shard).remove(user) == null) {
+                return false;
+            }
+            shardVersions[shard] += 1;
+        }
+        trainShards(IntSets.singleton(shard));
+        return true;
+    }
+
+    private boolean removeFromShard(long user, long item, IntSet dirty) {
+        assert Thread.holdsLock(this);
+        int shard = getShard(user);
+        Long2ObjectMap<Long2DoubleMap> ratings = shardRatings.get(shard);
+        Long2DoubleMap uvec = ratings.get(user);
+        if (uvec == null || !uvec.containsKey(item)) {
+            return false;
+        }
+        // replace rather than modify, since a training snapshot may still be reading the old vector
+        Long2DoubleMap nvec = new Long2DoubleOpenHashMap(uvec);
+        nvec.remove(item);
+        if (nvec.isEmpty()) {
+            ratings.remove(user);
+        } else {
+            ratings.put(user, Long2DoubleSortedArrayMap.create(nvec));
+        }
+        shardVersions[shard] += 1;
+        dirty.add(shard);
+        return true;
+    }
+
+    /**
+     * Retrain a set of shards in parallel.
+     * @param shards The shards to retrain.
+     */
+    private void trainShards(IntSet shards) {
+        if (shards.isEmpty()) {
+            return;
+        }
+        logger.info("training {} of {} FunkSVD shards", shards.size(), getShardCount());
+        TaskGroup group = new TaskGroup(true);
+        IntIterator iter = shards.iterator();
+        while (iter.hasNext()) {
+            group.addTask(new ShardTrainer(iter.nextInt()));
+        }
+        ForkJoinPool.commonPool().invoke(group);
+    }
+
+    private class ShardTrainer extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int shard;
+
+        ShardTrainer(int shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        protected void compute() {
+            Long2ObjectSortedMap<Long2DoubleMap> ratings;
+            long version;
+            synchronized (ShardedFunkSVDModel.this) {
+                ratings = new Long2ObjectAVLTreeMap<>(shardRatings.get(shard));
+                version = shardVersions[shard];
+            }
+            FunkSVDModel model = null;
+            if (!ratings.isEmpty()) {
+                PackedRatingMatrix matrix = PackedRatingMatrix.fromUserVectors(ratings, new Random(seed + shard));
+                model = new FunkSVDModelProvider(matrix, rule, featureCount, initialValue).get();
+            }
+            synchronized (ShardedFunkSVDModel.this) {
+                // a concurrent retrain may already have published a model from newer data
+                if (version >= publishedVersions[shard]) {
+                    shardModels.set(shard, model);
+                    publishedVersions[shard] = version;
+                }
+            }
+            logger.debug("trained shard {} with {} users", shard, ratings.size());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Build a sharded FunkSVD model.  Users are partitioned into {@link ShardCount} shards, and each shard is trained
+ * with the same algorithm and parameters as {@link FunkSVDModelProvider}.
+ */
+public class ShardedFunkSVDModelProvider implements Provider<ShardedFunkSVDModel> {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedFunkSVDModelProvider.class);
+
+    private final RatingMatrix snapshot;
+    private final FunkSVDUpdateRule rule;
+    private final int featureCount;
+    private final double initialValue;
+    private final int shardCount;
+    private final Random random;
+
+    @Inject
+    public ShardedFunkSVDModelProvider(@Transient @Nonnull RatingMatrix snapshot,
+                                       @Nonnull FunkSVDUpdateRule rule,
+                                       @FeatureCount int featureCount,
+                                       @InitialFeatureValue double initVal,
+                                       @ShardCount int nshards,
+                                       @Transient Random rng) {
+        Preconditions.checkArgument(nshards > 0, "shard count must be positive");
+        this.snapshot = snapshot;
+        this.rule = rule;
+        this.featureCount = featureCount;
+        initialValue = initVal;
+        shardCount = nshards;
+        random = rng;
+    }
+
+    @Override
+    public ShardedFunkSVDModel get() {
+        List<Long2ObjectMap<Long2DoubleMap>> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new Long2ObjectOpenHashMap<Long2DoubleMap>());
+        }
+
+        LongIterator iter = snapshot.getUserIds().iterator();
+        while (iter.hasNext()) {
+            long user = iter.nextLong();
+            int shard = ShardedFunkSVDModel.getShard(user, shardCount);
+            shards.get(shard).put(user, snapshot.getUserRatingVector(user));
+        }
+
+        logger.info("building {} FunkSVD shards with {} features for {} ratings",
+                    shardCount, featureCount, snapshot.getRatings().size());
+        return new ShardedFunkSVDModel(shards, rule, featureCount, initialValue, random.nextLong());
+    }
+}
@@ -33,6 +33,7 @@ import org.lenskit.data.ratings.RatingMatrix;
 import org.lenskit.data.ratings.RatingMatrixEntry;
 
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Rating estimates used while training the predictor.  An estimator can be constructed
@@ -42,8 +43,9 @@ import java.util.List;
  * @since 1.1
  */
 public final class TrainingEstimator {
-    private final List<RatingMatrixEntry> ratings;
     private final double[] estimates;
+    private final int[] userIndexes;
+    private final int[] itemIndexes;
     private final PreferenceDomain domain;
 
     /**
@@ -53,9 +55,11 @@ public final class TrainingEstimator {
      * @param dom      The getEntry domain (for clamping).
      */
     TrainingEstimator(RatingMatrix snap, BiasModel baseline, PreferenceDomain dom) {
-        ratings = snap.getRatings();
+        List<RatingMatrixEntry> ratings = snap.getRatings();
         domain = dom;
         estimates = new double[ratings.size()];
+        userIndexes = new int[ratings.size()];
+        itemIndexes = new int[ratings.size()];
 
         final LongCollection userIds = snap.getUserIds();
         LongIterator userIter = userIds.iterator();
@@ -65,6 +69,8 @@ public final class TrainingEstimator {
             double userBias = baseline.getUserBias(r.getUserId());
             double itemBias = baseline.getItemBias(r.getItemId());
             estimates[r.getIndex()] = global + userBias + itemBias;
+            userIndexes[r.getIndex()] = r.getUserIndex();
+            itemIndexes[r.getIndex()] = r.getItemIndex();
         }
     }
 
@@ -77,20 +83,29 @@ public final class TrainingEstimator {
         return estimates[pref.getIndex()];
     }
 
+    /**
+     * Get the estimate for a rating by index.
+     * @param index The rating's index in the rating matrix.
+     * @return The estimate.
+     */
+    double get(int index) {
+        return estimates[index];
+    }
+
     /**
      * Update the current estimates with trained values for a new feature.
      * @param ufvs The user feature values.
      * @param ifvs The item feature values.
      */
     public void update(RealVector ufvs, RealVector ifvs) {
-        for (RatingMatrixEntry r : ratings) {
-            int idx = r.getIndex();
+        // each rating updates only its own estimate, so this can run in parallel
+        IntStream.range(0, estimates.length).parallel().forEach(idx -> {
             double est = estimates[idx];
-            est += ufvs.getEntry(r.getUserIndex()) * ifvs.getEntry(r.getItemIndex());
+            est += ufvs.getEntry(userIndexes[idx]) * ifvs.getEntry(itemIndexes[idx]);
             if (domain != null) {
                 est = domain.clampValue(est);
             }
             estimates[idx] = est;
-        }
+        });
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.lenskit.util.math.Scalars;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Variational parameters of the users or the items of a Poisson factorization model, stored in
+ * flat arrays.  This holds the same values as {@link PMFModel}, but the weight shape and rate of row
+ * {@code i} and feature {@code k} are at {@code i * featureCount + k} of contiguous arrays, so an
+ * update writes into existing storage instead of allocating an entry per user or item.
+ *
+ * <p>An instance is updated in place by {@link #update(RatingRows, FlatPMFModel, FlatPMFModel, double[],
+ * double, double, double, ThreadLocal)} from the previous iteration's parameters, so a provider only
+ * needs two instances per side, swapped after each iteration.</p>
+ */
+final class FlatPMFModel {
+    private final int rowCount;
+    private final int featureCount;
+    private final double[] weightShp;
+    private final double[] weightRte;
+    private final double[] activityShp;
+    private final double[] activityRte;
+    /* E[log weight], computed from the shape and rate by finish() */
+    private final double[] expLogWeight;
+    /* Sum over rows of E[weight] for each feature, computed by finish() */
+    private final double[] sumOfMeanWeight;
+
+    FlatPMFModel(int nrows, int nfeatures) {
+        rowCount = nrows;
+        featureCount = nfeatures;
+        weightShp = new double[nrows * nfeatures];
+        weightRte = new double[nrows * nfeatures];
+        activityShp = new double[nrows];
+        activityRte = new double[nrows];
+        expLogWeight = new double[nrows * nfeatures];
+        sumOfMeanWeight = new double[nfeatures];
+    }
+
+    /**
+     * Randomly initialize the parameters, in the same way as {@link PMFModel#initialize}.  Rows
+     * are initialized in order, so the result depends only on the random generator's state.
+     */
+    void initialize(double weightShpPrior, double activityShpPrior,
+                    double maxOffsetShp, double maxOffsetRte, Random random) {
+        final double actRte = activityShpPrior + featureCount;
+        for (int i = 0; i < rowCount; i++) {
+            int off = i * featureCount;
+            for (int k = 0; k < featureCount; k++) {
+                weightShp[off + k] = weightShpPrior + maxOffsetShp * random.nextDouble();
+                weightRte[off + k] = activityShpPrior + maxOffsetRte * random.nextDouble();
+            }
+            activityShp[i] = activityShpPrior + maxOffsetShp * random.nextDouble();
+            activityRte[i] = actRte;
+        }
+        finish();
+    }
+
+    /**
+     * Set the parameters of a row.  Call {@link #finish()} after setting all rows.
+     */
+    void setRow(int row, double[] shp, double[] rte, double actShp, double actRte) {
+        System.arraycopy(shp, 0, weightShp, row * featureCount, featureCount);
+        System.arraycopy(rte, 0, weightRte, row * featureCount, featureCount);
+        activityShp[row] = actShp;
+        activityRte[row] = actRte;
+    }
+
+    /**
+     * Recompute the expected log weights and the per-feature sums of the mean weights.
+     */
+    void finish() {
+        IntStream.range(0, rowCount).parallel().forEach(i -> {
+            int off = i * featureCount;
+            for (int k = 0; k < featureCount; k++) {
+                expLogWeight[off + k] = Scalars.digamma(weightShp[off + k]) - Math.log(weightRte[off + k]);
+            }
+        });
+        // sum sequentially, so the result does not depend on thread scheduling
+        Arrays.fill(sumOfMeanWeight, 0);
+        for (int i = 0; i < rowCount; i++) {
+            int off = i * featureCount;
+            for (int k = 0; k < featureCount; k++) {
+                sumOfMeanWeight[k] += weightShp[off + k] / weightRte[off + k];
+            }
+        }
+    }
+
+    /**
+     * Compute this model's parameters from the previous iteration.  For each row, the weight shape
+     * is the prior plus the sum of the rating-scaled multinomial parameters (phi) of its ratings,
+     * computed from the previous parameters of both sides; the weight rate is the previous mean
+     * activity plus {@code otherSum}; and the activity rate is updated from the new weights.
+     *
+     * @param rows The ratings of each row of this model.
+     * @param prevSelf The previous parameters of this side.
+     * @param prevOther The previous parameters of the other side.
+     * @param otherSum The per-feature sums of the other side's mean weights.
+     * @param weightShpPrior The weight shape prior of this side.
+     * @param activityShpPrior The activity shape prior of this side.
+     * @param activityPriorMean The activity prior mean of this side.
+     * @param scratch Per-thread buffers of length {@code featureCount}.
+     */
+    void update(RatingRows rows, FlatPMFModel prevSelf, FlatPMFModel prevOther, double[] otherSum,
+                double weightShpPrior, double activityShpPrior, double activityPriorMean,
+                ThreadLocal<double[]> scratch) {
+        assert rows.getRowCount() == rowCount;
+        final double actShp = activityShpPrior + featureCount * weightShpPrior;
+        final double actRtePrior = activityShpPrior / activityPriorMean;
+        IntStream.range(0, rowCount).parallel().forEach(i -> {
+            double[] phi = scratch.get();
+            int off = i * featureCount;
+            Arrays.fill(weightShp, off, off + featureCount, weightShpPrior);
+            for (int j = rows.offsets[i]; j < rows.offsets[i + 1]; j++) {
+                int other = rows.columns[j];
+                double rating = rows.values[j];
+                computePhi(phi, prevSelf, i, prevOther, other);
+                if (rating > 1) {
+                    for (int k = 0; k < featureCount; k++) {
+                        phi[k] *= rating;
+                    }
+                }
+                for (int k = 0; k < featureCount; k++) {
+                    weightShp[off + k] += phi[k];
+                }
+            }
+
+            double meanActivity = prevSelf.activityShp[i] / prevSelf.activityRte[i];
+            double actRte = actRtePrior;
+            for (int k = 0; k < featureCount; k++) {
+                double rte = meanActivity + otherSum[k];
+                weightRte[off + k] = rte;
+                actRte += weightShp[off + k] / rte;
+            }
+            activityShp[i] = actShp;
+            activityRte[i] = actRte;
+        });
+        finish();
+    }
+
+    /**
+     * Compute the normalized multinomial parameters for a rating.
+     */
+    private void computePhi(double[] phi, FlatPMFModel self, int row, FlatPMFModel other, int col) {
+        int soff = row * featureCount;
+        int ooff = col * featureCount;
+        for (int k = 0; k < featureCount; k++) {
+            phi[k] = self.expLogWeight[soff + k] + other.expLogWeight[ooff + k];
+        }
+        logNormalize(phi, featureCount);
+    }
+
+    static void logNormalize(double[] phi, int size) {
+        if (size == 1) {
+            phi[0] = 1.0;
+            return;
+        }
+        double logsum = phi[0];
+        for (int k = 1; k < size; k++) {
+            double phiK = phi[k];
+            if (phiK < logsum) {
+                logsum = logsum + Math.log(1 + Math.exp(phiK - logsum));
+            } else {
+                logsum = phiK + Math.log(1 + Math.exp(logsum - phiK));
+            }
+        }
+        for (int k = 0; k < size; k++) {
+            phi[k] = Math.exp(phi[k] - logsum);
+        }
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    int getFeatureCount() {
+        return featureCount;
+    }
+
+    double getWeightShpEntry(int row, int feature) {
+        return weightShp[row * featureCount + feature];
+    }
+
+    double getWeightRteEntry(int row, int feature) {
+        return weightRte[row * featureCount + feature];
+    }
+
+    double getActivityShp(int row) {
+        return activityShp[row];
+    }
+
+    double getActivityRte(int row) {
+        return activityRte[row];
+    }
+
+    /**
+     * Get the per-feature sums of the mean weights.  The array is owned by this model.
+     */
+    double[] getSumOfMeanWeight() {
+        return sumOfMeanWeight;
+    }
+
+    /**
+     * Compute the dot product of the mean weights of a row of this model and a row of another.
+     */
+    double meanDot(int row, FlatPMFModel other, int otherRow) {
+        int off = row * featureCount;
+        int ooff = otherRow * featureCount;
+        double sum = 0;
+        for (int k = 0; k < featureCount; k++) {
+            sum += (weightShp[off + k] / weightRte[off + k])
+                    * (other.weightShp[ooff + k] / other.weightRte[ooff + k]);
+        }
+        return sum;
+    }
+
+    /**
+     * Get the mean weights as a row-major array.
+     */
+    double[] getMeanWeights() {
+        double[] means = new double[weightShp.length];
+        for (int j = 0; j < means.length; j++) {
+            means[j] = weightShp[j] / weightRte[j];
+        }
+        return means;
+    }
+}
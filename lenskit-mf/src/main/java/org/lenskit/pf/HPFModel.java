@@ -41,7 +41,7 @@ import org.lenskit.util.keys.KeyIndex;
  */
 @DefaultProvider(HPFModelParallelProvider.class)
 @Shareable
-public final class HPFModel extends MFModel {
+public class HPFModel extends MFModel {
     private static final long serialVersionUID = 4L;
 
     /**
@@ -0,0 +1,189 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.apache.commons.math3.special.Gamma;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.StoppingThreshold;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.inject.Transient;
+import org.lenskit.mf.DenseFactorMatrix;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Parallel HPF recommender builder using flat parameter arrays.
+ *
+ * <p>This computes the same mean-field variational updates as {@link HPFModelParallelProvider},
+ * but stores the variational parameters in primitive arrays ({@link FlatPMFModel}), groups the
+ * training ratings by user and by item in compressed sparse rows, and reuses a per-thread buffer
+ * for the multinomial parameters of each rating.  The parameters of the previous and the current
+ * iteration are kept in two buffers that are swapped after each iteration, so the iterations
+ * allocate almost nothing.  Random initialization is done row by row, so a fixed
+ * {@link RandomSeed} always produces the same model.</p>
+ *
+ * <p>{@link HPFModelParallelProvider} stays the default; to use this provider, bind
+ * {@link HPFModel} to it with {@code bind(HPFModel.class).toProvider(HPFModelFlatProvider.class)}.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class HPFModelFlatProvider implements Provider<HPFModel> {
+    private static Logger logger = LoggerFactory.getLogger(HPFModelFlatProvider.class);
+
+    private final DataSplitStrategy ratings;
+    private final PFHyperParameters hyperParameters;
+    private final int iterationFrequency;
+    private final double maxOffsetShp;
+    private final double maxOffsetRte;
+    private final long rndSeed;
+    private final boolean isProbPrediction;
+    private final double threshold;
+    private final int maxIterCount;
+
+    @Inject
+    public HPFModelFlatProvider(@Transient DataSplitStrategy rndRatings,
+                                PFHyperParameters hyperParams,
+                                @ConvergenceCheckFrequency int iterFreq,
+                                @RandomSeed int seed,
+                                @MaxRandomOffsetForShape double maxOffS,
+                                @MaxRandomOffsetForRate double maxOffR,
+                                @IsProbabilityPrediction boolean probPred,
+                                @StoppingThreshold double threshld,
+                                @IterationCount int maxIter) {
+        ratings = rndRatings;
+        hyperParameters = hyperParams;
+        iterationFrequency = iterFreq;
+        rndSeed = seed;
+        maxOffsetShp = maxOffS;
+        maxOffsetRte = maxOffR;
+        isProbPrediction = probPred;
+        threshold = threshld;
+        maxIterCount = maxIter;
+    }
+
+    @Override
+    public HPFModel get() {
+        final int userNum = ratings.getUserIndex().size();
+        final int itemNum = ratings.getItemIndex().size();
+        final int featureCount = hyperParameters.getFeatureCount();
+
+        FlatPMFModel preUserModel = new FlatPMFModel(userNum, featureCount);
+        FlatPMFModel preItemModel = new FlatPMFModel(itemNum, featureCount);
+        Random random = new Random(rndSeed);
+        preUserModel.initialize(hyperParameters.getUserWeightShpPrior(), hyperParameters.getUserActivityShpPrior(),
+                                maxOffsetShp, maxOffsetRte, random);
+        preItemModel.initialize(hyperParameters.getItemWeightShpPrior(), hyperParameters.getItemActivityShpPrior(),
+                                maxOffsetShp, maxOffsetRte, random);
+        FlatPMFModel currUserModel = new FlatPMFModel(userNum, featureCount);
+        FlatPMFModel currItemModel = new FlatPMFModel(itemNum, featureCount);
+        logger.info("initialization finished");
+
+        final List<RatingMatrixEntry> train = ratings.getTrainRatings();
+        final List<RatingMatrixEntry> validation = ratings.getValidationRatings();
+        RatingRows byUser = RatingRows.byUser(train, userNum);
+        RatingRows byItem = RatingRows.byItem(train, itemNum);
+        ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[featureCount]);
+
+        double avgPLLPre = Double.MAX_VALUE;
+        double avgPLLCurr;
+        double diffPLL = 1.0;
+        int iterCount = 1;
+
+        while (iterCount < maxIterCount && diffPLL > threshold) {
+            updateUsers(byUser, preUserModel, preItemModel, currUserModel, scratch);
+            logger.debug("iteration {} user update finished", iterCount);
+            updateItems(byItem, preUserModel, preItemModel, currUserModel, currItemModel, scratch);
+            logger.debug("iteration {} item update finished", iterCount);
+
+            // swap the buffers; the old parameters are overwritten by the next iteration
+            FlatPMFModel tmp = preUserModel;
+            preUserModel = currUserModel;
+            currUserModel = tmp;
+            tmp = preItemModel;
+            preItemModel = currItemModel;
+            currItemModel = tmp;
+
+            if ((iterCount % iterationFrequency) == 0) {
+                avgPLLCurr = 0.0;
+                for (RatingMatrixEntry ratingEntry: validation) {
+                    double rating = ratingEntry.getValue();
+                    double eThetaBeta = preUserModel.meanDot(ratingEntry.getUserIndex(),
+                                                             preItemModel, ratingEntry.getItemIndex());
+                    double pLL;
+                    if (isProbPrediction) {
+                        pLL = (rating == 0) ? (-eThetaBeta) : Math.log(1 - Math.exp(-eThetaBeta));
+                    } else {
+                        pLL = rating * Math.log(eThetaBeta) - eThetaBeta - Gamma.logGamma(rating + 1);
+                    }
+                    avgPLLCurr += pLL;
+                }
+                avgPLLCurr = avgPLLCurr / validation.size();
+                diffPLL = Math.abs((avgPLLCurr - avgPLLPre) / avgPLLPre);
+                avgPLLPre = avgPLLCurr;
+                logger.info("iteration {} with current average predictive log likelihood {} and the change is {}",
+                            iterCount, avgPLLCurr, diffPLL);
+            }
+            iterCount++;
+        }
+
+        KeyIndex uidx = ratings.getUserIndex();
+        KeyIndex iidx = ratings.getItemIndex();
+        return new HPFModel(DenseFactorMatrix.wrap(userNum, featureCount, preUserModel.getMeanWeights()),
+                            DenseFactorMatrix.wrap(itemNum, featureCount, preItemModel.getMeanWeights()),
+                            uidx, iidx);
+    }
+
+    /**
+     * Compute the user parameters for an iteration.
+     */
+    void updateUsers(RatingRows byUser, FlatPMFModel preUserModel, FlatPMFModel preItemModel,
+                     FlatPMFModel currUserModel, ThreadLocal<double[]> scratch) {
+        currUserModel.update(byUser, preUserModel, preItemModel, preItemModel.getSumOfMeanWeight(),
+                             hyperParameters.getUserWeightShpPrior(),
+                             hyperParameters.getUserActivityShpPrior(),
+                             hyperParameters.getUserActivityPriorMean(),
+                             scratch);
+    }
+
+    /**
+     * Compute the item parameters for an iteration.  As in {@link HPFModelParallelProvider}, the
+     * multinomial parameters use the previous user parameters and the weight rates use the current
+     * ones.
+     */
+    void updateItems(RatingRows byItem, FlatPMFModel preUserModel, FlatPMFModel preItemModel,
+                     FlatPMFModel currUserModel, FlatPMFModel currItemModel, ThreadLocal<double[]> scratch) {
+        currItemModel.update(byItem, preItemModel, preUserModel, currUserModel.getSumOfMeanWeight(),
+                             hyperParameters.getItemWeightShpPrior(),
+                             hyperParameters.getItemActivityShpPrior(),
+                             hyperParameters.getItemActivityPriorMean(),
+                             scratch);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Random;
+
+/**
+ * HPF recommender builder using stochastic variational inference.
+ *
+ * <p>This trains a {@link StochasticHPFTrainer} on the training ratings for {@link EpochCount}
+ * passes over the users, in minibatches of {@link MinibatchSize} users, and returns a
+ * {@link StochasticHPFModel} that keeps the trainer, so it can forget interactions.</p>
+ */
+public class HPFModelStochasticProvider implements Provider<HPFModel> {
+    private static Logger logger = LoggerFactory.getLogger(HPFModelStochasticProvider.class);
+
+    private final DataSplitStrategy ratings;
+    private final PFHyperParameters hyperParameters;
+    private final long rndSeed;
+    private final double maxOffsetShp;
+    private final double maxOffsetRte;
+    private final int batchSize;
+    private final double stepDelay;
+    private final double stepExponent;
+    private final int epochCount;
+
+    @Inject
+    public HPFModelStochasticProvider(@Transient DataSplitStrategy rndRatings,
+                                      PFHyperParameters hyperParams,
+                                      @RandomSeed int seed,
+                                      @MaxRandomOffsetForShape double maxOffS,
+                                      @MaxRandomOffsetForRate double maxOffR,
+                                      @MinibatchSize int batch,
+                                      @StepSizeDelay double delay,
+                                      @StepSizeExponent double exponent,
+                                      @EpochCount int epochs) {
+        ratings = rndRatings;
+        hyperParameters = hyperParams;
+        rndSeed = seed;
+        maxOffsetShp = maxOffS;
+        maxOffsetRte = maxOffR;
+        batchSize = batch;
+        stepDelay = delay;
+        stepExponent = exponent;
+        epochCount = epochs;
+    }
+
+    @Override
+    public HPFModel get() {
+        StochasticHPFTrainer trainer =
+                StochasticHPFTrainer.create(ratings.getTrainRatings(), ratings.getUserIndex(), ratings.getItemIndex(),
+                                            hyperParameters, batchSize, stepDelay, stepExponent,
+                                            maxOffsetShp, maxOffsetRte, new Random(rndSeed));
+        trainer.train(epochCount);
+        logger.info("trained HPF model with {} stochastic steps", trainer.getStepCount());
+        return new StochasticHPFModel(trainer);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.lenskit.data.ratings.RatingMatrixEntry;
+
+import java.util.List;
+
+/**
+ * Ratings grouped by user or by item in compressed sparse row form.  Row {@code r}'s entries are at
+ * positions {@code offsets[r]} (inclusive) to {@code offsets[r+1]} (exclusive) of {@link #columns}
+ * and {@link #values}.  Every row index has a (possibly empty) row.
+ */
+final class RatingRows {
+    final int[] offsets;
+    final int[] columns;
+    final double[] values;
+
+    private RatingRows(int[] offs, int[] cols, double[] vals) {
+        offsets = offs;
+        columns = cols;
+        values = vals;
+    }
+
+    /**
+     * Group ratings by user.  Ratings that are not positive are skipped, as they do not contribute
+     * to the variational updates.
+     *
+     * @param ratings The ratings.
+     * @param nusers The number of users.
+     * @return The rows, indexed by user index, with item indexes as columns.
+     */
+    static RatingRows byUser(List<RatingMatrixEntry> ratings, int nusers) {
+        return build(ratings, nusers, true);
+    }
+
+    /**
+     * Group ratings by item.  Ratings that are not positive are skipped.
+     *
+     * @param ratings The ratings.
+     * @param nitems The number of items.
+     * @return The rows, indexed by item index, with user indexes as columns.
+     */
+    static RatingRows byItem(List<RatingMatrixEntry> ratings, int nitems) {
+        return build(ratings, nitems, false);
+    }
+
+    private static RatingRows build(List<RatingMatrixEntry> ratings, int nrows, boolean byUser) {
+        int[] offsets = new int[nrows + 1];
+        for (RatingMatrixEntry r: ratings) {
+            if (r.getValue() > 0) {
+                offsets[(byUser ? r.getUserIndex() : r.getItemIndex()) + 1] += 1;
+            }
+        }
+        for (int i = 0; i < nrows; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] fill = new int[nrows];
+        System.arraycopy(offsets, 0, fill, 0, nrows);
+        int[] columns = new int[offsets[nrows]];
+        double[] values = new double[offsets[nrows]];
+        for (RatingMatrixEntry r: ratings) {
+            if (r.getValue() > 0) {
+                int row = byUser ? r.getUserIndex() : r.getItemIndex();
+                int pos = fill[row]++;
+                columns[pos] = byUser ? r.getItemIndex() : r.getUserIndex();
+                values[pos] = r.getValue();
+            }
+        }
+        return new RatingRows(offsets, columns, values);
+    }
+
+    /**
+     * Get the number of rows.
+     */
+    int getRowCount() {
+        return offsets.length - 1;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.data.ratings.Preference;
+import org.lenskit.inject.Shareable;
+import org.lenskit.mf.DenseFactorMatrix;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * HPF model trained with stochastic variational inference that keeps its {@link StochasticHPFTrainer}, so that
+ * changes to users' interactions can be applied to the model.
+ *
+ * <p>Each update publishes a new snapshot of the trainer's model; the matrices of earlier snapshots are never
+ * modified.  Updates are serialized with each other, but a scorer running concurrently with an update may see
+ * some feature vectors from before the update and some from after it.</p>
+ *
+ * <p>The trainer is not serialized: a deserialized model keeps the mean weights and the step count, and can
+ * score but not be updated.  To update it, resume a trainer from it with
+ * {@link StochasticHPFTrainer#resume(HPFModel, List, PFHyperParameters, int, double, double, long, Random)}
+ * and {@link #getStepCount()}.</p>
+ *
+ * @since 3.0
+ */
+@Shareable
+@ThreadSafe
+public class StochasticHPFModel extends HPFModel {
+    private static final long serialVersionUID = 2L;
+
+    private transient StochasticHPFTrainer trainer;
+    private transient volatile HPFModel current;
+    private volatile long stepCount;
+
+    /**
+     * Construct a model from the trainer's current state.
+     * @param tr The trainer.
+     */
+    StochasticHPFModel(StochasticHPFTrainer tr) {
+        this(tr, tr.getModel());
+    }
+
+    private StochasticHPFModel(StochasticHPFTrainer tr, HPFModel snapshot) {
+        super(snapshot.getUserMatrix(), snapshot.getItemMatrix(), snapshot.getUserIndex(), snapshot.getItemIndex());
+        trainer = tr;
+        current = snapshot;
+        stepCount = tr.getStepCount();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        current = new HPFModel(userMatrix, itemMatrix, userIndex, itemIndex);
+    }
+
+    /**
+     * Get the number of stochastic steps taken to train the model.
+     * @return The number of steps.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Query whether the model can be updated.
+     * @return {@code true} if the model has its trainer, {@code false} if it was deserialized.
+     */
+    public boolean isUpdatable() {
+        return trainer != null;
+    }
+
+    /**
+     * Replace some users' interactions.
+     * @param ratings The new interactions of each user to update.
+     * @return The number of users updated.
+     * @throws IllegalStateException if the model has no trainer.
+     * @see StochasticHPFTrainer#updateUsers(Long2ObjectMap)
+     */
+    public synchronized int updateUsers(Long2ObjectMap<? extends Long2DoubleMap> ratings) {
+        Preconditions.checkState(trainer != null, "deserialized model cannot be updated");
+        int n = trainer.updateUsers(ratings);
+        publish();
+        return n;
+    }
+
+    /**
+     * Remove interactions.
+     * @param prefs The interactions to remove; only their user and item IDs are used.
+     * @return The number of interactions that were present and removed.
+     * @throws IllegalStateException if the model has no trainer.
+     * @see StochasticHPFTrainer#removeRatings(Iterable)
+     */
+    public synchronized int removeRatings(Iterable<? extends Preference> prefs) {
+        Preconditions.checkState(trainer != null, "deserialized model cannot be updated");
+        int n = trainer.removeRatings(prefs);
+        publish();
+        return n;
+    }
+
+    /**
+     * Swap in a new snapshot of the trainer's model.
+     */
+    private void publish() {
+        HPFModel snapshot = trainer.getModel();
+        // the superclass fields are only read to serialize the model
+        userMatrix = snapshot.getUserMatrix();
+        itemMatrix = snapshot.getItemMatrix();
+        stepCount = trainer.getStepCount();
+        current = snapshot;
+    }
+
+    @Override
+    public RealMatrix getUserMatrix() {
+        return current.getUserMatrix();
+    }
+
+    @Override
+    public RealMatrix getItemMatrix() {
+        return current.getItemMatrix();
+    }
+
+    @Override
+    public DenseFactorMatrix getUserFactors() {
+        return current.getUserFactors();
+    }
+
+    @Override
+    public DenseFactorMatrix getItemFactors() {
+        return current.getItemFactors();
+    }
+
+    @Nullable
+    @Override
+    public RealVector getUserVector(long user) {
+        return current.getUserVector(user);
+    }
+
+    @Nullable
+    @Override
+    public RealVector getItemVector(long item) {
+        return current.getItemVector(item);
+    }
+
+    @Override
+    public double getUserFeature(long uid, int feature) {
+        return current.getUserFeature(uid, feature);
+    }
+
+    @Override
+    public double getItemFeature(long iid, int feature) {
+        return current.getItemFeature(iid, feature);
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.jcip.annotations.ThreadSafe;
+import org.lenskit.data.ratings.Preference;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.mf.DenseFactorMatrix;
+import org.lenskit.util.keys.KeyIndex;
+import org.lenskit.util.math.Scalars;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Hierarchical Poisson factorization trained with stochastic variational inference (SVI).
+ *
+ * <p>The user weights and activities are local parameters and the item weights and activities are
+ * global, as in <a href="https://arxiv.org/abs/1311.1704">Gopalan et al.</a>.  Training repeatedly
+ * takes a minibatch of users, optimizes their local parameters against the current global
+ * parameters, and moves the global parameters a step of size {@code (delay + t) ^ -exponent} toward
+ * the values they would have if every user looked like the minibatch.</p>
+ *
+ * <p>Unlike the batch providers, the trainer keeps its state, so it can be trained further, and it
+ * can apply changes to some users' interactions ({@link #updateUsers(Long2ObjectMap)},
+ * {@link #removeRatings(Iterable)}).  The global parameters estimate the prior plus the sum of every
+ * user's sufficient statistics, so a change is applied by re-optimizing only the changed users'
+ * local parameters and taking one small global step toward the parameters with their old statistics
+ * replaced by their new ones.  The rest of the old statistics decay out of the global parameters as
+ * training continues, so a change is not unlearned exactly when it is applied.  The trainer can
+ * also resume from a previously trained {@link HPFModel} ({@link #resume(HPFModel, List,
+ * PFHyperParameters, int, double, double, long, Random)}).  {@link #getModel()} takes a snapshot of
+ * the current model.</p>
+ *
+ * <p>The set of users and items is fixed when the trainer is created; interactions with unknown
+ * users or items are ignored.</p>
+ */
+@ThreadSafe
+public class StochasticHPFTrainer implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(StochasticHPFTrainer.class);
+    /**
+     * The number of rounds of local (per-user) coordinate ascent for each minibatch.
+     */
+    static final int LOCAL_ITERATIONS = 10;
+
+    private final PFHyperParameters hyper;
+    private final KeyIndex userIndex;
+    private final KeyIndex itemIndex;
+    private final int userCount;
+    private final int itemCount;
+    private final int featureCount;
+    private final int batchSize;
+    private final double delay;
+    private final double exponent;
+    private final Random random;
+
+    /* each user's rated items and their (positive) ratings, sorted by item */
+    private final int[][] userItems;
+    private final double[][] userValues;
+
+    /* local parameters: user weight shape/rate (users x features), activity rate */
+    private final double[] userShp;
+    private final double[] userRte;
+    private final double[] userActRte;
+    /* global parameters: item weight shape/rate (items x features), activity rate */
+    private final double[] itemShp;
+    private final double[] itemRte;
+    private final double[] itemActRte;
+    private long stepCount;
+
+    private StochasticHPFTrainer(PFHyperParameters hp, KeyIndex uidx, KeyIndex iidx,
+                                 int batch, double tau, double kappa, Random rng) {
+        Preconditions.checkArgument(batch > 0, "minibatch size must be positive");
+        Preconditions.checkArgument(tau >= 0, "step size delay must be non-negative");
+        Preconditions.checkArgument(kappa > 0.5 && kappa <= 1, "step size exponent must be in (0.5, 1]");
+        hyper = hp;
+        userIndex = uidx;
+        itemIndex = iidx;
+        userCount = uidx.size();
+        itemCount = iidx.size();
+        featureCount = hp.getFeatureCount();
+        batchSize = batch;
+        delay = tau;
+        exponent = kappa;
+        random = rng;
+
+        userItems = new int[userCount][];
+        userValues = new double[userCount][];
+        userShp = new double[userCount * featureCount];
+        userRte = new double[userCount * featureCount];
+        userActRte = new double[userCount];
+        itemShp = new double[itemCount * featureCount];
+        itemRte = new double[itemCount * featureCount];
+        itemActRte = new double[itemCount];
+    }
+
+    /**
+     * Create a trainer with randomly initialized parameters.  No training is done.
+     *
+     * @param ratings The ratings to train on.
+     * @param uidx The user index; the ratings' user indexes refer to it.
+     * @param iidx The item index; the ratings' item indexes refer to it.
+     * @param hp The hyperparameters.
+     * @param batch The minibatch size.
+     * @param tau The step size delay.
+     * @param kappa The step size exponent.
+     * @param maxOffS The maximum random offset of the initial weight shapes.
+     * @param maxOffR The maximum random offset of the initial weight rates.
+     * @param rng The random number generator, used for initialization and to order the users.
+     * @return The trainer.
+     */
+    public static StochasticHPFTrainer create(List<RatingMatrixEntry> ratings, KeyIndex uidx, KeyIndex iidx,
+                                              PFHyperParameters hp, int batch, double tau, double kappa,
+                                              double maxOffS, double maxOffR, Random rng) {
+        StochasticHPFTrainer trainer = new StochasticHPFTrainer(hp, uidx, iidx, batch, tau, kappa, rng);
+        trainer.setRatings(ratings);
+        trainer.initialize(trainer.userShp, trainer.userRte, trainer.userActRte,
+                           hp.getUserWeightShpPrior(), hp.getUserActivityShpPrior(), maxOffS, maxOffR);
+        trainer.initialize(trainer.itemShp, trainer.itemRte, trainer.itemActRte,
+                           hp.getItemWeightShpPrior(), hp.getItemActivityShpPrior(), maxOffS, maxOffR);
+        return trainer;
+    }
+
+    /**
+     * Create a trainer that resumes from a trained model.  The model only stores the mean user and
+     * item weights, so the variational parameters are reconstructed to have those means, with the
+     * rates the batch coordinate ascent updates would give them.  The model does not store the number
+     * of steps taken to train it, so the caller passes it in to continue the step size schedule; with
+     * {@code steps} of 0, the first step would replace the global parameters with the first
+     * minibatch's estimate.
+     *
+     * @param model The model to resume from.
+     * @param ratings The current ratings; their indexes refer to the model's user and item indexes.
+     * @param hp The hyperparameters.
+     * @param batch The minibatch size.
+     * @param tau The step size delay.
+     * @param kappa The step size exponent.
+     * @param steps The number of steps already taken to train the model.
+     * @param rng The random number generator, used to order the users.
+     * @return The trainer.
+     */
+    public static StochasticHPFTrainer resume(HPFModel model, List<RatingMatrixEntry> ratings,
+                                              PFHyperParameters hp, int batch, double tau, double kappa,
+                                              long steps, Random rng) {
+        Preconditions.checkArgument(model.getFeatureCount() == hp.getFeatureCount(),
+                                    "model has %s features, expected %s",
+                                    model.getFeatureCount(), hp.getFeatureCount());
+        Preconditions.checkArgument(steps >= 0, "step count must be non-negative");
+        StochasticHPFTrainer trainer = new StochasticHPFTrainer(hp, model.getUserIndex(), model.getItemIndex(),
+                                                                batch, tau, kappa, rng);
+        trainer.stepCount = steps;
+        trainer.setRatings(ratings);
+        DenseFactorMatrix users = model.getUserFactors();
+        DenseFactorMatrix items = model.getItemFactors();
+        trainer.restore(users, items, trainer.userShp, trainer.userRte, trainer.userActRte,
+                        hp.getUserActivityShpPrior(), hp.getUserActivityPriorMean(), hp.getUserWeightShpPrior());
+        trainer.restore(items, users, trainer.itemShp, trainer.itemRte, trainer.itemActRte,
+                        hp.getItemActivityShpPrior(), hp.getItemActivityPriorMean(), hp.getItemWeightShpPrior());
+        return trainer;
+    }
+
+    private void setRatings(List<RatingMatrixEntry> ratings) {
+        IntList[] items = new IntList[userCount];
+        DoubleList[] values = new DoubleList[userCount];
+        for (int u = 0; u < userCount; u++) {
+            items[u] = new IntArrayList();
+            values[u] = new DoubleArrayList();
+        }
+        for (RatingMatrixEntry r: ratings) {
+            if (r.getValue() > 0) {
+                items[r.getUserIndex()].add(r.getItemIndex());
+                values[r.getUserIndex()].add(r.getValue());
+            }
+        }
+        for (int u = 0; u < userCount; u++) {
+            setUserRow(u, items[u].toIntArray(), values[u].toDoubleArray());
+        }
+    }
+
+    private void setUserRow(int u, int[] items, double[] values) {
+        int[] order = new int[items.length];
+        for (int j = 0; j < order.length; j++) {
+            order[j] = j;
+        }
+        IntArrays.quickSort(order, (a, b) -> Integer.compare(items[a], items[b]));
+        int[] is = new int[items.length];
+        double[] vs = new double[items.length];
+        for (int j = 0; j < order.length; j++) {
+            is[j] = items[order[j]];
+            vs[j] = values[order[j]];
+        }
+        userItems[u] = is;
+        userValues[u] = vs;
+    }
+
+    /**
+     * Randomly initialize one side's parameters, in the same way as the batch providers.
+     */
+    private void initialize(double[] shp, double[] rte, double[] actRte,
+                            double weightShpPrior, double activityShpPrior,
+                            double maxOffsetShp, double maxOffsetRte) {
+        int n = actRte.length;
+        for (int i = 0; i < n; i++) {
+            int off = i * featureCount;
+            for (int k = 0; k < featureCount; k++) {
+                shp[off + k] = weightShpPrior + maxOffsetShp * random.nextDouble();
+                rte[off + k] = activityShpPrior + maxOffsetRte * random.nextDouble();
+            }
+            actRte[i] = activityShpPrior + featureCount;
+        }
+    }
+
+    /**
+     * Reconstruct one side's variational parameters from its mean weights.  The activity rate
+     * and weight rate take their coordinate ascent values given the means, and the weight shape is
+     * set so the weights have the given means.
+     */
+    private void restore(DenseFactorMatrix means, DenseFactorMatrix otherMeans,
+                         double[] shp, double[] rte, double[] actRte,
+                         double activityShpPrior, double activityPriorMean, double weightShpPrior) {
+        double[] otherSum = new double[featureCount];
+        for (int j = 0; j < otherMeans.getRowDimension(); j++) {
+            for (int k = 0; k < featureCount; k++) {
+                otherSum[k] += otherMeans.getEntry(j, k);
+            }
+        }
+        double actShp = activityShpPrior + featureCount * weightShpPrior;
+        for (int i = 0; i < means.getRowDimension(); i++) {
+            double ar = activityShpPrior / activityPriorMean;
+            for (int k = 0; k < featureCount; k++) {
+                ar += means.getEntry(i, k);
+            }
+            actRte[i] = ar;
+            int off = i * featureCount;
+            for (int k = 0; k < featureCount; k++) {
+                double r = actShp / ar + otherSum[k];
+                rte[off + k] = r;
+                shp[off + k] = Math.max(means.getEntry(i, k) * r, Double.MIN_NORMAL);
+            }
+        }
+    }
+
+    /**
+     * Get the number of global steps taken so far.
+     * @return The number of steps.
+     */
+    public synchronized long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Run passes over the users in random order, one minibatch at a time.
+     * @param epochs The number of passes.
+     */
+    public synchronized void train(int epochs) {
+        int[] users = new int[userCount];
+        for (int u = 0; u < userCount; u++) {
+            users[u] = u;
+        }
+        for (int e = 0; e < epochs; e++) {
+            IntArrays.shuffle(users, random);
+            for (int start = 0; start < userCount; start += batchSize) {
+                int end = Math.min(start + batchSize, userCount);
+                step(Arrays.copyOfRange(users, start, end), (double) userCount / (end - start));
+            }
+            logger.debug("finished epoch {} after {} steps", e + 1, stepCount);
+        }
+    }
+
+    /**
+     * Replace the interactions of some users, re-optimize their local parameters, and take one global
+     * step, with the current step size, toward replacing their old sufficient statistics with their new
+     * ones.  Users or items not known to the trainer are ignored.
+     *
+     * @param ratings The new interactions of each user to update.  An empty map removes all of a
+     *                user's interactions.
+     * @return The number of users updated.
+     */
+    public synchronized int updateUsers(Long2ObjectMap<? extends Long2DoubleMap> ratings) {
+        IntList users = new IntArrayList(ratings.size());
+        List<int[]> items = new ArrayList<>(ratings.size());
+        List<double[]> values = new ArrayList<>(ratings.size());
+        for (Long2ObjectMap.Entry<? extends Long2DoubleMap> e: ratings.long2ObjectEntrySet()) {
+            int u = userIndex.tryGetIndex(e.getLongKey());
+            if (u < 0) {
+                continue;
+            }
+            IntList is = new IntArrayList();
+            DoubleList vs = new DoubleArrayList();
+            for (Long2DoubleMap.Entry r: Long2DoubleMaps.fastIterable(e.getValue())) {
+                int i = itemIndex.tryGetIndex(r.getLongKey());
+                if (i >= 0 && r.getDoubleValue() > 0) {
+                    is.add(i);
+                    vs.add(r.getDoubleValue());
+                }
+            }
+            users.add(u);
+            items.add(is.toIntArray());
+            values.add(vs.toDoubleArray());
+        }
+        refit(users.toIntArray(), items, values);
+        return users.size();
+    }
+
+    /**
+     * Remove interactions, updating each affected user once as in {@link #updateUsers(Long2ObjectMap)}.
+     *
+     * @param prefs The interactions to remove; only their user and item IDs are used.
+     * @return The number of interactions that were present and removed.
+     */
+    public synchronized int removeRatings(Iterable<? extends Preference> prefs) {
+        Int2ObjectMap<IntSet> byUser = new Int2ObjectOpenHashMap<>();
+        for (Preference p: prefs) {
+            int u = userIndex.tryGetIndex(p.getUserId());
+            int i = itemIndex.tryGetIndex(p.getItemId());
+            if (u >= 0 && i >= 0) {
+                IntSet is = byUser.get(u);
+                if (is == null) {
+                    is = new IntOpenHashSet();
+                    byUser.put(u, is);
+                }
+                is.add(i);
+            }
+        }
+
+        IntList users = new IntArrayList(byUser.size());
+        List<int[]> items = new ArrayList<>(byUser.size());
+        List<double[]> values = new ArrayList<>(byUser.size());
+        int removed = 0;
+        for (Int2ObjectMap.Entry<IntSet> e: byUser.int2ObjectEntrySet()) {
+            int u = e.getIntKey();
+            IntList is = new IntArrayList();
+            DoubleList vs = new DoubleArrayList();
+            for (int j = 0; j < userItems[u].length; j++) {
+                if (!e.getValue().contains(userItems[u][j])) {
+                    is.add(userItems[u][j]);
+                    vs.add(userValues[u][j]);
+                }
+            }
+            if (is.size() < userItems[u].length) {
+                removed += userItems[u].length - is.size();
+                users.add(u);
+                items.add(is.toIntArray());
+                values.add(vs.toDoubleArray());
+            }
+        }
+        refit(users.toIntArray(), items, values);
+        return removed;
+    }
+
+    /**
+     * Replace some users' interactions, re-optimize them, and step the global parameters toward
+     * swapping their old sufficient statistics for their new ones.
+     */
+    private void refit(int[] users, List<int[]> items, List<double[]> values) {
+        if (users.length == 0) {
+            return;
+        }
+        double[] itemElog = expectedLog(itemShp, itemRte);
+        double[] shpStat = new double[itemCount * featureCount];
+        double[] rteStat = new double[featureCount];
+        addStatistics(users, itemElog, -1, shpStat, rteStat);
+
+        for (int j = 0; j < users.length; j++) {
+            setUserRow(users[j], items.get(j), values.get(j));
+        }
+        double[] itemSum = meanSum(itemShp, itemRte, itemCount);
+        Arrays.stream(users).parallel().forEach(u -> optimizeUser(u, itemElog, itemSum));
+        addStatistics(users, itemElog, 1, shpStat, rteStat);
+
+        double rho = nextStepSize();
+        final double c = hyper.getItemWeightShpPrior();
+        final double cPrime = hyper.getItemActivityShpPrior();
+        final double dPrime = hyper.getItemActivityPriorMean();
+        final double actShp = cPrime + featureCount * c;
+        for (int i = 0; i < itemCount; i++) {
+            int off = i * featureCount;
+            // the statistics are recomputed against the current item parameters, so they may not
+            // exactly match what was added; keep the parameters at least at their priors
+            double meanAct = actShp / itemActRte[i];
+            double actRte = cPrime / dPrime;
+            for (int k = 0; k < featureCount; k++) {
+                itemShp[off + k] = Math.max(itemShp[off + k] + rho * shpStat[off + k], c);
+                itemRte[off + k] = Math.max(itemRte[off + k] + rho * rteStat[k], meanAct);
+                actRte += itemShp[off + k] / itemRte[off + k];
+            }
+            itemActRte[i] = (1 - rho) * itemActRte[i] + rho * actRte;
+        }
+        logger.debug("refit {} users with step size {}", users.length, rho);
+    }
+
+    /**
+     * Take one stochastic step.
+     * @param batch The users in the minibatch.
+     * @param scale The ratio of the number of users to the minibatch size.
+     */
+    private void step(int[] batch, double scale) {
+        double[] itemElog = expectedLog(itemShp, itemRte);
+        double[] itemSum = meanSum(itemShp, itemRte, itemCount);
+        Arrays.stream(batch).parallel().forEach(u -> optimizeUser(u, itemElog, itemSum));
+
+        double[] shpStat = new double[itemCount * featureCount];
+        double[] rteStat = new double[featureCount];
+        addStatistics(batch, itemElog, 1, shpStat, rteStat);
+
+        double rho = nextStepSize();
+        final double c = hyper.getItemWeightShpPrior();
+        final double cPrime = hyper.getItemActivityShpPrior();
+        final double dPrime = hyper.getItemActivityPriorMean();
+        final double actShp = cPrime + featureCount * c;
+        for (int i = 0; i < itemCount; i++) {
+            int off = i * featureCount;
+            double meanAct = actShp / itemActRte[i];
+            double actRte = cPrime / dPrime;
+            for (int k = 0; k < featureCount; k++) {
+                actRte += itemShp[off + k] / itemRte[off + k];
+                double shpHat = c + scale * shpStat[off + k];
+                double rteHat = meanAct + scale * rteStat[k];
+                itemShp[off + k] = (1 - rho) * itemShp[off + k] + rho * shpHat;
+                itemRte[off + k] = (1 - rho) * itemRte[off + k] + rho * rteHat;
+            }
+            itemActRte[i] = (1 - rho) * itemActRte[i] + rho * actRte;
+        }
+    }
+
+    /**
+     * Get the size of the next global step and count the step.
+     * @return The step size, at most 1.
+     */
+    private double nextStepSize() {
+        double rho = Math.min(Math.pow(delay + stepCount, -exponent), 1);
+        stepCount += 1;
+        return rho;
+    }
+
+    /**
+     * Accumulate users' sufficient statistics for the item weights.
+     * @param users The users.
+     * @param itemElog The expected log item weights.
+     * @param weight The weight of the statistics (-1 to subtract them).
+     * @param shpStat The item weight shape statistics (items x features), accumulated in place.
+     * @param rteStat The item weight rate statistics (features), accumulated in place.
+     */
+    private void addStatistics(int[] users, double[] itemElog, double weight,
+                               double[] shpStat, double[] rteStat) {
+        double[] phi = new double[featureCount];
+        double[] userElog = new double[featureCount];
+        for (int u: users) {
+            userExpectedLog(u, userElog);
+            int uoff = u * featureCount;
+            for (int j = 0; j < userItems[u].length; j++) {
+                int i = userItems[u][j];
+                computePhi(phi, userElog, itemElog, i, userValues[u][j]);
+                int ioff = i * featureCount;
+                for (int k = 0; k < featureCount; k++) {
+                    shpStat[ioff + k] += weight * phi[k];
+                }
+            }
+            for (int k = 0; k < featureCount; k++) {
+                rteStat[k] += weight * userShp[uoff + k] / userRte[uoff + k];
+            }
+        }
+    }
+
+    /**
+     * Optimize a user's local parameters against the current item parameters.
+     */
+    private void optimizeUser(int u, double[] itemElog, double[] itemSum) {
+        final double a = hyper.getUserWeightShpPrior();
+        final double aPrime = hyper.getUserActivityShpPrior();
+        final double bPrime = hyper.getUserActivityPriorMean();
+        final double actShp = aPrime + featureCount * a;
+        final int off = u * featureCount;
+        double[] phi = new double[featureCount];
+        double[] userElog = new double[featureCount];
+        double[] shp = new double[featureCount];
+        for (int iter = 0; iter < LOCAL_ITERATIONS; iter++) {
+            userExpectedLog(u, userElog);
+            Arrays.fill(shp, a);
+            for (int j = 0; j < userItems[u].length; j++) {
+                computePhi(phi, userElog, itemElog, userItems[u][j], userValues[u][j]);
+                for (int k = 0; k < featureCount; k++) {
+                    shp[k] += phi[k];
+                }
+            }
+            double meanAct = actShp / userActRte[u];
+            double actRte = aPrime / bPrime;
+            for (int k = 0; k < featureCount; k++) {
+                double rte = meanAct + itemSum[k];
+                userShp[off + k] = shp[k];
+                userRte[off + k] = rte;
+                actRte += shp[k] / rte;
+            }
+            userActRte[u] = actRte;
+        }
+    }
+
+    /**
+     * Compute the rating-scaled multinomial parameters of a rating.
+     */
+    private void computePhi(double[] phi, double[] userElog, double[] itemElog, int item, double rating) {
+        int ioff = item * featureCount;
+        for (int k = 0; k < featureCount; k++) {
+            phi[k] = userElog[k] + itemElog[ioff + k];
+        }
+        FlatPMFModel.logNormalize(phi, featureCount);
+        if (rating > 1) {
+            for (int k = 0; k < featureCount; k++) {
+                phi[k] *= rating;
+            }
+        }
+    }
+
+    private void userExpectedLog(int u, double[] out) {
+        int off = u * featureCount;
+        for (int k = 0; k < featureCount; k++) {
+            out[k] = Scalars.digamma(userShp[off + k]) - Math.log(userRte[off + k]);
+        }
+    }
+
+    private static double[] expectedLog(double[] shp, double[] rte) {
+        double[] elog = new double[shp.length];
+        for (int j = 0; j < elog.length; j++) {
+            elog[j] = Scalars.digamma(shp[j]) - Math.log(rte[j]);
+        }
+        return elog;
+    }
+
+    private double[] meanSum(double[] shp, double[] rte, int nrows) {
+        double[] sum = new double[featureCount];
+        for (int i = 0; i < nrows; i++) {
+            int off = i * featureCount;
+            for (int k = 0; k < featureCount; k++) {
+                sum[k] += shp[off + k] / rte[off + k];
+            }
+        }
+        return sum;
+    }
+
+    private static double[] means(double[] shp, double[] rte) {
+        double[] means = new double[shp.length];
+        for (int j = 0; j < means.length; j++) {
+            means[j] = shp[j] / rte[j];
+        }
+        return means;
+    }
+
+    /**
+     * Get a snapshot of the current model.
+     * @return An HPF model with the current mean user and item weights.
+     */
+    public synchronized HPFModel getModel() {
+        return new HPFModel(DenseFactorMatrix.wrap(userCount, featureCount, means(userShp, userRte)),
+                            DenseFactorMatrix.wrap(itemCount, featureCount, means(itemShp, itemRte)),
+                            userIndex, itemIndex);
+    }
+}
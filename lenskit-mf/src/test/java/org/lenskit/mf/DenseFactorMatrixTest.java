@@ -0,0 +1,172 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.ResultMap;
+import org.lenskit.bias.UserItemBiasModel;
+import org.lenskit.data.ratings.PreferenceDomain;
+import org.lenskit.mf.funksvd.FunkSVDItemScorer;
+import org.lenskit.util.keys.HashKeyIndex;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class DenseFactorMatrixTest {
+    private static final double EPSILON = 1.0e-9;
+
+    private RealMatrix umat;
+    private RealMatrix imat;
+    private MFModel model;
+
+    @Before
+    public void createModel() {
+        umat = MatrixUtils.createRealMatrix(new double[][]{
+                {0.1, 0.3},
+                {-0.2, 0.2},
+                {0.0, 0.15}
+        });
+        HashKeyIndex uidx = new HashKeyIndex();
+        uidx.internId(1);
+        uidx.internId(5);
+        uidx.internId(3);
+
+        imat = MatrixUtils.createRealMatrix(new double[][]{
+                {0.52, 0.29},
+                {0.3, -1.2},
+                {-0.7, 0.4}
+        });
+        HashKeyIndex iidx = new HashKeyIndex();
+        iidx.internId(42);
+        iidx.internId(39);
+        iidx.internId(25);
+
+        model = new MFModel(umat, imat, uidx, iidx);
+    }
+
+    @Test
+    public void testCopyFromRealMatrix() {
+        DenseFactorMatrix dense = DenseFactorMatrix.of(imat);
+        assertThat(dense.getRowDimension(), equalTo(3));
+        assertThat(dense.getColumnDimension(), equalTo(2));
+        assertThat(dense, equalTo(imat));
+        assertThat(DenseFactorMatrix.of(dense), sameInstance(dense));
+        assertThat(dense.getRowVector(1).toArray(), equalTo(new double[]{0.3, -1.2}));
+
+        DenseFactorMatrix copy = dense.copy();
+        copy.setEntry(0, 0, 10);
+        assertThat(dense.getEntry(0, 0), equalTo(0.52));
+    }
+
+    @Test
+    public void testDotRows() {
+        DenseFactorMatrix dense = DenseFactorMatrix.of(imat);
+        double[] vec = {0.5, 2.0};
+        assertThat(dense.dotRow(1, vec), closeTo(0.15 - 2.4, EPSILON));
+
+        double[] out = new double[4];
+        dense.dotRows(new int[]{2, 0, 2, 1}, 3, vec, out);
+        assertThat(out[0], closeTo(-0.35 + 0.8, EPSILON));
+        assertThat(out[1], closeTo(0.26 + 0.58, EPSILON));
+        assertThat(out[2], closeTo(-0.35 + 0.8, EPSILON));
+        assertThat(out[3], equalTo(0.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDotWrongLength() {
+        DenseFactorMatrix.of(imat).dotRow(0, new double[3]);
+    }
+
+    @Test
+    public void testModelSerialization() {
+        MFModel copy = SerializationUtils.clone(model);
+        assertThat(copy.getUserMatrix(), equalTo(umat));
+        assertThat(copy.getItemMatrix(), equalTo(imat));
+        assertThat(copy.getItemVector(39).toArray(), equalTo(new double[]{0.3, -1.2}));
+    }
+
+    @Test
+    public void testModelFactors() {
+        assertThat(model.getUserFactors(), sameInstance(model.getUserMatrix()));
+        assertThat(model.getItemFactors(), sameInstance(model.getItemMatrix()));
+        assertThat(model.getItemFactors(), equalTo(imat));
+    }
+
+    @Test
+    public void testBatchScoring() {
+        Long2DoubleOpenHashMap userBiases = new Long2DoubleOpenHashMap();
+        userBiases.put(1, 0.5);
+        Long2DoubleOpenHashMap itemBiases = new Long2DoubleOpenHashMap();
+        itemBiases.put(42, -0.25);
+        BiasedMFItemScorer scorer = new BiasedMFItemScorer(model, new UserItemBiasModel(3.0, userBiases, itemBiases));
+
+        Map<Long, Double> scores = scorer.score(1, Arrays.asList(42L, 39L, 25L, 7L));
+        assertThat(scores.keySet(), containsInAnyOrder(42L, 39L, 25L));
+        assertThat(scores.get(42L), closeTo(3.25 + 0.1 * 0.52 + 0.3 * 0.29, EPSILON));
+        assertThat(scores.get(39L), closeTo(3.5 + 0.1 * 0.3 - 0.3 * 1.2, EPSILON));
+        assertThat(scores.get(25L), closeTo(3.5 - 0.1 * 0.7 + 0.3 * 0.4, EPSILON));
+
+        ResultMap details = scorer.scoreWithDetails(1, Arrays.asList(42L, 39L, 25L, 7L));
+        assertThat(details.scoreMap(), equalTo(scores));
+
+        assertThat(scorer.score(17, Arrays.asList(42L, 39L)).isEmpty(), equalTo(true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFactorsRequireDenseMatrix() {
+        MFModel sparse = new MFModel(umat, imat, model.getUserIndex(), model.getItemIndex()) {
+            {
+                userMatrix = umat.copy();
+            }
+        };
+        sparse.getUserFactors();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testClampedScoring() {
+        PreferenceDomain domain = new PreferenceDomain(1, 5);
+        UserItemBiasModel bias = new UserItemBiasModel(1.05, new Long2DoubleOpenHashMap(), new Long2DoubleOpenHashMap());
+        FunkSVDItemScorer scorer = new FunkSVDItemScorer(model, bias, domain);
+
+        Map<Long, Double> scores = scorer.score(5, Arrays.asList(42L, 39L, 25L));
+        // clamped after each feature
+        assertThat(scores.get(42L), closeTo(1.0 + 0.2 * 0.29, EPSILON));
+        assertThat(scores.get(39L), closeTo(1.0, EPSILON));
+        assertThat(scores.get(25L), closeTo(1.05 + 0.2 * 0.7 + 0.2 * 0.4, EPSILON));
+
+        // the deprecated per-item hook goes through the same kernel
+        assertThat(scorer.computeScore(1.05, model.getUserVector(5), model.getItemVector(42)),
+                   closeTo(scores.get(42L), EPSILON));
+    }
+}
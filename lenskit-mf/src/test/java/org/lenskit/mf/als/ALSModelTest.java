@@ -0,0 +1,198 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.als;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.math3.linear.RealVector;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.GlobalBiasModel;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.PackedRatingMatrixProvider;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ALSModelTest {
+    private static final int FEATURES = 3;
+    private static final double EPSILON = 1.0e-10;
+
+    private EntityFactory factory = new EntityFactory();
+    private List<Rating> ratings;
+    private RatingMatrix matrix;
+    private BiasModel bias = new GlobalBiasModel(3.0);
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 50; user++) {
+            for (long item = 100; item < 130; item++) {
+                if (rng.nextDouble() < 0.4) {
+                    ratings.add(factory.rating(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        StaticDataSource source = StaticDataSource.fromList(ratings);
+        matrix = new PackedRatingMatrixProvider(new StandardRatingVectorPDAO(source.get()),
+                                                new Random(7)).get();
+    }
+
+    private ALSModel build(int iterations, int sweeps) {
+        return new ALSModelProvider(matrix, bias, FEATURES, 0.05, iterations, sweeps, new Random(1)).get();
+    }
+
+    private Long2DoubleMap userRatings(long user) {
+        Long2DoubleMap map = new Long2DoubleOpenHashMap();
+        for (Rating r: ratings) {
+            if (r.getUserId() == user) {
+                map.put(r.getItemId(), r.getValue());
+            }
+        }
+        return map;
+    }
+
+    private static void assertVectorsClose(RealVector expected, RealVector actual) {
+        assertThat(actual.getDimension(), equalTo(expected.getDimension()));
+        for (int f = 0; f < expected.getDimension(); f++) {
+            assertThat(actual.getEntry(f), closeTo(expected.getEntry(f), EPSILON));
+        }
+    }
+
+    @Test
+    public void testCholeskySolve() {
+        // [4 2; 2 3] x = [2; 5] has solution x = [-0.5; 2]
+        double[] a = {4, 2, 2, 3};
+        double[] b = {2, 5};
+        ALSModel.choleskySolve(a, b, 2);
+        assertThat(b[0], closeTo(-0.5, EPSILON));
+        assertThat(b[1], closeTo(2, EPSILON));
+    }
+
+    @Test
+    public void testTrainingReducesError() {
+        double first = build(1, 1).computeRMSE();
+        ALSModel model = build(10, 1);
+        assertThat(model.getFeatureCount(), equalTo(FEATURES));
+        assertThat(model.getUserCount(), equalTo(matrix.getUserIds().size()));
+        assertThat(model.getItemCount(), equalTo(matrix.getItemIds().size()));
+        assertThat(model.computeRMSE(), lessThan(first));
+        assertThat(model.getUserVector(1), notNullValue());
+    }
+
+    @Test
+    public void testRemoveUser() {
+        ALSModel model = build(5, 0);
+        RealVector other = model.getUserVector(2);
+        RealVector item = model.getItemVector(100);
+
+        assertThat(model.removeUser(1), equalTo(true));
+        assertThat(model.removeUser(1), equalTo(false));
+        assertThat(model.removeUser(999), equalTo(false));
+        assertThat(model.getUserVector(1), nullValue());
+
+        // without item sweeps, no other vectors change
+        assertVectorsClose(other, model.getUserVector(2));
+        assertVectorsClose(item, model.getItemVector(100));
+    }
+
+    @Test
+    public void testRemoveRatingSweepsOnlyAffectedItems() {
+        ALSModel model = build(5, 1);
+        Rating victim = ratings.stream().filter(r -> r.getUserId() == 3).findFirst().get();
+        Rating untouched = ratings.stream()
+                                  .filter(r -> r.getUserId() == 3)
+                                  .skip(1)
+                                  .findFirst().get();
+        long unrated = ratings.stream()
+                              .map(Rating::getItemId)
+                              .filter(i -> !userRatings(3).containsKey(i))
+                              .findFirst().get();
+        RealVector userBefore = model.getUserVector(3);
+        RealVector victimBefore = model.getItemVector(victim.getItemId());
+        RealVector keptBefore = model.getItemVector(untouched.getItemId());
+        RealVector otherBefore = model.getItemVector(unrated);
+        RealVector otherUser = model.getUserVector(4);
+
+        assertThat(model.removeRating(3, victim.getItemId()), equalTo(true));
+        assertThat(model.removeRating(3, victim.getItemId()), equalTo(false));
+
+        assertThat(model.getUserVector(3), not(equalTo(userBefore)));
+        assertThat(model.getItemVector(victim.getItemId()), not(equalTo(victimBefore)));
+        assertThat(model.getItemVector(untouched.getItemId()), not(equalTo(keptBefore)));
+        assertVectorsClose(otherBefore, model.getItemVector(unrated));
+        assertVectorsClose(otherUser, model.getUserVector(4));
+    }
+
+    @Test
+    public void testUpdateMatchesFoldIn() {
+        ALSModel model = build(5, 0);
+        Long2DoubleMap changed = userRatings(5);
+        long item = changed.keySet().iterator().nextLong();
+        changed.put(item, 6 - changed.get(item));
+
+        RealVector folded = model.foldInUser(5, changed);
+        assertThat(model.updateUserRatings(5, changed), equalTo(true));
+        assertVectorsClose(folded, model.getUserVector(5));
+        assertThat(model.updateUserRatings(999, changed), equalTo(false));
+    }
+
+    @Test
+    public void testFoldOutRemovesRatings() {
+        ALSModel model = build(5, 1);
+        List<Rating> removed = ratings.stream()
+                                      .filter(r -> r.getUserId() == 6 || r.getUserId() == 7)
+                                      .collect(Collectors.toList());
+        double before = model.computeRMSE();
+        assertThat(model.removeRatings(removed), equalTo(removed.size()));
+        assertThat(model.removeRatings(removed), equalTo(0));
+        assertThat(model.getUserVector(6), nullValue());
+        assertThat(model.getUserVector(7), nullValue());
+        assertThat(model.computeRMSE(), closeTo(before, 0.5));
+    }
+
+    @Test
+    public void testSerialize() {
+        ALSModel model = build(3, 1);
+        ALSModel copy = SerializationUtils.clone(model);
+        assertVectorsClose(model.getUserVector(1), copy.getUserVector(1));
+        assertVectorsClose(model.getItemVector(100), copy.getItemVector(100));
+        assertThat(copy.removeUser(1), equalTo(true));
+        assertThat(copy.getUserVector(1), nullValue());
+        assertThat(model.getUserVector(1), notNullValue());
+    }
+}
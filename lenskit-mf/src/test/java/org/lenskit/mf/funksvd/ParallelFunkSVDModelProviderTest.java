@@ -0,0 +1,121 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.bias.GlobalBiasModel;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.PackedRatingMatrixProvider;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ParallelFunkSVDModelProviderTest {
+    private static final int FEATURES = 4;
+
+    private EntityFactory factory = new EntityFactory();
+    private RatingMatrix matrix;
+    private FunkSVDUpdateRule rule;
+
+    @SuppressWarnings("deprecation")
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long user = 1; user <= 60; user++) {
+            for (long item = 100; item < 140; item++) {
+                if (rng.nextDouble() < 0.3) {
+                    ratings.add(factory.rating(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        StaticDataSource source = StaticDataSource.fromList(ratings);
+        matrix = new PackedRatingMatrixProvider(new StandardRatingVectorPDAO(source.get()),
+                                                new Random(7)).get();
+        rule = new FunkSVDUpdateRule(0.001, 0.015, new GlobalBiasModel(3.0), null, 25, 0.1, 5);
+    }
+
+    private static void assertMatricesClose(RealMatrix expected, RealMatrix actual, double eps) {
+        assertThat(actual.getRowDimension(), equalTo(expected.getRowDimension()));
+        assertThat(actual.getColumnDimension(), equalTo(expected.getColumnDimension()));
+        for (int i = 0; i < expected.getRowDimension(); i++) {
+            for (int j = 0; j < expected.getColumnDimension(); j++) {
+                assertThat(actual.getEntry(i, j), closeTo(expected.getEntry(i, j), eps));
+            }
+        }
+    }
+
+    @Test
+    public void testOneBlockMatchesSerial() {
+        FunkSVDModel serial = new FunkSVDModelProvider(matrix, rule, FEATURES, 0.1).get();
+        FunkSVDModel parallel = new ParallelFunkSVDModelProvider(matrix, rule, FEATURES, 0.1, 1).get();
+
+        assertMatricesClose(serial.getUserMatrix(), parallel.getUserMatrix(), 1.0e-10);
+        assertMatricesClose(serial.getItemMatrix(), parallel.getItemMatrix(), 1.0e-10);
+        for (int f = 0; f < FEATURES; f++) {
+            assertThat(parallel.getFeatureInfo(f).getIterCount(),
+                       equalTo(serial.getFeatureInfo(f).getIterCount()));
+            assertThat(parallel.getFeatureInfo(f).getLastRMSE(),
+                       closeTo(serial.getFeatureInfo(f).getLastRMSE(), 1.0e-10));
+        }
+    }
+
+    @Test
+    public void testManyBlocks() {
+        FunkSVDModel serial = new FunkSVDModelProvider(matrix, rule, FEATURES, 0.1).get();
+        FunkSVDModel parallel = new ParallelFunkSVDModelProvider(matrix, rule, FEATURES, 0.1, 4).get();
+
+        assertThat(parallel.getFeatureCount(), equalTo(FEATURES));
+        assertThat(parallel.getFeatureInfo(), hasSize(FEATURES));
+        assertThat(parallel.getUserIndex().size(), equalTo(matrix.getUserIds().size()));
+        assertThat(parallel.getItemIndex().size(), equalTo(matrix.getItemIds().size()));
+        for (int f = 0; f < FEATURES; f++) {
+            FeatureInfo info = parallel.getFeatureInfo(f);
+            assertThat(info.getIterCount(), greaterThan(0));
+            assertThat(info.getLastRMSE(), closeTo(serial.getFeatureInfo(f).getLastRMSE(), 0.05));
+        }
+        for (double v: parallel.getUserMatrix().getData()[0]) {
+            assertThat(Double.isFinite(v), equalTo(true));
+        }
+    }
+
+    @Test
+    public void testDeterministic() {
+        FunkSVDModel first = new ParallelFunkSVDModelProvider(matrix, rule, FEATURES, 0.1, 3).get();
+        FunkSVDModel second = new ParallelFunkSVDModelProvider(matrix, rule, FEATURES, 0.1, 3).get();
+        assertMatricesClose(first.getUserMatrix(), second.getUserMatrix(), 0);
+        assertMatricesClose(first.getItemMatrix(), second.getItemMatrix(), 0);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.mf.funksvd;
+
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.LenskitConfiguration;
+import org.lenskit.LenskitRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.Result;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.bias.GlobalBiasModel;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.PackedRatingMatrixProvider;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ShardedFunkSVDModelTest {
+    private static final int SHARDS = 3;
+
+    private EntityFactory factory = new EntityFactory();
+    private List<Rating> ratings;
+    private FunkSVDUpdateRule rule;
+
+    @SuppressWarnings("deprecation")
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 30; user++) {
+            for (long item = 100; item < 115; item++) {
+                if (rng.nextDouble() < 0.4) {
+                    ratings.add(factory.rating(user, item, 1 + rng.nextInt(5)));
+                }
+            }
+        }
+        rule = new FunkSVDUpdateRule(0.001, 0.015, new GlobalBiasModel(3.0), null, 20, 0.1, 5);
+    }
+
+    private ShardedFunkSVDModel build(List<Rating> rs) {
+        StaticDataSource source = StaticDataSource.fromList(rs);
+        RatingMatrix matrix = new PackedRatingMatrixProvider(new StandardRatingVectorPDAO(source.get()),
+                                                             new Random(7)).get();
+        return new ShardedFunkSVDModelProvider(matrix, rule, 5, 0.1, SHARDS, new Random(1)).get();
+    }
+
+    @Test
+    public void testShardUsers() {
+        ShardedFunkSVDModel model = build(ratings);
+        assertThat(model.getShardCount(), equalTo(SHARDS));
+        for (Rating r: ratings) {
+            int shard = model.getShard(r.getUserId());
+            assertThat(model.getShardModel(shard).getUserVector(r.getUserId()), notNullValue());
+            for (int s = 0; s < SHARDS; s++) {
+                if (s != shard) {
+                    assertThat(model.getShardModel(s).getUserVector(r.getUserId()), nullValue());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveRetrainsOnlyOneShard() {
+        ShardedFunkSVDModel model = build(ratings);
+        Rating victim = ratings.get(10);
+        int shard = model.getShard(victim.getUserId());
+        FunkSVDModel[] before = new FunkSVDModel[SHARDS];
+        for (int s = 0; s < SHARDS; s++) {
+            before[s] = model.getShardModel(s);
+        }
+
+        assertThat(model.removeRating(victim.getUserId(), victim.getItemId()), equalTo(true));
+        assertThat(model.removeRating(victim.getUserId(), victim.getItemId()), equalTo(false));
+
+        for (int s = 0; s < SHARDS; s++) {
+            if (s == shard) {
+                assertThat(model.getShardModel(s), not(sameInstance(before[s])));
+            } else {
+                assertThat(model.getShardModel(s), sameInstance(before[s]));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveMatchesRetrain() {
+        ShardedFunkSVDModel model = build(ratings);
+        List<Rating> removed = new ArrayList<>();
+        List<Rating> kept = new ArrayList<>();
+        for (Rating r: ratings) {
+            if (r.getUserId() == 4 || r.getItemId() == 103) {
+                removed.add(r);
+            } else {
+                kept.add(r);
+            }
+        }
+        assertThat(model.removeRatings(removed), equalTo(removed.size()));
+
+        ShardedFunkSVDModel fresh = build(kept);
+        for (int s = 0; s < SHARDS; s++) {
+            FunkSVDModel actual = model.getShardModel(s);
+            FunkSVDModel expected = fresh.getShardModel(s);
+            assertThat(actual.getUserIndex().getKeyList(), equalTo(expected.getUserIndex().getKeyList()));
+            assertThat(actual.getItemIndex().getKeyList(), equalTo(expected.getItemIndex().getKeyList()));
+            assertThat(actual.getUserMatrix(), equalTo(expected.getUserMatrix()));
+            assertThat(actual.getItemMatrix(), equalTo(expected.getItemMatrix()));
+        }
+    }
+
+    @Test
+    public void testRemoveUser() {
+        ShardedFunkSVDModel model = build(ratings);
+        long user = ratings.get(0).getUserId();
+        assertThat(model.removeUser(user), equalTo(true));
+        assertThat(model.removeUser(user), equalTo(false));
+        assertThat(model.getUserModel(user).getUserVector(user), nullValue());
+    }
+
+    @Test
+    public void testScoreItems() {
+        ShardedFunkSVDModel model = build(ratings);
+        ShardedFunkSVDItemScorer scorer = new ShardedFunkSVDItemScorer(model, new GlobalBiasModel(3.0), null);
+        long user = ratings.get(0).getUserId();
+        FunkSVDModel umod = model.getUserModel(user);
+        Result r = scorer.score(user, 100);
+        assertThat(r, notNullValue());
+        assertThat(r.getScore(),
+                   closeTo(3.0 + umod.getUserVector(user).dotProduct(umod.getItemVector(100)), 1.0e-6));
+        assertThat(scorer.score(user, 999), nullValue());
+        assertThat(scorer.score(999, 100), nullValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testConfigure() {
+        LenskitConfiguration config = new LenskitConfiguration();
+        config.bind(ItemScorer.class).to(ShardedFunkSVDItemScorer.class);
+        config.bind(BiasModel.class).to(GlobalBiasModel.class);
+        config.set(IterationCount.class).to(10);
+        config.set(FeatureCount.class).to(5);
+        config.set(ShardCount.class).to(2);
+
+        LenskitRecommender rec = LenskitRecommender.build(config, StaticDataSource.fromList(ratings).get());
+        assertThat(rec.getItemScorer(), instanceOf(ShardedFunkSVDItemScorer.class));
+        ShardedFunkSVDItemScorer scorer = (ShardedFunkSVDItemScorer) rec.getItemScorer();
+        assertThat(scorer.getModel().getShardCount(), equalTo(2));
+    }
+}
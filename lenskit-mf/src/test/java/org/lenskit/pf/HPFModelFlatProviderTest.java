@@ -0,0 +1,176 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.PackedRatingMatrixProvider;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.mf.DenseFactorMatrix;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.groupingBy;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class HPFModelFlatProviderTest {
+    private static final int FEATURES = 4;
+    private static final double EPSILON = 1.0e-9;
+
+    private EntityFactory factory = new EntityFactory();
+    private RatingMatrix matrix;
+    private PFHyperParameters hyper = new PFHyperParameters(0.3, 0.3, 1.0, 0.3, 0.3, 1.0, FEATURES);
+
+    @Before
+    public void setup() {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long user = 1; user <= 40; user++) {
+            for (long item = 100; item < 125; item++) {
+                // every user and item gets at least one positive rating
+                if (item - 100 == user % 25 || rng.nextDouble() < 0.3) {
+                    ratings.add(factory.rating(user, item, rng.nextInt(6)));
+                }
+            }
+        }
+        StaticDataSource source = StaticDataSource.fromList(ratings);
+        matrix = new PackedRatingMatrixProvider(new StandardRatingVectorPDAO(source.get()),
+                                                new Random(7)).get();
+    }
+
+    private DataSplitStrategy split() {
+        return new RandomDataSplitStrategyProvider(matrix, new Random(), 5, 0.1).get();
+    }
+
+    private HPFModelFlatProvider provider(DataSplitStrategy split, int iterations) {
+        return new HPFModelFlatProvider(split, hyper, 2, 3, 1.0, 1.0, false, 0, iterations);
+    }
+
+    private static PMFModel toPMFModel(FlatPMFModel flat) {
+        PMFModel model = new PMFModel();
+        for (int i = 0; i < flat.getRowCount(); i++) {
+            PMFModel.ModelEntry entry = new PMFModel.ModelEntry(i, FEATURES, 0, 0, 1);
+            for (int k = 0; k < FEATURES; k++) {
+                entry.setWeightShpEntry(k, flat.getWeightShpEntry(i, k));
+                entry.setWeightRteEntry(k, flat.getWeightRteEntry(i, k));
+            }
+            entry.setActivityShp(flat.getActivityShp(i));
+            entry.setActivityRte(flat.getActivityRte(i));
+            model.addEntry(entry);
+        }
+        return model;
+    }
+
+    private static void assertModelsClose(PMFModel expected, FlatPMFModel actual) {
+        for (int i = 0; i < actual.getRowCount(); i++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(actual.getWeightShpEntry(i, k), closeTo(expected.getWeightShpEntry(i, k), EPSILON));
+                assertThat(actual.getWeightRteEntry(i, k), closeTo(expected.getWeightRteEntry(i, k), EPSILON));
+            }
+            assertThat(actual.getActivityShp(i), closeTo(expected.getActivityShp(i), EPSILON));
+            assertThat(actual.getActivityRte(i), closeTo(expected.getActivityRte(i), EPSILON));
+        }
+    }
+
+    @Test
+    public void testUpdateMatchesPMFModel() {
+        int nusers = matrix.getUserIds().size();
+        int nitems = matrix.getItemIds().size();
+        List<RatingMatrixEntry> train = matrix.getRatings();
+
+        Random random = new Random(1);
+        FlatPMFModel preUsers = new FlatPMFModel(nusers, FEATURES);
+        preUsers.initialize(0.3, 0.3, 1.0, 1.0, random);
+        FlatPMFModel preItems = new FlatPMFModel(nitems, FEATURES);
+        preItems.initialize(0.3, 0.3, 1.0, 1.0, random);
+        PMFModel oldUsers = toPMFModel(preUsers);
+        PMFModel oldItems = toPMFModel(preItems);
+
+        PMFModel expUsers = new PMFModel();
+        for (List<RatingMatrixEntry> rs: train.stream().collect(groupingBy(RatingMatrixEntry::getUserIndex)).values()) {
+            expUsers.addEntry(PMFModel.computeUserUpdate(rs, oldUsers, oldItems, hyper));
+        }
+        PMFModel expItems = new PMFModel();
+        for (List<RatingMatrixEntry> rs: train.stream().collect(groupingBy(RatingMatrixEntry::getItemIndex)).values()) {
+            expItems.addEntry(PMFModel.computeItemUpdate(rs, oldUsers, oldItems, expUsers, hyper));
+        }
+
+        HPFModelFlatProvider provider = provider(split(), 10);
+        ThreadLocal<double[]> scratch = ThreadLocal.withInitial(() -> new double[FEATURES]);
+        FlatPMFModel users = new FlatPMFModel(nusers, FEATURES);
+        FlatPMFModel items = new FlatPMFModel(nitems, FEATURES);
+        provider.updateUsers(RatingRows.byUser(train, nusers), preUsers, preItems, users, scratch);
+        provider.updateItems(RatingRows.byItem(train, nitems), preUsers, preItems, users, items, scratch);
+
+        assertModelsClose(expUsers, users);
+        assertModelsClose(expItems, items);
+    }
+
+    @Test
+    public void testRatingRows() {
+        List<RatingMatrixEntry> train = matrix.getRatings();
+        int nusers = matrix.getUserIds().size();
+        RatingRows rows = RatingRows.byUser(train, nusers);
+        assertThat(rows.getRowCount(), equalTo(nusers));
+        long positive = train.stream().filter(r -> r.getValue() > 0).count();
+        assertThat((long) rows.offsets[nusers], equalTo(positive));
+        for (RatingMatrixEntry r: train) {
+            int u = r.getUserIndex();
+            boolean found = false;
+            for (int j = rows.offsets[u]; j < rows.offsets[u + 1]; j++) {
+                if (rows.columns[j] == r.getItemIndex()) {
+                    assertThat(rows.values[j], equalTo(r.getValue()));
+                    found = true;
+                }
+            }
+            assertThat(found, equalTo(r.getValue() > 0));
+        }
+    }
+
+    @Test
+    public void testBuildDeterministic() {
+        DataSplitStrategy split = split();
+        HPFModel first = provider(split, 20).get();
+        HPFModel second = provider(split, 20).get();
+
+        assertThat(first.getFeatureCount(), equalTo(FEATURES));
+        assertThat(first.getUserCount(), equalTo(matrix.getUserIds().size()));
+        assertThat(first.getItemCount(), equalTo(matrix.getItemIds().size()));
+        DenseFactorMatrix u1 = first.getUserFactors();
+        DenseFactorMatrix u2 = second.getUserFactors();
+        for (int i = 0; i < first.getUserCount(); i++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(u1.getEntry(i, k), greaterThan(0.0));
+                assertThat(u2.getEntry(i, k), equalTo(u1.getEntry(i, k)));
+            }
+        }
+    }
+}
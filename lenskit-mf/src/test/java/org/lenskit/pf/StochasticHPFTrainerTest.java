@@ -0,0 +1,354 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.pf;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.math3.special.Gamma;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.PackedRatingMatrixProvider;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingMatrix;
+import org.lenskit.data.ratings.RatingMatrixEntry;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.mf.DenseFactorMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class StochasticHPFTrainerTest {
+    private static final int FEATURES = 3;
+
+    private EntityFactory factory = new EntityFactory();
+    private RatingMatrix matrix;
+    private PFHyperParameters hyper = new PFHyperParameters(0.3, 0.3, 1.0, 0.3, 0.3, 1.0, FEATURES);
+
+    @Before
+    public void setup() {
+        // two groups of users, each mostly interacting with its own half of the items
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>();
+        for (long user = 1; user <= 60; user++) {
+            for (long item = 100; item < 130; item++) {
+                boolean match = (user % 2 == 0) == (item < 115);
+                if (rng.nextDouble() < (match ? 0.6 : 0.05)) {
+                    ratings.add(factory.rating(user, item, 1 + rng.nextInt(3)));
+                }
+            }
+        }
+        StaticDataSource source = StaticDataSource.fromList(ratings);
+        matrix = new PackedRatingMatrixProvider(new StandardRatingVectorPDAO(source.get()),
+                                                new Random(7)).get();
+    }
+
+    private StochasticHPFTrainer create(long seed) {
+        return StochasticHPFTrainer.create(matrix.getRatings(), matrix.userIndex(), matrix.itemIndex(),
+                                           hyper, 10, 1.0, 0.7, 1.0, 1.0, new Random(seed));
+    }
+
+    /**
+     * Compute the average Poisson log likelihood of all user-item pairs.
+     */
+    private double logLikelihood(HPFModel model) {
+        return logLikelihood(model, -1);
+    }
+
+    /**
+     * Compute the average Poisson log likelihood of the user-item pairs of all users but one.
+     * @param excluded The user to leave out.
+     */
+    private double logLikelihood(HPFModel model, long excluded) {
+        int skip = model.getUserIndex().tryGetIndex(excluded);
+        double[][] counts = new double[model.getUserCount()][model.getItemCount()];
+        for (RatingMatrixEntry r: matrix.getRatings()) {
+            counts[r.getUserIndex()][r.getItemIndex()] = r.getValue();
+        }
+        DenseFactorMatrix users = model.getUserFactors();
+        DenseFactorMatrix items = model.getItemFactors();
+        double ll = 0;
+        int n = 0;
+        for (int u = 0; u < model.getUserCount(); u++) {
+            if (u == skip) {
+                continue;
+            }
+            double[] uvec = users.getRow(u);
+            for (int i = 0; i < model.getItemCount(); i++) {
+                double rate = items.dotRow(i, uvec);
+                ll += counts[u][i] * Math.log(rate) - rate - Gamma.logGamma(counts[u][i] + 1);
+                n += 1;
+            }
+        }
+        return ll / n;
+    }
+
+    @Test
+    public void testTrainingImprovesLikelihood() {
+        StochasticHPFTrainer trainer = create(1);
+        double initial = logLikelihood(trainer.getModel());
+        trainer.train(20);
+        assertThat(trainer.getStepCount(), equalTo(120L));
+        HPFModel model = trainer.getModel();
+        assertThat(model.getFeatureCount(), equalTo(FEATURES));
+        assertThat(model.getUserCount(), equalTo(60));
+        assertThat(model.getItemCount(), equalTo(30));
+        assertThat(logLikelihood(model), greaterThan(initial));
+    }
+
+    @Test
+    public void testDeterministic() {
+        StochasticHPFTrainer first = create(3);
+        first.train(5);
+        StochasticHPFTrainer second = create(3);
+        second.train(5);
+        DenseFactorMatrix u1 = first.getModel().getUserFactors();
+        DenseFactorMatrix u2 = second.getModel().getUserFactors();
+        for (int u = 0; u < u1.getRowDimension(); u++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(u2.getEntry(u, k), equalTo(u1.getEntry(u, k)));
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateUsers() {
+        StochasticHPFTrainer trainer = create(1);
+        trainer.train(20);
+        HPFModel before = trainer.getModel();
+        long steps = trainer.getStepCount();
+
+        Long2ObjectMap<Long2DoubleMap> changes = new Long2ObjectOpenHashMap<>();
+        changes.put(2, new Long2DoubleOpenHashMap());
+        changes.put(999, new Long2DoubleOpenHashMap());
+        assertThat(trainer.updateUsers(changes), equalTo(1));
+        assertThat(trainer.getStepCount(), equalTo(steps + 1));
+
+        HPFModel after = trainer.getModel();
+        // the user has no interactions left, so their weights shrink toward the prior
+        assertThat(after.getUserVector(2).getL1Norm(), lessThan(before.getUserVector(2).getL1Norm()));
+        // other users' local parameters are not touched
+        assertThat(after.getUserVector(3), equalTo(before.getUserVector(3)));
+        assertThat(after.getItemVector(100), not(equalTo(before.getItemVector(100))));
+        // forgetting one user barely changes the fit to the others
+        double llBefore = logLikelihood(before, 2);
+        assertThat(logLikelihood(after, 2), closeTo(llBefore, Math.abs(llBefore) * 0.01));
+        assertPredictionsClose(after, before, 2, 0.05);
+    }
+
+    @Test
+    public void testForgetGroup() {
+        StochasticHPFTrainer trainer = create(1);
+        trainer.train(20);
+        HPFModel before = trainer.getModel();
+
+        // forget the group of users that rates the low items
+        Long2ObjectMap<Long2DoubleMap> changes = new Long2ObjectOpenHashMap<>();
+        for (long user = 2; user <= 60; user += 2) {
+            changes.put(user, new Long2DoubleOpenHashMap());
+        }
+        assertThat(trainer.updateUsers(changes), equalTo(30));
+        HPFModel stepped = trainer.getModel();
+        // the update only takes one small step, and further training removes the rest of the old statistics
+        trainer.train(20);
+        HPFModel after = trainer.getModel();
+
+        // the low items have lost nearly all their interactions, so their weights fall
+        double weightBefore = 0;
+        double weightStepped = 0;
+        double weightAfter = 0;
+        for (long item = 100; item < 115; item++) {
+            weightBefore += before.getItemVector(item).getL1Norm();
+            weightStepped += stepped.getItemVector(item).getL1Norm();
+            weightAfter += after.getItemVector(item).getL1Norm();
+        }
+        assertThat(weightStepped, lessThan(weightBefore));
+        assertThat(weightAfter, lessThan(weightBefore * 0.75));
+
+        // the other group's predictions for its own items are kept
+        double diff = 0;
+        int n = 0;
+        for (RatingMatrixEntry r: matrix.getRatings()) {
+            if (r.getUserId() % 2 == 1 && r.getItemId() >= 115) {
+                double exp = before.getItemVector(r.getItemId()).dotProduct(before.getUserVector(r.getUserId()));
+                double act = after.getItemVector(r.getItemId()).dotProduct(after.getUserVector(r.getUserId()));
+                diff += Math.abs(act - exp) / exp;
+                n += 1;
+            }
+        }
+        assertThat(diff / n, lessThan(0.05));
+    }
+
+    @Test
+    public void testRemoveRatings() {
+        StochasticHPFTrainer updated = create(1);
+        updated.train(5);
+        StochasticHPFTrainer removed = create(1);
+        removed.train(5);
+
+        List<RatingMatrixEntry> user2 = new ArrayList<>();
+        for (RatingMatrixEntry r: matrix.getRatings()) {
+            if (r.getUserId() == 2) {
+                user2.add(r);
+            }
+        }
+        Long2ObjectMap<Long2DoubleMap> changes = new Long2ObjectOpenHashMap<>();
+        changes.put(2, new Long2DoubleOpenHashMap());
+        updated.updateUsers(changes);
+        assertThat(removed.removeRatings(user2), equalTo(user2.size()));
+        assertThat(removed.removeRatings(user2), equalTo(0));
+
+        DenseFactorMatrix exp = updated.getModel().getItemFactors();
+        DenseFactorMatrix act = removed.getModel().getItemFactors();
+        for (int i = 0; i < exp.getRowDimension(); i++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(act.getEntry(i, k), equalTo(exp.getEntry(i, k)));
+            }
+        }
+    }
+
+    @Test
+    public void testModelForgets() {
+        StochasticHPFTrainer trainer = create(1);
+        trainer.train(5);
+        StochasticHPFModel model = new StochasticHPFModel(trainer);
+        HPFModel before = trainer.getModel();
+        RealMatrix oldItems = model.getItemMatrix();
+        List<RatingMatrixEntry> user2 = new ArrayList<>();
+        for (RatingMatrixEntry r: matrix.getRatings()) {
+            if (r.getUserId() == 2) {
+                user2.add(r);
+            }
+        }
+        assertThat(model.removeRatings(user2), equalTo(user2.size()));
+
+        HPFModel expected = trainer.getModel();
+        for (int u = 0; u < expected.getUserCount(); u++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(model.getUserMatrix().getEntry(u, k), equalTo(expected.getUserMatrix().getEntry(u, k)));
+            }
+        }
+        for (int i = 0; i < expected.getItemCount(); i++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(model.getItemMatrix().getEntry(i, k), equalTo(expected.getItemMatrix().getEntry(i, k)));
+                // the matrices from before the update are not modified
+                assertThat(oldItems.getEntry(i, k), equalTo(before.getItemMatrix().getEntry(i, k)));
+            }
+        }
+        assertThat(model.getStepCount(), equalTo(trainer.getStepCount()));
+    }
+
+    @Test
+    public void testSerializeModel() {
+        StochasticHPFTrainer trainer = create(1);
+        trainer.train(5);
+        StochasticHPFModel model = new StochasticHPFModel(trainer);
+        Long2ObjectMap<Long2DoubleMap> changes = new Long2ObjectOpenHashMap<>();
+        changes.put(2, new Long2DoubleOpenHashMap());
+        model.updateUsers(changes);
+
+        StochasticHPFModel copy = SerializationUtils.clone(model);
+        assertThat(copy.isUpdatable(), equalTo(false));
+        assertThat(copy.getStepCount(), equalTo(model.getStepCount()));
+        for (int u = 0; u < model.getUserCount(); u++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(copy.getUserMatrix().getEntry(u, k), equalTo(model.getUserMatrix().getEntry(u, k)));
+            }
+        }
+        for (int i = 0; i < model.getItemCount(); i++) {
+            for (int k = 0; k < FEATURES; k++) {
+                assertThat(copy.getItemMatrix().getEntry(i, k), equalTo(model.getItemMatrix().getEntry(i, k)));
+            }
+        }
+    }
+
+    @Test
+    public void testResumePreservesModel() {
+        StochasticHPFTrainer original = create(1);
+        original.train(20);
+        HPFModel model = original.getModel();
+        long steps = original.getStepCount();
+        StochasticHPFTrainer trainer = StochasticHPFTrainer.resume(model, matrix.getRatings(), hyper,
+                                                                   10, 1.0, 0.7, steps, new Random(2));
+        assertThat(trainer.getStepCount(), equalTo(steps));
+        HPFModel resumed = trainer.getModel();
+        for (int u = 0; u < model.getUserCount(); u++) {
+            for (int k = 0; k < FEATURES; k++) {
+                double v = model.getUserMatrix().getEntry(u, k);
+                assertThat(resumed.getUserMatrix().getEntry(u, k), closeTo(v, v * 1.0e-12));
+            }
+        }
+        for (int i = 0; i < model.getItemCount(); i++) {
+            for (int k = 0; k < FEATURES; k++) {
+                double v = model.getItemMatrix().getEntry(i, k);
+                assertThat(resumed.getItemMatrix().getEntry(i, k), closeTo(v, v * 1.0e-12));
+            }
+        }
+
+        // continuing the step size schedule, further training does not undo the trained model
+        double initial = logLikelihood(resumed);
+        trainer.train(1);
+        assertThat(logLikelihood(trainer.getModel()), closeTo(initial, Math.abs(initial) * 0.002));
+        assertPredictionsClose(trainer.getModel(), model, -1, 0.05);
+    }
+
+    @Test
+    public void testResumeUntrained() {
+        HPFModel model = create(1).getModel();
+        StochasticHPFTrainer trainer = StochasticHPFTrainer.resume(model, matrix.getRatings(), hyper,
+                                                                   10, 1.0, 0.7, 0, new Random(2));
+        double initial = logLikelihood(trainer.getModel());
+        trainer.train(10);
+        assertThat(logLikelihood(trainer.getModel()), greaterThan(initial));
+    }
+
+    /**
+     * Assert that two models' predicted rates for the observed ratings of all users but one have a small mean
+     * relative difference.
+     */
+    private void assertPredictionsClose(HPFModel actual, HPFModel expected, long excluded, double tolerance) {
+        double diff = 0;
+        int n = 0;
+        for (RatingMatrixEntry r: matrix.getRatings()) {
+            if (r.getUserId() == excluded) {
+                continue;
+            }
+            double exp = expected.getItemVector(r.getItemId()).dotProduct(expected.getUserVector(r.getUserId()));
+            double act = actual.getItemVector(r.getItemId()).dotProduct(actual.getUserVector(r.getUserId()));
+            diff += Math.abs(act - exp) / exp;
+            n += 1;
+        }
+        assertThat(diff / n, lessThan(tolerance));
+    }
+}
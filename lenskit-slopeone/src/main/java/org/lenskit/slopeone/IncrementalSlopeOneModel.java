@@ -0,0 +1,375 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.slopeone;
+
+import it.unimi.dsi.fastutil.longs.*;
+import net.jcip.annotations.ThreadSafe;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.UpdatableModel;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A slope-one model that can be updated as ratings are added and removed.
+ *
+ * <p>Unlike {@link SlopeOneModel}, this model retains the raw deviation sums and co-rating counts for each item
+ * pair rather than the final deviations, along with the user rating vectors needed to compute them.  Adding or
+ * removing a rating updates only the pairs formed by the rated item and the other items in the user's profile,
+ * so its cost is proportional to the size of the user's profile.</p>
+ *
+ * <p>The model computes deviations from unnormalized ratings, so it is equivalent to a {@link SlopeOneModel}
+ * built with identity or mean-centering user normalization.  To use it, bind {@link SlopeOneModel} to this class.
+ * </p>
+ */
+@DefaultProvider(IncrementalSlopeOneModelProvider.class)
+@Shareable
+@ThreadSafe
+public class IncrementalSlopeOneModel extends SlopeOneModel implements UpdatableModel {
+    private static final long serialVersionUID = 1L;
+
+    private final double damping;
+    private final Long2ObjectMap<Long2DoubleSortedMap> userRatings;
+    private final Long2ObjectMap<DeviationRow> rows;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Construct a new incremental model.
+     *
+     * @param damping The deviation damping term.
+     * @param users   The user rating vectors.
+     * @param rows    The deviation rows, indexed by the lower item ID of each pair.
+     */
+    IncrementalSlopeOneModel(double damping, Long2ObjectMap<Long2DoubleSortedMap> users,
+                             Long2ObjectMap<DeviationRow> rows) {
+        this.damping = damping;
+        userRatings = users;
+        this.rows = rows;
+    }
+
+    @Override
+    public double getDeviation(long item1, long item2) {
+        if (item1 == item2) {
+            return 0;
+        }
+        long lo = Math.min(item1, item2);
+        long hi = Math.max(item1, item2);
+        double dev;
+        Lock rl = lock.readLock();
+        rl.lock();
+        try {
+            DeviationRow row = rows.get(lo);
+            int idx = row == null ? -1 : row.find(hi);
+            if (idx < 0) {
+                return Double.NaN;
+            }
+            dev = row.sums[idx] / (row.counts[idx] + damping);
+        } finally {
+            rl.unlock();
+        }
+        return item1 < item2 ? dev : -dev;
+    }
+
+    @Override
+    public int getCoratings(long item1, long item2) {
+        if (item1 == item2) {
+            return 0;
+        }
+        Lock rl = lock.readLock();
+        rl.lock();
+        try {
+            DeviationRow row = rows.get(Math.min(item1, item2));
+            int idx = row == null ? -1 : row.find(Math.max(item1, item2));
+            return idx < 0 ? 0 : row.counts[idx];
+        } finally {
+            rl.unlock();
+        }
+    }
+
+    /**
+     * Add a rating to the model.  If the user has already rated the item, the old rating is replaced.
+     *
+     * @param user   The user ID.
+     * @param item   The item ID.
+     * @param rating The rating value.
+     */
+    public void addRating(long user, long item, double rating) {
+        Lock wl = lock.writeLock();
+        wl.lock();
+        try {
+            Long2DoubleSortedMap ratings = userRatings.get(user);
+            Long2DoubleMap updated;
+            if (ratings == null) {
+                updated = new Long2DoubleOpenHashMap();
+            } else {
+                if (ratings.containsKey(item)) {
+                    updatePairs(item, ratings.get(item), ratings, -1);
+                }
+                updated = new Long2DoubleOpenHashMap(ratings);
+            }
+            updated.put(item, rating);
+            Long2DoubleSortedMap frozen = Long2DoubleSortedArrayMap.create(updated);
+            updatePairs(item, rating, frozen, 1);
+            userRatings.put(user, frozen);
+        } finally {
+            wl.unlock();
+        }
+    }
+
+    /**
+     * Remove a rating from the model.
+     *
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the model contained the rating.
+     */
+    public boolean removeRating(long user, long item) {
+        Lock wl = lock.writeLock();
+        wl.lock();
+        try {
+            Long2DoubleSortedMap ratings = userRatings.get(user);
+            if (ratings == null || !ratings.containsKey(item)) {
+                return false;
+            }
+            updatePairs(item, ratings.get(item), ratings, -1);
+            if (ratings.size() == 1) {
+                userRatings.remove(user);
+            } else {
+                Long2DoubleMap updated = new Long2DoubleOpenHashMap(ratings);
+                updated.remove(item);
+                userRatings.put(user, Long2DoubleSortedArrayMap.create(updated));
+            }
+            return true;
+        } finally {
+            wl.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Each affected user's profile is rebuilt once, and only the pairs involving the changed items are updated.
+     * Removing a rating the model does not contain has no effect.
+     */
+    @Override
+    public void update(RatingUpdate update) {
+        if (update.isEmpty()) {
+            return;
+        }
+        Lock wl = lock.writeLock();
+        wl.lock();
+        try {
+            Long2ObjectMap<Long2DoubleMap> vectors = update.updateUserVectors(userRatings::get);
+            for (Long2ObjectMap.Entry<Long2DoubleMap> e: Long2ObjectMaps.fastIterable(vectors)) {
+                updateUser(e.getLongKey(), e.getValue());
+            }
+        } finally {
+            wl.unlock();
+        }
+    }
+
+    /**
+     * Replace a user's ratings, updating the pairs formed by the items whose ratings changed.
+     *
+     * @param user    The user ID.
+     * @param ratings The user's new ratings.
+     */
+    private void updateUser(long user, Long2DoubleMap ratings) {
+        Long2DoubleSortedMap old = userRatings.get(user);
+        Long2DoubleMap work = old == null ? new Long2DoubleOpenHashMap() : new Long2DoubleOpenHashMap(old);
+        if (old != null) {
+            // remove the old ratings of changed items; each is dropped first so shared pairs are removed once
+            for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(old)) {
+                long item = e.getLongKey();
+                double v = e.getDoubleValue();
+                if (!ratings.containsKey(item) || ratings.get(item) != v) {
+                    work.remove(item);
+                    updatePairs(item, v, work, -1);
+                }
+            }
+        }
+        // work now holds the unchanged ratings; add the new ones
+        for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(ratings)) {
+            long item = e.getLongKey();
+            if (!work.containsKey(item)) {
+                updatePairs(item, e.getDoubleValue(), work, 1);
+                work.put(item, e.getDoubleValue());
+            }
+        }
+        if (ratings.isEmpty()) {
+            userRatings.remove(user);
+        } else {
+            userRatings.put(user, Long2DoubleSortedArrayMap.create(ratings));
+        }
+    }
+
+    /**
+     * Remove all of a user's ratings from the model.
+     *
+     * @param user The user ID.
+     * @return {@code true} if the model contained ratings from the user.
+     */
+    public boolean removeUser(long user) {
+        Lock wl = lock.writeLock();
+        wl.lock();
+        try {
+            Long2DoubleSortedMap ratings = userRatings.remove(user);
+            if (ratings == null) {
+                return false;
+            }
+            Long2DoubleSortedArrayMap vec = Long2DoubleSortedArrayMap.create(ratings);
+            int n = vec.size();
+            for (int i = 0; i < n; i++) {
+                long item1 = vec.getKeyByIndex(i);
+                double v1 = vec.getValueByIndex(i);
+                DeviationRow row = rows.get(item1);
+                assert row != null || i == n - 1;
+                for (int j = i + 1; j < n; j++) {
+                    row.add(vec.getKeyByIndex(j), vec.getValueByIndex(j) - v1, -1);
+                }
+                if (row != null && row.size == 0) {
+                    rows.remove(item1);
+                }
+            }
+            return true;
+        } finally {
+            wl.unlock();
+        }
+    }
+
+    /**
+     * Apply a rating's contribution to the pairs it forms with the other items in the user's profile.
+     *
+     * @param item    The rated item.
+     * @param rating  The rating value.
+     * @param ratings The user's ratings (may include {@code item}, which is skipped).
+     * @param sign    1 to add the contribution, -1 to remove it.
+     */
+    private void updatePairs(long item, double rating, Long2DoubleMap ratings, int sign) {
+        for (Long2DoubleMap.Entry e: Long2DoubleMaps.fastIterable(ratings)) {
+            long other = e.getLongKey();
+            if (other == item) {
+                continue;
+            }
+            long lo, hi;
+            double diff;
+            if (item < other) {
+                lo = item;
+                hi = other;
+                diff = rating - e.getDoubleValue();
+            } else {
+                lo = other;
+                hi = item;
+                diff = e.getDoubleValue() - rating;
+            }
+            DeviationRow row = rows.get(lo);
+            if (row == null) {
+                assert sign > 0;
+                row = new DeviationRow();
+                rows.put(lo, row);
+            }
+            row.add(hi, sign * diff, sign);
+            if (row.size == 0) {
+                rows.remove(lo);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("incremental slope-one model of %d rows for %d users", rows.size(), userRatings.size());
+    }
+
+    /**
+     * Deviation sums and co-rating counts for pairs with a single lower item, stored in parallel arrays sorted
+     * by the ID of the higher item.
+     */
+    static final class DeviationRow implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long[] items;
+        double[] sums;
+        int[] counts;
+        int size;
+
+        DeviationRow() {
+            this(new long[4], new double[4], new int[4], 0);
+        }
+
+        DeviationRow(long[] is, double[] ss, int[] cs, int n) {
+            items = is;
+            sums = ss;
+            counts = cs;
+            size = n;
+        }
+
+        int find(long item) {
+            return Arrays.binarySearch(items, 0, size, item);
+        }
+
+        /**
+         * Add to the statistics for a pair, removing the pair if its count drops to zero.
+         */
+        void add(long item, double sum, int count) {
+            int idx = find(item);
+            if (idx >= 0) {
+                counts[idx] += count;
+                if (counts[idx] <= 0) {
+                    assert counts[idx] == 0;
+                    int tail = size - idx - 1;
+                    System.arraycopy(items, idx + 1, items, idx, tail);
+                    System.arraycopy(sums, idx + 1, sums, idx, tail);
+                    System.arraycopy(counts, idx + 1, counts, idx, tail);
+                    size -= 1;
+                } else {
+                    sums[idx] += sum;
+                }
+            } else {
+                assert count > 0;
+                idx = -idx - 1;
+                if (size == items.length) {
+                    int cap = Math.max(4, size * 2);
+                    items = Arrays.copyOf(items, cap);
+                    sums = Arrays.copyOf(sums, cap);
+                    counts = Arrays.copyOf(counts, cap);
+                }
+                int tail = size - idx;
+                System.arraycopy(items, idx, items, idx + 1, tail);
+                System.arraycopy(sums, idx, sums, idx + 1, tail);
+                System.arraycopy(counts, idx, counts, idx + 1, tail);
+                items[idx] = item;
+                sums[idx] = sum;
+                counts[idx] = count;
+                size += 1;
+            }
+        }
+    }
+}
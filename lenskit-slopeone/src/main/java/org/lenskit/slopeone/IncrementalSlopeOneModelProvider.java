@@ -0,0 +1,109 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.slopeone;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Builds an {@link IncrementalSlopeOneModel} by accumulating deviation sums over each user's rating pairs.
+ */
+public class IncrementalSlopeOneModelProvider implements Provider<IncrementalSlopeOneModel> {
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalSlopeOneModelProvider.class);
+
+    private final RatingVectorPDAO dao;
+    private final double damping;
+
+    @Inject
+    public IncrementalSlopeOneModelProvider(@Transient RatingVectorPDAO dao,
+                                            @DeviationDamping double damping) {
+        this.dao = dao;
+        this.damping = damping;
+    }
+
+    @Override
+    public IncrementalSlopeOneModel get() {
+        Long2ObjectMap<Long2DoubleSortedMap> users = new Long2ObjectOpenHashMap<>();
+        Long2ObjectMap<Long2DoubleOpenHashMap> sums = new Long2ObjectOpenHashMap<>();
+        Long2ObjectMap<Long2IntOpenHashMap> counts = new Long2ObjectOpenHashMap<>();
+
+        try (ObjectStream<IdBox<Long2DoubleMap>> stream = dao.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user: stream) {
+                Long2DoubleSortedArrayMap vec = Long2DoubleSortedArrayMap.create(user.getValue());
+                if (vec.isEmpty()) {
+                    continue;
+                }
+                users.put(user.getId(), vec);
+                int n = vec.size();
+                for (int i = 0; i < n - 1; i++) {
+                    long item1 = vec.getKeyByIndex(i);
+                    double v1 = vec.getValueByIndex(i);
+                    Long2DoubleOpenHashMap rowSums = sums.get(item1);
+                    Long2IntOpenHashMap rowCounts = counts.get(item1);
+                    if (rowSums == null) {
+                        rowSums = new Long2DoubleOpenHashMap();
+                        sums.put(item1, rowSums);
+                        rowCounts = new Long2IntOpenHashMap();
+                        counts.put(item1, rowCounts);
+                    }
+                    for (int j = i + 1; j < n; j++) {
+                        long item2 = vec.getKeyByIndex(j);
+                        rowSums.addTo(item2, v1 - vec.getValueByIndex(j));
+                        rowCounts.addTo(item2, 1);
+                    }
+                }
+            }
+        }
+
+        Long2ObjectMap<IncrementalSlopeOneModel.DeviationRow> rows = new Long2ObjectOpenHashMap<>(sums.size());
+        for (Long2ObjectMap.Entry<Long2DoubleOpenHashMap> e: Long2ObjectMaps.fastIterable(sums)) {
+            long item = e.getLongKey();
+            Long2DoubleOpenHashMap rowSums = e.getValue();
+            Long2IntOpenHashMap rowCounts = counts.get(item);
+            long[] others = rowSums.keySet().toLongArray();
+            LongArrays.quickSort(others);
+            int n = others.length;
+            double[] rs = new double[n];
+            int[] rc = new int[n];
+            for (int i = 0; i < n; i++) {
+                rs[i] = rowSums.get(others[i]);
+                rc[i] = rowCounts.get(others[i]);
+            }
+            rows.put(item, new IncrementalSlopeOneModel.DeviationRow(others, rs, rc, n));
+        }
+
+        logger.info("built slope-one deviation rows for {} items from {} users", rows.size(), users.size());
+        return new IncrementalSlopeOneModel(damping, users, rows);
+    }
+}
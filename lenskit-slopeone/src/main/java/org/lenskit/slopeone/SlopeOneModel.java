@@ -47,6 +47,14 @@ public class SlopeOneModel implements Serializable {
         this.matrix = matrix;
     }
 
+    /**
+     * Construct a model with no precomputed deviations, for subclasses that store their deviations
+     * differently and override {@link #getDeviation(long, long)} and {@link #getCoratings(long, long)}.
+     */
+    protected SlopeOneModel() {
+        this(KeyedObjectMap.<ModelRow>newBuilder().build());
+    }
+
     public double getDeviation(long item1, long item2) {
         if (item1 == item2) {
             return 0;
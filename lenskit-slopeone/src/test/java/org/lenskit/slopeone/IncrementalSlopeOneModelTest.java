@@ -0,0 +1,155 @@
+/*
+ * LensKit, an open-source toolkit for recommender systems.
+ * Copyright 2014-2017 LensKit contributors (see CONTRIBUTORS.md)
+ * Copyright 2010-2014 Regents of the University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.lenskit.slopeone;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.EntityFactory;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingUpdate;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.knn.item.model.ItemItemBuildContextProvider;
+import org.lenskit.transform.normalize.DefaultUserVectorNormalizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class IncrementalSlopeOneModelTest {
+    private static final double EPSILON = 1.0e-6;
+    private static final double DAMPING = 0.5;
+    private static final int NITEMS = 15;
+
+    private EntityFactory factory = new EntityFactory();
+    private List<Rating> ratings;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(20);
+        ratings = new ArrayList<>();
+        for (long u = 1; u <= 30; u++) {
+            for (long i = 1; i <= NITEMS; i++) {
+                if (rng.nextDouble() < 0.4) {
+                    ratings.add(factory.rating(u, i, 0.5 * (1 + rng.nextInt(10))));
+                }
+            }
+        }
+    }
+
+    private RatingVectorPDAO ratingDAO() {
+        return new StandardRatingVectorPDAO(StaticDataSource.fromList(ratings).get());
+    }
+
+    private void assertMatchesRebuild(SlopeOneModel model) {
+        ItemItemBuildContextProvider context = new ItemItemBuildContextProvider(ratingDAO(),
+                                                                                new DefaultUserVectorNormalizer());
+        SlopeOneModel expected = new SlopeOneModelProvider(context.get(), DAMPING).get();
+        for (long i = 1; i <= NITEMS; i++) {
+            for (long j = 1; j <= NITEMS; j++) {
+                assertEquals(expected.getCoratings(i, j), model.getCoratings(i, j));
+                assertEquals(expected.getDeviation(i, j), model.getDeviation(i, j), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testBuild() {
+        IncrementalSlopeOneModel model = new IncrementalSlopeOneModelProvider(ratingDAO(), DAMPING).get();
+        assertMatchesRebuild(model);
+    }
+
+    @Test
+    public void testRemoveRatings() {
+        IncrementalSlopeOneModel model = new IncrementalSlopeOneModelProvider(ratingDAO(), DAMPING).get();
+        Rating victim = ratings.get(17);
+        assertThat(model.removeRating(victim.getUserId(), victim.getItemId()), equalTo(true));
+        assertThat(model.removeRating(victim.getUserId(), victim.getItemId()), equalTo(false));
+        assertThat(model.removeUser(4), equalTo(true));
+        assertThat(model.removeUser(4), equalTo(false));
+
+        ratings = ratings.stream()
+                         .filter(r -> r != victim && r.getUserId() != 4)
+                         .collect(Collectors.toList());
+        assertMatchesRebuild(model);
+    }
+
+    @Test
+    public void testAddRatings() {
+        List<Rating> held = ratings.stream()
+                                   .filter(r -> r.getUserId() == 9 || r.getItemId() == 3)
+                                   .collect(Collectors.toList());
+        ratings.removeAll(held);
+        IncrementalSlopeOneModel model = new IncrementalSlopeOneModelProvider(ratingDAO(), DAMPING).get();
+        for (Rating r: held) {
+            model.addRating(r.getUserId(), r.getItemId(), r.getValue());
+            ratings.add(r);
+        }
+        assertMatchesRebuild(model);
+
+        // replacing a rating should not double-count it
+        Rating old = held.get(0);
+        model.addRating(old.getUserId(), old.getItemId(), 5.0);
+        ratings.remove(old);
+        ratings.add(factory.rating(old.getUserId(), old.getItemId(), 5.0));
+        assertMatchesRebuild(model);
+    }
+
+    @Test
+    public void testUpdate() {
+        List<Rating> held = ratings.stream()
+                                   .filter(r -> r.getUserId() == 9 || r.getItemId() == 3)
+                                   .collect(Collectors.toList());
+        ratings.removeAll(held);
+        IncrementalSlopeOneModel model = new IncrementalSlopeOneModelProvider(ratingDAO(), DAMPING).get();
+
+        List<Rating> removed = ratings.stream()
+                                      .filter(r -> r.getUserId() == 4 || r.getItemId() == 7)
+                                      .collect(Collectors.toList());
+        Rating old = ratings.stream()
+                            .filter(r -> r.getUserId() != 4 && r.getItemId() != 7)
+                            .findFirst()
+                            .get();
+        Rating replacement = Rating.newBuilder()
+                                   .setUserId(old.getUserId())
+                                   .setItemId(old.getItemId())
+                                   .setRating(5.0)
+                                   .build();
+        List<Rating> added = new ArrayList<>(held);
+        added.add(replacement);
+        model.update(RatingUpdate.create(added, removed));
+
+        ratings.removeAll(removed);
+        ratings.remove(old);
+        ratings.addAll(added);
+        assertMatchesRebuild(model);
+    }
+}
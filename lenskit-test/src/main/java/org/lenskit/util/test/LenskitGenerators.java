@@ -31,6 +31,10 @@ import net.java.quickcheck.generator.PrimitiveGenerators;
 import org.lenskit.data.ratings.Rating;
 import org.lenskit.data.ratings.RatingBuilder;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 /**
  * Generator classes for LensKit objects.
  */
@@ -45,6 +49,34 @@ public class LenskitGenerators {
         return rg;
     }
 
+    /**
+     * Create a reproducible list of random ratings with half-star values from 0.5 to 5.  The ratings have IDs 1
+     * through {@code n}, and are generated from a fixed seed so every call returns the same ratings.
+     *
+     * @param n The number of ratings.
+     * @param nusers The number of users; user IDs range from 1 to {@code nusers}.
+     * @param nitems The number of items; item IDs range from 1 to {@code nitems}.
+     * @param ntimestamps The number of distinct timestamps, ranging from 0 to {@code ntimestamps - 1}; use a small
+     *                    number to produce ties, or 0 to omit timestamps.
+     * @return The list of ratings.  A user may rate the same item more than once.
+     */
+    public static List<Rating> randomRatings(int n, int nusers, int nitems, int ntimestamps) {
+        Random rng = new Random(42);
+        List<Rating> ratings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            RatingBuilder rb = Rating.newBuilder()
+                                     .setId(i + 1)
+                                     .setUserId(rng.nextInt(nusers) + 1)
+                                     .setItemId(rng.nextInt(nitems) + 1)
+                                     .setRating(0.5 * (1 + rng.nextInt(10)));
+            if (ntimestamps > 0) {
+                rb.setTimestamp(rng.nextInt(ntimestamps));
+            }
+            ratings.add(rb.build());
+        }
+        return ratings;
+    }
+
     private static class RatingGenerator implements Generator<Rating> {
         private final LongSet usedIds = new LongOpenHashSet();
         private final Generator<Long> ids = PrimitiveGenerators.positiveLongs();